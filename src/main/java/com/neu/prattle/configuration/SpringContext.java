@@ -36,4 +36,20 @@ public class SpringContext implements ApplicationContextAware {
   public static <T> T getBean(Class<T> beanClass) {
     return context.getBean(beanClass);
   }
+
+  /**
+   * Returns a property from the environment of the application context.
+   *
+   * @param key          the property name.
+   * @param type         the expected type of the property.
+   * @param defaultValue the value to use if the property or the context is not available.
+   * @param <T>          the type of the property.
+   * @return the property value
+   */
+  public static <T> T getProperty(String key, Class<T> type, T defaultValue) {
+    if (context == null) {
+      return defaultValue;
+    }
+    return context.getEnvironment().getProperty(key, type, defaultValue);
+  }
 }
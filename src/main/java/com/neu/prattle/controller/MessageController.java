@@ -1,6 +1,11 @@
 package com.neu.prattle.controller;
 
+import com.neu.prattle.dto.ConversationPage;
 import com.neu.prattle.dto.MessageDTO;
+import com.neu.prattle.dto.MessagePage;
+import com.neu.prattle.dto.SyncPage;
+import com.neu.prattle.dto.UnreadCounts;
+import com.neu.prattle.exceptions.MessageDoesNotExistException;
 import com.neu.prattle.exceptions.UserDoesNotExistException;
 import com.neu.prattle.model.HashTag;
 import com.neu.prattle.model.Message;
@@ -16,9 +21,11 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Optional;
 
@@ -27,6 +34,21 @@ import java.util.Optional;
 @CrossOrigin(origins = {"http://com.northeastern.cs5500.team1.s3-website.us-east-2.amazonaws.com", "http://localhost:3000"})
 public class MessageController {
 
+  /**
+   * The most messages in a page of chat history.
+   */
+  static final int MAX_HISTORY_PAGE = 200;
+
+  /**
+   * The most conversations in a page of an inbox.
+   */
+  static final int MAX_INBOX_PAGE = 100;
+
+  /**
+   * The most changes in a page of a sync.
+   */
+  static final int MAX_SYNC_PAGE = 500;
+
   private MessageService messageService;
   private Logger logger = LoggerFactory.getLogger(MessageController.class);
   private HashTagService hashTagService;
@@ -54,6 +76,30 @@ public class MessageController {
     }
   }
 
+  /**
+   * Returns a page of the chat history of two users, read backwards from a cursor. The first
+   * page holds the latest messages; the next cursor of a page reads the messages before it.
+   *
+   * @param firstPersonUsername  the current user.
+   * @param secondPersonUsername the user the current user conversed with.
+   * @param before               the cursor, 0 for the latest messages.
+   * @param limit                the most messages in the page, at most MAX_HISTORY_PAGE.
+   * @return the page, oldest message first, empty if either user does not exist.
+   */
+  @GetMapping(value = "/{firstPersonUsername}/chathistory/{secondPersonUsername}/page")
+  public MessagePage getChatHistoryPage(@PathVariable String firstPersonUsername,
+                                        @PathVariable String secondPersonUsername,
+                                        @RequestParam(defaultValue = "0") int before,
+                                        @RequestParam(defaultValue = "50") int limit) {
+    try {
+      return messageService.getChatHistory(firstPersonUsername, secondPersonUsername, before,
+              Math.max(1, Math.min(limit, MAX_HISTORY_PAGE)));
+    } catch (UserDoesNotExistException e) {
+      logger.error("Either or both users do not exist");
+      return new MessagePage(new ArrayList<>(), before, false);
+    }
+  }
+
   @GetMapping(value = "/{firstPersonUsername}/chathistory/{secondPersonUsername}/newmsgcount")
   public int getNewMessageCount(@PathVariable String firstPersonUsername,
                                 @PathVariable String secondPersonUsername) {
@@ -66,6 +112,68 @@ public class MessageController {
     }
   }
 
+  /**
+   * Returns every unread count of a user in one call, so a client does not ask for the count of
+   * each of its conversations.
+   *
+   * @param username the user.
+   * @return the unread counts per sender, and per group the group-wide count of the messages no
+   *     member has read yet, empty if the user does not exist.
+   */
+  @GetMapping(value = "/{username}/unreadcounts")
+  public UnreadCounts getUnreadCounts(@PathVariable String username) {
+    try {
+      return messageService.getUnreadCounts(username);
+    } catch (UserDoesNotExistException e) {
+      logger.error("User does not exist");
+      return new UnreadCounts(new HashMap<>(), new HashMap<>());
+    }
+  }
+
+  /**
+   * Returns a page of the inbox of a user, the most recent conversation first, each with its
+   * latest message and unread count. The next cursor of a page reads the conversations after it.
+   *
+   * @param username the user.
+   * @param before   the cursor, 0 for the most recent conversations.
+   * @param limit    the most conversations in the page, at most MAX_INBOX_PAGE.
+   * @return the page, empty if the user does not exist.
+   */
+  @GetMapping(value = "/{username}/conversations")
+  public ConversationPage getInbox(@PathVariable String username,
+                                   @RequestParam(defaultValue = "0") int before,
+                                   @RequestParam(defaultValue = "20") int limit) {
+    try {
+      return messageService.getInbox(username, before,
+              Math.max(1, Math.min(limit, MAX_INBOX_PAGE)));
+    } catch (UserDoesNotExistException e) {
+      logger.error("User does not exist");
+      return new ConversationPage(new ArrayList<>(), before, false);
+    }
+  }
+
+  /**
+   * Returns the changes of a user since a cursor, across all their conversations, so that a
+   * client catching up reads only what changed. The next cursor of a page reads the changes
+   * after it; a page without more changes holds the cursor to sync from next time.
+   *
+   * @param username the user.
+   * @param since    the cursor, 0 to read every change.
+   * @param limit    the most changes in the page, at most MAX_SYNC_PAGE.
+   * @return the page, empty if the user does not exist.
+   */
+  @GetMapping(value = "/{username}/sync")
+  public SyncPage sync(@PathVariable String username,
+                       @RequestParam(defaultValue = "0") long since,
+                       @RequestParam(defaultValue = "100") int limit) {
+    try {
+      return messageService.sync(username, since, Math.max(1, Math.min(limit, MAX_SYNC_PAGE)));
+    } catch (UserDoesNotExistException e) {
+      logger.error("User does not exist");
+      return new SyncPage(new ArrayList<>(), since, false);
+    }
+  }
+
   /**
    * Updates the messageStatus for the given message id.
    *
@@ -108,6 +216,23 @@ public class MessageController {
     return hashTagService.getTopHashTags();
   }
 
+  /**
+   * Returns the data of a message attachment. Stashed messages are delivered with references to
+   * this endpoint instead of their attachment data.
+   *
+   * @param fileId the id of the attachment.
+   * @return the attachment data, null if there is no such attachment.
+   */
+  @GetMapping(value = "/attachment/{fileId}")
+  public String getAttachment(@PathVariable int fileId) {
+    try {
+      return messageService.getAttachmentData(fileId);
+    } catch (MessageDoesNotExistException e) {
+      logger.error("Attachment {} could not be found", fileId);
+      return null;
+    }
+  }
+
   @GetMapping(value = "/thread/{sourceMessageID}")
   public List<Message> searchMessagesInThread(@PathVariable int sourceMessageID) {
     return messageService.getMessagesForThread(sourceMessageID);
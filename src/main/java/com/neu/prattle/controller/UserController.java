@@ -9,6 +9,7 @@ import com.neu.prattle.model.UserIPMapper;
 import com.neu.prattle.repository.UserIPMapperRepository;
 import com.neu.prattle.service.UserService;
 import com.neu.prattle.utils.JwtUtil;
+import com.neu.prattle.websocket.ChatEndpoint;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -300,6 +301,26 @@ public class UserController {
     return optionalUser.map(User::getUsername).orElse(null);
   }
 
+  /***
+   * Handles a HTTP GET request for checking whether a user is connected to the chat.
+   *
+   * @return -> true if the user has at least one live chat session, else false.
+   */
+  @GetMapping(value = "/{userID}/online")
+  public boolean isOnline(@PathVariable int userID) {
+    return ChatEndpoint.getPresence().isOnline(userID);
+  }
+
+  /***
+   * Handles a HTTP GET request for the number of users connected to the chat.
+   *
+   * @return -> the number of users with at least one live chat session.
+   */
+  @GetMapping(value = "/online/count")
+  public int getOnlineCount() {
+    return ChatEndpoint.getPresence().getOnlineCount();
+  }
+
   @GetMapping(value = "/{username}/feeds")
   public List<UserFeedMapper> getUserFeeds(@PathVariable String username) throws UserDoesNotExistException {
     logger.info("Getting user feeds for {}", username);
@@ -0,0 +1,45 @@
+package com.neu.prattle.dto;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/**
+ * One page of a user's inbox, the most recent conversation first. The cursor is the id of the
+ * latest message of the last conversation of the page, the next page continues from it.
+ */
+public class ConversationPage {
+
+  private final List<ConversationSummary> conversations;
+
+  private final int nextCursor;
+
+  private final boolean hasMore;
+
+  /**
+   * Creates a page.
+   *
+   * @param conversations the conversations of the page
+   * @param nextCursor    the cursor to read the next page from
+   * @param hasMore       whether more conversations may follow the page
+   */
+  public ConversationPage(List<ConversationSummary> conversations, int nextCursor,
+                          boolean hasMore) {
+    this.conversations = conversations;
+    this.nextCursor = nextCursor;
+    this.hasMore = hasMore;
+  }
+
+  public List<ConversationSummary> getConversations() {
+    return conversations;
+  }
+
+  public int getNextCursor() {
+    return nextCursor;
+  }
+
+  @JsonProperty("hasMore")
+  public boolean hasMore() {
+    return hasMore;
+  }
+}
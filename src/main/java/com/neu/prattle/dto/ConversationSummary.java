@@ -0,0 +1,77 @@
+package com.neu.prattle.dto;
+
+import java.sql.Timestamp;
+
+/**
+ * One conversation of a user's inbox: the user or group conversed with, the latest message and
+ * the number of unread messages, for a group the group-wide count of the messages no member has
+ * read yet.
+ */
+public class ConversationSummary {
+
+  private final int peerId;
+
+  private final boolean group;
+
+  private final int lastMessageId;
+
+  private final int lastFromUserId;
+
+  private final String preview;
+
+  private final Timestamp lastTime;
+
+  private int unreadCount;
+
+  /**
+   * Creates a summary.
+   *
+   * @param peerId         id of the user conversed with, or of the group
+   * @param group          whether the conversation is a group
+   * @param lastMessageId  id of the latest message
+   * @param lastFromUserId id of the sender of the latest message
+   * @param preview        the start of the latest message, null if it is not shown
+   * @param lastTime       when the latest message was generated
+   */
+  public ConversationSummary(int peerId, boolean group, int lastMessageId, int lastFromUserId,
+                             String preview, Timestamp lastTime) {
+    this.peerId = peerId;
+    this.group = group;
+    this.lastMessageId = lastMessageId;
+    this.lastFromUserId = lastFromUserId;
+    this.preview = preview;
+    this.lastTime = lastTime;
+  }
+
+  public int getPeerId() {
+    return peerId;
+  }
+
+  public boolean isGroup() {
+    return group;
+  }
+
+  public int getLastMessageId() {
+    return lastMessageId;
+  }
+
+  public int getLastFromUserId() {
+    return lastFromUserId;
+  }
+
+  public String getPreview() {
+    return preview;
+  }
+
+  public Timestamp getLastTime() {
+    return lastTime;
+  }
+
+  public int getUnreadCount() {
+    return unreadCount;
+  }
+
+  public void setUnreadCount(int unreadCount) {
+    this.unreadCount = unreadCount;
+  }
+}
@@ -0,0 +1,46 @@
+package com.neu.prattle.dto;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.neu.prattle.model.Message;
+
+import java.util.List;
+
+/**
+ * One page of messages read with a keyset cursor. The cursor is the id of the last message read,
+ * the next page continues from it. Messages left out of the page after reading, such as filtered
+ * ones, still move the cursor.
+ */
+public class MessagePage {
+
+  private final List<Message> messages;
+
+  private final int nextCursor;
+
+  private final boolean hasMore;
+
+  /**
+   * Creates a page.
+   *
+   * @param messages   the messages of the page
+   * @param nextCursor the cursor to read the next page from
+   * @param hasMore    whether more messages may follow the page
+   */
+  public MessagePage(List<Message> messages, int nextCursor, boolean hasMore) {
+    this.messages = messages;
+    this.nextCursor = nextCursor;
+    this.hasMore = hasMore;
+  }
+
+  public List<Message> getMessages() {
+    return messages;
+  }
+
+  public int getNextCursor() {
+    return nextCursor;
+  }
+
+  @JsonProperty("hasMore")
+  public boolean hasMore() {
+    return hasMore;
+  }
+}
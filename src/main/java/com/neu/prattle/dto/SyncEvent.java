@@ -0,0 +1,75 @@
+package com.neu.prattle.dto;
+
+import com.neu.prattle.model.Message;
+import com.neu.prattle.model.MessageStatus;
+
+/**
+ * One change a user has to catch up on, numbered by the user's sequence: a new message, the new
+ * status of a message or the expiry of a self-destruct message.
+ */
+public class SyncEvent {
+
+  /**
+   * A message was saved; the event carries the message.
+   */
+  public static final String MESSAGE = "message";
+
+  /**
+   * The status of a message changed; the event carries the new status.
+   */
+  public static final String STATUS = "status";
+
+  /**
+   * A self-destruct message expired and is no longer read back.
+   */
+  public static final String EXPIRED = "expired";
+
+  private final long seq;
+
+  private final String type;
+
+  private final int messageId;
+
+  private final MessageStatus status;
+
+  private Message message;
+
+  /**
+   * Creates an event.
+   *
+   * @param seq       the sequence number of the event for its user
+   * @param type      the type of the event
+   * @param messageId id of the message
+   * @param status    the new status of the message, null unless the status changed
+   */
+  public SyncEvent(long seq, String type, int messageId, MessageStatus status) {
+    this.seq = seq;
+    this.type = type;
+    this.messageId = messageId;
+    this.status = status;
+  }
+
+  public long getSeq() {
+    return seq;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public int getMessageId() {
+    return messageId;
+  }
+
+  public MessageStatus getStatus() {
+    return status;
+  }
+
+  public Message getMessage() {
+    return message;
+  }
+
+  public void setMessage(Message message) {
+    this.message = message;
+  }
+}
@@ -0,0 +1,44 @@
+package com.neu.prattle.dto;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/**
+ * One page of the changes of a user, in sequence order. The cursor is the sequence number of the
+ * last change read, the next page continues from it.
+ */
+public class SyncPage {
+
+  private final List<SyncEvent> events;
+
+  private final long nextCursor;
+
+  private final boolean hasMore;
+
+  /**
+   * Creates a page.
+   *
+   * @param events     the changes of the page
+   * @param nextCursor the cursor to read the next page from
+   * @param hasMore    whether more changes may follow the page
+   */
+  public SyncPage(List<SyncEvent> events, long nextCursor, boolean hasMore) {
+    this.events = events;
+    this.nextCursor = nextCursor;
+    this.hasMore = hasMore;
+  }
+
+  public List<SyncEvent> getEvents() {
+    return events;
+  }
+
+  public long getNextCursor() {
+    return nextCursor;
+  }
+
+  @JsonProperty("hasMore")
+  public boolean hasMore() {
+    return hasMore;
+  }
+}
@@ -0,0 +1,37 @@
+package com.neu.prattle.dto;
+
+import java.util.Map;
+
+/**
+ * The unread messages of a user: for every sender the number of private messages they sent the
+ * user that are still DELIVERED, and for every group of the user the number of group messages
+ * other members sent that no member has read yet. The status of a group message is shared by the
+ * whole group, so the group counts are group-wide and not the unread counts of the member: a
+ * group message one member read no longer counts for any member. Conversations without unread
+ * messages are left out.
+ */
+public class UnreadCounts {
+
+  private final Map<Integer, Integer> users;
+
+  private final Map<Integer, Integer> groupsUnreadByAll;
+
+  /**
+   * Creates the counts of a user.
+   *
+   * @param users             the unread counts keyed by the id of the sender
+   * @param groupsUnreadByAll the group-wide counts keyed by the id of the group
+   */
+  public UnreadCounts(Map<Integer, Integer> users, Map<Integer, Integer> groupsUnreadByAll) {
+    this.users = users;
+    this.groupsUnreadByAll = groupsUnreadByAll;
+  }
+
+  public Map<Integer, Integer> getUsers() {
+    return users;
+  }
+
+  public Map<Integer, Integer> getGroupsUnreadByAll() {
+    return groupsUnreadByAll;
+  }
+}
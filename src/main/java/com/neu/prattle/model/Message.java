@@ -17,6 +17,7 @@ import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.JoinColumn;
 import javax.persistence.JoinTable;
 import javax.persistence.ManyToMany;
@@ -32,7 +33,9 @@ import javax.persistence.Table;
  * @version dated 2020-06-08
  */
 @Entity
-@Table(name = "message")
+// the schema is not generated, the index is created by db/message-conversation-index.sql
+@Table(name = "message", indexes = @Index(name = "idx_message_conversation",
+        columnList = "from_user_id, to_user_id, msg_id"))
 @SecondaryTable(name = "message_type_details", pkJoinColumns = @PrimaryKeyJoinColumn(name = "msg_id"))
 @SecondaryTable(name = "message_encryption", pkJoinColumns = @PrimaryKeyJoinColumn(name = "msg_id"))
 public class Message {
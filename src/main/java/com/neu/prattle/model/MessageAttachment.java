@@ -1,6 +1,7 @@
 package com.neu.prattle.model;
 
 import com.fasterxml.jackson.annotation.JsonBackReference;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 
 import java.util.Objects;
 
@@ -12,6 +13,7 @@ import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.Table;
+import javax.persistence.Transient;
 
 @Entity
 @Table(name = "msg_attachment_map")
@@ -30,6 +32,14 @@ public class MessageAttachment {
   @Column(name = "web_url")
   private String webUrl;
 
+  /**
+   * Whether the web url already is the path of the stored attachment file, set for attachments
+   * written to the attachment store while their message was decoded.
+   */
+  @Transient
+  @JsonIgnore
+  private boolean stored;
+
   public MessageAttachment() {
     // default constructor for jpa
   }
@@ -58,6 +68,14 @@ public class MessageAttachment {
     this.webUrl = webUrl;
   }
 
+  public boolean isStored() {
+    return stored;
+  }
+
+  public void setStored(boolean stored) {
+    this.stored = stored;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) return true;
@@ -0,0 +1,149 @@
+package com.neu.prattle.repository;
+
+import com.neu.prattle.dto.ConversationSummary;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Repository of the conversation index, the latest message of every conversation, so that an
+ * inbox is read without reading any message. A private conversation has one row per user, owned
+ * by the user and naming the other user as peer; a group conversation has a single row, owned by
+ * no one (owner 0) and naming the group as peer. The table, created by
+ * db/conversation-index.sql, is:
+ * <pre>
+ *   create table conversation_index (
+ *     owner_id int not null,
+ *     peer_id int not null,
+ *     is_group boolean not null,
+ *     last_msg_id int not null,
+ *     last_from_user_id int not null,
+ *     preview varchar(100),
+ *     last_time timestamp null,
+ *     primary key (owner_id, peer_id, is_group),
+ *     index idx_conversation_recency (owner_id, is_group, last_msg_id)
+ *   )
+ * </pre>
+ * A row only ever moves forward: a message older than the one a row holds leaves it unchanged,
+ * so rows can be written in any order.
+ */
+@Repository
+public class ConversationIndexRepository {
+
+  private static final String UPSERT = "insert into conversation_index (owner_id, peer_id, "
+          + "is_group, last_msg_id, last_from_user_id, preview, last_time) "
+          + "values (?, ?, ?, ?, ?, ?, ?) on duplicate key update "
+          + "last_from_user_id = if(values(last_msg_id) > last_msg_id, "
+          + "values(last_from_user_id), last_from_user_id), "
+          + "preview = if(values(last_msg_id) > last_msg_id, values(preview), preview), "
+          + "last_time = if(values(last_msg_id) > last_msg_id, values(last_time), last_time), "
+          + "last_msg_id = greatest(last_msg_id, values(last_msg_id))";
+  private static final String SELECT_PAGE = "select peer_id, is_group, last_msg_id, "
+          + "last_from_user_id, preview, last_time from conversation_index where ";
+
+  private JdbcTemplate jdbcTemplate;
+
+  @Autowired
+  public void setJdbcTemplate(JdbcTemplate jdbcTemplate) {
+    this.jdbcTemplate = jdbcTemplate;
+  }
+
+  /**
+   * Moves the rows of a batch of conversations forward, inserting the missing ones.
+   *
+   * @param entries the latest message of each conversation
+   */
+  public void upsertAll(Collection<Entry> entries) {
+    List<Object[]> rows = new ArrayList<>();
+    for (Entry entry : entries) {
+      rows.add(new Object[]{entry.ownerId, entry.peerId, entry.group, entry.messageId,
+              entry.fromUserId, entry.preview, entry.time});
+    }
+    jdbcTemplate.batchUpdate(UPSERT, rows);
+  }
+
+  /**
+   * Reads a page of the inbox of a user, the most recent conversation first.
+   *
+   * @param userId          id of the user
+   * @param groupIds        ids of the groups of the user
+   * @param beforeMessageId only conversations whose latest message has a smaller id are read
+   * @param limit           the page size
+   * @return the page
+   */
+  public List<ConversationSummary> findPage(int userId, Collection<Integer> groupIds,
+                                            int beforeMessageId, int limit) {
+    StringBuilder sql = new StringBuilder(SELECT_PAGE)
+            .append("((owner_id = ? and is_group = false)");
+    List<Object> args = new ArrayList<>();
+    args.add(userId);
+    if (!groupIds.isEmpty()) {
+      sql.append(" or (owner_id = 0 and is_group = true and peer_id in (");
+      for (int groupId : groupIds) {
+        sql.append(args.size() == 1 ? "?" : ", ?");
+        args.add(groupId);
+      }
+      sql.append("))");
+    }
+    sql.append(") and last_msg_id < ? order by last_msg_id desc limit ?");
+    args.add(beforeMessageId);
+    args.add(limit);
+    return jdbcTemplate.query(sql.toString(), args.toArray(), (rs, rowNum) ->
+            new ConversationSummary(rs.getInt(1), rs.getBoolean(2), rs.getInt(3), rs.getInt(4),
+                    rs.getString(5), rs.getTimestamp(6)));
+  }
+
+  /**
+   * The latest message of a conversation, as written to its row.
+   */
+  public static final class Entry {
+    private final int ownerId;
+    private final int peerId;
+    private final boolean group;
+    private final int messageId;
+    private final int fromUserId;
+    private final String preview;
+    private final Timestamp time;
+
+    /**
+     * Creates an entry.
+     *
+     * @param ownerId    id of the user owning the row, 0 for a group
+     * @param peerId     id of the other user, or of the group
+     * @param group      whether the conversation is a group
+     * @param messageId  id of the message
+     * @param fromUserId id of the sender of the message
+     * @param preview    the start of the message, null if it is not shown
+     * @param time       when the message was generated
+     */
+    public Entry(int ownerId, int peerId, boolean group, int messageId, int fromUserId,
+                 String preview, Timestamp time) {
+      this.ownerId = ownerId;
+      this.peerId = peerId;
+      this.group = group;
+      this.messageId = messageId;
+      this.fromUserId = fromUserId;
+      this.preview = preview;
+      this.time = time;
+    }
+
+    /**
+     * Returns the key of the row of the entry.
+     *
+     * @return the key
+     */
+    public String getKey() {
+      return ownerId + ":" + peerId + ":" + group;
+    }
+
+    public int getMessageId() {
+      return messageId;
+    }
+  }
+}
@@ -8,6 +8,8 @@ import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.sql.Timestamp;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -27,13 +29,25 @@ public interface HashTagRepository extends CrudRepository<HashTag, Integer> {
   Optional<HashTag> findByHashtagString(String hashtagString);
 
   /**
-   * Return all messages associated with a hashtag string.
+   * Returns the hashtags that already exist among several hashtag strings, in one query.
+   *
+   * @param hashtagStrings hashtags to be searched
+   * @return the existing hashtags
+   */
+  List<HashTag> findByHashtagStringIn(Collection<String> hashtagStrings);
+
+  /**
+   * Return all messages associated with a hashtag string, leaving out the self-destruct messages
+   * generated before a time.
    *
    * @param hashTagString hashtag string
+   * @param expiredBefore self-destruct messages generated before it have expired
    * @return list of messages
    */
-  @Query("Select h.messages from HashTag h where h.hashtagString = :hashtagString")
-  List<Message> findMessagesByHashtagString(@Param("hashtagString") String hashTagString);
+  @Query("Select m from HashTag h join h.messages m where h.hashtagString = :hashtagString"
+          + " and (m.isSelfDestructMessage = false or m.generatedTime >= :expiredBefore)")
+  List<Message> findMessagesByHashtagString(@Param("hashtagString") String hashTagString,
+                                            @Param("expiredBefore") Timestamp expiredBefore);
 
   List<HashTag> findTop5ByOrderBySearchHitsDesc();
 }
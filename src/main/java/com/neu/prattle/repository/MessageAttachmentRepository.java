@@ -0,0 +1,14 @@
+package com.neu.prattle.repository;
+
+import com.neu.prattle.model.MessageAttachment;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Repository interface associated with the msg_attachment_map table to support basic CRUD
+ * operations on message attachments.
+ */
+@Repository
+public interface MessageAttachmentRepository extends JpaRepository<MessageAttachment, Integer> {
+}
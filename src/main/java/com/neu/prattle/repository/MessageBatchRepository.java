@@ -0,0 +1,298 @@
+package com.neu.prattle.repository;
+
+import com.neu.prattle.model.HashTag;
+import com.neu.prattle.model.Message;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Repository writing messages to the message tables with JDBC batches. Used by the write-behind
+ * buffer, one flush is a single transaction with one batch per table instead of one round trip
+ * per message and table, and by the purge of expired self-destruct messages, which deletes a
+ * batch of messages with one statement per table.
+ */
+@Repository
+public class MessageBatchRepository {
+
+  private static final String INSERT_MESSAGE = "insert into message (msg_id, source_msg_id, "
+          + "content, from_user_id, to_user_id, message_status, msg_subject, hasAttachment, "
+          + "generation_time) values (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+  private static final String INSERT_TYPE_DETAILS = "insert into message_type_details (msg_id, "
+          + "isBroadcastMsg, isPrivateMsg, isGroupMsg, isForwardedMsg, isSelfDestruct, "
+          + "isEncrypyted) values (?, ?, ?, ?, ?, ?, ?)";
+  private static final String INSERT_ENCRYPTION =
+          "insert into message_encryption (msg_id, enryption_key) values (?, ?)";
+  private static final String INSERT_HASHTAG_MAPPING =
+          "insert into msg_hashtag_mapping (msg_id, hashtag_id) values (?, ?)";
+  private static final String INSERT_ATTACHMENT =
+          "insert into msg_attachment_map (message_id, web_url) values (?, ?)";
+
+  private static final String SELECT_SELF_DESTRUCT = "select m.msg_id, m.from_user_id, "
+          + "m.to_user_id, m.generation_time, d.isGroupMsg, d.isBroadcastMsg from message m "
+          + "join message_type_details d on m.msg_id = d.msg_id where d.isSelfDestruct = true";
+  private static final String SELECT_ATTACHMENT_PATHS =
+          "select web_url from msg_attachment_map where message_id in ";
+  private static final String[] DELETE_MESSAGE = {
+          "delete from msg_hashtag_mapping where msg_id in ",
+          "delete from msg_attachment_map where message_id in ",
+          "delete from message_encryption where msg_id in ",
+          "delete from message_type_details where msg_id in ",
+          "delete from message where msg_id in "};
+
+  private JdbcTemplate jdbcTemplate;
+
+  @Autowired
+  public void setJdbcTemplate(JdbcTemplate jdbcTemplate) {
+    this.jdbcTemplate = jdbcTemplate;
+  }
+
+  /**
+   * Returns the highest message id in the message table.
+   *
+   * @return the highest id, 0 if the table is empty
+   */
+  public int findMaxMessageId() {
+    Integer max = jdbcTemplate.queryForObject("select max(msg_id) from message", Integer.class);
+    return max == null ? 0 : max;
+  }
+
+  /**
+   * Inserts a batch of messages together with their type details, encryption keys, hashtag
+   * mappings and attachments.
+   *
+   * @param rows the messages to insert
+   */
+  @Transactional
+  public void insertAll(List<Row> rows) {
+    List<Object[]> messages = new ArrayList<>();
+    List<Object[]> typeDetails = new ArrayList<>();
+    List<Object[]> encryptions = new ArrayList<>();
+    List<Object[]> hashTags = new ArrayList<>();
+    List<Object[]> attachments = new ArrayList<>();
+    for (Row row : rows) {
+      messages.add(new Object[]{row.messageId, row.sourceMessageId, row.content, row.fromUserId,
+              row.toUserId, row.messageStatus, row.messageSubject, row.hasAttachment,
+              row.generatedTime == null ? null : new Timestamp(row.generatedTime)});
+      typeDetails.add(new Object[]{row.messageId, row.isBroadcastMessage, row.isPrivateMessage,
+              row.isGroupMessage, row.isForwardedMessage, row.isSelfDestructMessage,
+              row.isEncryptedMessage});
+      if (row.encryptionString != null) {
+        encryptions.add(new Object[]{row.messageId, row.encryptionString});
+      }
+      for (int hashTagId : row.hashTagIds) {
+        hashTags.add(new Object[]{row.messageId, hashTagId});
+      }
+      for (String path : row.attachmentPaths) {
+        attachments.add(new Object[]{row.messageId, path});
+      }
+    }
+    jdbcTemplate.batchUpdate(INSERT_MESSAGE, messages);
+    jdbcTemplate.batchUpdate(INSERT_TYPE_DETAILS, typeDetails);
+    if (!encryptions.isEmpty()) {
+      jdbcTemplate.batchUpdate(INSERT_ENCRYPTION, encryptions);
+    }
+    if (!hashTags.isEmpty()) {
+      jdbcTemplate.batchUpdate(INSERT_HASHTAG_MAPPING, hashTags);
+    }
+    if (!attachments.isEmpty()) {
+      jdbcTemplate.batchUpdate(INSERT_ATTACHMENT, attachments);
+    }
+  }
+
+  /**
+   * Returns every self-destruct message, expired or not, with what is needed to expire it.
+   *
+   * @return the messages
+   */
+  public List<Expiring> findSelfDestructMessages() {
+    return jdbcTemplate.query(SELECT_SELF_DESTRUCT, (rs, rowNum) -> {
+      Timestamp generatedTime = rs.getTimestamp(4);
+      return new Expiring(rs.getInt(1), rs.getInt(2), rs.getInt(3),
+              generatedTime == null ? 0 : generatedTime.getTime(), rs.getBoolean(5),
+              rs.getBoolean(6));
+    });
+  }
+
+  /**
+   * Deletes a batch of messages together with their type details, encryption keys, hashtag
+   * mappings and attachments.
+   *
+   * @param messageIds ids of the messages
+   * @return the paths of the attachment files of the deleted messages, to be deleted once the
+   *         transaction committed
+   */
+  @Transactional
+  public List<String> deleteAll(List<Integer> messageIds) {
+    if (messageIds.isEmpty()) {
+      return Collections.emptyList();
+    }
+    StringBuilder in = new StringBuilder("(");
+    for (int i = 0; i < messageIds.size(); i++) {
+      in.append(i == 0 ? "?" : ", ?");
+    }
+    in.append(')');
+    Object[] ids = messageIds.toArray();
+    List<String> paths = jdbcTemplate.queryForList(SELECT_ATTACHMENT_PATHS + in, String.class,
+            ids);
+    for (String delete : DELETE_MESSAGE) {
+      jdbcTemplate.update(delete + in, ids);
+    }
+    return paths;
+  }
+
+  /**
+   * A self-destruct message, as far as its expiry is concerned.
+   */
+  public static final class Expiring {
+    private final int messageId;
+    private final int fromUserId;
+    private final int toUserId;
+    private final long generatedTime;
+    private final boolean groupMessage;
+    private final boolean broadcastMessage;
+
+    /**
+     * Creates an expiring message.
+     *
+     * @param messageId        id of the message
+     * @param fromUserId       id of the sender
+     * @param toUserId         id of the recipient, or of the group for a group message
+     * @param generatedTime    when the message was generated, in epoch milliseconds
+     * @param groupMessage     whether the message was sent to a group
+     * @param broadcastMessage whether the message was broadcast
+     */
+    public Expiring(int messageId, int fromUserId, int toUserId, long generatedTime,
+                    boolean groupMessage, boolean broadcastMessage) {
+      this.messageId = messageId;
+      this.fromUserId = fromUserId;
+      this.toUserId = toUserId;
+      this.generatedTime = generatedTime;
+      this.groupMessage = groupMessage;
+      this.broadcastMessage = broadcastMessage;
+    }
+
+    /**
+     * Captures the expiry of a message.
+     *
+     * @param message the message
+     * @return the expiring message
+     */
+    public static Expiring of(Message message) {
+      return new Expiring(message.getMessageId(), message.getFromUserId(),
+              message.getToUserId(), message.getGeneratedTime() == null
+              ? System.currentTimeMillis() : message.getGeneratedTime().getTime(),
+              message.getIsGroupMessage(), message.getIsBroadcastMessage());
+    }
+
+    public int getMessageId() {
+      return messageId;
+    }
+
+    public int getFromUserId() {
+      return fromUserId;
+    }
+
+    public int getToUserId() {
+      return toUserId;
+    }
+
+    public long getGeneratedTime() {
+      return generatedTime;
+    }
+
+    public boolean isGroupMessage() {
+      return groupMessage;
+    }
+
+    public boolean isBroadcastMessage() {
+      return broadcastMessage;
+    }
+  }
+
+  /**
+   * The column values of a message, captured when the message is accepted so that later changes
+   * to the message object do not leak into the row.
+   */
+  public static final class Row {
+    private int messageId;
+    private int sourceMessageId;
+    private String content;
+    private int fromUserId;
+    private int toUserId;
+    private String messageStatus;
+    private String messageSubject;
+    private boolean hasAttachment;
+    private Long generatedTime;
+    private boolean isBroadcastMessage;
+    private boolean isPrivateMessage;
+    private boolean isGroupMessage;
+    private boolean isForwardedMessage;
+    private boolean isSelfDestructMessage;
+    private boolean isEncryptedMessage;
+    private String encryptionString;
+    private List<Integer> hashTagIds = Collections.emptyList();
+    private List<String> attachmentPaths = Collections.emptyList();
+
+    private Row() {
+      // used when reading rows back from the append log
+    }
+
+    /**
+     * Captures the columns of a message whose attachments were already stored.
+     *
+     * @param message         the message
+     * @param attachmentPaths the paths of the stored attachment files
+     * @return the row
+     */
+    public static Row of(Message message, List<String> attachmentPaths) {
+      Row row = new Row();
+      row.messageId = message.getMessageId();
+      row.sourceMessageId = message.getSourceMessageId();
+      row.content = message.getContent();
+      row.fromUserId = message.getFromUserId();
+      row.toUserId = message.getToUserId();
+      row.messageStatus = message.getMessageStatus() == null
+              ? null : message.getMessageStatus().name();
+      row.messageSubject = message.getMessageSubject();
+      row.hasAttachment = message.hasAttachment();
+      row.generatedTime = message.getGeneratedTime() == null
+              ? null : message.getGeneratedTime().getTime();
+      row.isBroadcastMessage = message.getIsBroadcastMessage();
+      row.isPrivateMessage = message.getIsPrivateMessage();
+      row.isGroupMessage = message.getIsGroupMessage();
+      row.isForwardedMessage = message.getIsForwardedMessage();
+      row.isSelfDestructMessage = message.getIsSelfDestructMessage();
+      row.isEncryptedMessage = message.getIsEncryptedMessage();
+      row.encryptionString = message.getEncryptionString();
+      if (message.getHashTagSet() != null) {
+        row.hashTagIds = new ArrayList<>();
+        for (HashTag hashTag : message.getHashTagSet()) {
+          row.hashTagIds.add(hashTag.getHashtagId());
+        }
+      }
+      row.attachmentPaths = new ArrayList<>(attachmentPaths);
+      return row;
+    }
+
+    public int getMessageId() {
+      return messageId;
+    }
+
+    @Override
+    public String toString() {
+      return "Row{" +
+              "messageId=" + messageId +
+              ", fromUserId=" + fromUserId +
+              ", toUserId=" + toUserId +
+              '}';
+    }
+  }
+}
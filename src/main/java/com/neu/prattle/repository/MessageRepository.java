@@ -7,6 +7,8 @@ import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.sql.Timestamp;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -16,26 +18,126 @@ import java.util.List;
 @Repository
 public interface MessageRepository extends JpaRepository<Message, Integer> {
 
-  List<Message> findByToUserId(int id);
+  /**
+   * Reads the messages received by a user ordered by id, leaving out the self-destruct messages
+   * generated before a time.
+   *
+   * @param toUserId      id of the receiving user
+   * @param expiredBefore self-destruct messages generated before it have expired
+   * @return the messages
+   */
+  @Query("select m from Message m where m.toUserId = :to_user_id"
+          + " and (m.isSelfDestructMessage = false or m.generatedTime >= :expired_before)"
+          + " order by m.messageId")
+  List<Message> findReceivedMessages(@Param("to_user_id") int toUserId,
+                                     @Param("expired_before") Timestamp expiredBefore);
 
+  /**
+   * Reads messages by id, leaving out the self-destruct messages generated before a time.
+   *
+   * @param messageIds    ids of the messages
+   * @param expiredBefore self-destruct messages generated before it have expired
+   * @return the messages, in no particular order
+   */
+  @Query("select m from Message m where m.messageId in :message_ids"
+          + " and (m.isSelfDestructMessage = false or m.generatedTime >= :expired_before)")
+  List<Message> findUnexpiredByIds(@Param("message_ids") Collection<Integer> messageIds,
+                                   @Param("expired_before") Timestamp expiredBefore);
 
-  @Query("select m from Message m where m.fromUserId = :from_user_id "
-          + "and m.toUserId = :to_user_id ")
-  List<Message> findByFromUserIdAndToUserId(@Param("from_user_id") int fromUserId,
-                                            @Param("to_user_id") int toUserId);
+  /**
+   * Reads the conversation between two users, both directions in one query ordered by id,
+   * leaving out the self-destruct messages generated before a time.
+   *
+   * @param firstUserId   id of one user
+   * @param secondUserId  id of the other user
+   * @param expiredBefore self-destruct messages generated before it have expired
+   * @return the messages
+   */
+  @Query("select m from Message m where ((m.fromUserId = :first_user_id"
+          + " and m.toUserId = :second_user_id) or (m.fromUserId = :second_user_id"
+          + " and m.toUserId = :first_user_id))"
+          + " and (m.isSelfDestructMessage = false or m.generatedTime >= :expired_before)"
+          + " order by m.messageId")
+  List<Message> findConversation(@Param("first_user_id") int firstUserId,
+                                 @Param("second_user_id") int secondUserId,
+                                 @Param("expired_before") Timestamp expiredBefore);
 
-  @Query("select m from Message m where m.fromUserId = :from_user_id "
-          + "and m.toUserId = :to_user_id "
-          + "and m.messageStatus = com.neu.prattle.model.MessageStatus.DELIVERED")
-  List<Message> findNewMessages(@Param("from_user_id") int fromUserId,
-                                @Param("to_user_id") int toUserId);
+  /**
+   * Counts the private messages received by a user that are still DELIVERED, per sender.
+   *
+   * @param toUserId id of the receiving user
+   * @return pairs of sender id and count
+   */
+  @Query("select m.fromUserId, count(m) from Message m where m.toUserId = :to_user_id "
+          + "and m.isGroupMessage = false and m.isBroadcastMessage = false "
+          + "and m.messageStatus = com.neu.prattle.model.MessageStatus.DELIVERED "
+          + "group by m.fromUserId")
+  List<Object[]> countNewMessagesBySender(@Param("to_user_id") int toUserId);
+
+  /**
+   * Counts the group messages that are still DELIVERED, per group and sender, so that the
+   * messages a member sent can be left out of their count.
+   *
+   * @param groupIds ids of the groups
+   * @return triples of group id, sender id and count
+   */
+  @Query("select m.toUserId, m.fromUserId, count(m) from Message m "
+          + "where m.toUserId in :group_ids and m.isGroupMessage = true "
+          + "and m.messageStatus = com.neu.prattle.model.MessageStatus.DELIVERED "
+          + "group by m.toUserId, m.fromUserId")
+  List<Object[]> countNewMessagesByGroup(@Param("group_ids") Collection<Integer> groupIds);
 
   @Query(value = "select * from message join user on message.to_user_id = `user`.user_id " +
           "join message_type_details mtd on message.msg_id = mtd.msg_id " +
           "left join message_encryption me on message.msg_id = me.msg_id" +
           " where message.generation_time > `user`.last_log_out_time" +
-          " and `user`.user_id = ?1 ", nativeQuery = true)
-  List<Message> fetchUnreadMessages(@Param("to_user_id") int toUserId);
+          " and `user`.user_id = ?1" +
+          " and (mtd.isSelfDestruct = false or message.generation_time >= ?2)" +
+          " order by message.msg_id", nativeQuery = true)
+  List<Message> fetchUnreadMessages(int toUserId, Timestamp expiredBefore);
+
+  @Query(value = "select * from message join user on message.to_user_id = `user`.user_id " +
+          "join message_type_details mtd on message.msg_id = mtd.msg_id " +
+          "left join message_encryption me on message.msg_id = me.msg_id" +
+          " where message.generation_time > `user`.last_log_out_time" +
+          " and `user`.user_id = ?1 and message.msg_id > ?2" +
+          " and (mtd.isSelfDestruct = false or message.generation_time >= ?4)" +
+          " order by message.msg_id limit ?3", nativeQuery = true)
+  List<Message> fetchUnreadMessagesAfter(int toUserId, int afterMessageId, int limit,
+                                         Timestamp expiredBefore);
+
+  /**
+   * Reads a page of the conversation between two users backwards from a cursor, leaving out the
+   * self-destruct messages generated before a time. Each direction is a range scan of the
+   * conversation index on (from_user_id, to_user_id, msg_id), created by
+   * db/message-conversation-index.sql, that stops after the page size; the two are merged and
+   * cut to the page size before the rows are joined, so a page costs the same however long the
+   * conversation is.
+   *
+   * @param firstUserId     id of one user
+   * @param secondUserId    id of the other user
+   * @param beforeMessageId only messages with a smaller id are read
+   * @param limit           the page size
+   * @param expiredBefore   self-destruct messages generated before it have expired
+   * @return the page, oldest first
+   */
+  @Query(value = "select * from ("
+          + "(select m.msg_id from message m join message_type_details d on m.msg_id = d.msg_id"
+          + " where m.from_user_id = ?1 and m.to_user_id = ?2 and m.msg_id < ?3"
+          + " and (d.isSelfDestruct = false or m.generation_time >= ?5)"
+          + " order by m.msg_id desc limit ?4)"
+          + " union "
+          + "(select m.msg_id from message m join message_type_details d on m.msg_id = d.msg_id"
+          + " where m.from_user_id = ?2 and m.to_user_id = ?1 and m.msg_id < ?3"
+          + " and (d.isSelfDestruct = false or m.generation_time >= ?5)"
+          + " order by m.msg_id desc limit ?4)"
+          + " order by msg_id desc limit ?4) page"
+          + " join message on message.msg_id = page.msg_id"
+          + " join message_type_details mtd on message.msg_id = mtd.msg_id"
+          + " left join message_encryption me on message.msg_id = me.msg_id"
+          + " order by message.msg_id", nativeQuery = true)
+  List<Message> fetchConversationBefore(int firstUserId, int secondUserId, int beforeMessageId,
+                                        int limit, Timestamp expiredBefore);
 
   List<Message> findAllBySourceMessageIdOrderByGeneratedTime(int sourceMessageID);
 }
@@ -0,0 +1,165 @@
+package com.neu.prattle.repository;
+
+import com.neu.prattle.dto.SyncEvent;
+import com.neu.prattle.model.MessageStatus;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Repository of the sync log, the changes every user has to catch up on numbered by a sequence
+ * of their own, so that a reconnecting client reads what changed since its cursor and nothing
+ * else. The last sequence number of every user is kept in a counter table and the numbers of a
+ * batch are allocated in the transaction that writes it, so any number of application instances
+ * can append to the log of the same user. The tables, created by db/sync-log.sql, are:
+ * <pre>
+ *   create table sync_log (
+ *     user_id int not null,
+ *     seq bigint not null,
+ *     event_type varchar(10) not null,
+ *     msg_id int not null,
+ *     msg_status varchar(20) null,
+ *     primary key (user_id, seq)
+ *   )
+ *   create table sync_seq (
+ *     user_id int not null primary key,
+ *     seq bigint not null
+ *   )
+ * </pre>
+ * The script also seeds sync_seq from a sync_log written before sync_seq existed.
+ */
+@Repository
+public class SyncLogRepository {
+
+  /**
+   * The most users whose sequences are read by one query.
+   */
+  private static final int SEQ_QUERY_SIZE = 500;
+
+  private static final String INSERT = "insert into sync_log (user_id, seq, event_type, msg_id, "
+          + "msg_status) values (?, ?, ?, ?, ?)";
+  private static final String ALLOCATE = "insert into sync_seq (user_id, seq) values (?, ?) "
+          + "on duplicate key update seq = seq + values(seq)";
+  private static final String SELECT_SEQ = "select user_id, seq from sync_seq where user_id in (";
+  private static final String SELECT_AFTER = "select seq, event_type, msg_id, msg_status "
+          + "from sync_log where user_id = ? and seq > ? order by seq limit ?";
+
+  private JdbcTemplate jdbcTemplate;
+
+  @Autowired
+  public void setJdbcTemplate(JdbcTemplate jdbcTemplate) {
+    this.jdbcTemplate = jdbcTemplate;
+  }
+
+  /**
+   * Numbers a batch of events and appends them, all or none of them. The events of a user are
+   * numbered in the order of the batch. The counters of the users are moved forward in user id
+   * order and stay locked until the batch is written, so a batch written concurrently for the
+   * same user is numbered after this one and committed after it: the log of a user never has a
+   * gap or a number committed out of order.
+   *
+   * @param entries the events and their users
+   */
+  @Transactional
+  public void appendAll(List<Entry> entries) {
+    Map<Integer, Integer> counts = new TreeMap<>();
+    for (Entry entry : entries) {
+      counts.merge(entry.userId, 1, Integer::sum);
+    }
+    List<Object[]> allocations = new ArrayList<>();
+    counts.forEach((userId, count) -> allocations.add(new Object[]{userId, count}));
+    jdbcTemplate.batchUpdate(ALLOCATE, allocations);
+
+    Map<Integer, Long> next = new HashMap<>();
+    List<Integer> userIds = new ArrayList<>(counts.keySet());
+    for (int from = 0; from < userIds.size(); from += SEQ_QUERY_SIZE) {
+      List<Integer> chunk = userIds.subList(from, Math.min(userIds.size(),
+              from + SEQ_QUERY_SIZE));
+      StringBuilder sql = new StringBuilder(SELECT_SEQ);
+      for (int i = 0; i < chunk.size(); i++) {
+        sql.append(i == 0 ? "?" : ", ?");
+      }
+      for (long[] row : jdbcTemplate.query(sql.append(")").toString(), chunk.toArray(),
+              (rs, rowNum) -> new long[]{rs.getInt(1), rs.getLong(2)})) {
+        int userId = (int) row[0];
+        next.put(userId, row[1] - counts.get(userId) + 1);
+      }
+    }
+
+    List<Object[]> rows = new ArrayList<>();
+    for (Entry entry : entries) {
+      long seq = next.merge(entry.userId, 1L, Long::sum) - 1;
+      rows.add(new Object[]{entry.userId, seq, entry.type, entry.messageId,
+              entry.status == null ? null : entry.status.name()});
+    }
+    jdbcTemplate.batchUpdate(INSERT, rows);
+  }
+
+  /**
+   * Reads the events of a user after a sequence number, in sequence order.
+   *
+   * @param userId   id of the user
+   * @param afterSeq the sequence number of the last event read
+   * @param limit    the most events read
+   * @return the events
+   */
+  public List<SyncEvent> findAfter(int userId, long afterSeq, int limit) {
+    return jdbcTemplate.query(SELECT_AFTER, new Object[]{userId, afterSeq, limit},
+            (rs, rowNum) -> new SyncEvent(rs.getLong(1), rs.getString(2), rs.getInt(3),
+                    rs.getString(4) == null ? null : MessageStatus.valueOf(rs.getString(4))));
+  }
+
+  /**
+   * An event of a user, as written to the log.
+   */
+  public static final class Entry {
+    private final int userId;
+    private final String type;
+    private final int messageId;
+    private final MessageStatus status;
+
+    /**
+     * Creates an entry, numbered when it is written.
+     *
+     * @param userId    id of the user
+     * @param type      the type of the event
+     * @param messageId id of the message
+     * @param status    the new status of the message, null unless the status changed
+     */
+    public Entry(int userId, String type, int messageId, MessageStatus status) {
+      this.userId = userId;
+      this.type = type;
+      this.messageId = messageId;
+      this.status = status;
+    }
+
+    public int getUserId() {
+      return userId;
+    }
+
+    public String getType() {
+      return type;
+    }
+
+    public int getMessageId() {
+      return messageId;
+    }
+
+    public MessageStatus getStatus() {
+      return status;
+    }
+
+    @Override
+    public String toString() {
+      return type + " of message " + messageId + " for user " + userId;
+    }
+  }
+}
@@ -2,9 +2,12 @@ package com.neu.prattle.repository;
 
 import com.neu.prattle.model.User;
 
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.List;
 import java.util.Optional;
 
 /**
@@ -21,4 +24,13 @@ public interface UserRepository extends CrudRepository<User, Integer> {
    * @return optional object of user
    */
   Optional<User> findByUsername(String username);
+
+  /**
+   * Returns the ids of the users followed by a user, without loading the users.
+   *
+   * @param userId id of the follower
+   * @return ids of the followed users
+   */
+  @Query("select f.userID from User u join u.followees f where u.userID = :userId")
+  List<Integer> findFolloweeIds(@Param("userId") int userId);
 }
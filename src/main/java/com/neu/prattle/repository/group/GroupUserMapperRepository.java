@@ -14,4 +14,8 @@ public interface GroupUserMapperRepository extends JpaRepository<GroupUserMapper
 
   @Query("select gum from GroupUserMapper gum where gum.group.groupID= :groupId")
   List<GroupUserMapper> getMapsByGroupId(@Param("groupId") int groupId);
+
+  @Query("select gum.group.groupID from GroupUserMapper gum where gum.user.userID = :userId"
+          + " and gum.isMember = true")
+  List<Integer> getGroupIdsByMemberId(@Param("userId") int userId);
 }
@@ -0,0 +1,189 @@
+package com.neu.prattle.service;
+
+import com.neu.prattle.dto.ConversationPage;
+import com.neu.prattle.dto.ConversationSummary;
+import com.neu.prattle.dto.UnreadCounts;
+import com.neu.prattle.model.Message;
+import com.neu.prattle.repository.ConversationIndexRepository;
+import com.neu.prattle.repository.ConversationIndexRepository.Entry;
+import com.neu.prattle.utils.ExecutorFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+ * The Class ConversationIndexService.
+ * <p>
+ * Maintains the conversation index, the latest message of every conversation, as messages are
+ * saved. Only the latest message of a conversation matters, so the entries of saved messages are
+ * coalesced per conversation and written as one batch every
+ * prattle.messages.conversation-index.flush-interval-ms; a busy conversation costs one row write
+ * per flush however many messages it carries. The index lags the messages by at most one flush.
+ * <p>
+ * Broadcast messages belong to no conversation and are not indexed. The preview of encrypted and
+ * self-destruct messages is left out, so the index never shows what the messages hide.
+ */
+@Service
+public class ConversationIndexService {
+  private static Logger logger = LoggerFactory.getLogger(ConversationIndexService.class);
+
+  /**
+   * The longest preview of a message.
+   */
+  static final int PREVIEW_LENGTH = 100;
+
+  private ConversationIndexRepository indexRepository;
+
+  private long flushIntervalMillis = 50;
+
+  /**
+   * The entries waiting to be written, the latest per conversation.
+   */
+  private final ConcurrentMap<String, Entry> pending = new ConcurrentHashMap<>();
+  private final Object flushLock = new Object();
+  private ScheduledExecutorService scheduler;
+
+  @Autowired
+  public void setIndexRepository(ConversationIndexRepository indexRepository) {
+    this.indexRepository = indexRepository;
+  }
+
+  @Autowired
+  public void setEnvironment(Environment environment) {
+    flushIntervalMillis = environment.getProperty(
+            "prattle.messages.conversation-index.flush-interval-ms", Long.class,
+            flushIntervalMillis);
+  }
+
+  /**
+   * Starts the periodic flush.
+   */
+  @PostConstruct
+  public void start() {
+    scheduler = ExecutorFactory.newScheduler("conversation-index");
+    scheduler.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis,
+            TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Flushes what is left and stops the periodic flush.
+   */
+  @PreDestroy
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdown();
+      scheduler = null;
+    }
+    flush();
+  }
+
+  /**
+   * Records a newly saved message as the latest of its conversation.
+   *
+   * @param message the message, with its id set
+   */
+  public void messageSaved(Message message) {
+    if (message.getIsBroadcastMessage()) {
+      return;
+    }
+    String preview = message.getIsEncryptedMessage() || message.getIsSelfDestructMessage()
+            || message.getContent() == null ? null
+            : message.getContent().substring(0,
+            Math.min(PREVIEW_LENGTH, message.getContent().length()));
+    if (message.getIsGroupMessage()) {
+      record(new Entry(0, message.getToUserId(), true, message.getMessageId(),
+              message.getFromUserId(), preview, message.getGeneratedTime()));
+      return;
+    }
+    record(new Entry(message.getFromUserId(), message.getToUserId(), false,
+            message.getMessageId(), message.getFromUserId(), preview,
+            message.getGeneratedTime()));
+    if (message.getFromUserId() != message.getToUserId()) {
+      record(new Entry(message.getToUserId(), message.getFromUserId(), false,
+              message.getMessageId(), message.getFromUserId(), preview,
+              message.getGeneratedTime()));
+    }
+  }
+
+  private void record(Entry entry) {
+    pending.merge(entry.getKey(), entry,
+            (held, latest) -> latest.getMessageId() > held.getMessageId() ? latest : held);
+  }
+
+  /**
+   * Writes the pending entries. Entries of a batch that fails are merged back and retried by the
+   * next flush.
+   */
+  public void flush() {
+    synchronized (flushLock) {
+      if (pending.isEmpty()) {
+        return;
+      }
+      List<Entry> batch = new ArrayList<>();
+      for (String key : new ArrayList<>(pending.keySet())) {
+        Entry entry = pending.remove(key);
+        if (entry != null) {
+          batch.add(entry);
+        }
+      }
+      try {
+        indexRepository.upsertAll(batch);
+      } catch (RuntimeException e) {
+        batch.forEach(this::record);
+        logger.error("Unable to write {} conversation index entries, retrying later: {}",
+                batch.size(), e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Reads a page of the inbox of a user, the most recent conversation first.
+   *
+   * @param userId          id of the user
+   * @param groupIds        ids of the groups of the user
+   * @param unreadCounts    the unread counts of the user
+   * @param beforeMessageId the cursor, 0 for the most recent conversations
+   * @param pageSize        the most conversations in the page
+   * @return the page
+   */
+  public ConversationPage getInbox(int userId, Collection<Integer> groupIds,
+                                   UnreadCounts unreadCounts, int beforeMessageId,
+                                   int pageSize) {
+    List<ConversationSummary> page = indexRepository.findPage(userId, groupIds,
+            beforeMessageId > 0 ? beforeMessageId : Integer.MAX_VALUE, pageSize);
+    if (page.isEmpty()) {
+      return new ConversationPage(page, beforeMessageId, false);
+    }
+    for (ConversationSummary conversation : page) {
+      Map<Integer, Integer> counts = conversation.isGroup()
+              ? unreadCounts.getGroupsUnreadByAll() : unreadCounts.getUsers();
+      conversation.setUnreadCount(counts.getOrDefault(conversation.getPeerId(), 0));
+    }
+    return new ConversationPage(page, page.get(page.size() - 1).getLastMessageId(),
+            page.size() == pageSize);
+  }
+
+  /**
+   * Returns the number of conversations waiting to be written.
+   *
+   * @return number of conversations
+   */
+  public int getPendingCount() {
+    return pending.size();
+  }
+}
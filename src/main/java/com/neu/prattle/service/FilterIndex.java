@@ -0,0 +1,261 @@
+package com.neu.prattle.service;
+
+import com.neu.prattle.model.Filter;
+import com.neu.prattle.model.User;
+import com.neu.prattle.utils.KeywordMatcher;
+
+import org.springframework.stereotype.Service;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.IntConsumer;
+
+/**
+ * The Class FilterIndex.
+ * <p>
+ * Indexes the keyword filters of the users so that a message fanned out to many recipients is
+ * scanned once. Every distinct filter string gets a stable slot in a compiled
+ * {@link KeywordMatcher}; a user's filters are kept as a bit set of slots, and whether a message
+ * is filtered for a user becomes an intersection of the slots matched in the message with the
+ * user's slots. A {@link Scan} of a message is only rescanned if indexing a recipient added new
+ * keywords to the matcher.
+ * <p>
+ * The matcher is copy-on-write: readers use the current snapshot without locking, and it is only
+ * recompiled when a filter string appears that no user had before or the last user of a string
+ * drops it. A user's filters are read from the user object the first time the user is seen and
+ * are kept up to date by {@link FilterServiceImpl}. The listeners learn of every such change, so
+ * that the other nodes of a cluster can refresh their index.
+ */
+@Service
+public class FilterIndex {
+
+  /**
+   * The compiled matcher, replaced as a whole.
+   */
+  private volatile KeywordMatcher matcher = new KeywordMatcher(new String[0]);
+
+  /**
+   * The keyword of each slot, null for a free slot. Guarded by this.
+   */
+  private String[] keywords = new String[0];
+
+  /**
+   * The number of users using each slot. Guarded by this.
+   */
+  private int[] useCounts = new int[0];
+
+  /**
+   * The slot of each keyword, keyed by the lower case keyword. Guarded by this.
+   */
+  private final Map<String, Integer> slots = new HashMap<>();
+
+  /**
+   * The slots of each indexed user, keyed by user id. The bit sets are never modified once
+   * published.
+   */
+  private final ConcurrentMap<Integer, BitSet> slotsByUser = new ConcurrentHashMap<>();
+
+  private final List<IntConsumer> listeners = new CopyOnWriteArrayList<>();
+
+  /**
+   * Adds a listener told the id of every user whose filters were updated.
+   *
+   * @param listener the listener
+   */
+  public void addListener(IntConsumer listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Prepares the filter checks of a message for its recipients.
+   *
+   * @param content the message content
+   * @return the scan, to be used by a single thread
+   */
+  public Scan scan(String content) {
+    return new Scan(content);
+  }
+
+  /**
+   * Checks whether any filter of a user matches a message content.
+   *
+   * @param content the message content
+   * @param user    the recipient
+   * @return true if the message must not be shown to the user
+   */
+  public boolean isFiltered(String content, User user) {
+    return scan(content).isFiltered(user);
+  }
+
+  private BitSet getSlots(User user) {
+    BitSet userSlots = slotsByUser.get(user.getUserID());
+    return userSlots == null ? index(user) : userSlots;
+  }
+
+  /**
+   * Indexes a user seen for the first time.
+   */
+  private synchronized BitSet index(User user) {
+    BitSet userSlots = slotsByUser.get(user.getUserID());
+    if (userSlots == null) {
+      userSlots = replaceFilters(user.getUserID(),
+              user.getFilters() == null ? null : toKeywords(user.getFilters()));
+    }
+    return userSlots;
+  }
+
+  /**
+   * Replaces the filters of a user after they changed.
+   *
+   * @param userId  id of the user
+   * @param filters the filters the user has now
+   */
+  public void updateFilters(int userId, Collection<Filter> filters) {
+    synchronized (this) {
+      replaceFilters(userId, toKeywords(filters));
+    }
+    listeners.forEach(listener -> listener.accept(userId));
+  }
+
+  /**
+   * Replaces the filters of an indexed user after they changed on another node, without telling
+   * the listeners. Users not indexed yet are left alone.
+   *
+   * @param userId  id of the user
+   * @param filters the filters the user has now
+   */
+  public synchronized void refreshFilters(int userId, Collection<Filter> filters) {
+    if (slotsByUser.containsKey(userId)) {
+      replaceFilters(userId, toKeywords(filters));
+    }
+  }
+
+  /**
+   * Returns the ids of the indexed users.
+   *
+   * @return read only user ids
+   */
+  public Set<Integer> getUserIds() {
+    return Collections.unmodifiableSet(slotsByUser.keySet());
+  }
+
+  /**
+   * Forgets the filters of a user, they are read again from the user object next time.
+   *
+   * @param userId id of the user
+   */
+  public synchronized void forget(int userId) {
+    replaceFilters(userId, null);
+    slotsByUser.remove(userId);
+  }
+
+  private static String[] toKeywords(Collection<Filter> filters) {
+    return filters.stream().map(Filter::getFilterString).toArray(String[]::new);
+  }
+
+  /**
+   * Moves a user onto a new set of keywords, adjusting the use counts and recompiling the matcher
+   * if a slot was taken or freed.
+   */
+  private BitSet replaceFilters(int userId, String[] userKeywords) {
+    boolean recompile = false;
+    BitSet previous = slotsByUser.get(userId);
+    if (previous != null) {
+      for (int slot = previous.nextSetBit(0); slot >= 0; slot = previous.nextSetBit(slot + 1)) {
+        if (--useCounts[slot] == 0) {
+          slots.remove(keywords[slot]);
+          keywords[slot] = null;
+          recompile = true;
+        }
+      }
+    }
+    BitSet userSlots = new BitSet();
+    if (userKeywords != null) {
+      for (String keyword : userKeywords) {
+        if (keyword == null) {
+          continue;
+        }
+        String key = keyword.toLowerCase();
+        Integer slot = slots.get(key);
+        if (slot == null) {
+          slot = allocateSlot(key);
+          recompile = true;
+        }
+        if (!userSlots.get(slot)) {
+          userSlots.set(slot);
+          useCounts[slot]++;
+        }
+      }
+    }
+    slotsByUser.put(userId, userSlots);
+    if (recompile) {
+      matcher = new KeywordMatcher(keywords.clone());
+    }
+    return userSlots;
+  }
+
+  private int allocateSlot(String keyword) {
+    int slot = 0;
+    while (slot < keywords.length && keywords[slot] != null) {
+      slot++;
+    }
+    if (slot == keywords.length) {
+      keywords = Arrays.copyOf(keywords, Math.max(8, keywords.length * 2));
+      useCounts = Arrays.copyOf(useCounts, keywords.length);
+    }
+    keywords[slot] = keyword;
+    slots.put(keyword, slot);
+    return slot;
+  }
+
+  /**
+   * The filter checks of one message. The content is scanned at most once per version of the
+   * matcher, and not at all if no recipient has filters.
+   */
+  public final class Scan {
+    private final String content;
+    private KeywordMatcher scannedWith;
+    private BitSet matched;
+
+    private Scan(String content) {
+      this.content = content;
+    }
+
+    /**
+     * Checks whether any filter of a recipient matches the message.
+     *
+     * @param user the recipient
+     * @return true if the message must not be shown to the user
+     */
+    public boolean isFiltered(User user) {
+      BitSet userSlots = getSlots(user);
+      if (userSlots.isEmpty()) {
+        return false;
+      }
+      KeywordMatcher current = matcher;
+      if (current != scannedWith) {
+        matched = current.match(content);
+        scannedWith = current;
+      }
+      return userSlots.intersects(matched);
+    }
+  }
+
+  /**
+   * Returns the number of distinct filter strings in use.
+   *
+   * @return number of keywords
+   */
+  public synchronized int getKeywordCount() {
+    return slots.size();
+  }
+}
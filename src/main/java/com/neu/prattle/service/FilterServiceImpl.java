@@ -27,6 +27,8 @@ public class FilterServiceImpl implements FilterService {
 
   private UserRepository userRepository;
 
+  private FilterIndex filterIndex;
+
   @Autowired
   public void setFilterRepository(FilterRepository filterRepository) {
     this.filterRepository = filterRepository;
@@ -37,6 +39,11 @@ public class FilterServiceImpl implements FilterService {
     this.userRepository = userRepository;
   }
 
+  @Autowired
+  public void setFilterIndex(FilterIndex filterIndex) {
+    this.filterIndex = filterIndex;
+  }
+
   @Override
   public void addFilter(String filterText, String username) throws UserDoesNotExistException {
     Optional<Filter> optionalFilter = filterRepository.findByFilterString(filterText);
@@ -57,6 +64,7 @@ public class FilterServiceImpl implements FilterService {
       logger.info("Filter created");
     }
     userRepository.save(user);
+    filterIndex.updateFilters(user.getUserID(), user.getFilters());
   }
 
   @Override
@@ -74,6 +82,7 @@ public class FilterServiceImpl implements FilterService {
       filters.removeAll(matchList);
       user.setFilters(filters);
       userRepository.save(user);
+      filterIndex.updateFilters(user.getUserID(), filters);
       logger.info("Filter has been deleted");
     }
   }
@@ -0,0 +1,98 @@
+package com.neu.prattle.service;
+
+import com.neu.prattle.model.HashTag;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The Class HashTagDictionary.
+ * <p>
+ * Caches the hashtags already in the database, keyed by the tag, so that linking the hashtags of
+ * a message does not look each of them up again. Hashtags are only ever added, never renamed or
+ * removed, so an entry does not go stale; once the dictionary holds its capacity further tags
+ * are looked up every time.
+ * <p>
+ * The cached hashtags only carry their id and tag, never their messages, and are shared by every
+ * message they are linked to.
+ */
+public class HashTagDictionary {
+
+  private static final Pattern HASHTAG = Pattern.compile("#(\\w+)");
+
+  private final int capacity;
+  private final ConcurrentMap<String, HashTag> hashTags = new ConcurrentHashMap<>();
+
+  /**
+   * Creates a dictionary.
+   *
+   * @param capacity most hashtags cached
+   */
+  public HashTagDictionary(int capacity) {
+    this.capacity = capacity;
+  }
+
+  /**
+   * Extracts the distinct hashtags of a message content, without the leading #.
+   *
+   * @param content the content, may be null
+   * @return the tags in the order they first appear
+   */
+  public static Set<String> extract(String content) {
+    if (content == null || content.indexOf('#') < 0) {
+      return Collections.emptySet();
+    }
+    Set<String> tags = new LinkedHashSet<>();
+    Matcher matcher = HASHTAG.matcher(content);
+    while (matcher.find()) {
+      tags.add(matcher.group(1));
+    }
+    return tags;
+  }
+
+  /**
+   * Returns the cached hashtag of a tag.
+   *
+   * @param tag the tag
+   * @return the hashtag, null if not cached
+   */
+  public HashTag get(String tag) {
+    return hashTags.get(tag);
+  }
+
+  /**
+   * Caches hashtags read from or written to the database.
+   *
+   * @param found the hashtags, with their ids
+   * @return the hashtags keyed by tag, an entry already cached for a tag winning over a new one
+   */
+  public Map<String, HashTag> putAll(Iterable<HashTag> found) {
+    Map<String, HashTag> cached = new HashMap<>();
+    for (HashTag hashTag : found) {
+      HashTag entry = HashTag.hashTagBuilder().setHashTagId(hashTag.getHashtagId())
+              .setHashTagValue(hashTag.getHashtagString()).build();
+      entry.setSearchHits(hashTag.getSearchHits());
+      HashTag existing = hashTags.size() < capacity
+              ? hashTags.putIfAbsent(entry.getHashtagString(), entry)
+              : hashTags.get(entry.getHashtagString());
+      cached.put(entry.getHashtagString(), existing == null ? entry : existing);
+    }
+    return cached;
+  }
+
+  /**
+   * Returns the number of cached hashtags.
+   *
+   * @return number of hashtags
+   */
+  public int size() {
+    return hashTags.size();
+  }
+}
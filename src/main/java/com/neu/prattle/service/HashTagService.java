@@ -5,8 +5,10 @@ import com.neu.prattle.model.Message;
 
 import org.springframework.stereotype.Service;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 
 @Service
 public interface HashTagService {
@@ -15,5 +17,14 @@ public interface HashTagService {
 
   HashTag createHashTag(String hashTag, Message message);
 
+  /**
+   * Returns the hashtags of several tags, creating the ones that do not exist yet. Tags already
+   * known cost no query; the others are looked up, and the new ones inserted, all at once.
+   *
+   * @param tags the tags, without the leading #
+   * @return the hashtags
+   */
+  Set<HashTag> resolveHashTags(Collection<String> tags);
+
   List<HashTag> getTopHashTags();
 }
@@ -6,23 +6,41 @@ import com.neu.prattle.repository.HashTagRepository;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.ComponentScan;
+import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 @Service
 @ComponentScan("com.neu.prattle")
 public class HashTagServiceImpl implements HashTagService {
   private HashTagRepository hashTagRepository;
+  private HashTagDictionary dictionary = new HashTagDictionary(100000);
+
+  /**
+   * Serializes the creation of new hashtags, so that two messages introducing the same tag do
+   * not both insert it.
+   */
+  private final Object createLock = new Object();
 
   @Autowired
   public void setHashTagRepository(HashTagRepository hashTagRepository) {
     this.hashTagRepository = hashTagRepository;
   }
 
+  @Autowired
+  public void setEnvironment(Environment environment) {
+    dictionary = new HashTagDictionary(environment.getProperty(
+            "prattle.hashtags.dictionary-capacity", Integer.class, 100000));
+  }
+
   @Override
   public Optional<HashTag> getHashTag(String hashTag) {
     return hashTagRepository.findByHashtagString(hashTag);
@@ -30,6 +48,10 @@ public class HashTagServiceImpl implements HashTagService {
 
   @Override
   public HashTag createHashTag(String hashTag, Message message) {
+    HashTag known = dictionary.get(hashTag);
+    if (known != null) {
+      return known;
+    }
     Optional<HashTag> optionalHashTag = getHashTag(hashTag);
     if (optionalHashTag.isPresent()) {
       return optionalHashTag.get();
@@ -39,6 +61,52 @@ public class HashTagServiceImpl implements HashTagService {
     return hashTagRepository.save(hashTag1);
   }
 
+  @Override
+  public Set<HashTag> resolveHashTags(Collection<String> tags) {
+    Set<HashTag> result = new HashSet<>();
+    List<String> missing = new ArrayList<>();
+    for (String tag : tags) {
+      HashTag hashTag = dictionary.get(tag);
+      if (hashTag == null) {
+        missing.add(tag);
+      } else {
+        result.add(hashTag);
+      }
+    }
+    if (missing.isEmpty()) {
+      return result;
+    }
+    Map<String, HashTag> found = dictionary.putAll(
+            hashTagRepository.findByHashtagStringIn(missing));
+    result.addAll(found.values());
+    missing.removeAll(found.keySet());
+    if (!missing.isEmpty()) {
+      result.addAll(create(missing));
+    }
+    return result;
+  }
+
+  /**
+   * Inserts the tags that did not exist, in one transaction. The tags are looked up again under
+   * the lock, as another message may have created some of them in the meantime.
+   */
+  private Collection<HashTag> create(List<String> tags) {
+    synchronized (createLock) {
+      Map<String, HashTag> found = dictionary.putAll(
+              hashTagRepository.findByHashtagStringIn(tags));
+      List<HashTag> created = new ArrayList<>();
+      for (String tag : tags) {
+        if (!found.containsKey(tag)) {
+          created.add(HashTag.hashTagBuilder().setHashTagValue(tag).build());
+        }
+      }
+      if (!created.isEmpty()) {
+        found.putAll(dictionary.putAll(hashTagRepository.saveAll(created)));
+      }
+      return found.values();
+    }
+  }
+
   @Override
   public List<HashTag> getTopHashTags() {
     return hashTagRepository.findTop5ByOrderBySearchHitsDesc();
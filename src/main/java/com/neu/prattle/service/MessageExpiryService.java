@@ -0,0 +1,245 @@
+package com.neu.prattle.service;
+
+import com.neu.prattle.model.Message;
+import com.neu.prattle.repository.MessageBatchRepository;
+import com.neu.prattle.repository.MessageBatchRepository.Expiring;
+import com.neu.prattle.utils.ExecutorFactory;
+import com.neu.prattle.utils.FileHandler;
+import com.neu.prattle.utils.HashedTimerWheel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * The Class MessageExpiryService.
+ * <p>
+ * Expires self-destruct messages once they are older than {@link
+ * MessageServiceDaoImpl#SELF_DESTRUCT_MILLIS}. Every self-destruct message is scheduled on a
+ * hashed timer wheel when it is saved, and the wheel is restored from the database on startup.
+ * When a message expires its users are told through the listeners, and the message is queued for
+ * the purge, which hard-deletes expired messages with their hashtag mappings, attachments and
+ * attachment files in batches of at most prattle.messages.expiry.purge-batch-size, one batch
+ * every prattle.messages.expiry.purge-interval-ms, so a large backlog never floods the database.
+ * <p>
+ * Messages that expired while the application was down are purged on startup without telling
+ * anyone; the queries leave them out either way.
+ */
+@Service
+public class MessageExpiryService {
+  private static Logger logger = LoggerFactory.getLogger(MessageExpiryService.class);
+
+  private static final Counter expiredCounter =
+          Metrics.counter("prattle.messages.expiry", "outcome", "expired");
+  private static final Counter purgedCounter =
+          Metrics.counter("prattle.messages.expiry", "outcome", "purged");
+
+  private MessageBatchRepository batchRepository;
+
+  private boolean enabled = true;
+  private long tickMillis = 1000;
+  private int purgeBatchSize = 200;
+  private long purgeIntervalMillis = 1000;
+
+  /**
+   * The expired messages whose users were not told yet.
+   */
+  private final Queue<Expiring> announced = new ConcurrentLinkedQueue<>();
+
+  /**
+   * The ids of the expired messages waiting to be purged.
+   */
+  private final Queue<Integer> purged = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger purgeBacklog = new AtomicInteger();
+
+  private final List<Consumer<List<Expiring>>> listeners = new CopyOnWriteArrayList<>();
+  private HashedTimerWheel wheel;
+  private ScheduledExecutorService purger;
+
+  @Autowired
+  public void setBatchRepository(MessageBatchRepository batchRepository) {
+    this.batchRepository = batchRepository;
+  }
+
+  @Autowired
+  public void setEnvironment(Environment environment) {
+    setEnabled(environment.getProperty("prattle.messages.expiry.enabled", Boolean.class, true));
+    tickMillis = environment.getProperty("prattle.messages.expiry.tick-ms", Long.class,
+            tickMillis);
+    setPurgeBatchSize(environment.getProperty("prattle.messages.expiry.purge-batch-size",
+            Integer.class, purgeBatchSize));
+    purgeIntervalMillis = environment.getProperty("prattle.messages.expiry.purge-interval-ms",
+            Long.class, purgeIntervalMillis);
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public void setPurgeBatchSize(int purgeBatchSize) {
+    if (purgeBatchSize < 1) {
+      throw new IllegalArgumentException("The batch size can not be less than 1");
+    }
+    this.purgeBatchSize = purgeBatchSize;
+  }
+
+  /**
+   * Adds what is told of expired messages, such as the relay pushing the expiry to the connected
+   * users. Called on the purge thread with the messages expired since the last call.
+   *
+   * @param listener the listener
+   */
+  public void addListener(Consumer<List<Expiring>> listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Starts the timer wheel and the periodic purge, and restores the self-destruct messages from
+   * the database.
+   */
+  @PostConstruct
+  public void start() {
+    if (!enabled) {
+      return;
+    }
+    start(new HashedTimerWheel(tickMillis, 4096).start("message-expiry"));
+    purger = ExecutorFactory.newScheduler("message-purge");
+    purger.scheduleWithFixedDelay(this::purge, purgeIntervalMillis, purgeIntervalMillis,
+            TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Restores the self-destruct messages from the database onto a timer wheel. Messages that
+   * already expired are queued for the purge.
+   *
+   * @param timerWheel the wheel expiring the messages
+   */
+  void start(HashedTimerWheel timerWheel) {
+    wheel = timerWheel;
+    long now = System.currentTimeMillis();
+    int restored = 0;
+    for (Expiring message : batchRepository.findSelfDestructMessages()) {
+      if (message.getGeneratedTime() + MessageServiceDaoImpl.SELF_DESTRUCT_MILLIS <= now) {
+        queuePurge(message.getMessageId());
+      } else {
+        schedule(message, now);
+        restored++;
+      }
+    }
+    logger.info("Self-destruct messages restored, {} pending, {} expired", restored,
+            purgeBacklog.get());
+  }
+
+  /**
+   * Stops expiring and purging messages. The messages left are restored on the next start.
+   */
+  @PreDestroy
+  public void stop() {
+    if (purger != null) {
+      purger.shutdownNow();
+      purger = null;
+    }
+    if (wheel != null) {
+      wheel.stop();
+    }
+  }
+
+  /**
+   * Schedules the expiry of a newly saved message, if it is a self-destruct message.
+   *
+   * @param message the message, with its id set
+   */
+  public void schedule(Message message) {
+    if (wheel != null && message.getIsSelfDestructMessage()) {
+      schedule(Expiring.of(message), System.currentTimeMillis());
+    }
+  }
+
+  private void schedule(Expiring message, long now) {
+    long delay = message.getGeneratedTime() + MessageServiceDaoImpl.SELF_DESTRUCT_MILLIS - now;
+    wheel.schedule(() -> expire(message), Math.max(0, delay), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Queues an expired message to be announced and purged. Runs on the timer wheel.
+   */
+  private void expire(Expiring message) {
+    expiredCounter.increment();
+    announced.add(message);
+    queuePurge(message.getMessageId());
+  }
+
+  private void queuePurge(int messageId) {
+    purged.add(messageId);
+    purgeBacklog.incrementAndGet();
+  }
+
+  /**
+   * Tells the listeners of every message expired since the last purge, then deletes one batch of
+   * expired messages. A batch that fails is queued again and retried by a later purge.
+   */
+  public void purge() {
+    List<Expiring> expired = new ArrayList<>();
+    Expiring message;
+    while ((message = announced.poll()) != null) {
+      expired.add(message);
+    }
+    if (!expired.isEmpty()) {
+      for (Consumer<List<Expiring>> listener : listeners) {
+        try {
+          listener.accept(expired);
+        } catch (RuntimeException e) {
+          logger.error("Unable to announce {} expired messages: {}", expired.size(),
+                  e.getMessage());
+        }
+      }
+    }
+    List<Integer> batch = new ArrayList<>();
+    Integer messageId;
+    while (batch.size() < purgeBatchSize && (messageId = purged.poll()) != null) {
+      batch.add(messageId);
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+    List<String> paths;
+    try {
+      paths = batchRepository.deleteAll(batch);
+    } catch (RuntimeException e) {
+      purged.addAll(batch);
+      logger.error("Unable to purge {} expired messages, retrying later: {}", batch.size(),
+              e.getMessage());
+      return;
+    }
+    purgeBacklog.addAndGet(-batch.size());
+    purgedCounter.increment(batch.size());
+    paths.forEach(FileHandler::deleteMediaTypeFile);
+  }
+
+  /**
+   * Returns the number of expired messages waiting to be purged.
+   *
+   * @return number of messages
+   */
+  public int getPurgeBacklog() {
+    return purgeBacklog.get();
+  }
+}
@@ -1,9 +1,15 @@
 package com.neu.prattle.service;
 
+import com.neu.prattle.dto.ConversationPage;
 import com.neu.prattle.dto.MessageDTO;
+import com.neu.prattle.dto.MessagePage;
+import com.neu.prattle.dto.SyncPage;
+import com.neu.prattle.dto.UnreadCounts;
+import com.neu.prattle.exceptions.MessageDoesNotExistException;
 import com.neu.prattle.exceptions.UserDoesNotExistException;
 import com.neu.prattle.model.HashTag;
 import com.neu.prattle.model.Message;
+import com.neu.prattle.model.User;
 
 import org.springframework.stereotype.Service;
 
@@ -57,6 +63,23 @@ public interface MessageService {
   List<Message> findMessagesForReceivingUser(String username, boolean excludeExpired)
           throws UserDoesNotExistException;
 
+  /**
+   * Returns a page of the messages between two users, in both directions, read backwards from a
+   * cursor and returned oldest first. The page is read by a keyset query, so its cost does not
+   * depend on the length of the conversation. Expired messages are left out, and attachments are
+   * given as the path they can be downloaded from instead of their data.
+   *
+   * @param currentUsername    the current user.
+   * @param conversingUsername the user that the current user conversed with.
+   * @param beforeMessageId    the cursor, only messages with a smaller id are returned, 0 to
+   *                           start from the latest message.
+   * @param pageSize           the maximum number of messages to read.
+   * @return the page of messages and the cursor of the next, older, page.
+   * @throws UserDoesNotExistException thrown if either user does not exist.
+   */
+  MessagePage getChatHistory(String currentUsername, String conversingUsername,
+                             int beforeMessageId, int pageSize) throws UserDoesNotExistException;
+
   /**
    * Returns an ordered list of messages between two users.
    *
@@ -78,6 +101,29 @@ public interface MessageService {
   int getNewMessageCount(String firstPersonUsername, String secondPersonUsername)
           throws UserDoesNotExistException;
 
+  /**
+   * Returns every unread count of a user in one call: per sender, and per group the group-wide
+   * count of the group messages no member has read yet.
+   *
+   * @param username the user
+   * @return the unread counts
+   * @throws UserDoesNotExistException if the user does not exist
+   */
+  UnreadCounts getUnreadCounts(String username) throws UserDoesNotExistException;
+
+  /**
+   * Returns a page of the conversations of a user, the most recent first, each with its latest
+   * message and unread count.
+   *
+   * @param username        the user
+   * @param beforeMessageId the nextCursor of the previous page, 0 for the first page
+   * @param pageSize        the most conversations in the page
+   * @return the page
+   * @throws UserDoesNotExistException if the user does not exist
+   */
+  ConversationPage getInbox(String username, int beforeMessageId, int pageSize)
+          throws UserDoesNotExistException;
+
   /**
    * Returns the messages that were sent to a user after their last log out.
    *
@@ -87,6 +133,52 @@ public interface MessageService {
    */
   List<Message> getUnsentMessages(String userName, boolean excludeExpired) throws UserDoesNotExistException;
 
+  /**
+   * Returns a page of the messages that were sent to a user after their last log out, oldest
+   * first. Expired and filtered messages are left out, and attachments are given as the path
+   * they can be downloaded from instead of their data.
+   *
+   * @param user           the user to get the messages for.
+   * @param afterMessageId the cursor, only messages with a greater id are returned.
+   * @param pageSize       the maximum number of messages to read.
+   * @return the page of messages and the cursor of the next page.
+   */
+  MessagePage getUnsentMessages(User user, int afterMessageId, int pageSize);
+
+  /**
+   * Returns the messages with the given ids a user can still be shown, in the order of the ids.
+   * Expired messages and messages filtered for the user are left out, and attachments are given
+   * as the path they can be downloaded from instead of their data.
+   *
+   * @param user       the user to get the messages for.
+   * @param messageIds the ids of the messages.
+   * @return the messages.
+   */
+  List<Message> getMessagesForUser(User user, List<Integer> messageIds);
+
+  /**
+   * Returns a page of the changes of a user since a cursor, across all their private and group
+   * conversations: new messages, status changes and expired self-destruct messages, in the
+   * order they happened. A new message comes with the message, without it if the message has
+   * since expired; filtered messages are left out.
+   *
+   * @param username the user.
+   * @param sinceSeq the nextCursor of the previous page, 0 to read every change.
+   * @param limit    the most changes in the page.
+   * @return the page of changes and the cursor of the next page.
+   * @throws UserDoesNotExistException if the user does not exist.
+   */
+  SyncPage sync(String username, long sinceSeq, int limit) throws UserDoesNotExistException;
+
+  /**
+   * Returns the data of a message attachment.
+   *
+   * @param fileId the id of the attachment.
+   * @return the attachment data.
+   * @throws MessageDoesNotExistException thrown if there is no attachment with the id provided.
+   */
+  String getAttachmentData(int fileId);
+
   /**
    * Returns a list of messages based on hashtag.
    *
@@ -1,17 +1,23 @@
 package com.neu.prattle.service;
 
+import com.neu.prattle.dto.ConversationPage;
 import com.neu.prattle.dto.MessageDTO;
+import com.neu.prattle.dto.MessagePage;
+import com.neu.prattle.dto.SyncEvent;
+import com.neu.prattle.dto.SyncPage;
+import com.neu.prattle.dto.UnreadCounts;
 import com.neu.prattle.exceptions.ConversationNotFoundException;
 import com.neu.prattle.exceptions.MessageAlreadyExistsException;
 import com.neu.prattle.exceptions.MessageDoesNotExistException;
 import com.neu.prattle.exceptions.UserDoesNotExistException;
-import com.neu.prattle.model.Filter;
 import com.neu.prattle.model.HashTag;
 import com.neu.prattle.model.Message;
 import com.neu.prattle.model.MessageAttachment;
+import com.neu.prattle.model.MessageStatus;
 import com.neu.prattle.model.User;
 import com.neu.prattle.model.group.Group;
 import com.neu.prattle.repository.HashTagRepository;
+import com.neu.prattle.repository.MessageAttachmentRepository;
 import com.neu.prattle.repository.MessageRepository;
 import com.neu.prattle.repository.UserRepository;
 import com.neu.prattle.service.group.GroupService;
@@ -21,12 +27,14 @@ import org.springframework.stereotype.Service;
 
 import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static com.neu.prattle.utils.FileHandler.createFileForMediaTypeData;
@@ -41,10 +49,27 @@ public class MessageServiceDaoImpl implements MessageService {
 
   private static String userNotFoundMessage = "User does not exist";
 
+  /**
+   * The path an attachment is downloaded from, followed by its file id.
+   */
+  public static final String ATTACHMENT_PATH = "/rest/message/attachment/";
+
+  /**
+   * How long a self-destruct message can be read after it is generated.
+   */
+  public static final long SELF_DESTRUCT_MILLIS = TimeUnit.DAYS.toMillis(1);
+
   private MessageRepository messageRepository;
+  private MessageAttachmentRepository attachmentRepository;
   private UserRepository userRepository;
   private HashTagRepository hashTagRepository;
   private GroupService groupService;
+  private MessageWriteBehindBuffer writeBehindBuffer;
+  private FilterIndex filterIndex;
+  private MessageExpiryService messageExpiry;
+  private UnreadCounterService unreadCounters;
+  private ConversationIndexService conversationIndex;
+  private SyncLogService syncLog;
 
   @Autowired
   public void setGroupService(GroupService groupService) {
@@ -56,6 +81,36 @@ public class MessageServiceDaoImpl implements MessageService {
     this.hashTagRepository = hashTagRepository;
   }
 
+  @Autowired
+  public void setFilterIndex(FilterIndex filterIndex) {
+    this.filterIndex = filterIndex;
+  }
+
+  @Autowired
+  public void setUnreadCounters(UnreadCounterService unreadCounters) {
+    this.unreadCounters = unreadCounters;
+  }
+
+  @Autowired
+  public void setConversationIndex(ConversationIndexService conversationIndex) {
+    this.conversationIndex = conversationIndex;
+  }
+
+  @Autowired
+  public void setSyncLog(SyncLogService syncLog) {
+    this.syncLog = syncLog;
+  }
+
+  @Autowired
+  public void setMessageExpiry(MessageExpiryService messageExpiry) {
+    this.messageExpiry = messageExpiry;
+  }
+
+  @Autowired
+  public void setWriteBehindBuffer(MessageWriteBehindBuffer writeBehindBuffer) {
+    this.writeBehindBuffer = writeBehindBuffer;
+  }
+
   @Autowired
   public void setMessageRepository(MessageRepository messageRepository) {
     this.messageRepository = messageRepository;
@@ -66,8 +121,16 @@ public class MessageServiceDaoImpl implements MessageService {
     this.userRepository = userRepository;
   }
 
+  @Autowired
+  public void setAttachmentRepository(MessageAttachmentRepository attachmentRepository) {
+    this.attachmentRepository = attachmentRepository;
+  }
+
   @Override
   public Message saveNewMessage(Message message) {
+    if (writeBehindBuffer.isEnabled()) {
+      return bufferNewMessage(message);
+    }
     if (messageRepository.existsById(message.getMessageId())) {
       throw new MessageAlreadyExistsException
               ("The message already exists");
@@ -76,6 +139,10 @@ public class MessageServiceDaoImpl implements MessageService {
     storeAttachmentFilesIfNeeded(message);
 
     message = saveMessageToRepository(message);
+    messageExpiry.schedule(message);
+    unreadCounters.messageSaved(message);
+    conversationIndex.messageSaved(message);
+    syncLog.messageSaved(message);
 
     restoreOriginalAttachmentDataIfNeeded(message);
 
@@ -86,18 +153,60 @@ public class MessageServiceDaoImpl implements MessageService {
     return messageRepository.saveAndFlush(message);
   }
 
+  /**
+   * Hands a new message to the write-behind buffer. Only a message that already carries an id
+   * needs a lookup, new messages are given their id by the buffer.
+   *
+   * @param message the new message
+   * @return the message with its id set
+   */
+  private Message bufferNewMessage(Message message) {
+    int messageId = message.getMessageId();
+    if (messageId > 0 && (writeBehindBuffer.findPending(messageId).isPresent()
+            || messageRepository.existsById(messageId))) {
+      throw new MessageAlreadyExistsException
+              ("The message already exists");
+    }
+
+    storeAttachmentFilesIfNeeded(message);
+
+    List<String> attachmentPaths = new ArrayList<>();
+    if (message.hasAttachment()) {
+      message.getAttachments().forEach(a -> attachmentPaths.add(a.getWebUrl()));
+    }
+    message = writeBehindBuffer.accept(message, attachmentPaths);
+    messageExpiry.schedule(message);
+    unreadCounters.messageSaved(message);
+    conversationIndex.messageSaved(message);
+    syncLog.messageSaved(message);
+
+    restoreOriginalAttachmentDataIfNeeded(message);
+
+    return message;
+  }
+
   @Override
   public Message updateMessage(MessageDTO messageDTO, int messageId) {
+    if (writeBehindBuffer.findPending(messageId).isPresent()) {
+      writeBehindBuffer.flush();
+    }
     Message message = findMessageById(messageId);
+    MessageStatus previousStatus = message.getMessageStatus();
     message.setMessageStatus(messageDTO.getMessageStatus());
     storeAttachmentFilesIfNeeded(message);
     message = messageRepository.save(message);
+    unreadCounters.statusChanged(message, previousStatus);
+    syncLog.statusChanged(message, previousStatus);
     restoreOriginalAttachmentDataIfNeeded(message);
     return message;
   }
 
   @Override
   public Message findMessageById(int id) {
+    Optional<Message> pendingMessage = writeBehindBuffer.findPending(id);
+    if (pendingMessage.isPresent()) {
+      return pendingMessage.get();
+    }
     Optional<Message> foundMessage = messageRepository.findById(id);
     if (!foundMessage.isPresent()) {
       throw new MessageDoesNotExistException("This message does not exist");
@@ -112,40 +221,31 @@ public class MessageServiceDaoImpl implements MessageService {
     if (!currUser.isPresent()) {
       throw new UserDoesNotExistException(userNotFoundMessage);
     }
-    List<Message> allMessages = this.messageRepository.findByToUserId(currUser.get().getUserID()).stream().sorted(
-            Comparator.comparingInt(Message::getMessageId))
-            .collect(Collectors.toList());
-    if (excludeExpired) {
-      List<Message> expiredMessages = findExpiredMessages(allMessages);
-      allMessages.removeAll(expiredMessages);
-    }
+    List<Message> allMessages = this.messageRepository.findReceivedMessages(
+            currUser.get().getUserID(), expiredBefore(excludeExpired));
     return restoreAttachmentDataForManyMessages(filterMessages(allMessages, currUser.get()));
   }
 
   private List<Message> filterMessages(List<Message> allMessages, User user) {
     List<Message> result = new ArrayList<>();
     for (Message message : allMessages) {
-      boolean containsKeyword = false;
-      for (Filter filter : user.getFilters()) {
-        if (message.getContent().toLowerCase().contains(filter.getFilterString().toLowerCase())) {
-          containsKeyword = true;
-          break;
-        }
-      }
-      if (!containsKeyword) {
+      if (!filterIndex.isFiltered(message.getContent(), user)) {
         result.add(message);
       }
     }
     return restoreAttachmentDataForManyMessages(result);
   }
 
-  private List<Message> findExpiredMessages(List<Message> allMessages) {
-    Calendar cal = Calendar.getInstance();
-    cal.setTime(new Date());
-    cal.add(Calendar.DATE, -1);
-    return restoreAttachmentDataForManyMessages(allMessages.stream().filter(x -> x.getIsSelfDestructMessage()
-            && x.getGeneratedTime().before(new Timestamp(cal.getTime().getTime())))
-            .collect(Collectors.toList()));
+  /**
+   * Returns the time before which a self-destruct message has expired. The queries leave such
+   * messages out, so expired messages are never read. When expired messages are kept it is the
+   * epoch, which no message is generated before.
+   *
+   * @param excludeExpired whether expired messages are left out
+   * @return the time
+   */
+  static Timestamp expiredBefore(boolean excludeExpired) {
+    return new Timestamp(excludeExpired ? System.currentTimeMillis() - SELF_DESTRUCT_MILLIS : 0);
   }
 
   @Override
@@ -155,21 +255,29 @@ public class MessageServiceDaoImpl implements MessageService {
     int currUserID = returnUserIDIfExists(currentUsername);
     int conversingUserID = returnUserIDIfExists(conversingUsername);
     List<Message> conversation = this.messageRepository
-            .findByFromUserIdAndToUserId(currUserID, conversingUserID);
-    conversation.addAll(this.messageRepository
-            .findByFromUserIdAndToUserId(conversingUserID, currUserID));
-    if (excludeExpired) {
-      List<Message> excludedMessages = findExpiredMessages(conversation);
-      conversation.removeAll(excludedMessages);
-    }
+            .findConversation(currUserID, conversingUserID, expiredBefore(excludeExpired));
     if (conversation.isEmpty()) {
       throw new ConversationNotFoundException(
               "The conversation between these users could not be found"
       );
     }
-    return restoreAttachmentDataForManyMessages(conversation.stream()
-            .sorted(Comparator.comparingInt(Message::getMessageId))
-            .collect(Collectors.toList()));
+    return restoreAttachmentDataForManyMessages(conversation);
+  }
+
+  @Override
+  public MessagePage getChatHistory(String currentUsername, String conversingUsername,
+                                    int beforeMessageId, int pageSize)
+          throws UserDoesNotExistException {
+    int currUserID = returnUserIDIfExists(currentUsername);
+    int conversingUserID = returnUserIDIfExists(conversingUsername);
+    List<Message> page = messageRepository.fetchConversationBefore(currUserID, conversingUserID,
+            beforeMessageId > 0 ? beforeMessageId : Integer.MAX_VALUE, pageSize,
+            expiredBefore(true));
+    if (page.isEmpty()) {
+      return new MessagePage(page, beforeMessageId, false);
+    }
+    page.forEach(MessageServiceDaoImpl::referenceAttachments);
+    return new MessagePage(page, page.get(0).getMessageId(), page.size() == pageSize);
   }
 
   @Override
@@ -177,8 +285,22 @@ public class MessageServiceDaoImpl implements MessageService {
                                 String secondPersonUsername) throws UserDoesNotExistException {
     int currUserID = returnUserIDIfExists(firstPersonUsername);
     int conversingUserID = returnUserIDIfExists(secondPersonUsername);
-    List<Message> unreadMessages = messageRepository.findNewMessages(currUserID, conversingUserID);
-    return unreadMessages.size();
+    return unreadCounters.getCount(currUserID, conversingUserID);
+  }
+
+  @Override
+  public UnreadCounts getUnreadCounts(String username) throws UserDoesNotExistException {
+    int userID = returnUserIDIfExists(username);
+    return unreadCounters.getCounts(userID, groupService.getGroupIdsForUser(userID));
+  }
+
+  @Override
+  public ConversationPage getInbox(String username, int beforeMessageId, int pageSize)
+          throws UserDoesNotExistException {
+    int userID = returnUserIDIfExists(username);
+    List<Integer> groupIds = groupService.getGroupIdsForUser(userID);
+    return conversationIndex.getInbox(userID, groupIds, unreadCounters.getCounts(userID, groupIds),
+            beforeMessageId, pageSize);
   }
 
   @Override
@@ -189,14 +311,115 @@ public class MessageServiceDaoImpl implements MessageService {
     }
 
     User user = optionalUser.get();
-    List<Message> unsentMessages = messageRepository.fetchUnreadMessages(user.getUserID());
-    if (excludeExpired) {
-      List<Message> excludedMessages = findExpiredMessages(unsentMessages);
-      unsentMessages.removeAll(excludedMessages);
-    }
+    List<Message> unsentMessages = messageRepository.fetchUnreadMessages(user.getUserID(),
+            expiredBefore(excludeExpired));
     return restoreAttachmentDataForManyMessages(filterMessages(unsentMessages, user));
   }
 
+  @Override
+  public MessagePage getUnsentMessages(User user, int afterMessageId, int pageSize) {
+    List<Message> page = messageRepository.fetchUnreadMessagesAfter(user.getUserID(),
+            afterMessageId, pageSize, expiredBefore(true));
+    if (page.isEmpty()) {
+      return new MessagePage(page, afterMessageId, false);
+    }
+    List<Message> result = new ArrayList<>();
+    for (Message message : page) {
+      if (!filterIndex.isFiltered(message.getContent(), user)) {
+        result.add(referenceAttachments(message));
+      }
+    }
+    int nextCursor = page.get(page.size() - 1).getMessageId();
+    return new MessagePage(result, nextCursor, page.size() == pageSize);
+  }
+
+  @Override
+  public List<Message> getMessagesForUser(User user, List<Integer> messageIds) {
+    if (messageIds.isEmpty()) {
+      return Collections.emptyList();
+    }
+    if (messageIds.stream().anyMatch(id -> writeBehindBuffer.findPending(id).isPresent())) {
+      writeBehindBuffer.flush();
+    }
+    Map<Integer, Message> messages = new HashMap<>();
+    for (Message message : messageRepository.findUnexpiredByIds(messageIds,
+            expiredBefore(true))) {
+      messages.put(message.getMessageId(), message);
+    }
+    List<Message> result = new ArrayList<>();
+    for (int messageId : messageIds) {
+      Message message = messages.get(messageId);
+      if (message != null && (message.getFromUserId() == user.getUserID()
+              || !filterIndex.isFiltered(message.getContent(), user))) {
+        result.add(referenceAttachments(message));
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public SyncPage sync(String username, long sinceSeq, int limit)
+          throws UserDoesNotExistException {
+    Optional<User> optionalUser = userRepository.findByUsername(username);
+    if (!optionalUser.isPresent()) {
+      throw new UserDoesNotExistException(userNotFoundMessage);
+    }
+    User user = optionalUser.get();
+    SyncPage page = syncLog.sync(user.getUserID(), sinceSeq, limit);
+    List<Integer> messageIds = new ArrayList<>();
+    for (SyncEvent event : page.getEvents()) {
+      if (SyncEvent.MESSAGE.equals(event.getType())) {
+        messageIds.add(event.getMessageId());
+      }
+    }
+    if (messageIds.isEmpty()) {
+      return page;
+    }
+    if (messageIds.stream().anyMatch(id -> writeBehindBuffer.findPending(id).isPresent())) {
+      writeBehindBuffer.flush();
+    }
+    Map<Integer, Message> messages = new HashMap<>();
+    for (Message message : messageRepository.findUnexpiredByIds(messageIds,
+            expiredBefore(true))) {
+      messages.put(message.getMessageId(), referenceAttachments(message));
+    }
+    List<SyncEvent> events = new ArrayList<>();
+    for (SyncEvent event : page.getEvents()) {
+      Message message = messages.get(event.getMessageId());
+      if (SyncEvent.MESSAGE.equals(event.getType()) && message != null) {
+        if (message.getFromUserId() != user.getUserID()
+                && filterIndex.isFiltered(message.getContent(), user)) {
+          continue;
+        }
+        event.setMessage(message);
+      }
+      events.add(event);
+    }
+    return new SyncPage(events, page.getNextCursor(), page.hasMore());
+  }
+
+  /**
+   * Replaces the attachment data of a message with the path it can be downloaded from, so the
+   * attachment files are only read when the client asks for them.
+   */
+  private static Message referenceAttachments(Message message) {
+    if (message.hasAttachment()) {
+      for (MessageAttachment attachment : message.getAttachments()) {
+        attachment.setWebUrl(ATTACHMENT_PATH + attachment.getFileID());
+      }
+    }
+    return message;
+  }
+
+  @Override
+  public String getAttachmentData(int fileId) {
+    Optional<MessageAttachment> attachment = attachmentRepository.findById(fileId);
+    if (!attachment.isPresent()) {
+      throw new MessageDoesNotExistException("This attachment does not exist");
+    }
+    return getOriginalMediaTypeData(attachment.get().getWebUrl());
+  }
+
   @Override
   public List<Message> findMessagesByHashtag(String hashtag, String username,
                                              boolean excludeExpired) {
@@ -205,11 +428,8 @@ public class MessageServiceDaoImpl implements MessageService {
       return new ArrayList<>();
     }
     User user = optionalUser.get();
-    List<Message> allMessages = hashTagRepository.findMessagesByHashtagString(hashtag);
-    if (excludeExpired) {
-      List<Message> excludedMessages = findExpiredMessages(allMessages);
-      allMessages.removeAll(excludedMessages);
-    }
+    List<Message> allMessages = hashTagRepository.findMessagesByHashtagString(hashtag,
+            expiredBefore(excludeExpired));
     List<Message> filteredPrivateMessages = allMessages.stream().filter(
             (x -> x.getIsPrivateMessage() && (x.getToUserId() == user.getUserID()
                     || x.getFromUserId() == user.getUserID()))).collect(Collectors.toList());
@@ -258,10 +478,16 @@ public class MessageServiceDaoImpl implements MessageService {
     return user.get().getUserID();
   }
 
+  /**
+   * Writes the attachment data of a message to attachment files, skipping attachments that were
+   * already written to the store while the message was decoded.
+   */
   private void storeAttachmentFilesIfNeeded(Message message) {
     if (message.hasAttachment()) {
       for (MessageAttachment attachment : message.getAttachments()) {
-        attachment.setWebUrl(createFileForMediaTypeData(attachment.getWebUrl()));
+        if (!attachment.isStored()) {
+          attachment.setWebUrl(createFileForMediaTypeData(attachment.getWebUrl()));
+        }
       }
     }
   }
@@ -273,10 +499,19 @@ public class MessageServiceDaoImpl implements MessageService {
     return list;
   }
 
+  /**
+   * Reads the attachment data of a message back from the attachment files. An attachment that
+   * was written to the store while its message was decoded is too large to be read back, it is
+   * replaced with the path it can be downloaded from once it has a file id.
+   */
   private Message restoreOriginalAttachmentDataIfNeeded(Message message) {
     if (message.hasAttachment()) {
       for (MessageAttachment attachment : message.getAttachments()) {
-        attachment.setWebUrl(getOriginalMediaTypeData(attachment.getWebUrl()));
+        if (attachment.isStored() && attachment.getFileID() > 0) {
+          attachment.setWebUrl(ATTACHMENT_PATH + attachment.getFileID());
+        } else {
+          attachment.setWebUrl(getOriginalMediaTypeData(attachment.getWebUrl()));
+        }
       }
     }
     return message;
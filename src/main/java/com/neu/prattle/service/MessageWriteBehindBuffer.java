@@ -0,0 +1,430 @@
+package com.neu.prattle.service;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.neu.prattle.model.Message;
+import com.neu.prattle.repository.MessageBatchRepository;
+import com.neu.prattle.repository.MessageBatchRepository.Row;
+import com.neu.prattle.utils.ExecutorFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.dao.NonTransientDataAccessException;
+import org.springframework.dao.NonTransientDataAccessResourceException;
+import org.springframework.dao.UncategorizedDataAccessException;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * The Class MessageWriteBehindBuffer.
+ * <p>
+ * Opt-in write-behind persistence of new messages, enabled with
+ * prattle.messages.write-behind.enabled. An accepted message gets its id from an in-process
+ * allocator and is returned right away, so it can be delivered before it reaches the database.
+ * Buffered messages are flushed as JDBC batches every few milliseconds or as soon as a full batch
+ * is waiting. When prattle.messages.write-behind.log-path is set every accepted message is also
+ * appended to a log file first, the log is replayed on startup and truncated whenever the buffer
+ * has been drained.
+ * <p>
+ * A batch that fails because the database is unreachable is retried whole by the next flush. A
+ * batch the database refuses, such as for a constraint violation, is retried in halves until the
+ * refused messages are isolated; those are dead-lettered, logged and appended to
+ * prattle.messages.write-behind.dead-letter-path when it is set, so one bad message never stops
+ * the others from being written. At most prattle.messages.write-behind.max-pending messages are
+ * buffered: a full buffer is flushed by the caller, and a message is refused if that does not
+ * make room.
+ * <p>
+ * The allocator assumes a single application instance writes to the message table, so
+ * write-behind stays disabled when the cluster bus is enabled (prattle.cluster.bus=tcp).
+ */
+@Service
+public class MessageWriteBehindBuffer {
+  private static Logger logger = LoggerFactory.getLogger(MessageWriteBehindBuffer.class);
+
+  private static final ObjectMapper logMapper = new ObjectMapper()
+          .setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE)
+          .setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
+
+  private static final Timer flushTimer = Metrics.timer("prattle.messages.write-behind.flush");
+  private static final DistributionSummary batchSizes =
+          Metrics.summary("prattle.messages.write-behind.batch-size");
+  private static final Counter deadLettered =
+          Metrics.counter("prattle.messages.write-behind.dead-lettered");
+
+  private MessageBatchRepository batchRepository;
+
+  private boolean enabled;
+  private int batchSize = 500;
+  private long flushIntervalMillis = 5;
+  private String logPath = "";
+  private boolean logSync;
+  private int maxPending = 10000;
+  private String deadLetterPath = "";
+  private boolean clustered;
+
+  private final Queue<Row> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final Map<Integer, Message> pending = new ConcurrentHashMap<>();
+  private final AtomicInteger lastMessageId = new AtomicInteger();
+  private final AtomicBoolean flushRequested = new AtomicBoolean();
+  private final Object flushLock = new Object();
+  private final Object logLock = new Object();
+
+  /**
+   * The batches that failed to flush, retried before anything else. Guarded by flushLock.
+   */
+  private final Deque<List<Row>> failedBatches = new ArrayDeque<>();
+  private FileChannel log;
+  private ScheduledExecutorService scheduler;
+
+  @Autowired
+  public void setBatchRepository(MessageBatchRepository batchRepository) {
+    this.batchRepository = batchRepository;
+  }
+
+  @Autowired
+  public void setEnvironment(Environment environment) {
+    setEnabled(environment.getProperty("prattle.messages.write-behind.enabled",
+            Boolean.class, false));
+    setBatchSize(environment.getProperty("prattle.messages.write-behind.batch-size",
+            Integer.class, batchSize));
+    setFlushIntervalMillis(environment.getProperty(
+            "prattle.messages.write-behind.flush-interval-ms", Long.class, flushIntervalMillis));
+    setLogPath(environment.getProperty("prattle.messages.write-behind.log-path", logPath));
+    setLogSync(environment.getProperty("prattle.messages.write-behind.log-sync",
+            Boolean.class, false));
+    setMaxPending(environment.getProperty("prattle.messages.write-behind.max-pending",
+            Integer.class, maxPending));
+    setDeadLetterPath(environment.getProperty("prattle.messages.write-behind.dead-letter-path",
+            deadLetterPath));
+    setClustered("tcp".equals(environment.getProperty("prattle.cluster.bus", "local")));
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public void setBatchSize(int batchSize) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("The batch size can not be less than 1");
+    }
+    this.batchSize = batchSize;
+  }
+
+  public void setFlushIntervalMillis(long flushIntervalMillis) {
+    this.flushIntervalMillis = flushIntervalMillis;
+  }
+
+  public void setLogPath(String logPath) {
+    this.logPath = logPath;
+  }
+
+  public void setLogSync(boolean logSync) {
+    this.logSync = logSync;
+  }
+
+  public void setMaxPending(int maxPending) {
+    if (maxPending < 1) {
+      throw new IllegalArgumentException("The pending limit can not be less than 1");
+    }
+    this.maxPending = maxPending;
+  }
+
+  public void setDeadLetterPath(String deadLetterPath) {
+    this.deadLetterPath = deadLetterPath;
+  }
+
+  public void setClustered(boolean clustered) {
+    this.clustered = clustered;
+  }
+
+  /**
+   * Returns whether new messages are persisted through this buffer.
+   *
+   * @return true if write-behind is enabled, else false
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Seeds the id allocator, replays the append log and starts the periodic flush.
+   */
+  @PostConstruct
+  public void start() {
+    if (enabled && clustered) {
+      logger.error("Write-behind persistence assumes a single node and stays disabled while "
+              + "the cluster bus is enabled");
+      enabled = false;
+    }
+    if (!enabled) {
+      return;
+    }
+    int maxMessageId = batchRepository.findMaxMessageId();
+    if (!logPath.isEmpty()) {
+      maxMessageId = Math.max(maxMessageId, replayLog(maxMessageId));
+    }
+    lastMessageId.set(maxMessageId);
+    scheduler = ExecutorFactory.newScheduler("message-write-behind");
+    scheduler.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis,
+            TimeUnit.MILLISECONDS);
+    logger.info("Write-behind persistence of messages enabled, next message id {}",
+            maxMessageId + 1);
+  }
+
+  /**
+   * Flushes what is left in the buffer and stops the periodic flush.
+   */
+  @PreDestroy
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdown();
+    }
+    flush();
+    synchronized (logLock) {
+      if (log != null) {
+        try {
+          log.close();
+        } catch (IOException e) {
+          logger.error(e.getMessage());
+        }
+        log = null;
+      }
+    }
+  }
+
+  /**
+   * Accepts a new message. The message is given the next message id and is written to the
+   * database by a later flush. When the buffer is full the caller flushes it first, which slows
+   * producers down to the pace of the database.
+   *
+   * @param message         the message, its attachment files already stored
+   * @param attachmentPaths the paths of the stored attachment files
+   * @return the message with its id set
+   * @throws IllegalStateException if the buffer is full and can not be flushed
+   */
+  public Message accept(Message message, List<String> attachmentPaths) {
+    if (pending.size() >= maxPending) {
+      flush();
+      if (pending.size() >= maxPending) {
+        throw new IllegalStateException("The write-behind buffer is full");
+      }
+    }
+    message.setMessageId(lastMessageId.incrementAndGet());
+    Row row = Row.of(message, attachmentPaths);
+    pending.put(message.getMessageId(), message);
+    synchronized (logLock) {
+      try {
+        appendToLog(row);
+      } catch (IOException e) {
+        pending.remove(message.getMessageId());
+        throw new UncheckedIOException("Unable to append the message to the log", e);
+      }
+      queue.add(row);
+    }
+    if (queued.incrementAndGet() >= batchSize && scheduler != null
+            && flushRequested.compareAndSet(false, true)) {
+      scheduler.execute(this::flush);
+    }
+    return message;
+  }
+
+  /**
+   * Returns a message that was accepted but not flushed yet.
+   *
+   * @param messageId id of the message
+   * @return the message, empty if it is not waiting to be flushed
+   */
+  public Optional<Message> findPending(int messageId) {
+    return Optional.ofNullable(pending.get(messageId));
+  }
+
+  /**
+   * Returns the number of messages waiting to be flushed.
+   *
+   * @return number of pending messages
+   */
+  public int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * Writes every buffered message to the database. A batch that fails stays buffered and is
+   * retried first on the next flush; a batch the database refuses is split until the refused
+   * messages are isolated and dead-lettered.
+   */
+  public void flush() {
+    synchronized (flushLock) {
+      flushRequested.set(false);
+      while (true) {
+        List<Row> batch = failedBatches.isEmpty() ? drain() : failedBatches.pollFirst();
+        if (batch.isEmpty()) {
+          break;
+        }
+        long start = System.nanoTime();
+        try {
+          batchRepository.insertAll(batch);
+        } catch (RuntimeException e) {
+          if (!isRefused(e)) {
+            failedBatches.addFirst(batch);
+            logger.error("Unable to flush {} messages, retrying later: {}", batch.size(),
+                    e.getMessage());
+            return;
+          }
+          if (batch.size() == 1) {
+            deadLetter(batch.get(0), e);
+          } else {
+            logger.warn("{} messages refused, retrying them in halves: {}", batch.size(),
+                    e.getMessage());
+            int half = batch.size() / 2;
+            failedBatches.addFirst(new ArrayList<>(batch.subList(half, batch.size())));
+            failedBatches.addFirst(new ArrayList<>(batch.subList(0, half)));
+          }
+          continue;
+        }
+        flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        batchSizes.record(batch.size());
+        batch.forEach(row -> pending.remove(row.getMessageId()));
+      }
+      truncateLogIfDrained();
+    }
+  }
+
+  /**
+   * Returns whether a failure is caused by the rows themselves, so that retrying them unchanged
+   * can never succeed, rather than by the database being unreachable.
+   */
+  static boolean isRefused(RuntimeException e) {
+    if (e instanceof NonTransientDataAccessResourceException
+            || e instanceof UncategorizedDataAccessException) {
+      return false;
+    }
+    return e instanceof NonTransientDataAccessException || e instanceof IllegalArgumentException
+            || e instanceof NullPointerException || e instanceof ClassCastException;
+  }
+
+  /**
+   * Gives up on a message the database refused.
+   */
+  private void deadLetter(Row row, RuntimeException e) {
+    pending.remove(row.getMessageId());
+    deadLettered.increment();
+    logger.error("Message {} refused by the database and dead-lettered: {}", row.getMessageId(),
+            e.getMessage());
+    if (deadLetterPath.isEmpty()) {
+      return;
+    }
+    try {
+      Files.write(Paths.get(deadLetterPath),
+              (logMapper.writeValueAsString(row) + "\n").getBytes(StandardCharsets.UTF_8),
+              StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    } catch (IOException ioException) {
+      logger.error("Unable to dead-letter message {}: {}", row.getMessageId(),
+              ioException.getMessage());
+    }
+  }
+
+  private List<Row> drain() {
+    List<Row> batch = new ArrayList<>();
+    Row row;
+    while (batch.size() < batchSize && (row = queue.poll()) != null) {
+      queued.decrementAndGet();
+      batch.add(row);
+    }
+    return batch;
+  }
+
+  private void appendToLog(Row row) throws IOException {
+    if (log == null) {
+      return;
+    }
+    byte[] line = (logMapper.writeValueAsString(row) + "\n").getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.wrap(line);
+    while (buffer.hasRemaining()) {
+      log.write(buffer);
+    }
+    if (logSync) {
+      log.force(false);
+    }
+  }
+
+  private void truncateLogIfDrained() {
+    synchronized (logLock) {
+      if (log != null && queue.isEmpty()) {
+        try {
+          log.truncate(0);
+        } catch (IOException e) {
+          logger.error("Unable to truncate the write-behind log: {}", e.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * Opens the append log and queues the logged messages that did not reach the database.
+   *
+   * @param maxMessageId the highest message id in the database
+   * @return the highest message id in the log
+   */
+  private int replayLog(int maxMessageId) {
+    Path path = Paths.get(logPath);
+    int maxLoggedId = 0;
+    try {
+      if (Files.exists(path)) {
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+          if (line.isEmpty()) {
+            continue;
+          }
+          Row row = logMapper.readValue(line, Row.class);
+          maxLoggedId = Math.max(maxLoggedId, row.getMessageId());
+          if (row.getMessageId() > maxMessageId) {
+            queue.add(row);
+            queued.incrementAndGet();
+          }
+        }
+      }
+      log = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+              StandardOpenOption.APPEND);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to open the write-behind log " + logPath, e);
+    }
+    if (!queue.isEmpty()) {
+      logger.info("Replaying {} logged messages", queue.size());
+      flush();
+    }
+    return maxLoggedId;
+  }
+}
@@ -0,0 +1,349 @@
+package com.neu.prattle.service;
+
+import com.neu.prattle.dto.SyncEvent;
+import com.neu.prattle.dto.SyncPage;
+import com.neu.prattle.exceptions.GroupNotFoundException;
+import com.neu.prattle.model.Message;
+import com.neu.prattle.model.MessageStatus;
+import com.neu.prattle.repository.MessageBatchRepository.Expiring;
+import com.neu.prattle.repository.SyncLogRepository;
+import com.neu.prattle.repository.SyncLogRepository.Entry;
+import com.neu.prattle.service.group.GroupService;
+import com.neu.prattle.utils.ExecutorFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * The Class SyncLogService.
+ * <p>
+ * Numbers the changes every user has to catch up on, new messages, status changes and expired
+ * self-destruct messages of their private and group conversations, with a sequence of their own
+ * and logs them, so that a reconnecting client reads what changed since its cursor instead of
+ * whole histories. A change is logged once for every user it concerns: the sender and recipient
+ * of a private message, the members of the group of a group message. Broadcasts concern everyone
+ * and are not logged.
+ * <p>
+ * Changes are queued once, in the order they happen, and turned into the events of their users
+ * by the flush, so saving a group message costs the same whatever the size of the group and the
+ * members are looked up off the save path, once per group and flush. Events are written in
+ * batches every prattle.messages.sync.flush-interval-ms, and before every read; the database
+ * numbers the events of a batch as it writes them, so any number of application instances can
+ * log the changes of the same user and the log of a user never has a gap. A batch that fails is
+ * written again before any later event; a batch the database refuses is split until the refused
+ * events are isolated and dropped. At most prattle.messages.sync.max-pending changes and events
+ * wait to be written, further changes are dropped while the database cannot keep up.
+ */
+@Service
+public class SyncLogService {
+  private static Logger logger = LoggerFactory.getLogger(SyncLogService.class);
+
+  private SyncLogRepository syncLogRepository;
+  private GroupService groupService;
+
+  /**
+   * The most events written by one batch.
+   */
+  private static final int BATCH_SIZE = 1000;
+
+  private static final Counter dropped = Metrics.counter("prattle.messages.sync.dropped");
+
+  private long flushIntervalMillis = 50;
+  private int maxPending = 100000;
+
+  /**
+   * The changes waiting to be logged, in the order they happened.
+   */
+  private final Queue<Change> pending = new ConcurrentLinkedQueue<>();
+
+  /**
+   * The number of changes queued and of events not yet written.
+   */
+  private final AtomicInteger pendingCount = new AtomicInteger();
+  private final Object flushLock = new Object();
+  private final Deque<List<Entry>> failedBatches = new ArrayDeque<>();
+
+  /**
+   * The change whose users could not be looked up by the last flush, logged first by the next.
+   */
+  private Change unresolved;
+  private ScheduledExecutorService scheduler;
+
+  @Autowired
+  public void setSyncLogRepository(SyncLogRepository syncLogRepository) {
+    this.syncLogRepository = syncLogRepository;
+  }
+
+  @Autowired
+  public void setGroupService(GroupService groupService) {
+    this.groupService = groupService;
+  }
+
+  @Autowired
+  public void setMessageExpiry(MessageExpiryService messageExpiry) {
+    messageExpiry.addListener(this::expired);
+  }
+
+  @Autowired
+  public void setEnvironment(Environment environment) {
+    flushIntervalMillis = environment.getProperty("prattle.messages.sync.flush-interval-ms",
+            Long.class, flushIntervalMillis);
+    maxPending = environment.getProperty("prattle.messages.sync.max-pending", Integer.class,
+            maxPending);
+  }
+
+  /**
+   * Sets the most events waiting to be written.
+   *
+   * @param maxPending the most pending events
+   */
+  void setMaxPending(int maxPending) {
+    this.maxPending = maxPending;
+  }
+
+  /**
+   * Starts the periodic flush.
+   */
+  @PostConstruct
+  public void start() {
+    scheduler = ExecutorFactory.newScheduler("sync-log");
+    scheduler.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis,
+            TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Flushes what is left and stops the periodic flush.
+   */
+  @PreDestroy
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdown();
+      scheduler = null;
+    }
+    flush();
+  }
+
+  /**
+   * Logs a newly saved message.
+   *
+   * @param message the message, with its id set
+   */
+  public void messageSaved(Message message) {
+    append(new Change(message.getFromUserId(), message.getToUserId(),
+            message.getIsGroupMessage(), message.getIsBroadcastMessage(), SyncEvent.MESSAGE,
+            message.getMessageId(), null));
+  }
+
+  /**
+   * Logs the new status of a message, if it changed.
+   *
+   * @param message        the message, with its new status
+   * @param previousStatus the status before the change
+   */
+  public void statusChanged(Message message, MessageStatus previousStatus) {
+    if (message.getMessageStatus() == previousStatus) {
+      return;
+    }
+    append(new Change(message.getFromUserId(), message.getToUserId(),
+            message.getIsGroupMessage(), message.getIsBroadcastMessage(), SyncEvent.STATUS,
+            message.getMessageId(), message.getMessageStatus()));
+  }
+
+  /**
+   * Logs the expiry of self-destruct messages.
+   *
+   * @param messages the expired messages
+   */
+  void expired(List<Expiring> messages) {
+    for (Expiring message : messages) {
+      append(new Change(message.getFromUserId(), message.getToUserId(),
+              message.isGroupMessage(), message.isBroadcastMessage(), SyncEvent.EXPIRED,
+              message.getMessageId(), null));
+    }
+  }
+
+  /**
+   * Returns the users a change concerns, looking the members of a group up once per flush.
+   */
+  private Collection<Integer> getUsers(Change change, Map<Integer, Collection<Integer>> members) {
+    if (change.groupMessage) {
+      return members.computeIfAbsent(change.toUserId, groupId -> {
+        try {
+          return groupService.getMemberIdsInGroupAndSubGroups(groupId);
+        } catch (GroupNotFoundException e) {
+          logger.info("Could not find group {}", groupId);
+          return Collections.singleton(change.fromUserId);
+        }
+      });
+    }
+    Set<Integer> users = new HashSet<>(Arrays.asList(change.fromUserId, change.toUserId));
+    users.remove(0);
+    return users;
+  }
+
+  /**
+   * Queues a change, unless too many changes and events are waiting to be written. Broadcasts
+   * concern everyone and are not logged.
+   */
+  private void append(Change change) {
+    if (change.broadcastMessage) {
+      return;
+    }
+    if (pendingCount.incrementAndGet() > maxPending) {
+      pendingCount.decrementAndGet();
+      dropped.increment();
+      logger.error("Too many sync events waiting to be written, dropping the {} of message {}",
+              change.type, change.messageId);
+      return;
+    }
+    pending.add(change);
+  }
+
+  /**
+   * Writes the pending events, after the batches that failed, if any. A batch that fails stays
+   * queued and is retried first on the next flush; a batch the database refuses is split until
+   * the refused events are isolated and dropped.
+   */
+  public void flush() {
+    synchronized (flushLock) {
+      while (true) {
+        List<Entry> batch = failedBatches.isEmpty() ? drain() : failedBatches.pollFirst();
+        if (batch.isEmpty()) {
+          return;
+        }
+        try {
+          syncLogRepository.appendAll(batch);
+        } catch (RuntimeException e) {
+          if (!MessageWriteBehindBuffer.isRefused(e)) {
+            failedBatches.addFirst(batch);
+            logger.error("Unable to write {} sync events, retrying later: {}", batch.size(),
+                    e.getMessage());
+            return;
+          }
+          if (batch.size() == 1) {
+            pendingCount.decrementAndGet();
+            dropped.increment();
+            logger.error("Sync event refused by the database and dropped, the {}: {}",
+                    batch.get(0), e.getMessage());
+          } else {
+            int half = batch.size() / 2;
+            failedBatches.addFirst(new ArrayList<>(batch.subList(half, batch.size())));
+            failedBatches.addFirst(new ArrayList<>(batch.subList(0, half)));
+          }
+          continue;
+        }
+        pendingCount.addAndGet(-batch.size());
+        if (unresolved != null) {
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Turns queued changes into the events of their users until a batch is full. A change whose
+   * users cannot be looked up is kept for the next flush, so no later change is logged first.
+   */
+  private List<Entry> drain() {
+    List<Entry> batch = new ArrayList<>();
+    Map<Integer, Collection<Integer>> members = new HashMap<>();
+    while (batch.size() < BATCH_SIZE) {
+      Change change = unresolved != null ? unresolved : pending.poll();
+      if (change == null) {
+        break;
+      }
+      Collection<Integer> users;
+      try {
+        users = getUsers(change, members);
+      } catch (RuntimeException e) {
+        unresolved = change;
+        logger.error("Unable to look up the users of the {} of message {}, retrying later: {}",
+                change.type, change.messageId, e.getMessage());
+        break;
+      }
+      unresolved = null;
+      for (int userId : users) {
+        batch.add(new Entry(userId, change.type, change.messageId, change.status));
+      }
+      pendingCount.addAndGet(users.size() - 1);
+    }
+    return batch;
+  }
+
+  /**
+   * Reads the events of a user after a cursor, in sequence order. The events logged so far are
+   * written first, so the page holds every change made before the call.
+   *
+   * @param userId   id of the user
+   * @param sinceSeq the cursor, 0 to read from the first event
+   * @param limit    the most events in the page
+   * @return the page
+   */
+  public SyncPage sync(int userId, long sinceSeq, int limit) {
+    flush();
+    List<SyncEvent> events = syncLogRepository.findAfter(userId, Math.max(0, sinceSeq), limit);
+    if (events.isEmpty()) {
+      return new SyncPage(events, sinceSeq, false);
+    }
+    return new SyncPage(events, events.get(events.size() - 1).getSeq(), events.size() == limit);
+  }
+
+  /**
+   * Returns the number of changes and events waiting to be written.
+   *
+   * @return number of changes and events
+   */
+  public int getPendingCount() {
+    return pendingCount.get();
+  }
+
+  /**
+   * A change of a message, waiting to be logged for the users it concerns.
+   */
+  private static final class Change {
+    private final int fromUserId;
+    private final int toUserId;
+    private final boolean groupMessage;
+    private final boolean broadcastMessage;
+    private final String type;
+    private final int messageId;
+    private final MessageStatus status;
+
+    private Change(int fromUserId, int toUserId, boolean groupMessage, boolean broadcastMessage,
+                   String type, int messageId, MessageStatus status) {
+      this.fromUserId = fromUserId;
+      this.toUserId = toUserId;
+      this.groupMessage = groupMessage;
+      this.broadcastMessage = broadcastMessage;
+      this.type = type;
+      this.messageId = messageId;
+      this.status = status;
+    }
+  }
+}
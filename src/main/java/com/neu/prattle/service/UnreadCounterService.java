@@ -0,0 +1,337 @@
+package com.neu.prattle.service;
+
+import com.neu.prattle.dto.UnreadCounts;
+import com.neu.prattle.model.Message;
+import com.neu.prattle.model.MessageStatus;
+import com.neu.prattle.repository.MessageRepository;
+import com.neu.prattle.utils.ExecutorFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+ * The Class UnreadCounterService.
+ * <p>
+ * Keeps the number of unread messages, those still DELIVERED, per recipient and sender and per
+ * group and sender, so that counting them reads no messages. The counts of a recipient or group
+ * are loaded with one grouped query when they are first asked for and are then kept up to date as
+ * messages are saved and change status.
+ * <p>
+ * The status of a message is kept per message and not per member, so the count of a group is not
+ * the unread count of a member but a group-wide count of the messages no member has read yet,
+ * and is served as such; the count served to a member leaves out the messages the member sent.
+ * <p>
+ * A count can drift, for a message saved or read while its counts were being loaded or a message
+ * purged once expired. Every prattle.messages.unread.reconcile-interval-ms the counts read since
+ * the last run are loaded again from the database and the others are dropped, so only the counts
+ * of active users are kept. A count adjusted while it was being loaded is loaded again by the
+ * next run even if it was not read, so drift lasts at most one interval.
+ */
+@Service
+public class UnreadCounterService {
+  private static Logger logger = LoggerFactory.getLogger(UnreadCounterService.class);
+
+  /**
+   * The most groups counted by one query.
+   */
+  private static final int GROUP_QUERY_SIZE = 500;
+
+  private MessageRepository messageRepository;
+
+  private long reconcileIntervalMillis = 60000;
+
+  /**
+   * The unread counts of the recipients, keyed by recipient and then by sender.
+   */
+  private final ConcurrentMap<Integer, ConcurrentMap<Integer, AtomicInteger>> users =
+          new ConcurrentHashMap<>();
+
+  /**
+   * The unread counts of the groups, keyed by group and then by sender.
+   */
+  private final ConcurrentMap<Integer, ConcurrentMap<Integer, AtomicInteger>> groups =
+          new ConcurrentHashMap<>();
+
+  private final Set<Integer> readUsers = ConcurrentHashMap.newKeySet();
+  private final Set<Integer> readGroups = ConcurrentHashMap.newKeySet();
+
+  /**
+   * The recipients and groups whose counts are being loaded, and those of them adjusted since.
+   */
+  private final Set<Integer> loadingUsers = ConcurrentHashMap.newKeySet();
+  private final Set<Integer> loadingGroups = ConcurrentHashMap.newKeySet();
+  private final Set<Integer> racedUsers = ConcurrentHashMap.newKeySet();
+  private final Set<Integer> racedGroups = ConcurrentHashMap.newKeySet();
+  private ScheduledExecutorService reconciler;
+
+  @Autowired
+  public void setMessageRepository(MessageRepository messageRepository) {
+    this.messageRepository = messageRepository;
+  }
+
+  @Autowired
+  public void setEnvironment(Environment environment) {
+    reconcileIntervalMillis = environment.getProperty(
+            "prattle.messages.unread.reconcile-interval-ms", Long.class, reconcileIntervalMillis);
+  }
+
+  /**
+   * Starts the periodic reconciliation.
+   */
+  @PostConstruct
+  public void start() {
+    reconciler = ExecutorFactory.newScheduler("unread-reconcile");
+    reconciler.scheduleWithFixedDelay(this::reconcile, reconcileIntervalMillis,
+            reconcileIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops the periodic reconciliation.
+   */
+  @PreDestroy
+  public void stop() {
+    if (reconciler != null) {
+      reconciler.shutdownNow();
+      reconciler = null;
+    }
+  }
+
+  /**
+   * Counts a newly saved message.
+   *
+   * @param message the message
+   */
+  public void messageSaved(Message message) {
+    if (message.getMessageStatus() == MessageStatus.DELIVERED) {
+      adjust(message, 1);
+    }
+  }
+
+  /**
+   * Counts a message whose status changed.
+   *
+   * @param message        the message, with its new status
+   * @param previousStatus the status before the change
+   */
+  public void statusChanged(Message message, MessageStatus previousStatus) {
+    boolean wasUnread = previousStatus == MessageStatus.DELIVERED;
+    boolean isUnread = message.getMessageStatus() == MessageStatus.DELIVERED;
+    if (wasUnread != isUnread) {
+      adjust(message, isUnread ? 1 : -1);
+    }
+  }
+
+  /**
+   * Adjusts the count of the conversation of a message, if it is loaded. A count that is not
+   * loaded is read from the database when it is first asked for. A count being loaded is marked
+   * first, as the load may or may not see the change.
+   */
+  private void adjust(Message message, int delta) {
+    if (message.getIsBroadcastMessage()) {
+      return;
+    }
+    int key = message.getToUserId();
+    if (message.getIsGroupMessage() ? loadingGroups.contains(key) : loadingUsers.contains(key)) {
+      (message.getIsGroupMessage() ? racedGroups : racedUsers).add(key);
+    }
+    Map<Integer, AtomicInteger> senders = message.getIsGroupMessage()
+            ? groups.get(key) : users.get(key);
+    if (senders == null) {
+      return;
+    }
+    AtomicInteger count = delta > 0
+            ? senders.computeIfAbsent(message.getFromUserId(), sender -> new AtomicInteger())
+            : senders.get(message.getFromUserId());
+    if (count != null) {
+      count.accumulateAndGet(delta, (current, change) -> Math.max(0, current + change));
+    }
+  }
+
+  /**
+   * Returns the number of unread messages a recipient received from a sender.
+   *
+   * @param recipientId id of the recipient
+   * @param senderId    id of the sender
+   * @return number of unread messages
+   */
+  public int getCount(int recipientId, int senderId) {
+    AtomicInteger count = getSenders(recipientId).get(senderId);
+    return count == null ? 0 : count.get();
+  }
+
+  /**
+   * Returns every unread count of a user: per sender, and per group the group-wide count of the
+   * messages other members sent that no member has read yet.
+   *
+   * @param userId   id of the user
+   * @param groupIds ids of the groups of the user
+   * @return the counts
+   */
+  public UnreadCounts getCounts(int userId, Collection<Integer> groupIds) {
+    Map<Integer, Integer> userCounts = new HashMap<>();
+    getSenders(userId).forEach((sender, count) -> {
+      if (count.get() > 0) {
+        userCounts.put(sender, count.get());
+      }
+    });
+    List<Integer> missing = new ArrayList<>();
+    for (int groupId : groupIds) {
+      readGroups.add(groupId);
+      if (!groups.containsKey(groupId)) {
+        missing.add(groupId);
+      }
+    }
+    startLoading(missing, loadingGroups, racedGroups);
+    try {
+      loadGroups(missing).forEach(groups::putIfAbsent);
+    } finally {
+      finishLoading(missing, loadingGroups, racedGroups, readGroups);
+    }
+    Map<Integer, Integer> groupCounts = new HashMap<>();
+    for (int groupId : groupIds) {
+      Map<Integer, AtomicInteger> senders = groups.get(groupId);
+      if (senders == null) {
+        continue;
+      }
+      int count = 0;
+      for (Map.Entry<Integer, AtomicInteger> sender : senders.entrySet()) {
+        if (sender.getKey() != userId) {
+          count += sender.getValue().get();
+        }
+      }
+      if (count > 0) {
+        groupCounts.put(groupId, count);
+      }
+    }
+    return new UnreadCounts(userCounts, groupCounts);
+  }
+
+  private Map<Integer, AtomicInteger> getSenders(int recipientId) {
+    readUsers.add(recipientId);
+    ConcurrentMap<Integer, AtomicInteger> senders = users.get(recipientId);
+    if (senders == null) {
+      List<Integer> keys = Collections.singletonList(recipientId);
+      startLoading(keys, loadingUsers, racedUsers);
+      try {
+        ConcurrentMap<Integer, AtomicInteger> loaded = loadSenders(recipientId);
+        senders = users.putIfAbsent(recipientId, loaded);
+        if (senders == null) {
+          senders = loaded;
+        }
+      } finally {
+        finishLoading(keys, loadingUsers, racedUsers, readUsers);
+      }
+    }
+    return senders;
+  }
+
+  private static void startLoading(Collection<Integer> keys, Set<Integer> loading,
+                                   Set<Integer> raced) {
+    raced.removeAll(keys);
+    loading.addAll(keys);
+  }
+
+  /**
+   * Ends the loading of counts, once they are installed. A count adjusted while it was loaded
+   * is marked read, so the next run loads it again.
+   */
+  private static void finishLoading(Collection<Integer> keys, Set<Integer> loading,
+                                    Set<Integer> raced, Set<Integer> read) {
+    loading.removeAll(keys);
+    for (Integer key : keys) {
+      if (raced.remove(key)) {
+        read.add(key);
+      }
+    }
+  }
+
+  private ConcurrentMap<Integer, AtomicInteger> loadSenders(int recipientId) {
+    ConcurrentMap<Integer, AtomicInteger> senders = new ConcurrentHashMap<>();
+    for (Object[] row : messageRepository.countNewMessagesBySender(recipientId)) {
+      senders.put(((Number) row[0]).intValue(), new AtomicInteger(((Number) row[1]).intValue()));
+    }
+    return senders;
+  }
+
+  /**
+   * Loads the counts of groups per sender, a group without unread messages having no senders.
+   */
+  private Map<Integer, ConcurrentMap<Integer, AtomicInteger>> loadGroups(List<Integer> groupIds) {
+    Map<Integer, ConcurrentMap<Integer, AtomicInteger>> counts = new HashMap<>();
+    for (int from = 0; from < groupIds.size(); from += GROUP_QUERY_SIZE) {
+      List<Integer> chunk = groupIds.subList(from,
+              Math.min(groupIds.size(), from + GROUP_QUERY_SIZE));
+      chunk.forEach(groupId -> counts.put(groupId, new ConcurrentHashMap<>()));
+      for (Object[] row : messageRepository.countNewMessagesByGroup(chunk)) {
+        counts.get(((Number) row[0]).intValue()).put(((Number) row[1]).intValue(),
+                new AtomicInteger(((Number) row[2]).intValue()));
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * Loads the counts read since the last run again from the database and drops the others.
+   */
+  public void reconcile() {
+    try {
+      for (Integer recipientId : new ArrayList<>(users.keySet())) {
+        if (!readUsers.remove(recipientId)) {
+          users.remove(recipientId);
+          continue;
+        }
+        List<Integer> keys = Collections.singletonList(recipientId);
+        startLoading(keys, loadingUsers, racedUsers);
+        try {
+          users.put(recipientId, loadSenders(recipientId));
+        } finally {
+          finishLoading(keys, loadingUsers, racedUsers, readUsers);
+        }
+      }
+      List<Integer> reload = new ArrayList<>();
+      for (Integer groupId : new ArrayList<>(groups.keySet())) {
+        if (readGroups.remove(groupId)) {
+          reload.add(groupId);
+        } else {
+          groups.remove(groupId);
+        }
+      }
+      startLoading(reload, loadingGroups, racedGroups);
+      try {
+        groups.putAll(loadGroups(reload));
+      } finally {
+        finishLoading(reload, loadingGroups, racedGroups, readGroups);
+      }
+    } catch (RuntimeException e) {
+      logger.error("Unable to reconcile the unread counts: {}", e.getMessage());
+    }
+  }
+
+  /**
+   * Returns the number of recipients and groups whose counts are loaded.
+   *
+   * @return number of loaded counts
+   */
+  public int getLoadedCount() {
+    return users.size() + groups.size();
+  }
+}
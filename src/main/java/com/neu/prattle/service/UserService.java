@@ -114,6 +114,14 @@ public interface UserService {
    */
   List<User> getAllFollowing(String username) throws UserDoesNotExistException;
 
+  /**
+   * Returns the ids of the users followed by the specified user.
+   *
+   * @param userId id of the user who's following list is to be returned
+   * @return ids of the users followed
+   */
+  List<Integer> getFolloweeIds(int userId);
+
   /**
    * Logs the user's last logged in time and logs him out.
    *
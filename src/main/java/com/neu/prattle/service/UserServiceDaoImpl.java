@@ -159,6 +159,11 @@ public class UserServiceDaoImpl extends AbstractUserService {
     return new ArrayList<>(returnUser(username, USER_DOES_NOT_EXIST).getFollowees());
   }
 
+  @Override
+  public List<Integer> getFolloweeIds(int userId) {
+    return userRepository.findFolloweeIds(userId);
+  }
+
   @Override
   public void logout(String username) throws UserDoesNotExistException {
     User user = returnUser(username, "User to be followed does not exists");
@@ -0,0 +1,158 @@
+package com.neu.prattle.service.group;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+/**
+ * Caches the resolved recipients of each group: the deduplicated ids of the users mapped to the
+ * group or to any of its transitive subgroups. For every group the cache also remembers which
+ * cached groups it contributed members to, so a change to one group only patches or invalidates
+ * the entries it is part of.
+ * <p>
+ * Cached sets are immutable and replaced as a whole, readers never see a set being modified.
+ * Every change advances a generation counter; an entry resolved while a change happened is not
+ * stored, so a resolution that read the database before the change can not hide it.
+ * <p>
+ * The listeners learn of every group changed through this cache, so that the other nodes of a
+ * cluster can drop their entries; those are dropped with {@link #evict}, which tells no one.
+ */
+public class GroupMembershipCache {
+
+  /**
+   * The resolved member ids, keyed by group id.
+   */
+  private final ConcurrentMap<Integer, Set<Integer>> memberIdsByGroup = new ConcurrentHashMap<>();
+
+  /**
+   * The cached groups each group contributed members to, keyed by the contributing group id.
+   */
+  private final ConcurrentMap<Integer, Set<Integer>> dependentGroups = new ConcurrentHashMap<>();
+
+  private final AtomicLong generation = new AtomicLong();
+
+  private final List<IntConsumer> listeners = new CopyOnWriteArrayList<>();
+
+  /**
+   * Adds a listener told the id of every group changed through this cache.
+   *
+   * @param listener the listener
+   */
+  public void addListener(IntConsumer listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Returns the cached member ids of a group.
+   *
+   * @param groupId id of the group
+   * @return read only member ids, empty if the group is not cached
+   */
+  public Optional<Set<Integer>> get(int groupId) {
+    return Optional.ofNullable(memberIdsByGroup.get(groupId));
+  }
+
+  /**
+   * Returns the current generation, to be passed to {@link #put} by a caller that is about to
+   * resolve a group.
+   *
+   * @return the generation
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * Stores the resolved member ids of a group, unless the cache changed since the resolution
+   * started.
+   *
+   * @param groupId            id of the resolved group
+   * @param memberIds          ids of the users of the group and its transitive subgroups
+   * @param contributingGroups ids of the group and its transitive subgroups
+   * @param resolvedGeneration the generation read before resolving
+   * @return the read only member ids
+   */
+  public Set<Integer> put(int groupId, Set<Integer> memberIds, Set<Integer> contributingGroups,
+                          long resolvedGeneration) {
+    Set<Integer> result = Collections.unmodifiableSet(new HashSet<>(memberIds));
+    synchronized (this) {
+      if (generation.get() == resolvedGeneration) {
+        for (int contributor : contributingGroups) {
+          dependentGroups.computeIfAbsent(contributor, id -> ConcurrentHashMap.newKeySet())
+                  .add(groupId);
+        }
+        memberIdsByGroup.put(groupId, result);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Adds a user to the cached entries the group contributes to.
+   *
+   * @param groupId id of the group the user was added to
+   * @param userId  id of the user
+   */
+  public void addMember(int groupId, int userId) {
+    synchronized (this) {
+      generation.incrementAndGet();
+      for (int dependent : getDependents(groupId)) {
+        memberIdsByGroup.computeIfPresent(dependent, (id, memberIds) -> {
+          if (memberIds.contains(userId)) {
+            return memberIds;
+          }
+          Set<Integer> patched = new HashSet<>(memberIds);
+          patched.add(userId);
+          return Collections.unmodifiableSet(patched);
+        });
+      }
+    }
+    listeners.forEach(listener -> listener.accept(groupId));
+  }
+
+  /**
+   * Drops the cached entries the group contributes to. Used when a user may have left the
+   * recipients or when the subgroup structure changed.
+   *
+   * @param groupId id of the changed group
+   */
+  public void invalidate(int groupId) {
+    evict(groupId);
+    listeners.forEach(listener -> listener.accept(groupId));
+  }
+
+  /**
+   * Drops the cached entries the group contributes to after it changed on another node, without
+   * telling the listeners.
+   *
+   * @param groupId id of the changed group
+   */
+  public synchronized void evict(int groupId) {
+    generation.incrementAndGet();
+    for (int dependent : getDependents(groupId)) {
+      memberIdsByGroup.remove(dependent);
+    }
+    dependentGroups.remove(groupId);
+  }
+
+  /**
+   * Drops every cached entry.
+   */
+  public synchronized void clear() {
+    generation.incrementAndGet();
+    memberIdsByGroup.clear();
+    dependentGroups.clear();
+  }
+
+  private Set<Integer> getDependents(int groupId) {
+    Set<Integer> dependents = dependentGroups.get(groupId);
+    return dependents == null ? Collections.emptySet() : new HashSet<>(dependents);
+  }
+}
@@ -8,6 +8,7 @@ import org.springframework.stereotype.Service;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 
 /**
  * Service class associated with {@link com.neu.prattle.controller.GroupController}.
@@ -45,6 +46,14 @@ public interface GroupService {
 
   List<User> getAllUsersInGroupsAndSubGroups(String groupName);
 
+  /**
+   * Returns the ids of the users of a group and of its transitive subgroups, each id once.
+   *
+   * @param groupId id of the group
+   * @return read only set of user ids
+   */
+  Set<Integer> getMemberIdsInGroupAndSubGroups(int groupId);
+
   Group addSubGroup(Group parentGroup, Group subGroup);
 
   List<Group> getSubgroups(Group group);
@@ -121,6 +130,14 @@ public interface GroupService {
    */
   List<Group> getGroupsForUser(User user);
 
+  /**
+   * Gets the ids of the groups a user is a member of
+   *
+   * @param userId id of the user
+   * @return list of group ids
+   */
+  List<Integer> getGroupIdsForUser(int userId);
+
   /**
    * Updates group
    *
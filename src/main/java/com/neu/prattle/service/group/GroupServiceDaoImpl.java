@@ -21,9 +21,15 @@ import org.springframework.transaction.annotation.Transactional;
 
 import java.sql.Timestamp;
 import java.time.LocalDateTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
@@ -35,6 +41,7 @@ public class GroupServiceDaoImpl implements GroupService {
   private GroupRepository groupRepository;
   private GroupUserMapperRepository mapperRepository;
   private UserFeedMapperRepository userFeedMapperRepository;
+  private final GroupMembershipCache membershipCache = new GroupMembershipCache();
 
   private Logger logger = LoggerFactory.getLogger(GroupServiceDaoImpl.class);
 
@@ -53,6 +60,15 @@ public class GroupServiceDaoImpl implements GroupService {
     this.mapperRepository = mapperRepository;
   }
 
+  /**
+   * Returns the cache of the resolved recipients of the groups.
+   *
+   * @return the membership cache
+   */
+  public GroupMembershipCache getMembershipCache() {
+    return membershipCache;
+  }
+
   @Override
   public Optional<Group> findGroupByName(String name) {
     return groupRepository.findByGroupName(name);
@@ -76,6 +92,7 @@ public class GroupServiceDaoImpl implements GroupService {
     subGroup.getParentGroups().add(parentGroup);
     groupRepository.save(parentGroup);
     groupRepository.save(subGroup);
+    membershipCache.invalidate(parentGroup.getGroupID());
     logger.info("Group {} added to group {}", subGroup.getGroupName(), parentGroup.getGroupName());
     return parentGroup;
   }
@@ -119,17 +136,55 @@ public class GroupServiceDaoImpl implements GroupService {
   public List<User> getAllUsersInGroupsAndSubGroups(String groupName) {
     Optional<Group> optionalGroup = groupRepository.findByGroupName(groupName);
     if (optionalGroup.isPresent()) {
-      Group group = optionalGroup.get();
-      List<GroupUserMapper> gums = mapperRepository.getMapsByGroupId(group.getGroupID());
-      List<User> targetGroupUsers = gums.stream().map(GroupUserMapper::getUser).collect(Collectors.toList());
-      for (Group subGroup : group.getSubGroups()) {
-        targetGroupUsers.addAll(getAllUsersInGroupsAndSubGroups(subGroup.getGroupName()));
-      }
-      return targetGroupUsers;
+      Set<User> targetGroupUsers = new LinkedHashSet<>();
+      visitGroupAndSubGroups(optionalGroup.get(), gum -> targetGroupUsers.add(gum.getUser()));
+      return new ArrayList<>(targetGroupUsers);
     }
     throw new GroupNotFoundException("Couldnt find a group by that name");
   }
 
+  @Override
+  public Set<Integer> getMemberIdsInGroupAndSubGroups(int groupId) {
+    Optional<Set<Integer>> cached = membershipCache.get(groupId);
+    if (cached.isPresent()) {
+      return cached.get();
+    }
+    long generation = membershipCache.getGeneration();
+    Optional<Group> optionalGroup = groupRepository.findByGroupID(groupId);
+    if (!optionalGroup.isPresent()) {
+      throw new GroupNotFoundException("Couldnt find a group by that id");
+    }
+    Set<Integer> memberIds = new HashSet<>();
+    Set<Integer> groupIds = visitGroupAndSubGroups(optionalGroup.get(),
+            gum -> memberIds.add(gum.getUser().getUserID()));
+    return membershipCache.put(groupId, memberIds, groupIds, generation);
+  }
+
+  /**
+   * Visits the user mappings of a group and of its transitive subgroups, each group once even if
+   * it is reachable on several paths or the subgroups form a cycle.
+   *
+   * @param group   the group to start from
+   * @param visitor called with every mapping
+   * @return the ids of the visited groups
+   */
+  private Set<Integer> visitGroupAndSubGroups(Group group, Consumer<GroupUserMapper> visitor) {
+    Set<Integer> visited = new HashSet<>();
+    Deque<Group> toVisit = new ArrayDeque<>();
+    toVisit.add(group);
+    while (!toVisit.isEmpty()) {
+      Group current = toVisit.poll();
+      if (!visited.add(current.getGroupID())) {
+        continue;
+      }
+      mapperRepository.getMapsByGroupId(current.getGroupID()).forEach(visitor);
+      if (current.getSubGroups() != null) {
+        toVisit.addAll(current.getSubGroups());
+      }
+    }
+    return visited;
+  }
+
   @Override
   public boolean isMember(Group group, User user) {
     List<Group> parentGroups = getParentGroups(group);
@@ -174,6 +229,7 @@ public class GroupServiceDaoImpl implements GroupService {
             new GroupUserCompositeKey(group.getGroupID(), member.getUserID()), isModerator, isFollower,
             isMember);
     mapperRepository.save(map);
+    membershipCache.addMember(group.getGroupID(), member.getUserID());
   }
 
   @Override
@@ -199,6 +255,11 @@ public class GroupServiceDaoImpl implements GroupService {
     return result;
   }
 
+  @Override
+  public List<Integer> getGroupIdsForUser(int userId) {
+    return mapperRepository.getGroupIdsByMemberId(userId);
+  }
+
   @Override
   public void updateGroup(GroupDTO groupDTO, String groupName) {
     Optional<Group> optionalGroup = findGroupByName(groupName);
@@ -226,6 +287,7 @@ public class GroupServiceDaoImpl implements GroupService {
       mapper.setMember(true);
       mapperRepository.save(mapper);
     }
+    membershipCache.addMember(group.getGroupID(), user.getUserID());
     logger.info("Invite for user {} has been accepted", user.getUsername());
     updateFollowersFeed(group.getGroupName(), "User "
             + user + " has been added to group " + group.getGroupName());
@@ -238,6 +300,7 @@ public class GroupServiceDaoImpl implements GroupService {
     for (GroupUserMapper mapper : list) {
       mapperRepository.delete(mapper);
     }
+    membershipCache.invalidate(group.getGroupID());
     logger.info("Invite for user {} has been rejected", user.getUsername());
   }
 
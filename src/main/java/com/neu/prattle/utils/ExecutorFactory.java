@@ -0,0 +1,71 @@
+package com.neu.prattle.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors used by the background workers of the application. All threads are
+ * daemon threads named after the worker, and tasks can run on virtual threads when the runtime
+ * provides them.
+ */
+public class ExecutorFactory {
+  private static Logger logger = LoggerFactory.getLogger(ExecutorFactory.class);
+
+  private ExecutorFactory() {
+    // private constructor to hide default constructor
+  }
+
+  /**
+   * Creates an executor for blocking tasks. A virtual thread per task executor is used if asked
+   * for and supported by the runtime, else a fixed pool of platform threads.
+   *
+   * @param name           prefix of the thread names
+   * @param threads        size of the pool of platform threads
+   * @param virtualThreads true to prefer virtual threads
+   * @return the executor
+   */
+  public static ExecutorService newExecutor(String name, int threads, boolean virtualThreads) {
+    if (virtualThreads) {
+      try {
+        Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        logger.info("Running {} on virtual threads", name);
+        return (ExecutorService) factory.invoke(null);
+      } catch (ReflectiveOperationException e) {
+        logger.info("Virtual threads are not supported, running {} on {} threads", name, threads);
+      }
+    }
+    return Executors.newFixedThreadPool(threads, newThreadFactory(name));
+  }
+
+  /**
+   * Creates a single threaded scheduler.
+   *
+   * @param name name of the thread
+   * @return the scheduler
+   */
+  public static ScheduledExecutorService newScheduler(String name) {
+    return Executors.newSingleThreadScheduledExecutor(newThreadFactory(name));
+  }
+
+  /**
+   * Creates a factory of named daemon threads.
+   *
+   * @param name prefix of the thread names
+   * @return the thread factory
+   */
+  public static ThreadFactory newThreadFactory(String name) {
+    AtomicInteger count = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+}
@@ -8,6 +8,11 @@ import java.io.BufferedWriter;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.UUID;
 
 public class FileHandler {
@@ -25,11 +30,8 @@ public class FileHandler {
    * @return the path of the file created.
    */
   public static String createFileForMediaTypeData(String data) {
-    String filename = UUID.randomUUID().toString() + ".txt";
-    try (
-            FileWriter fileWriter = new FileWriter(filename, true);
-            BufferedWriter writer = new BufferedWriter(fileWriter);
-    ) {
+    String filename = newMediaTypeFilePath();
+    try (Writer writer = openMediaTypeFile(filename)) {
       writer.write(data);
       writer.flush();
       return filename;
@@ -39,6 +41,52 @@ public class FileHandler {
     return "Error";
   }
 
+  /**
+   * Returns the path of a new file for media type content.
+   *
+   * @return the path of the file to create.
+   */
+  public static String newMediaTypeFilePath() {
+    return UUID.randomUUID().toString() + ".txt";
+  }
+
+  /**
+   * Opens a file for media type content that is written piece by piece, creating it if needed.
+   *
+   * @param filepath the path of the file.
+   * @return a writer appending to the file, to be closed by the caller.
+   * @throws IOException if the file can not be opened.
+   */
+  public static Writer openMediaTypeFile(String filepath) throws IOException {
+    return new BufferedWriter(new FileWriter(filepath, true));
+  }
+
+  /**
+   * Opens a file for media type content that is written at given positions, such as an upload
+   * received in chunks, creating it if needed.
+   *
+   * @param filepath the path of the file.
+   * @return a channel writing to the file, to be closed by the caller.
+   * @throws IOException if the file can not be opened.
+   */
+  public static FileChannel openMediaTypeChannel(String filepath) throws IOException {
+    return FileChannel.open(Paths.get(filepath), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Deletes a media type file that is not referenced by any attachment.
+   *
+   * @param filepath the path of the file.
+   */
+  public static void deleteMediaTypeFile(String filepath) {
+    try {
+      Files.deleteIfExists(Paths.get(filepath));
+    } catch (IOException e) {
+      logger.error("Unable to delete file.");
+    }
+  }
+
   /**
    * Gets the file data from a file.
    *
@@ -0,0 +1,182 @@
+package com.neu.prattle.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timer wheel, for very many timeouts that are rarely precise and often cancelled,
+ * such as the heartbeat of every session. Time advances in ticks; a timeout is hashed into the
+ * slot of the tick it expires on, and each tick only looks at one slot. Scheduling and
+ * cancelling are constant time and take no lock, where a scheduled executor would keep every
+ * timeout in a heap.
+ * <p>
+ * Timeouts fire on the thread that advances the wheel, at most one tick late, so their tasks
+ * must be short and must not block.
+ */
+public class HashedTimerWheel {
+  private static Logger logger = LoggerFactory.getLogger(HashedTimerWheel.class);
+
+  private final long tickMillis;
+  private final Deque<Timeout>[] slots;
+  private final int mask;
+  private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pending = new AtomicInteger();
+  private volatile long tick;
+  private ScheduledExecutorService ticker;
+
+  /**
+   * Creates a wheel that does not advance by itself, see {@link #start(String)}.
+   *
+   * @param tickMillis length of a tick
+   * @param slots      number of slots, rounded up to a power of two; timeouts longer than a turn
+   *                   of the wheel wait for their turn in their slot
+   */
+  @SuppressWarnings("unchecked")
+  public HashedTimerWheel(long tickMillis, int slots) {
+    if (tickMillis < 1 || slots < 1) {
+      throw new IllegalArgumentException("A wheel needs a positive tick and number of slots");
+    }
+    int size = 1;
+    while (size < slots) {
+      size <<= 1;
+    }
+    this.tickMillis = tickMillis;
+    this.slots = new Deque[size];
+    for (int i = 0; i < size; i++) {
+      this.slots[i] = new ArrayDeque<>();
+    }
+    this.mask = size - 1;
+  }
+
+  /**
+   * Advances the wheel every tick on a thread of its own.
+   *
+   * @param name name of the thread
+   * @return this wheel
+   */
+  public synchronized HashedTimerWheel start(String name) {
+    if (ticker == null) {
+      ticker = ExecutorFactory.newScheduler(name);
+      ticker.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+    return this;
+  }
+
+  /**
+   * Stops advancing the wheel. Pending timeouts do not fire.
+   */
+  public synchronized void stop() {
+    if (ticker != null) {
+      ticker.shutdownNow();
+      ticker = null;
+    }
+  }
+
+  /**
+   * Schedules a task.
+   *
+   * @param task  the task, run on the thread advancing the wheel
+   * @param delay how long to wait, rounded up to whole ticks
+   * @param unit  the unit of the delay
+   * @return the timeout, to cancel it
+   */
+  public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    long ticks = Math.max(1, (unit.toMillis(delay) + tickMillis - 1) / tickMillis);
+    Timeout timeout = new Timeout(task, tick + ticks);
+    pending.incrementAndGet();
+    scheduled.add(timeout);
+    return timeout;
+  }
+
+  /**
+   * Advances the wheel by one tick, firing the timeouts that expire on it. Called by the thread
+   * started by {@link #start(String)}, or directly by a single caller such as a test.
+   */
+  public void tick() {
+    long now = tick + 1;
+    Timeout timeout;
+    while ((timeout = scheduled.poll()) != null) {
+      if (!timeout.isCancelled()) {
+        slots[(int) (Math.max(timeout.deadline, now) & mask)].add(timeout);
+      }
+    }
+    tick = now;
+    Iterator<Timeout> slot = slots[(int) (now & mask)].iterator();
+    while (slot.hasNext()) {
+      timeout = slot.next();
+      if (timeout.isCancelled()) {
+        slot.remove();
+      } else if (timeout.deadline <= now) {
+        slot.remove();
+        timeout.fire();
+      }
+    }
+  }
+
+  /**
+   * Returns the number of timeouts scheduled and not yet fired or cancelled.
+   *
+   * @return number of timeouts
+   */
+  public int getPendingCount() {
+    return pending.get();
+  }
+
+  /**
+   * A scheduled task.
+   */
+  public final class Timeout {
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int FIRED = 2;
+
+    private final Runnable task;
+    private final long deadline;
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+
+    private Timeout(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    /**
+     * Cancels the task if it has not run yet. The wheel drops the timeout when it next passes
+     * its slot.
+     */
+    public void cancel() {
+      if (state.compareAndSet(PENDING, CANCELLED)) {
+        pending.decrementAndGet();
+      }
+    }
+
+    /**
+     * Checks if the timeout was cancelled.
+     *
+     * @return true if cancelled, else false
+     */
+    public boolean isCancelled() {
+      return state.get() == CANCELLED;
+    }
+
+    private void fire() {
+      if (!state.compareAndSet(PENDING, FIRED)) {
+        return;
+      }
+      pending.decrementAndGet();
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        logger.error("Timeout task failed: {}", e.getMessage());
+      }
+    }
+  }
+}
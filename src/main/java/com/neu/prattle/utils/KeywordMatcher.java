@@ -0,0 +1,161 @@
+package com.neu.prattle.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable, case insensitive multi keyword matcher (Aho-Corasick automaton). The text is
+ * scanned once, whatever the number of keywords, and the result is the set of keyword indices that
+ * occur in the text, the same keywords {@code text.toLowerCase().contains(keyword.toLowerCase())}
+ * would find for each keyword one by one.
+ */
+public final class KeywordMatcher {
+
+  private static final int[] NO_OUTPUT = new int[0];
+
+  /**
+   * The goto function, the child of each node keyed by the lower case character.
+   */
+  private final List<Map<Character, Integer>> transitions = new ArrayList<>();
+
+  /**
+   * The failure link of each node, the node of the longest proper suffix that is also a prefix.
+   */
+  private int[] failures;
+
+  /**
+   * The indices of the keywords ending at each node, including those of its failure chain.
+   */
+  private int[][] outputs;
+
+  /**
+   * The indices of the empty keywords, which every text contains.
+   */
+  private final BitSet alwaysMatched = new BitSet();
+
+  private final int size;
+
+  /**
+   * Compiles the matcher.
+   *
+   * @param keywords the keywords, the position of a keyword is its index in the results, null
+   *                 entries are skipped
+   */
+  public KeywordMatcher(String[] keywords) {
+    this.size = keywords.length;
+    List<List<Integer>> nodeOutputs = new ArrayList<>();
+    addNode(nodeOutputs);
+    for (int index = 0; index < keywords.length; index++) {
+      String keyword = keywords[index];
+      if (keyword == null) {
+        continue;
+      }
+      if (keyword.isEmpty()) {
+        alwaysMatched.set(index);
+        continue;
+      }
+      int node = 0;
+      for (int i = 0; i < keyword.length(); i++) {
+        char c = Character.toLowerCase(keyword.charAt(i));
+        Integer next = transitions.get(node).get(c);
+        if (next == null) {
+          next = addNode(nodeOutputs);
+          transitions.get(node).put(c, next);
+        }
+        node = next;
+      }
+      nodeOutputs.get(node).add(index);
+    }
+    buildFailures(nodeOutputs);
+  }
+
+  private int addNode(List<List<Integer>> nodeOutputs) {
+    transitions.add(new HashMap<>(4));
+    nodeOutputs.add(new ArrayList<>(1));
+    return transitions.size() - 1;
+  }
+
+  /**
+   * Computes the failure links breadth first and merges the outputs along them.
+   */
+  private void buildFailures(List<List<Integer>> nodeOutputs) {
+    int nodes = transitions.size();
+    failures = new int[nodes];
+    outputs = new int[nodes][];
+    outputs[0] = NO_OUTPUT;
+    Deque<Integer> queue = new ArrayDeque<>();
+    for (int child : transitions.get(0).values()) {
+      failures[child] = 0;
+      outputs[child] = toArray(nodeOutputs.get(child), NO_OUTPUT);
+      queue.add(child);
+    }
+    while (!queue.isEmpty()) {
+      int node = queue.poll();
+      for (Map.Entry<Character, Integer> edge : transitions.get(node).entrySet()) {
+        char c = edge.getKey();
+        int child = edge.getValue();
+        int failure = failures[node];
+        while (failure != 0 && !transitions.get(failure).containsKey(c)) {
+          failure = failures[failure];
+        }
+        Integer target = transitions.get(failure).get(c);
+        failures[child] = target == null || target == child ? 0 : target;
+        outputs[child] = toArray(nodeOutputs.get(child), outputs[failures[child]]);
+        queue.add(child);
+      }
+    }
+  }
+
+  private static int[] toArray(List<Integer> own, int[] inherited) {
+    if (own.isEmpty()) {
+      return inherited;
+    }
+    int[] result = new int[own.size() + inherited.length];
+    for (int i = 0; i < own.size(); i++) {
+      result[i] = own.get(i);
+    }
+    System.arraycopy(inherited, 0, result, own.size(), inherited.length);
+    return result;
+  }
+
+  /**
+   * Scans a text once for all keywords.
+   *
+   * @param text the text to scan
+   * @return the indices of the keywords found in the text
+   */
+  public BitSet match(String text) {
+    BitSet matched = (BitSet) alwaysMatched.clone();
+    if (text == null) {
+      return matched;
+    }
+    int node = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = Character.toLowerCase(text.charAt(i));
+      Integer next = transitions.get(node).get(c);
+      while (next == null && node != 0) {
+        node = failures[node];
+        next = transitions.get(node).get(c);
+      }
+      node = next == null ? 0 : next;
+      for (int index : outputs[node]) {
+        matched.set(index);
+      }
+    }
+    return matched;
+  }
+
+  /**
+   * Returns the number of keyword slots, skipped ones included.
+   *
+   * @return the number of keyword slots
+   */
+  public int size() {
+    return size;
+  }
+}
@@ -0,0 +1,94 @@
+package com.neu.prattle.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs tasks on a shared executor while keeping the tasks submitted with the same key in
+ * submission order. Keys are spread over a fixed number of lanes; a lane runs at most one task at
+ * a time, different lanes run in parallel.
+ */
+public class OrderedExecutor {
+  private static Logger logger = LoggerFactory.getLogger(OrderedExecutor.class);
+
+  /**
+   * Number of tasks a lane runs before it yields its thread to the other lanes.
+   */
+  private static final int BATCH_SIZE = 32;
+
+  private final Executor executor;
+  private final Lane[] lanes;
+
+  /**
+   * Creates the ordered executor.
+   *
+   * @param executor the executor the tasks run on
+   * @param lanes    the number of lanes, which bounds the parallelism
+   */
+  public OrderedExecutor(Executor executor, int lanes) {
+    if (lanes < 1) {
+      throw new IllegalArgumentException("The number of lanes can not be less than 1");
+    }
+    this.executor = executor;
+    this.lanes = new Lane[lanes];
+    for (int i = 0; i < lanes; i++) {
+      this.lanes[i] = new Lane();
+    }
+  }
+
+  /**
+   * Submits a task, it runs after every task submitted earlier with the same key.
+   *
+   * @param key  the ordering key
+   * @param task the task
+   */
+  public void execute(Object key, Runnable task) {
+    int hash = key.hashCode();
+    hash ^= hash >>> 16;
+    lanes[(hash & Integer.MAX_VALUE) % lanes.length].add(task);
+  }
+
+  /**
+   * A queue of tasks that runs its tasks one at a time.
+   */
+  private final class Lane implements Runnable {
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    void add(Runnable task) {
+      tasks.add(task);
+      schedule();
+    }
+
+    private void schedule() {
+      if (scheduled.compareAndSet(false, true)) {
+        executor.execute(this);
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        Runnable task;
+        int count = 0;
+        while (count++ < BATCH_SIZE && (task = tasks.poll()) != null) {
+          try {
+            task.run();
+          } catch (RuntimeException e) {
+            logger.error("Task failed", e);
+          }
+        }
+      } finally {
+        scheduled.set(false);
+        if (!tasks.isEmpty()) {
+          schedule();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,145 @@
+package com.neu.prattle.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A lock-free token bucket. The bucket holds up to {@code burst} tokens and refills at a steady
+ * rate; taking a token fails while the bucket is empty.
+ * <p>
+ * Rather than a token count and a refill timestamp, the bucket keeps a single number, the time
+ * at which it will be full again (the generic cell rate algorithm). Taking a token pushes that
+ * time one refill interval later, which is a single compare-and-set, so many threads can share a
+ * bucket without locking.
+ */
+public class TokenBucket {
+
+  private final long intervalNanos;
+  private final long capacityNanos;
+  private final LongSupplier clock;
+
+  /**
+   * The time, on the clock, at which the bucket is full again.
+   */
+  private final AtomicLong fullAt;
+
+  /**
+   * Creates a full bucket on the system clock.
+   *
+   * @param perSecond tokens added per second
+   * @param burst     most tokens held
+   */
+  public TokenBucket(double perSecond, int burst) {
+    this(perSecond, burst, System::nanoTime);
+  }
+
+  /**
+   * Creates a full bucket.
+   *
+   * @param perSecond tokens added per second
+   * @param burst     most tokens held
+   * @param clock     the clock, in nanoseconds
+   */
+  public TokenBucket(double perSecond, int burst, LongSupplier clock) {
+    if (perSecond <= 0 || burst < 1) {
+      throw new IllegalArgumentException("A bucket needs a positive rate and burst");
+    }
+    this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / perSecond));
+    this.capacityNanos = intervalNanos * burst;
+    this.clock = clock;
+    this.fullAt = new AtomicLong(clock.getAsLong());
+  }
+
+  /**
+   * Takes a token if there is one.
+   *
+   * @return true if a token was taken, else false
+   */
+  public boolean tryAcquire() {
+    while (true) {
+      long now = clock.getAsLong();
+      long current = fullAt.get();
+      long next = Math.max(current - now, 0) + intervalNanos;
+      if (next > capacityNanos) {
+        return false;
+      }
+      if (fullAt.compareAndSet(current, now + next)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Gives back a token taken by {@link #tryAcquire()}, for work that was not done after all.
+   */
+  public void release() {
+    fullAt.addAndGet(-intervalNanos);
+  }
+
+  /**
+   * Returns how long until the next token can be taken.
+   *
+   * @return the wait in milliseconds, 0 if a token is available now
+   */
+  public long getRetryAfterMillis() {
+    long wait = fullAt.get() - clock.getAsLong() + intervalNanos - capacityNanos;
+    return wait <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(wait) + 1;
+  }
+
+  /**
+   * The rate and burst of a bucket, as written in a property: {@code <per second>/<burst>}.
+   */
+  public static final class Budget {
+    private final double perSecond;
+    private final int burst;
+
+    /**
+     * Creates a budget.
+     *
+     * @param perSecond tokens added per second, 0 or less for no limit
+     * @param burst     most tokens held
+     */
+    public Budget(double perSecond, int burst) {
+      this.perSecond = perSecond;
+      this.burst = burst;
+    }
+
+    /**
+     * Parses a budget such as {@code 20/40}, or {@code 20} for a burst of one second.
+     *
+     * @param value the property value, empty for no limit
+     * @return the budget
+     */
+    public static Budget parse(String value) {
+      String trimmed = value.trim();
+      if (trimmed.isEmpty()) {
+        return new Budget(0, 0);
+      }
+      int slash = trimmed.indexOf('/');
+      double perSecond = Double.parseDouble(slash < 0 ? trimmed : trimmed.substring(0, slash));
+      int burst = slash < 0 ? (int) Math.ceil(perSecond)
+              : Integer.parseInt(trimmed.substring(slash + 1).trim());
+      return new Budget(perSecond, burst);
+    }
+
+    /**
+     * Checks if the budget limits anything.
+     *
+     * @return true if limited, else false
+     */
+    public boolean isLimited() {
+      return perSecond > 0 && burst > 0;
+    }
+
+    /**
+     * Creates a full bucket with this budget.
+     *
+     * @param clock the clock, in nanoseconds
+     * @return the bucket, null if the budget does not limit anything
+     */
+    public TokenBucket newBucket(LongSupplier clock) {
+      return isLimited() ? new TokenBucket(perSecond, burst, clock) : null;
+    }
+  }
+}
@@ -0,0 +1,230 @@
+package com.neu.prattle.websocket;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.neu.prattle.configuration.SpringContext;
+import com.neu.prattle.model.Message;
+import com.neu.prattle.utils.TokenBucket;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * The Class AdmissionControl.
+ * <p>
+ * Decides whether the chat endpoint takes on new work. Each user, and each session of a user,
+ * has a {@link TokenBucket} per kind of message, so private, group and broadcast messages are
+ * limited separately; a message is admitted when both the session and the user have a token
+ * left. Independently of the budgets, new sessions and messages are shed while the message
+ * pipeline is overloaded, that is while too many messages wait to be persisted or, while any
+ * message waits, persisting them takes too long. The persist latency is only sampled as messages
+ * are persisted, so once the queue has drained it is stale and no longer sheds anything; the
+ * next messages admitted sample it again.
+ * <p>
+ * A refused session or message is answered with an error frame,
+ * {@code {"type":"error","reason":"rate-limited"|"overloaded","kind":...,"retryAfterMs":...}}.
+ */
+public class AdmissionControl {
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  /**
+   * The kinds of messages, each with its own budget.
+   */
+  public enum Kind {
+    PRIVATE, GROUP, BROADCAST;
+
+    /**
+     * Returns the kind of a message.
+     *
+     * @param message the message
+     * @return the kind
+     */
+    public static Kind of(Message message) {
+      if (message.getIsBroadcastMessage()) {
+        return BROADCAST;
+      }
+      return message.getIsGroupMessage() ? GROUP : PRIVATE;
+    }
+  }
+
+  private final Map<Kind, TokenBucket.Budget> userBudgets;
+  private final Map<Kind, TokenBucket.Budget> sessionBudgets;
+  private final int maxQueueDepth;
+  private final long maxPersistLatencyMillis;
+  private final LongSupplier clock;
+  private final ConcurrentMap<Integer, Buckets> userBuckets = new ConcurrentHashMap<>();
+
+  /**
+   * Creates the admission control.
+   *
+   * @param userBudgets             budget of each user, by kind of message
+   * @param sessionBudgets          budget of each session, by kind of message
+   * @param maxQueueDepth           most messages waiting to be persisted, 0 for no limit
+   * @param maxPersistLatencyMillis longest average persist time, 0 for no limit
+   * @param clock                   the clock of the buckets, in nanoseconds
+   */
+  public AdmissionControl(Map<Kind, TokenBucket.Budget> userBudgets,
+                          Map<Kind, TokenBucket.Budget> sessionBudgets, int maxQueueDepth,
+                          long maxPersistLatencyMillis, LongSupplier clock) {
+    this.userBudgets = new EnumMap<>(Kind.class);
+    this.userBudgets.putAll(userBudgets);
+    this.sessionBudgets = new EnumMap<>(Kind.class);
+    this.sessionBudgets.putAll(sessionBudgets);
+    this.maxQueueDepth = maxQueueDepth;
+    this.maxPersistLatencyMillis = maxPersistLatencyMillis;
+    this.clock = clock;
+  }
+
+  /**
+   * Creates the admission control configured by the prattle.chat.rate-limit.* and
+   * prattle.chat.admission.* properties.
+   *
+   * @return the admission control
+   */
+  public static AdmissionControl create() {
+    return new AdmissionControl(budgets("user", "20/40", "5/10", "1/3"),
+            budgets("session", "10/20", "3/6", "1/2"),
+            SpringContext.getProperty("prattle.chat.admission.max-queue-depth", Integer.class,
+                    5000),
+            SpringContext.getProperty("prattle.chat.admission.max-persist-latency-ms",
+                    Long.class, 250L),
+            System::nanoTime);
+  }
+
+  /**
+   * Reads the budgets of a scope, such as prattle.chat.rate-limit.user.private=20/40. A budget
+   * left empty does not limit that kind of message.
+   */
+  private static Map<Kind, TokenBucket.Budget> budgets(String scope, String... defaults) {
+    Map<Kind, TokenBucket.Budget> budgets = new EnumMap<>(Kind.class);
+    for (Kind kind : Kind.values()) {
+      String key = "prattle.chat.rate-limit." + scope + "." + kind.name().toLowerCase();
+      budgets.put(kind, TokenBucket.Budget.parse(
+              SpringContext.getProperty(key, String.class, defaults[kind.ordinal()])));
+    }
+    return budgets;
+  }
+
+  /**
+   * Creates the buckets of a new session.
+   *
+   * @return the buckets
+   */
+  public Buckets newSession() {
+    return new Buckets(sessionBudgets, clock);
+  }
+
+  /**
+   * Checks if a new session may open.
+   *
+   * @param pipeline the message pipeline
+   * @return null if admitted, else the error frame to answer with
+   */
+  public OutboundFrame admitSession(MessagePipeline pipeline) {
+    return isOverloaded(pipeline) ? refuse("overloaded", null, 0) : null;
+  }
+
+  /**
+   * Checks if a session may send a message, taking a token from the session and from the user
+   * if so. Both buckets are checked before a token is taken from either, so a message refused
+   * by one bucket costs nothing from the other.
+   *
+   * @param userId   id of the user
+   * @param session  the buckets of the session
+   * @param kind     the kind of the message
+   * @param pipeline the message pipeline
+   * @return null if admitted, else the error frame to answer with
+   */
+  public OutboundFrame admitMessage(int userId, Buckets session, Kind kind,
+                                    MessagePipeline pipeline) {
+    if (isOverloaded(pipeline)) {
+      return refuse("overloaded", kind, 0);
+    }
+    TokenBucket sessionBucket = session.get(kind);
+    TokenBucket userBucket = userBuckets.computeIfAbsent(userId,
+            id -> new Buckets(userBudgets, clock)).get(kind);
+    for (TokenBucket bucket : new TokenBucket[]{sessionBucket, userBucket}) {
+      if (bucket != null && bucket.getRetryAfterMillis() > 0) {
+        return refuse("rate-limited", kind, bucket.getRetryAfterMillis());
+      }
+    }
+    if (sessionBucket != null && !sessionBucket.tryAcquire()) {
+      return refuse("rate-limited", kind, sessionBucket.getRetryAfterMillis());
+    }
+    if (userBucket != null && !userBucket.tryAcquire()) {
+      // another session of the user took the last token since the check
+      if (sessionBucket != null) {
+        sessionBucket.release();
+      }
+      return refuse("rate-limited", kind, userBucket.getRetryAfterMillis());
+    }
+    return null;
+  }
+
+  /**
+   * Forgets the buckets of a user who has no session left.
+   *
+   * @param userId id of the user
+   */
+  public void forget(int userId) {
+    userBuckets.remove(userId);
+  }
+
+  /**
+   * Checks if the pipeline is past the configured queue depth or, while messages wait to be
+   * persisted, past the configured persist latency.
+   *
+   * @param pipeline the message pipeline
+   * @return true if overloaded, else false
+   */
+  public boolean isOverloaded(MessagePipeline pipeline) {
+    int queueDepth = pipeline.getQueueDepth();
+    return (maxQueueDepth > 0 && queueDepth > maxQueueDepth)
+            || (maxPersistLatencyMillis > 0 && queueDepth > 0
+            && pipeline.getPersistLatencyMillis() > maxPersistLatencyMillis);
+  }
+
+  private static OutboundFrame refuse(String reason, Kind kind, long retryAfterMillis) {
+    Metrics.counter("prattle.chat.admission.refused", "reason", reason).increment();
+    ObjectNode node = mapper.createObjectNode();
+    node.put("type", "error");
+    node.put("reason", reason);
+    if (kind != null) {
+      node.put("kind", kind.name().toLowerCase());
+    }
+    node.put("retryAfterMs", retryAfterMillis);
+    return OutboundFrame.ofText(node.toString());
+  }
+
+  /**
+   * The buckets of a user or a session, one per kind of message.
+   */
+  public static final class Buckets {
+    private final Map<Kind, TokenBucket> buckets = new EnumMap<>(Kind.class);
+
+    private Buckets(Map<Kind, TokenBucket.Budget> budgets, LongSupplier clock) {
+      budgets.forEach((kind, budget) -> {
+        TokenBucket bucket = budget.newBucket(clock);
+        if (bucket != null) {
+          buckets.put(kind, bucket);
+        }
+      });
+    }
+
+    /**
+     * Returns the bucket of a kind of message.
+     *
+     * @param kind the kind
+     * @return the bucket, null if that kind is not limited
+     */
+    TokenBucket get(Kind kind) {
+      return buckets.get(kind);
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package com.neu.prattle.websocket;
+
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.neu.prattle.model.Message;
+import com.neu.prattle.model.MessageAttachment;
+import com.neu.prattle.utils.FileHandler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The Class AttachmentSpill.
+ * <p>
+ * Writes large attachment values to the attachment store while an inbound message is decoded. A
+ * value longer than the spill size goes to a new attachment file as the parser reads it, instead
+ * of being built up into a String first, and the attachment is left with the path of the file.
+ * <p>
+ * A spill serves the decoding of one message. Decoders hand it to Jackson as the {@link
+ * #ATTRIBUTE} attribute of the reader; mappers used without one read attachment values as plain
+ * strings.
+ */
+final class AttachmentSpill {
+
+  /**
+   * The name of the reader attribute holding the spill.
+   */
+  static final String ATTRIBUTE = AttachmentSpill.class.getName();
+
+  private final int spillSize;
+
+  /**
+   * The paths of the files written for the message.
+   */
+  private final Set<String> paths = new HashSet<>();
+
+  /**
+   * Creates a spill.
+   *
+   * @param spillSize the length from which values are written to the store
+   */
+  AttachmentSpill(int spillSize) {
+    this.spillSize = spillSize;
+  }
+
+  /**
+   * Returns the spill of the message being decoded.
+   *
+   * @param context the context of the running deserialization
+   * @return the spill, null if the reader was not given one
+   */
+  static AttachmentSpill from(DeserializationContext context) {
+    return (AttachmentSpill) context.getAttribute(ATTRIBUTE);
+  }
+
+  /**
+   * Starts an attachment value.
+   *
+   * @return the writer to write the value to
+   */
+  ValueWriter newValue() {
+    return new ValueWriter();
+  }
+
+  /**
+   * Marks the attachments of a decoded message whose value was written to the store.
+   *
+   * @param message the decoded message
+   */
+  void markStored(Message message) {
+    if (paths.isEmpty() || message.getAttachments() == null) {
+      return;
+    }
+    for (MessageAttachment attachment : message.getAttachments()) {
+      if (paths.contains(attachment.getWebUrl())) {
+        attachment.setStored(true);
+      }
+    }
+  }
+
+  /**
+   * Deletes the files written for a message that could not be decoded.
+   */
+  void discard() {
+    paths.forEach(FileHandler::deleteMediaTypeFile);
+    paths.clear();
+  }
+
+  /**
+   * Collects one attachment value, in memory up to the spill size and in a new attachment file
+   * beyond it.
+   */
+  final class ValueWriter extends Writer {
+    private final StringBuilder buffer = new StringBuilder();
+    private String path;
+    private Writer file;
+
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+      if (file == null && buffer.length() + length > spillSize) {
+        path = FileHandler.newMediaTypeFilePath();
+        paths.add(path);
+        file = FileHandler.openMediaTypeFile(path);
+        file.append(buffer);
+        buffer.setLength(0);
+      }
+      if (file != null) {
+        file.write(chars, offset, length);
+      } else {
+        buffer.append(chars, offset, length);
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (file != null) {
+        file.flush();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (file != null) {
+        file.close();
+      }
+    }
+
+    /**
+     * Closes the value and returns what the attachment keeps.
+     *
+     * @return the value, or the path of the file it was written to
+     * @throws IOException if the file can not be written
+     */
+    String finish() throws IOException {
+      close();
+      return path != null ? path : buffer.toString();
+    }
+  }
+}
@@ -0,0 +1,410 @@
+package com.neu.prattle.websocket;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.neu.prattle.configuration.SpringContext;
+import com.neu.prattle.model.Message;
+import com.neu.prattle.model.MessageAttachment;
+import com.neu.prattle.utils.FileHandler;
+import com.neu.prattle.utils.HashedTimerWheel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * The Class AttachmentUploads.
+ * <p>
+ * Receives large attachments in chunks, so they never have to be embedded in a message. The
+ * client sends binary {@link UploadChunk} frames for an upload id of its choosing, each chunk is
+ * written through a {@link FileChannel} into the attachment store as its frame arrives, and is
+ * answered with {@code {"type":"upload","uploadId":...,"offset":...,"complete":...}}, the offset
+ * being the length received so far. The message then carries {@code upload:<id>} as the value of
+ * the attachment and is linked to the stored file.
+ * <p>
+ * The payload of an upload is the attachment value the client would otherwise have embedded, in
+ * UTF-8, so attachments read back from the store are the same either way.
+ * <p>
+ * A chunk only extends the upload at the offset received so far; a chunk at another offset, or
+ * whose checksum does not match, is answered with an error frame carrying that offset and is
+ * dropped. An upload outlives the session that started it, so a client that reconnects sends
+ * an empty chunk at offset 0 to learn where to resume. Uploads that are neither extended nor
+ * attached to a message for prattle.chat.upload.idle-timeout-ms are deleted. Uploads are kept
+ * by the node that received them, a client resumes on the node it reconnects to only if it is
+ * the same node.
+ */
+public class AttachmentUploads {
+
+  private static Logger logger = LoggerFactory.getLogger(AttachmentUploads.class);
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  /**
+   * The prefix of an attachment value referencing a completed upload.
+   */
+  public static final String REFERENCE = "upload:";
+
+  private final HashedTimerWheel wheel;
+  private final long idleMillis;
+  private final long maxSize;
+  private final LongSupplier clock;
+  private final ConcurrentMap<UUID, Upload> uploads = new ConcurrentHashMap<>();
+
+  /**
+   * Creates the uploads.
+   *
+   * @param wheel      the timer wheel expiring idle uploads
+   * @param idleMillis how long an upload is kept without being extended or attached
+   * @param maxSize    largest upload, in bytes
+   * @param clock      the clock, in milliseconds
+   */
+  public AttachmentUploads(HashedTimerWheel wheel, long idleMillis, long maxSize,
+                           LongSupplier clock) {
+    this.wheel = wheel;
+    this.idleMillis = idleMillis;
+    this.maxSize = maxSize;
+    this.clock = clock;
+  }
+
+  /**
+   * Creates the uploads configured by the prattle.chat.upload.* properties.
+   *
+   * @param wheel the timer wheel expiring idle uploads
+   * @return the uploads
+   */
+  public static AttachmentUploads create(HashedTimerWheel wheel) {
+    return new AttachmentUploads(wheel,
+            SpringContext.getProperty("prattle.chat.upload.idle-timeout-ms", Long.class,
+                    600000L),
+            SpringContext.getProperty("prattle.chat.upload.max-size", Long.class, 1073741824L),
+            System::currentTimeMillis);
+  }
+
+  /**
+   * Starts receiving a chunk frame. Only one chunk of an upload is received at a time.
+   *
+   * @param userId id of the user sending the chunk
+   * @param frame  the first part of the frame, left at the payload
+   * @return the chunk, to be given the payload
+   */
+  public Chunk open(int userId, ByteBuffer frame) {
+    UploadChunk header = UploadChunk.read(frame);
+    if (header == null) {
+      return new Chunk(null, null, "upload-malformed");
+    }
+    Upload upload = uploads.get(header.getUploadId());
+    if (upload == null && header.getOffset() == 0) {
+      Upload created = new Upload(header.getUploadId(), userId);
+      upload = uploads.putIfAbsent(created.id, created);
+      if (upload == null) {
+        upload = created;
+        upload.touchedAt = clock.getAsLong();
+        scheduleExpiry(upload, idleMillis);
+      }
+    }
+    if (upload == null) {
+      return new Chunk(null, header, "upload-unknown");
+    }
+    synchronized (upload) {
+      if (upload.userId != userId || upload.removed) {
+        return new Chunk(null, header, "upload-unknown");
+      }
+      if (upload.writing) {
+        return new Chunk(null, header, "upload-busy");
+      }
+      if (upload.complete || header.getOffset() != upload.committed) {
+        return new Chunk(upload, header, "upload-offset");
+      }
+      upload.writing = true;
+      upload.touchedAt = clock.getAsLong();
+      return new Chunk(upload, header, null);
+    }
+  }
+
+  /**
+   * Links the attachments of a message that reference uploads to the uploaded files. Each
+   * upload can be attached once.
+   *
+   * @param userId  id of the user sending the message
+   * @param message the message
+   * @return null if every referenced upload was attached, else the error frame to answer with
+   */
+  public OutboundFrame attach(int userId, Message message) {
+    if (!message.hasAttachment()) {
+      return null;
+    }
+    List<MessageAttachment> references = new ArrayList<>();
+    List<Upload> claimed = new ArrayList<>();
+    for (MessageAttachment attachment : message.getAttachments()) {
+      String value = attachment.getWebUrl();
+      if (attachment.isStored() || value == null || !value.startsWith(REFERENCE)) {
+        continue;
+      }
+      Upload upload = findUpload(value.substring(REFERENCE.length()));
+      if (upload == null || upload.userId != userId || !claim(upload)) {
+        claimed.forEach(this::discard);
+        return error("upload-unknown", value.substring(REFERENCE.length()), 0);
+      }
+      references.add(attachment);
+      claimed.add(upload);
+    }
+    for (int i = 0; i < references.size(); i++) {
+      references.get(i).setWebUrl(claimed.get(i).path);
+      references.get(i).setStored(true);
+    }
+    return null;
+  }
+
+  private Upload findUpload(String uploadId) {
+    try {
+      return uploads.get(UUID.fromString(uploadId));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Takes a complete upload out of the uploads, to attach it to a message.
+   */
+  private boolean claim(Upload upload) {
+    synchronized (upload) {
+      if (!upload.complete || upload.removed) {
+        return false;
+      }
+      upload.removed = true;
+      uploads.remove(upload.id, upload);
+      upload.expiry.cancel();
+      return true;
+    }
+  }
+
+  private void scheduleExpiry(Upload upload, long delayMillis) {
+    upload.expiry = wheel.schedule(() -> expire(upload), delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Deletes an upload nobody touched for the idle timeout, else checks it again once the
+   * timeout would have passed. Runs on the timer wheel.
+   */
+  private void expire(Upload upload) {
+    synchronized (upload) {
+      if (upload.removed) {
+        return;
+      }
+      long idle = clock.getAsLong() - upload.touchedAt;
+      if (upload.writing || idle < idleMillis) {
+        scheduleExpiry(upload, upload.writing ? idleMillis : idleMillis - idle);
+        return;
+      }
+      logger.info("Upload {} of user {} expired at {} bytes", upload.id, upload.userId,
+              upload.committed);
+      discard(upload);
+    }
+  }
+
+  /**
+   * Removes an upload and deletes its file.
+   */
+  private void discard(Upload upload) {
+    synchronized (upload) {
+      upload.removed = true;
+      uploads.remove(upload.id, upload);
+      if (upload.expiry != null) {
+        upload.expiry.cancel();
+      }
+      upload.closeChannel();
+      FileHandler.deleteMediaTypeFile(upload.path);
+    }
+  }
+
+  /**
+   * Returns the number of uploads being received or waiting to be attached.
+   *
+   * @return number of uploads
+   */
+  public int getUploadCount() {
+    return uploads.size();
+  }
+
+  private static OutboundFrame ack(Upload upload) {
+    ObjectNode node = mapper.createObjectNode();
+    node.put("type", "upload");
+    node.put("uploadId", upload.id.toString());
+    node.put("offset", upload.committed);
+    node.put("complete", upload.complete);
+    return OutboundFrame.ofText(node.toString());
+  }
+
+  private static OutboundFrame error(String reason, String uploadId, long offset) {
+    Metrics.counter("prattle.chat.uploads.refused", "reason", reason).increment();
+    ObjectNode node = mapper.createObjectNode();
+    node.put("type", "error");
+    node.put("reason", reason);
+    if (uploadId != null) {
+      node.put("uploadId", uploadId);
+    }
+    node.put("offset", offset);
+    return OutboundFrame.ofText(node.toString());
+  }
+
+  /**
+   * A chunk being received. A refused chunk takes its payload and drops it.
+   */
+  public final class Chunk {
+    private final Upload upload;
+    private final UploadChunk header;
+    private final boolean accepted;
+    private final CRC32 crc = new CRC32();
+    private String refusal;
+    private long position;
+
+    private Chunk(Upload upload, UploadChunk header, String refusal) {
+      this.upload = upload;
+      this.header = header;
+      this.refusal = refusal;
+      this.accepted = refusal == null;
+      this.position = header == null ? 0 : header.getOffset();
+    }
+
+    /**
+     * Writes a part of the payload to the upload.
+     *
+     * @param part the part, read up to its limit
+     */
+    public void write(ByteBuffer part) {
+      if (refusal != null) {
+        return;
+      }
+      if (position + part.remaining() > maxSize) {
+        refusal = "upload-too-large";
+        return;
+      }
+      crc.update(part.duplicate());
+      try {
+        FileChannel channel = upload.channel();
+        while (part.hasRemaining()) {
+          position += channel.write(part, position);
+        }
+      } catch (IOException e) {
+        logger.error("Unable to write upload {}: {}", upload.id, e.getMessage());
+        refusal = "upload-failed";
+      }
+    }
+
+    /**
+     * Ends the chunk once its last part was written, keeping it if the checksum matches.
+     *
+     * @return the frame to answer the client with
+     */
+    public OutboundFrame finish() {
+      String uploadId = header == null ? null : header.getUploadId().toString();
+      if (!accepted) {
+        if (upload == null) {
+          return error(refusal, uploadId, 0);
+        }
+        synchronized (upload) {
+          return upload.complete ? ack(upload) : error(refusal, uploadId, upload.committed);
+        }
+      }
+      synchronized (upload) {
+        upload.writing = false;
+        upload.touchedAt = clock.getAsLong();
+        if (refusal == null && (int) crc.getValue() != header.getChecksum()) {
+          refusal = "upload-checksum";
+        }
+        if (refusal == null) {
+          upload.committed = position;
+          if (header.isLast()) {
+            upload.complete = true;
+            upload.closeChannel();
+          }
+          return ack(upload);
+        }
+        if ("upload-too-large".equals(refusal)) {
+          discard(upload);
+          return error(refusal, uploadId, 0);
+        }
+        upload.truncate();
+        return error(refusal, uploadId, upload.committed);
+      }
+    }
+
+    /**
+     * Drops a chunk whose frame did not arrive whole, as when its session closed.
+     */
+    public void abort() {
+      if (!accepted) {
+        return;
+      }
+      synchronized (upload) {
+        upload.writing = false;
+        upload.truncate();
+      }
+    }
+  }
+
+  /**
+   * An upload, guarded by itself.
+   */
+  private static final class Upload {
+    private final UUID id;
+    private final int userId;
+    private final String path = FileHandler.newMediaTypeFilePath();
+    private FileChannel channel;
+    private long committed;
+    private boolean complete;
+    private boolean writing;
+    private boolean removed;
+    private long touchedAt;
+    private HashedTimerWheel.Timeout expiry;
+
+    private Upload(UUID id, int userId) {
+      this.id = id;
+      this.userId = userId;
+    }
+
+    private synchronized FileChannel channel() throws IOException {
+      if (channel == null) {
+        channel = FileHandler.openMediaTypeChannel(path);
+      }
+      return channel;
+    }
+
+    /**
+     * Cuts off what was written of a chunk that was not kept.
+     */
+    private void truncate() {
+      try {
+        if (channel != null) {
+          channel.truncate(committed);
+        }
+      } catch (IOException e) {
+        logger.error("Unable to truncate upload {}: {}", id, e.getMessage());
+      }
+    }
+
+    private void closeChannel() {
+      try {
+        if (channel != null) {
+          channel.close();
+        }
+      } catch (IOException e) {
+        logger.error("Unable to close upload {}: {}", id, e.getMessage());
+      }
+      channel = null;
+    }
+  }
+}
@@ -0,0 +1,123 @@
+package com.neu.prattle.websocket;
+
+import com.neu.prattle.repository.FilterRepository;
+import com.neu.prattle.service.FilterIndex;
+import com.neu.prattle.service.group.GroupMembershipCache;
+import com.neu.prattle.service.group.GroupServiceDaoImpl;
+import com.neu.prattle.utils.ExecutorFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+
+/**
+ * The Class CacheInvalidationRelay.
+ * <p>
+ * Keeps the caches of the nodes of a cluster in step. The keyword filters of a user indexed by
+ * the {@link FilterIndex} and the resolved recipients of a group held by the
+ * {@link GroupMembershipCache} change on the node serving the request; the relay publishes each
+ * change on the message bus, and the other nodes reload the filters of the user from the
+ * database and drop the entries of the group. A node that may have missed changes, because a
+ * peer was not connected to it, reloads every indexed user and drops every group.
+ * <p>
+ * The changes are applied on a thread of their own, so the bus is never held up by the database.
+ */
+@Component
+public class CacheInvalidationRelay {
+  private static Logger logger = LoggerFactory.getLogger(CacheInvalidationRelay.class);
+
+  /**
+   * The cache of the filters of the users, keyed by user id.
+   */
+  static final String FILTERS = "filters";
+
+  /**
+   * The cache of the recipients of the groups, keyed by group id.
+   */
+  static final String GROUPS = "groups";
+
+  private FilterIndex filterIndex;
+  private FilterRepository filterRepository;
+  private GroupMembershipCache membershipCache;
+  private BiConsumer<String, Integer> publisher =
+          (cache, key) -> ChatEndpoint.getBus().invalidate(cache, key);
+  private Executor executor = ExecutorFactory.newExecutor("cache-invalidation", 1, false);
+
+  @Autowired
+  public void setFilterIndex(FilterIndex filterIndex) {
+    this.filterIndex = filterIndex;
+    filterIndex.addListener(userId -> publisher.accept(FILTERS, userId));
+  }
+
+  @Autowired
+  public void setFilterRepository(FilterRepository filterRepository) {
+    this.filterRepository = filterRepository;
+  }
+
+  @Autowired
+  public void setGroupService(GroupServiceDaoImpl groupService) {
+    this.membershipCache = groupService.getMembershipCache();
+    membershipCache.addListener(groupId -> publisher.accept(GROUPS, groupId));
+  }
+
+  /**
+   * Replaces what publishes the changes, the message bus of the chat endpoints by default.
+   *
+   * @param publisher the publisher
+   */
+  void setPublisher(BiConsumer<String, Integer> publisher) {
+    this.publisher = publisher;
+  }
+
+  /**
+   * Replaces the executor applying the changes of other nodes.
+   *
+   * @param executor the executor
+   */
+  void setExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Applies a change made on another node.
+   *
+   * @param cache the name of the cache
+   * @param key   the key of the changed entry
+   */
+  void invalidated(String cache, int key) {
+    executor.execute(() -> {
+      try {
+        if (FILTERS.equals(cache)) {
+          filterIndex.refreshFilters(key, filterRepository.findFiltersByUserId(key));
+        } else if (GROUPS.equals(cache)) {
+          membershipCache.evict(key);
+        } else {
+          logger.warn("Ignoring the invalidation of unknown cache {}", cache);
+        }
+      } catch (RuntimeException e) {
+        logger.error("Unable to invalidate {} {}: {}", cache, key, e.getMessage());
+      }
+    });
+  }
+
+  /**
+   * Reloads every cached entry, after changes made on another node may have been missed.
+   */
+  void invalidatedAll() {
+    executor.execute(() -> {
+      membershipCache.clear();
+      for (int userId : new ArrayList<>(filterIndex.getUserIds())) {
+        try {
+          filterIndex.refreshFilters(userId, filterRepository.findFiltersByUserId(userId));
+        } catch (RuntimeException e) {
+          logger.error("Unable to reload the filters of user {}: {}", userId, e.getMessage());
+        }
+      }
+    });
+  }
+}
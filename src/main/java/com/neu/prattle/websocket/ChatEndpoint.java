@@ -1,13 +1,14 @@
 package com.neu.prattle.websocket;
 
 import com.neu.prattle.configuration.SpringContext;
+import com.neu.prattle.dto.SyncPage;
+import com.neu.prattle.exceptions.GroupNotFoundException;
 import com.neu.prattle.exceptions.MessageAlreadyExistsException;
 import com.neu.prattle.exceptions.UserDoesNotExistException;
-import com.neu.prattle.model.Filter;
-import com.neu.prattle.model.HashTag;
 import com.neu.prattle.model.Message;
 import com.neu.prattle.model.User;
-import com.neu.prattle.model.group.Group;
+import com.neu.prattle.service.FilterIndex;
+import com.neu.prattle.service.HashTagDictionary;
 import com.neu.prattle.service.HashTagService;
 import com.neu.prattle.service.HashTagServiceImpl;
 import com.neu.prattle.service.MessageService;
@@ -16,30 +17,42 @@ import com.neu.prattle.service.UserService;
 import com.neu.prattle.service.UserServiceDaoImpl;
 import com.neu.prattle.service.group.GroupService;
 import com.neu.prattle.service.group.GroupServiceDaoImpl;
+import com.neu.prattle.utils.ExecutorFactory;
+import com.neu.prattle.utils.HashedTimerWheel;
+import com.neu.prattle.websocket.cluster.Delivery;
+import com.neu.prattle.websocket.cluster.LocalNode;
+import com.neu.prattle.websocket.cluster.MessageBus;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.stereotype.Component;
 
+import io.micrometer.core.instrument.Metrics;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.sql.Timestamp;
 import java.time.LocalDateTime;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.websocket.CloseReason;
 import javax.websocket.EncodeException;
 import javax.websocket.OnClose;
 import javax.websocket.OnError;
 import javax.websocket.OnMessage;
 import javax.websocket.OnOpen;
+import javax.websocket.PongMessage;
 import javax.websocket.Session;
 import javax.websocket.server.PathParam;
 import javax.websocket.server.ServerEndpoint;
@@ -48,11 +61,22 @@ import javax.websocket.server.ServerEndpoint;
 /**
  * The Class ChatEndpoint.
  * <p>
- * This class handles Messages that arrive on the server.
+ * This class handles Messages that arrive on the server. Clients exchange JSON text frames, or
+ * CBOR binary frames when they negotiate the {@link WireFormat#CBOR_SUBPROTOCOL} subprotocol.
+ * <p>
+ * Frames are received in parts of at most prattle.chat.inbound.buffer-size characters or bytes.
+ * A message that fits one part is decoded from it, a larger one is collected in an {@link
+ * InboundSpool} and read through the streaming decoders, which write large attachments to the
+ * attachment store as they go. Clients can also upload attachments ahead of their message, in
+ * binary chunk frames received by {@link AttachmentUploads}, and reference them from it.
+ * <p>
+ * Messages are routed through the {@link MessageBus}, which hands them to the node hosting each
+ * recipient, so users connected to different nodes of a cluster can chat with each other.
  */
 @Component
-@ServerEndpoint(value = "/chat/{username}", decoders = MessageDecoder.class, encoders =
-        MessageEncoder.class)
+@ServerEndpoint(value = "/chat/{username}",
+        encoders = {MessageEncoder.class, MessageBinaryEncoder.class},
+        subprotocols = {WireFormat.JSON_SUBPROTOCOL, WireFormat.CBOR_SUBPROTOCOL})
 @ComponentScan("com.neu.prattle.websocket")
 public class ChatEndpoint {
 
@@ -63,12 +87,14 @@ public class ChatEndpoint {
   private GroupService groupService;
   private MessageService messageService;
   private HashTagService hashTagService;
+  private FilterIndex filterIndex;
 
   public ChatEndpoint() {
     userService = SpringContext.getBean(UserServiceDaoImpl.class);
     messageService = SpringContext.getBean(MessageServiceDaoImpl.class);
     groupService = SpringContext.getBean(GroupServiceDaoImpl.class);
     hashTagService = SpringContext.getBean(HashTagServiceImpl.class);
+    filterIndex = SpringContext.getBean(FilterIndex.class);
   }
 
   /**
@@ -77,14 +103,133 @@ public class ChatEndpoint {
   private Session session;
 
   /**
-   * The Constant chatEndpoints.
+   * The queue of frames waiting to be written to the session.
+   */
+  private SessionOutbox outbox;
+
+  /**
+   * The parts of the inbound message being received.
+   */
+  private InboundSpool spool;
+
+  /**
+   * The upload chunk being received, null between chunks.
+   */
+  private AttachmentUploads.Chunk chunk;
+
+  /**
+   * The id of the connected user.
+   */
+  private int userId;
+
+  /**
+   * The name of the connected user.
+   */
+  private String username;
+
+  /**
+   * The connected user.
+   */
+  private User user;
+
+  /**
+   * The device of the connected user served by this endpoint.
+   */
+  private String deviceId;
+
+  /**
+   * The rate limits of this session.
+   */
+  private AdmissionControl.Buckets buckets;
+
+  /**
+   * The number of heartbeats since the client last showed it was alive.
+   */
+  private volatile int missedHeartbeats;
+
+  /**
+   * The next heartbeat of this session.
+   */
+  private volatile HashedTimerWheel.Timeout heartbeat;
+
+  /**
+   * Whether the session was closed or evicted.
+   */
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  /**
+   * Whether the session is being evicted.
+   */
+  private final AtomicBoolean evicting = new AtomicBoolean();
+
+  /**
+   * The id of the latest message delivered to this device.
+   */
+  private final AtomicInteger deliveredMessageId = new AtomicInteger();
+
+  /**
+   * The Constant registry of live sessions.
+   */
+  private static final SessionRegistry registry = new SessionRegistry();
+
+  /**
+   * The pipeline processing inbound messages.
+   */
+  private static MessagePipeline pipeline = MessagePipeline.create();
+
+  /**
+   * The tracker publishing the presence of the connected users.
+   */
+  private static PresenceTracker presence = PresenceTracker.create(registry);
+
+  /**
+   * The bus carrying deliveries to the sessions on every node of the cluster.
+   */
+  private static MessageBus bus = startBus(MessageBus.create());
+
+  /**
+   * The relay applying the cache changes of the other nodes, looked up when first needed.
+   */
+  private static CacheInvalidationRelay invalidations;
+
+  /**
+   * Rate limits and overload shedding for sessions and inbound messages.
    */
-  private static final Set<ChatEndpoint> chatEndpoints = new CopyOnWriteArraySet<>();
+  private static AdmissionControl admission = AdmissionControl.create();
 
   /**
-   * The users.
+   * The timer wheel scheduling the heartbeats of every session.
    */
-  private static HashMap<String, String> users = new HashMap<>();
+  private static HashedTimerWheel heartbeats = new HashedTimerWheel(
+          SpringContext.getProperty("prattle.chat.heartbeat.tick-ms", Long.class, 100L), 512)
+          .start("chat-heartbeat");
+
+  /**
+   * The lane relaying typing indicators and read receipts.
+   */
+  private static EventLane events = EventLane.create(heartbeats);
+
+  /**
+   * The attachments being uploaded in chunks.
+   */
+  private static AttachmentUploads uploads = AttachmentUploads.create(heartbeats);
+
+  /**
+   * Sends the pings, which may block on a congested connection, away from the timer wheel.
+   */
+  private static final ExecutorService pings = ExecutorFactory.newExecutor("chat-ping",
+          2, true);
+
+  /**
+   * Evicts sessions, whose close may block on a congested connection, away from the timer wheel
+   * and from the threads that found the session unreachable.
+   */
+  private static Executor closer = ExecutorFactory.newExecutor("chat-evict", 2, true);
+
+  private static final ByteBuffer PING = ByteBuffer.wrap(new byte[]{'p', 'r', 'a', 't'});
+
+  private static final MessageDecoder textDecoder = new MessageDecoder();
+  private static final MessageBinaryDecoder binaryDecoder = new MessageBinaryDecoder();
 
   /**
    * The logger.
@@ -95,8 +240,9 @@ public class ChatEndpoint {
    * On open.
    * <p>
    * Handles opening a new session (websocket connection). If the user is a known user (user
-   * management), the session added to the pool of sessions and an announcement to that pool is made
-   * informing them of the new user.
+   * management), the session added to the pool of sessions, the new session is sent the presence
+   * of the users the user follows or shares a group with, and those users learn that the user is
+   * online with the next presence update.
    * <p>
    * If the user is not known, the pool is not augmented and an error is sent to the originator.
    *
@@ -108,7 +254,10 @@ public class ChatEndpoint {
   @OnOpen
   public void onOpen(Session session, @PathParam("username") String username)
           throws IOException, EncodeException, UserDoesNotExistException {
-    session.setMaxTextMessageBufferSize(50000000);
+    int bufferSize = SpringContext.getProperty("prattle.chat.inbound.buffer-size", Integer.class,
+            65536);
+    session.setMaxTextMessageBufferSize(bufferSize);
+    session.setMaxBinaryMessageBufferSize(bufferSize);
     Optional<User> user = userService.findUserByName(username);
     if (!user.isPresent()) {
       Message error = Message.messageBuilder()
@@ -119,72 +268,359 @@ public class ChatEndpoint {
       logger.error("Cannot create session for non existent user {}", username);
       return;
     }
+    OutboundFrame refusal = admission.admitSession(pipeline);
+    if (refusal != null) {
+      session.getBasicRemote().sendText(refusal.getText());
+      session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "Overloaded"));
+      logger.warn("Session of user {} refused, the server is overloaded", username);
+      return;
+    }
 
     //register this endpoint
-    addEndpoint(session, username);
-    Message message = createConnectedMessage(user.get().getUserID());
-    broadcast(message);
+    boolean returning = !bus.getDirectory().isConnected(user.get().getUserID());
+    addEndpoint(session, user.get());
+    presence.connected(this, userId, getPresenceInterests());
 
-    //fetch list of undelivered messages to this recipient
-    List<Message> stashedMessages = getStashedMessages(user.get());
-    for (Message stashedMessage : stashedMessages) {
-      echo(stashedMessage);
+    //stream the undelivered messages to this recipient
+    if (returning) {
+      bus.takeStash(userId, this::deliverStash);
+    } else {
+      deliverStashedMessages(0);
     }
-    logger.info("Stashed messages delivered for user {}", username);
   }
 
   /**
-   * Creates a Message that some user is now connected - that is, a Session was opened
-   * successfully.
+   * Delivers the messages the owner of the user queued while the user was away, or the stashed
+   * messages from the database when the owner does not know them all. The queued messages are
+   * read by id on the read executor of the pipeline, leaving out those that expired or that the
+   * filters of the user match.
    *
-   * @param userID user ID
-   * @return Message
+   * @param messageIds the ids of the queued messages, null if unknown
    */
-  private Message createConnectedMessage(int userID) {
-    logger.info("Creating message for user with ID={}", userID);
-    return Message.messageBuilder()
-            .setFromUserId(userID)
-            .setMessageContent("Connected!")
-            .build();
+  private void deliverStash(List<Integer> messageIds) {
+    if (messageIds == null) {
+      deliverStashedMessages(0);
+      return;
+    }
+    pipeline.read("stash:" + session.getId(),
+            () -> messageService.getMessagesForUser(user, messageIds),
+            messages -> {
+              messages.forEach(this::echo);
+              logger.info("{} queued messages delivered for user {}", messages.size(), username);
+            });
+  }
+
+  /**
+   * Delivers the messages stashed for the user while they were away, one page at a time. A page
+   * is read on the read executor of the pipeline and queued on the outbox of this endpoint, the
+   * next page is only read once the client has taken the previous one. Opening a session
+   * therefore returns right away and a long absence never holds more than a page in memory.
+   *
+   * @param cursor id of the last stashed message read, 0 to start from the oldest
+   */
+  private void deliverStashedMessages(int cursor) {
+    int pageSize = SpringContext.getProperty("prattle.chat.stash.page-size", Integer.class, 50);
+    pipeline.read("stash:" + session.getId(),
+            () -> messageService.getUnsentMessages(user, cursor, pageSize),
+            page -> {
+              page.getMessages().forEach(this::echo);
+              if (page.hasMore()) {
+                outbox.whenDrained(() -> deliverStashedMessages(page.getNextCursor()));
+              } else {
+                logger.info("Stashed messages delivered for user {}", username);
+              }
+            });
+  }
+
+  /**
+   * Returns the ids of the users whose presence matters to the connected user: the users they
+   * follow and the members of their groups.
+   *
+   * @return ids of the users of interest
+   */
+  private Set<Integer> getPresenceInterests() {
+    Set<Integer> interests = new HashSet<>(userService.getFolloweeIds(userId));
+    for (int groupId : groupService.getGroupIdsForUser(userId)) {
+      try {
+        interests.addAll(groupService.getMemberIdsInGroupAndSubGroups(groupId));
+      } catch (GroupNotFoundException e) {
+        logger.info("Could not find group {}", groupId);
+      }
+    }
+    return interests;
   }
 
   /**
    * Adds a newly opened session to the pool of sessions.
    *
-   * @param session  the newly opened session
-   * @param username the user who connected
+   * @param session the newly opened session
+   * @param user    the user who connected
    */
-  private void addEndpoint(Session session, String username) {
+  private void addEndpoint(Session session, User user) {
     this.session = session;
-    chatEndpoints.add(this);
-    /* users is a hashmap between session ids and users */
-    users.put(session.getId(), username);
-    logger.info("Created endpoint for user {}", username);
+    this.outbox = new SessionOutbox(session,
+            SpringContext.getProperty("prattle.chat.outbox.high-water-mark", Integer.class, 1000),
+            SpringContext.getProperty("prattle.chat.outbox.overflow-policy",
+                    SessionOutbox.OverflowPolicy.class, SessionOutbox.OverflowPolicy.EVICT),
+            WireFormat.fromSubprotocol(session.getNegotiatedSubprotocol()));
+    this.spool = new InboundSpool(
+            SpringContext.getProperty("prattle.chat.inbound.spool-threshold", Integer.class,
+                    1048576),
+            SpringContext.getProperty("prattle.chat.inbound.max-message-size", Long.class,
+                    50000000L));
+    this.user = user;
+    this.userId = user.getUserID();
+    this.username = user.getUsername();
+    this.deviceId = getDeviceId(session);
+    this.buckets = admission.newSession();
+    this.closed.set(false);
+    this.missedHeartbeats = 0;
+    this.outbox.onFailure(() -> evict("send-failure"));
+    scheduleHeartbeat();
+    registry.register(userId, username, this);
+    bus.sessionChanged(userId);
+    logger.info("Created endpoint for user {} on device {} using {}", username, deviceId,
+            outbox.getFormat());
+  }
+
+  /**
+   * Returns the device a session was opened from, as named by the {@code device} request
+   * parameter. Sessions without the parameter are treated as separate devices.
+   *
+   * @param session the newly opened session
+   * @return the device id
+   */
+  private static String getDeviceId(Session session) {
+    List<String> devices = session.getRequestParameterMap() == null ? null
+            : session.getRequestParameterMap().get("device");
+    if (devices == null || devices.isEmpty()) {
+      return session.getId();
+    }
+    return devices.get(0);
+  }
+
+  /**
+   * On text message.
+   * <p>
+   * Receives a part of a JSON message. The message is handed on once its last part arrived. A
+   * frame holding an event rather than a message is handed to {@link #onEvent}, a sync request
+   * to {@link #onSync}.
+   *
+   * @param part the part of the message
+   * @param last whether this is the last part of the message
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @OnMessage
+  public void onTextMessage(String part, boolean last) throws IOException {
+    missedHeartbeats = 0;
+    if (last && spool.isEmpty()) {
+      EventLane.Event event = EventLane.parse(part);
+      SyncRequest sync = event == null ? SyncRequest.parse(part) : null;
+      if (event != null) {
+        onEvent(event);
+      } else if (sync != null) {
+        onSync(sync);
+      } else {
+        onMessage(textDecoder.decode(part));
+      }
+      return;
+    }
+    if (!spool.appendText(part)) {
+      refuseMessage();
+    } else if (last) {
+      try {
+        onMessage(textDecoder.decode(spool.openReader()));
+      } finally {
+        spool.reset();
+      }
+    }
+  }
+
+  /**
+   * On binary message.
+   * <p>
+   * Receives a part of a CBOR message, or of an {@link UploadChunk} frame. A message is handed
+   * on once its last part arrived, the payload of a chunk is written to its upload as it comes.
+   *
+   * @param part the part of the message
+   * @param last whether this is the last part of the message
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  @OnMessage
+  public void onBinaryMessage(ByteBuffer part, boolean last) throws IOException {
+    missedHeartbeats = 0;
+    if (chunk == null && spool.isEmpty() && UploadChunk.isChunk(part)) {
+      chunk = uploads.open(userId, part);
+    }
+    if (chunk != null) {
+      chunk.write(part);
+      if (last) {
+        OutboundFrame answer = chunk.finish();
+        chunk = null;
+        offer(answer);
+      }
+      return;
+    }
+    if (last && spool.isEmpty()) {
+      onMessage(binaryDecoder.decode(part));
+      return;
+    }
+    if (!spool.appendBinary(part)) {
+      refuseMessage();
+    } else if (last) {
+      try {
+        onMessage(binaryDecoder.decode(spool.openStream()));
+      } finally {
+        spool.reset();
+      }
+    }
+  }
+
+  /**
+   * Closes the session on a message larger than prattle.chat.inbound.max-message-size, as the
+   * container does for a message larger than its buffer.
+   */
+  private void refuseMessage() throws IOException {
+    logger.warn("Message of {} or more refused for session {}", spool.size(), session.getId());
+    spool.reset();
+    session.close(new CloseReason(CloseReason.CloseCodes.TOO_BIG, "Message too large"));
   }
 
   /**
    * On message.
    * <p>
-   * When a message arrives, broadcast it to all connected users.
+   * When a message arrives, hand it to the pipeline which saves it and sends it to its
+   * recipients. The I/O thread of the session returns right away.
    *
    * @param messageDTO the inbound message
    */
-  @OnMessage
   public void onMessage(Message messageDTO) {
-    Set<HashTag> hashtags = createHashTags(messageDTO.getContent(), messageDTO);
-    messageDTO.setHashTagSet(hashtags);
+    OutboundFrame refusal = admission.admitMessage(userId, buckets,
+            AdmissionControl.Kind.of(messageDTO), pipeline);
+    if (refusal != null) {
+      offer(refusal);
+      logger.warn("Message of user {} refused: {}", username, refusal.getText());
+      return;
+    }
+    OutboundFrame missing = uploads.attach(userId, messageDTO);
+    if (missing != null) {
+      offer(missing);
+      logger.warn("Message of user {} refused: {}", username, missing.getText());
+      return;
+    }
+    pipeline.submit(getConversationKey(messageDTO),
+            () -> persist(enrich(messageDTO)),
+            message -> {
+              sendMessageByType(message);
+              logger.info("Message sent to user with ID {}", message.getToUserId());
+            });
+  }
+
+  /**
+   * On event.
+   * <p>
+   * Relays a typing indicator or read receipt to the other users of its conversation, on any
+   * node, through the {@link EventLane}. Events are neither persisted nor stashed. An event for
+   * a group the user is not a member of is dropped.
+   *
+   * @param event the inbound event
+   */
+  void onEvent(EventLane.Event event) {
+    Collection<Integer> recipients;
+    String conversation;
+    if (event.getGroupId() > 0) {
+      Set<Integer> members;
+      try {
+        members = groupService.getMemberIdsInGroupAndSubGroups(event.getGroupId());
+      } catch (GroupNotFoundException e) {
+        logger.info("Could not find group {}", event.getGroupId());
+        return;
+      }
+      if (!members.contains(userId)) {
+        return;
+      }
+      recipients = new HashSet<>(members);
+      recipients.remove(userId);
+      conversation = "group:" + event.getGroupId();
+    } else if (event.getToUserId() > 0 && event.getToUserId() != userId) {
+      recipients = Collections.singleton(event.getToUserId());
+      conversation = "user:" + event.getToUserId();
+    } else {
+      return;
+    }
+    events.submit(userId, conversation, event,
+            frame -> bus.publish(Delivery.toUsers(frame, recipients, null)));
+  }
+
+  /**
+   * On sync.
+   * <p>
+   * Answers a client catching up with the changes of its user since its cursor, read on the
+   * read executor of the pipeline and queued on the outbox of this endpoint.
+   *
+   * @param request the inbound sync request
+   */
+  void onSync(SyncRequest request) {
+    pipeline.read("sync:" + session.getId(), () -> {
+      try {
+        return messageService.sync(username, request.getSince(), request.getLimit());
+      } catch (UserDoesNotExistException e) {
+        logger.error("User {} does not exist", username);
+        return new SyncPage(Collections.emptyList(), request.getSince(), false);
+      }
+    }, page -> offer(request.answer(page)));
+  }
+
+  /**
+   * Returns the key of the conversation a message belongs to. Messages of the same conversation
+   * are processed in the order they arrived.
+   *
+   * @param message the message
+   * @return the conversation key
+   */
+  static String getConversationKey(Message message) {
+    if (message.getIsBroadcastMessage()) {
+      return "broadcast";
+    }
+    if (message.getIsGroupMessage()) {
+      return "group:" + message.getToUserId();
+    }
+    int low = Math.min(message.getFromUserId(), message.getToUserId());
+    int high = Math.max(message.getFromUserId(), message.getToUserId());
+    return "user:" + low + ":" + high;
+  }
+
+  /**
+   * Enrich stage, links the hashtags and attachments of an inbound message.
+   *
+   * @param messageDTO the inbound message
+   * @return the enriched message
+   */
+  private Message enrich(Message messageDTO) {
+    Set<String> tags = HashTagDictionary.extract(messageDTO.getContent());
+    messageDTO.setHashTagSet(tags.isEmpty() ? new HashSet<>()
+            : hashTagService.resolveHashTags(tags));
     if (messageDTO.hasAttachment()) {
       messageDTO.getAttachments().forEach(a -> a.setMessage(messageDTO));
     }
-    //save this message to DB
     messageDTO.setGeneratedTime(Timestamp.valueOf(LocalDateTime.now()));
+    return messageDTO;
+  }
+
+  /**
+   * Persist stage, saves a message to the DB.
+   *
+   * @param messageDTO the enriched message
+   * @return the saved message, null if it could not be saved
+   */
+  private Message persist(Message messageDTO) {
     try {
       Message message = messageService.saveNewMessage(messageDTO);
       logger.info("Message saved");
-      sendMessageByType(message);
-      logger.info("Message sent to user with ID {}", messageDTO.getToUserId());
+      return message;
     } catch (MessageAlreadyExistsException e) {
       logger.error(e.getMessage());
+      return null;
     }
   }
 
@@ -192,8 +628,7 @@ public class ChatEndpoint {
     if (message.getIsBroadcastMessage()) {
       broadcast(message);
     } else if (message.getIsGroupMessage()) {
-      Optional<Group> to = groupService.findGroupById(message.getToUserId());
-      to.ifPresent(group -> sendToGroup(group.getGroupName(), message));
+      sendToGroup(message.getToUserId(), message);
     } else {
       Optional<User> optionalUser = userService.findUserById(message.getToUserId());
       if (optionalUser.isPresent()) {
@@ -208,144 +643,374 @@ public class ChatEndpoint {
     }
   }
 
-  private void sendToGroup(String groupName, Message message) {
-    Optional<Group> testGroup = groupService.findGroupByName(groupName);
-    Group targetGroup;
-    if (testGroup.isPresent()) {
-      targetGroup = testGroup.get();
-      List<User> allUsersInGroupsAndSubGroups = groupService
-              .getAllUsersInGroupsAndSubGroups(targetGroup.getGroupName());
-      for (User member : allUsersInGroupsAndSubGroups) {
-        if (getFilterMatch(message, member)) {
-          continue;
-        }
-        chatEndpoints.forEach(endpoint -> {
-          String userSessionId = getSessionIdByUser(member);
-          String endpointSessionId = endpoint.session.getId();
-          if (endpointSessionId.equals(userSessionId)) {
-            //write at destination
-            logger.info("Sending message to user {}", member.getUsername());
-            try {
-              endpoint.session.getBasicRemote().sendObject(message);
-            } catch (IOException | EncodeException e) {
-              logger.error(e.getMessage());
-            }
-          }
-        });
-      }
-      logger.info("Message delivered to group {}", groupName);
-    }
-    logger.info("Could not find group");
-  }
-
-  private boolean getFilterMatch(Message message, User member) {
-    boolean filterMatched = false;
-    for (Filter filter : member.getFilters()) {
-      if (message.getContent().toLowerCase().contains(filter.getFilterString().toLowerCase())) {
-        filterMatched = true;
-        break;
-      }
+  /**
+   * Sends a message to the connected members of a group and of its subgroups, on any node. The
+   * member ids come from the group membership cache and each node scans the content once for the
+   * filters of the members it hosts, so a hot group needs no database query.
+   *
+   * @param groupId id of the group
+   * @param message the message
+   */
+  private void sendToGroup(int groupId, Message message) {
+    Set<Integer> memberIds;
+    try {
+      memberIds = groupService.getMemberIdsInGroupAndSubGroups(groupId);
+    } catch (GroupNotFoundException e) {
+      logger.info("Could not find group");
+      return;
     }
-    return filterMatched;
+    //write at destination
+    bus.publish(Delivery.toUsers(OutboundFrame.of(message), memberIds, message.getContent()));
+    logger.info("Message delivered to group {}", groupId);
   }
 
   /**
    * Broadcast.
    * <p>
-   * Send a Message to each session in the pool of sessions. The Message sending action is
-   * synchronized.  That is, if another Message tries to be sent at the same time to the same
-   * endpoint, it is blocked until this Message finishes being sent..
+   * Send a Message to each session of the cluster. The Message is encoded once and the frame is
+   * queued on the outbox of every endpoint, so a slow endpoint does not hold up the others.
    *
    * @param message the message object with to, content and from.
    */
   private void broadcast(Message message) {
-    chatEndpoints.forEach(endpoint ->
-            executeSend(message, endpoint)
-    );
+    bus.publish(Delivery.toEveryone(OutboundFrame.of(message)));
     logger.info("Message successfully broadcasted to all users");
   }
 
   private void echo(Message message) {
-    executeSend(message, this);
+    executeSend(OutboundFrame.of(message), this);
   }
 
   private void sendToTarget(User target, Message message) {
+    OutboundFrame frame = OutboundFrame.of(message);
+    //write at source, on every device of the sender
+    bus.publish(Delivery.toUsers(frame, Collections.singleton(userId), null));
+    //write at destination, unless the recipient filters the content
+    bus.publish(Delivery.toUsers(frame, Collections.singleton(target.getUserID()),
+            message.getContent()));
+  }
 
-    //write at source
-    echo(message);
-    if (!getFilterMatch(message, target)) {
-      chatEndpoints.forEach(endpoint -> {
-        if (endpoint.session.getId().equals(getSessionIdByUser(target))) {
-          //write at destination
-          executeSend(message, endpoint);
+  /**
+   * Queues a delivery on the endpoints of its recipients hosted by this node. Recipients whose
+   * filters match the content of the delivery are skipped; the content is scanned once for all
+   * of them.
+   *
+   * @param delivery the delivery
+   */
+  static void deliver(Delivery delivery) {
+    OutboundFrame frame = delivery.getFrame();
+    if (delivery.isBroadcast()) {
+      registry.getEndpoints().forEach(endpoint -> endpoint.offer(frame));
+      return;
+    }
+    FilterIndex.Scan filters = null;
+    for (int recipientId : delivery.getRecipients()) {
+      for (ChatEndpoint endpoint : registry.getEndpoints(recipientId)) {
+        if (delivery.getContent() != null) {
+          if (filters == null) {
+            filters = endpoint.filterIndex.scan(delivery.getContent());
+          }
+          if (filters.isFiltered(endpoint.user)) {
+            continue;
+          }
         }
-      });
+        endpoint.offer(frame);
+      }
     }
   }
 
-  private void executeSend(Message message, ChatEndpoint endpoint) {
-    try {
-      endpoint.session.getBasicRemote().sendObject(message);
-    } catch (IOException | EncodeException e) {
-      logger.error(e.getMessage());
+  private void executeSend(OutboundFrame frame, ChatEndpoint endpoint) {
+    endpoint.offer(frame);
+  }
+
+  /**
+   * Queues a frame on the outbox of this endpoint.
+   *
+   * @param frame the frame to send
+   */
+  void offer(OutboundFrame frame) {
+    if (outbox.offer(frame)) {
+      deliveredMessageId.accumulateAndGet(frame.getMessageId(), Math::max);
+    } else {
+      logger.warn("Message dropped for session {}", session.getId());
+    }
+  }
+
+  /**
+   * Returns the device served by this endpoint.
+   *
+   * @return the device id
+   */
+  public String getDeviceId() {
+    return deviceId;
+  }
+
+  /**
+   * Returns the delivery cursor of the device served by this endpoint.
+   *
+   * @return the id of the latest message queued to the device, 0 if none
+   */
+  public int getDeliveredMessageId() {
+    return deliveredMessageId.get();
+  }
+
+  /**
+   * On pong.
+   * <p>
+   * Receives the answer of the client to a heartbeat ping.
+   *
+   * @param pong the pong
+   */
+  @OnMessage
+  public void onPong(PongMessage pong) {
+    missedHeartbeats = 0;
+  }
+
+  private void scheduleHeartbeat() {
+    heartbeat = heartbeats.schedule(this::heartbeat,
+            SpringContext.getProperty("prattle.chat.heartbeat.interval-ms", Long.class, 30000L),
+            TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Evicts the session if the client sent nothing, not even a pong, for more than the allowed
+   * number of heartbeats, else pings it and schedules the next heartbeat. Runs on the timer
+   * wheel.
+   */
+  private void heartbeat() {
+    if (closed.get()) {
+      return;
     }
+    if (missedHeartbeats++ >= SpringContext.getProperty("prattle.chat.heartbeat.max-missed",
+            Integer.class, 2)) {
+      evict("idle");
+      return;
+    }
+    pings.execute(() -> {
+      try {
+        session.getAsyncRemote().sendPing(PING.duplicate());
+      } catch (IOException | RuntimeException e) {
+        logger.info("Unable to ping session {}: {}", session.getId(), e.getMessage());
+        evict("ping-failure");
+      }
+    });
+    scheduleHeartbeat();
+  }
+
+  /**
+   * Removes a session the client is no longer reachable on without waiting for the container
+   * to notice, then closes it. Both happen on the closer, so the caller, such as the timer
+   * wheel, never waits on a slow close.
+   *
+   * @param reason why, as tagged on the eviction metric
+   */
+  void evict(String reason) {
+    if (closed.get() || !evicting.compareAndSet(false, true)) {
+      return;
+    }
+    Metrics.counter("prattle.chat.sessions.evicted", "reason", reason).increment();
+    logger.warn("Evicting session {} of user {}: {}", session.getId(), username, reason);
+    closer.execute(() -> {
+      onClose(session);
+      try {
+        session.close(new CloseReason(CloseReason.CloseCodes.GOING_AWAY, reason));
+      } catch (IOException | RuntimeException e) {
+        logger.info("Unable to close session {}: {}", session.getId(), e.getMessage());
+      }
+    });
   }
 
   /**
    * On close.
    * <p>
-   * Closes the session by removing it from the pool of sessions and broadcasting the news to
-   * everyone else.
+   * Closes the session by removing it from the pool of sessions. If it was the last session of
+   * the user, the users interested in the user learn that the user is offline with the next
+   * presence update. Closing an evicted session again does nothing.
    *
    * @param session the session
    */
   @OnClose
   public void onClose(Session session) {
-    chatEndpoints.remove(this);
-    users.remove(session.getId());
-    Message message = new Message();
-    message.setContent("Disconnected!");
-    broadcast(message);
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    if (heartbeat != null) {
+      heartbeat.cancel();
+    }
+    registry.unregister(userId, username, this);
+    if (outbox != null) {
+      bus.sessionChanged(userId);
+      if (!registry.isConnected(userId)) {
+        admission.forget(userId);
+      }
+      outbox.close();
+      spool.reset();
+      if (chunk != null) {
+        chunk.abort();
+        chunk = null;
+      }
+      presence.disconnected(userId);
+    }
     logger.info("{} has disconnected", session.getId());
   }
 
   /**
    * On error.
    * <p>
-   * Handles situations when an error occurs.  Not implemented.
+   * Evicts the session when the connection failed. Any other error, such as a frame that could
+   * not be decoded, only loses the frame it was raised for and the session stays open.
    *
    * @param session   the session with the problem
    * @param throwable the action to be taken.
    */
   @OnError
   public void onError(Session session, Throwable throwable) {
-    // Do error handling here
+    if (!isConnectionFailure(throwable)) {
+      logger.warn("Dropping a frame of session {}: {}", session.getId(), throwable.getMessage());
+      return;
+    }
+    logger.error("Error on session {}: {}", session.getId(), throwable.getMessage());
+    if (outbox != null) {
+      evict("error");
+    }
   }
 
-  private String getSessionIdByUser(User user) {
-    String name = user.getUsername();
-    for (Entry<String, String> entry : users.entrySet()) {
-      if (name.equals(entry.getValue())) {
-        logger.info("Session if for user {} has been retrieved", user.getUsername());
-        return entry.getKey();
+  /**
+   * Checks if an error was caused by the connection, an I/O failure anywhere in its causes.
+   */
+  static boolean isConnectionFailure(Throwable throwable) {
+    for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+      if (cause instanceof IOException) {
+        return true;
       }
     }
-    logger.error("Session not found");
-    return "";
+    return false;
+  }
+
+  /**
+   * Replaces the pipeline processing inbound messages.
+   *
+   * @param messagePipeline the pipeline
+   */
+  static void setPipeline(MessagePipeline messagePipeline) {
+    pipeline = messagePipeline;
   }
 
-  private List<Message> getStashedMessages(User user) throws UserDoesNotExistException {
-    return messageService.getUnsentMessages(user.getUsername(), true);
+  /**
+   * Replaces what evicts sessions.
+   *
+   * @param executor the executor running the evictions
+   */
+  static void setCloser(Executor executor) {
+    closer = executor;
   }
 
+  /**
+   * Replaces the timer wheel scheduling the heartbeats of new sessions.
+   *
+   * @param wheel the timer wheel
+   */
+  static void setHeartbeats(HashedTimerWheel wheel) {
+    heartbeats = wheel;
+  }
 
-  private Set<HashTag> createHashTags(String content, Message message) {
-    Set<HashTag> result = new HashSet<>();
-    Pattern hashtagPattern = Pattern.compile("#(\\w+)");
-    Matcher mat = hashtagPattern.matcher(content);
-    while (mat.find()) {
-      result.add(hashTagService.createHashTag(mat.group(1), message));
+  /**
+   * Replaces the lane relaying typing indicators and read receipts.
+   *
+   * @param eventLane the lane
+   */
+  static void setEvents(EventLane eventLane) {
+    events = eventLane;
+  }
+
+  /**
+   * Replaces the attachments being uploaded in chunks.
+   *
+   * @param attachmentUploads the uploads
+   */
+  static void setUploads(AttachmentUploads attachmentUploads) {
+    uploads = attachmentUploads;
+  }
+
+  /**
+   * Replaces the admission control of sessions and inbound messages.
+   *
+   * @param admissionControl the admission control
+   */
+  static void setAdmission(AdmissionControl admissionControl) {
+    admission = admissionControl;
+  }
+
+  /**
+   * Replaces the bus carrying deliveries, starting the new bus for the sessions of this node.
+   *
+   * @param messageBus the bus, not started
+   */
+  static void setBus(MessageBus messageBus) {
+    bus = startBus(messageBus);
+  }
+
+  /**
+   * Replaces the relay applying the cache changes of the other nodes.
+   *
+   * @param relay the relay
+   */
+  static void setInvalidations(CacheInvalidationRelay relay) {
+    invalidations = relay;
+  }
+
+  private static CacheInvalidationRelay getInvalidations() {
+    if (invalidations == null) {
+      invalidations = SpringContext.getBean(CacheInvalidationRelay.class);
     }
-    return result;
+    return invalidations;
+  }
+
+  /**
+   * Returns the bus carrying deliveries to the sessions on every node of the cluster.
+   *
+   * @return the message bus
+   */
+  public static MessageBus getBus() {
+    return bus;
+  }
+
+  private static MessageBus startBus(MessageBus messageBus) {
+    messageBus.start(new LocalNode() {
+      @Override
+      public void deliver(Delivery delivery) {
+        ChatEndpoint.deliver(delivery);
+      }
+
+      @Override
+      public boolean isConnected(int userId) {
+        return registry.isConnected(userId);
+      }
+
+      @Override
+      public Collection<Integer> getUserIds() {
+        return registry.getUserIds();
+      }
+
+      @Override
+      public void invalidated(String cache, int key) {
+        getInvalidations().invalidated(cache, key);
+      }
+
+      @Override
+      public void invalidatedAll() {
+        getInvalidations().invalidatedAll();
+      }
+    });
+    return messageBus;
+  }
+
+  /**
+   * Returns the tracker publishing the presence of the connected users.
+   *
+   * @return the presence tracker
+   */
+  public static PresenceTracker getPresence() {
+    return presence;
   }
 }
@@ -0,0 +1,241 @@
+package com.neu.prattle.websocket;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.neu.prattle.configuration.SpringContext;
+import com.neu.prattle.utils.HashedTimerWheel;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * The Class EventLane.
+ * <p>
+ * Carries ephemeral events, typing indicators and read receipts, between users without
+ * persisting them. Events are small JSON text frames,
+ * {@code {"type":"typing","toUserId":...|"groupId":...,"active":true|false}} and
+ * {@code {"type":"seen","toUserId":...|"groupId":...,"messageId":...}}, relayed to the
+ * recipients with the sender added as fromUserId.
+ * <p>
+ * Events are coalesced per sender, kind and conversation: the first event of a conversation is
+ * sent right away, later ones within the interval only replace each other and the latest is
+ * sent when the interval ends. A conversation therefore carries at most one event of a kind per
+ * interval and sender, however often the client sends them. Events are never stored or retried,
+ * an event for a recipient who is away is lost.
+ */
+public class EventLane {
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  /**
+   * The longest text frame checked for an event.
+   */
+  private static final int MAX_EVENT_SIZE = 1024;
+
+  private static final Counter sent = Metrics.counter("prattle.chat.events", "outcome", "sent");
+  private static final Counter coalesced =
+          Metrics.counter("prattle.chat.events", "outcome", "coalesced");
+
+  private final HashedTimerWheel wheel;
+  private final long intervalMillis;
+
+  /**
+   * The conversations with an interval running, keyed by sender, kind and conversation.
+   */
+  private final ConcurrentMap<String, Slot> slots = new ConcurrentHashMap<>();
+
+  /**
+   * Creates a lane.
+   *
+   * @param wheel          the timer wheel ending the intervals
+   * @param intervalMillis the interval between two events of a conversation
+   */
+  public EventLane(HashedTimerWheel wheel, long intervalMillis) {
+    this.wheel = wheel;
+    this.intervalMillis = intervalMillis;
+  }
+
+  /**
+   * Creates the lane configured by the prattle.chat.events.interval-ms property.
+   *
+   * @param wheel the timer wheel ending the intervals
+   * @return the lane
+   */
+  public static EventLane create(HashedTimerWheel wheel) {
+    return new EventLane(wheel,
+            SpringContext.getProperty("prattle.chat.events.interval-ms", Long.class, 1000L));
+  }
+
+  /**
+   * Reads an inbound text frame as an event.
+   *
+   * @param text the text frame
+   * @return the event, null if the frame is not an event, such as a message
+   */
+  public static Event parse(String text) {
+    if (text.length() > MAX_EVENT_SIZE || !text.contains("\"type\"")) {
+      return null;
+    }
+    JsonNode node;
+    try {
+      node = mapper.readTree(text);
+    } catch (IOException e) {
+      return null;
+    }
+    String type = node.path("type").asText();
+    if (!Event.TYPING.equals(type) && !Event.SEEN.equals(type)) {
+      return null;
+    }
+    return new Event(type, node.path("toUserId").asInt(), node.path("groupId").asInt(),
+            node.path("active").asBoolean(true), node.path("messageId").asInt());
+  }
+
+  /**
+   * Sends an event, or holds it until the interval of its conversation ends.
+   *
+   * @param fromUserId   id of the sender
+   * @param conversation the key of the conversation
+   * @param event        the event
+   * @param send         sends the frame of the event to its recipients
+   */
+  public void submit(int fromUserId, String conversation, Event event,
+                     Consumer<OutboundFrame> send) {
+    String key = fromUserId + ":" + event.getType() + ":" + conversation;
+    OutboundFrame frame = event.toFrame(fromUserId);
+    boolean[] first = new boolean[1];
+    slots.compute(key, (k, slot) -> {
+      if (slot == null) {
+        first[0] = true;
+        slot = new Slot();
+        schedule(k);
+      } else {
+        if (slot.frame != null) {
+          coalesced.increment();
+        }
+        slot.frame = frame;
+        slot.send = send;
+      }
+      return slot;
+    });
+    if (first[0]) {
+      sent.increment();
+      send.accept(frame);
+    }
+  }
+
+  private void schedule(String key) {
+    wheel.schedule(() -> endInterval(key), intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Sends the latest event held during an interval and starts the next interval, or forgets
+   * the conversation if nothing was held. Runs on the timer wheel.
+   */
+  private void endInterval(String key) {
+    Slot held = new Slot();
+    slots.computeIfPresent(key, (k, slot) -> {
+      if (slot.frame == null) {
+        return null;
+      }
+      held.frame = slot.frame;
+      held.send = slot.send;
+      slot.frame = null;
+      slot.send = null;
+      schedule(k);
+      return slot;
+    });
+    if (held.frame != null) {
+      sent.increment();
+      held.send.accept(held.frame);
+    }
+  }
+
+  /**
+   * Returns the number of conversations with an interval running.
+   *
+   * @return number of conversations
+   */
+  public int getActiveCount() {
+    return slots.size();
+  }
+
+  /**
+   * The latest event held for a conversation, guarded by the map of slots.
+   */
+  private static final class Slot {
+    private OutboundFrame frame;
+    private Consumer<OutboundFrame> send;
+  }
+
+  /**
+   * An inbound event.
+   */
+  public static final class Event {
+    static final String TYPING = "typing";
+    static final String SEEN = "seen";
+
+    private final String type;
+    private final int toUserId;
+    private final int groupId;
+    private final boolean active;
+    private final int messageId;
+
+    Event(String type, int toUserId, int groupId, boolean active, int messageId) {
+      this.type = type;
+      this.toUserId = toUserId;
+      this.groupId = groupId;
+      this.active = active;
+      this.messageId = messageId;
+    }
+
+    /**
+     * Encodes the event relayed to its recipients.
+     *
+     * @param fromUserId id of the sender
+     * @return the frame
+     */
+    OutboundFrame toFrame(int fromUserId) {
+      ObjectNode node = mapper.createObjectNode();
+      node.put("type", type);
+      node.put("fromUserId", fromUserId);
+      if (groupId > 0) {
+        node.put("groupId", groupId);
+      } else {
+        node.put("toUserId", toUserId);
+      }
+      if (TYPING.equals(type)) {
+        node.put("active", active);
+      } else {
+        node.put("messageId", messageId);
+      }
+      return OutboundFrame.ofText(node.toString());
+    }
+
+    public String getType() {
+      return type;
+    }
+
+    public int getToUserId() {
+      return toUserId;
+    }
+
+    public int getGroupId() {
+      return groupId;
+    }
+
+    public boolean isActive() {
+      return active;
+    }
+
+    public int getMessageId() {
+      return messageId;
+    }
+  }
+}
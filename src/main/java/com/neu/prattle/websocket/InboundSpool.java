@@ -0,0 +1,212 @@
+package com.neu.prattle.websocket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The Class InboundSpool.
+ * <p>
+ * Collects the parts of an inbound message that is larger than the message buffer of its
+ * session. Parts are kept in memory up to the memory limit; beyond it the whole message goes to a
+ * temporary file, so a large message is never held as one String or byte array. The collected
+ * message is then read back through a stream.
+ * <p>
+ * A session delivers the parts of one message at a time and never interleaves a text and a
+ * binary message, so one spool serves both kinds of message of a session. A spool is not thread
+ * safe.
+ */
+class InboundSpool {
+
+  private static Logger logger = LoggerFactory.getLogger(InboundSpool.class);
+
+  private final int memoryLimit;
+  private final long maxSize;
+
+  private StringBuilder chars = new StringBuilder();
+  private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+  private Path file;
+  private Writer fileWriter;
+  private OutputStream fileStream;
+  private Closeable opened;
+  private long size;
+  private boolean empty = true;
+
+  /**
+   * Creates a spool.
+   *
+   * @param memoryLimit the size up to which a message is kept in memory, in characters for text
+   *                    and in bytes for binary messages
+   * @param maxSize     the size of the largest message accepted
+   */
+  InboundSpool(int memoryLimit, long maxSize) {
+    this.memoryLimit = memoryLimit;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Adds the next part of a text message.
+   *
+   * @param part the part
+   * @return false if the message grew larger than the maximum size and was dropped
+   * @throws IOException if the temporary file can not be written
+   */
+  boolean appendText(String part) throws IOException {
+    if (!grow(part.length())) {
+      return false;
+    }
+    if (fileWriter == null && chars.length() + part.length() > memoryLimit) {
+      file = Files.createTempFile("prattle-inbound", ".json");
+      fileWriter = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+      fileWriter.append(chars);
+      chars = new StringBuilder();
+    }
+    if (fileWriter != null) {
+      fileWriter.write(part);
+    } else {
+      chars.append(part);
+    }
+    return true;
+  }
+
+  /**
+   * Adds the next part of a binary message.
+   *
+   * @param part the part, consumed
+   * @return false if the message grew larger than the maximum size and was dropped
+   * @throws IOException if the temporary file can not be written
+   */
+  boolean appendBinary(ByteBuffer part) throws IOException {
+    if (!grow(part.remaining())) {
+      return false;
+    }
+    if (fileStream == null && bytes.size() + part.remaining() > memoryLimit) {
+      file = Files.createTempFile("prattle-inbound", ".cbor");
+      fileStream = Files.newOutputStream(file);
+      bytes.writeTo(fileStream);
+      bytes = new ByteArrayOutputStream();
+    }
+    OutputStream target = fileStream != null ? fileStream : bytes;
+    if (part.hasArray()) {
+      target.write(part.array(), part.arrayOffset() + part.position(), part.remaining());
+      part.position(part.limit());
+    } else {
+      byte[] chunk = new byte[Math.min(part.remaining(), 8192)];
+      while (part.hasRemaining()) {
+        int length = Math.min(part.remaining(), chunk.length);
+        part.get(chunk, 0, length);
+        target.write(chunk, 0, length);
+      }
+    }
+    return true;
+  }
+
+  private boolean grow(int length) {
+    empty = false;
+    size += length;
+    return size <= maxSize;
+  }
+
+  /**
+   * Returns a reader over the collected text message.
+   *
+   * @return the reader, closed by {@link #reset}
+   * @throws IOException if the temporary file can not be read
+   */
+  Reader openReader() throws IOException {
+    Reader reader;
+    if (fileWriter != null) {
+      fileWriter.close();
+      reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+    } else {
+      reader = new StringReader(chars.toString());
+    }
+    opened = reader;
+    return reader;
+  }
+
+  /**
+   * Returns a stream over the collected binary message.
+   *
+   * @return the stream, closed by {@link #reset}
+   * @throws IOException if the temporary file can not be read
+   */
+  InputStream openStream() throws IOException {
+    InputStream stream;
+    if (fileStream != null) {
+      fileStream.close();
+      stream = new BufferedInputStream(Files.newInputStream(file));
+    } else {
+      stream = new ByteArrayInputStream(bytes.toByteArray());
+    }
+    opened = stream;
+    return stream;
+  }
+
+  /**
+   * Returns whether no part of a message was added since the last reset.
+   *
+   * @return true if empty, else false
+   */
+  boolean isEmpty() {
+    return empty;
+  }
+
+  /**
+   * Returns the size of the message collected so far.
+   *
+   * @return the size in characters or bytes
+   */
+  long size() {
+    return size;
+  }
+
+  /**
+   * Forgets the collected message and deletes its temporary file.
+   */
+  void reset() {
+    closeQuietly(fileWriter);
+    closeQuietly(fileStream);
+    closeQuietly(opened);
+    if (file != null) {
+      try {
+        Files.deleteIfExists(file);
+      } catch (IOException e) {
+        logger.error("Unable to delete {}", file);
+      }
+    }
+    chars = new StringBuilder();
+    bytes = new ByteArrayOutputStream();
+    file = null;
+    fileWriter = null;
+    fileStream = null;
+    opened = null;
+    size = 0;
+    empty = true;
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      logger.error(e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package com.neu.prattle.websocket;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.neu.prattle.model.Message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.websocket.Decoder;
+import javax.websocket.EndpointConfig;
+
+/**
+ * The Class MessageBinaryDecoder.
+ * <p>
+ * Decodes in-bound messages that come in as binary CBOR frames, on connections that negotiated
+ * the {@code prattle.cbor} subprotocol, into Message objects. Streams are read through Jackson's
+ * streaming parser and attachment payloads larger than prattle.chat.inbound.attachment-spill-size
+ * characters of base64 are written to the attachment store as they are read.
+ */
+public class MessageBinaryDecoder implements Decoder.BinaryStream<Message> {
+
+  private static final ObjectMapper objectMapper = WireFormat.CBOR.getMapper();
+
+  /**
+   * The logger.
+   */
+  private final Logger logger = Logger.getLogger(this.getClass().getName());
+
+  /**
+   * Decode.
+   * <p>
+   * Reads a Message from a CBOR frame.
+   *
+   * @param bytes the CBOR frame that was sent in the channel
+   * @return a Message object
+   */
+  public Message decode(ByteBuffer bytes) {
+    try {
+      if (bytes.hasArray()) {
+        return objectMapper.readValue(bytes.array(), bytes.arrayOffset() + bytes.position(),
+                bytes.remaining(), Message.class);
+      }
+      byte[] copy = new byte[bytes.remaining()];
+      bytes.get(copy);
+      return objectMapper.readValue(copy, Message.class);
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, e.getMessage());
+      throw new IllegalArgumentException("Unable to decode the message");
+    }
+  }
+
+  /**
+   * Decode.
+   * <p>
+   * Reads a Message from a CBOR stream, writing large attachment payloads to the attachment store
+   * instead of keeping them in memory.
+   *
+   * @param stream the CBOR frame that was sent in the channel
+   * @return a Message object, its stored attachments marked as such
+   */
+  @Override
+  public Message decode(InputStream stream) {
+    AttachmentSpill spill = new AttachmentSpill(MessageDecoder.getSpillSize());
+    try {
+      Message message = objectMapper.readerFor(Message.class)
+              .withAttribute(AttachmentSpill.ATTRIBUTE, spill)
+              .readValue(stream);
+      spill.markStored(message);
+      return message;
+    } catch (IOException e) {
+      spill.discard();
+      logger.log(Level.SEVERE, e.getMessage());
+      throw new IllegalArgumentException("Unable to decode the message");
+    }
+  }
+
+  /**
+   * Will decode.
+   * <p>
+   * Tests if there are bytes to decode.
+   *
+   * @param bytes the frame
+   * @return true, if successful
+   */
+  public boolean willDecode(ByteBuffer bytes) {
+    return bytes != null && bytes.hasRemaining();
+  }
+
+  @Override
+  public void init(EndpointConfig endpointConfig) {
+    // Custom initialization logic
+  }
+
+  @Override
+  public void destroy() {
+    // Close resources
+  }
+}
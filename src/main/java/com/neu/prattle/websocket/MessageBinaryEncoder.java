@@ -0,0 +1,83 @@
+package com.neu.prattle.websocket;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.neu.prattle.model.Message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.websocket.Encoder;
+import javax.websocket.EndpointConfig;
+
+/**
+ * The Class MessageBinaryEncoder.
+ * <p>
+ * Encodes Message objects into binary CBOR frames for connections that negotiated the
+ * {@code prattle.cbor} subprotocol, written to a byte stream through Jackson's streaming
+ * generator.
+ */
+public class MessageBinaryEncoder implements Encoder.BinaryStream<Message> {
+
+  private static final ObjectMapper objectMapper = WireFormat.CBOR.getMapper();
+
+  /**
+   * The logger.
+   */
+  private final Logger logger = Logger.getLogger(this.getClass().getName());
+
+  /**
+   * Encode.
+   * <p>
+   * Serializes a Message into a CBOR frame.
+   *
+   * @param message What needs to be serialized
+   * @return the resulting CBOR bytes
+   */
+  public ByteBuffer encode(Message message) {
+    return ByteBuffer.wrap(encodeToBytes(message));
+  }
+
+  /**
+   * Encode.
+   * <p>
+   * Writes a Message to a byte stream as it is serialized. The stream is flushed but left open.
+   *
+   * @param message What needs to be serialized
+   * @param stream  the stream to write to
+   * @throws IOException if the stream can not be written
+   */
+  @Override
+  public void encode(Message message, OutputStream stream) throws IOException {
+    objectMapper.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+            .writeValue(stream, message);
+  }
+
+  /**
+   * Serializes a Message into CBOR bytes.
+   *
+   * @param message What needs to be serialized
+   * @return the resulting CBOR bytes, an empty map if the message can not be serialized
+   */
+  public byte[] encodeToBytes(Message message) {
+    try {
+      return objectMapper.writeValueAsBytes(message);
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, e.getMessage());
+      return new byte[]{(byte) 0xa0};
+    }
+  }
+
+  @Override
+  public void init(EndpointConfig endpointConfig) {
+    // Custom initialization logic
+  }
+
+  @Override
+  public void destroy() {
+    // Close resources
+  }
+}
@@ -8,9 +8,11 @@ package com.neu.prattle.websocket;
  */
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.neu.prattle.configuration.SpringContext;
 import com.neu.prattle.model.Message;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -19,13 +21,18 @@ import javax.websocket.EndpointConfig;
 
 /**
  * The Class MessageDecoder.
+ * <p>
+ * Reads messages from a character stream through Jackson's streaming parser, so a message does
+ * not have to be buffered as one String first. Attachment values longer than
+ * prattle.chat.inbound.attachment-spill-size characters are written to the attachment store as
+ * they are read.
  */
-public class MessageDecoder implements Decoder.Text<Message> {
+public class MessageDecoder implements Decoder.TextStream<Message> {
 
   /**
    * @see org.codehaus.jackson.map.ObjectMapper
    */
-  private static final ObjectMapper objectMapper = new ObjectMapper();
+  private static final ObjectMapper objectMapper = WireFormat.JSON.getMapper();
 
   /**
    * The logger.
@@ -40,7 +47,6 @@ public class MessageDecoder implements Decoder.Text<Message> {
    * @param s the JSON structure that was sent in the channel
    * @return a Message object
    */
-  @Override
   public Message decode(String s) {
 
     try {
@@ -51,6 +57,41 @@ public class MessageDecoder implements Decoder.Text<Message> {
     }
   }
 
+  /**
+   * Decode.
+   * <p>
+   * Reads a message from a character stream, writing large attachment values to the attachment
+   * store instead of keeping them in memory.
+   *
+   * @param reader the JSON structure that was sent in the channel
+   * @return a Message object, its stored attachments marked as such
+   */
+  @Override
+  public Message decode(Reader reader) {
+    AttachmentSpill spill = new AttachmentSpill(getSpillSize());
+    try {
+      Message message = objectMapper.readerFor(Message.class)
+              .withAttribute(AttachmentSpill.ATTRIBUTE, spill)
+              .readValue(reader);
+      spill.markStored(message);
+      return message;
+    } catch (IOException e) {
+      spill.discard();
+      logger.log(Level.SEVERE, e.getMessage());
+      throw new IllegalArgumentException("Unable to decode the message");
+    }
+  }
+
+  /**
+   * Returns the length from which attachment values are written to the attachment store.
+   *
+   * @return the spill size in characters
+   */
+  static int getSpillSize() {
+    return SpringContext.getProperty("prattle.chat.inbound.attachment-spill-size", Integer.class,
+            65536);
+  }
+
   /**
    * Will decode.
    * <p>
@@ -59,7 +100,6 @@ public class MessageDecoder implements Decoder.Text<Message> {
    * @param s the s
    * @return true, if successful
    */
-  @Override
   public boolean willDecode(String s) {
     return (s != null);
   }
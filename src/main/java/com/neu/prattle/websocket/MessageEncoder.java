@@ -1,9 +1,11 @@
 package com.neu.prattle.websocket;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.neu.prattle.model.Message;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -12,11 +14,14 @@ import javax.websocket.EndpointConfig;
 
 /**
  * The Class MessageEncoder.
+ * <p>
+ * Writes messages to a character stream through Jackson's streaming generator. {@link
+ * #encode(Message)} builds the text of a frame that is queued on several outboxes.
  *
  * @author https://github.com/eugenp/tutorials/java-websocket/src/main/java/com/baeldung/websocket
  * @version dated 2017-03-05
  */
-public class MessageEncoder implements Encoder.Text<Message> {
+public class MessageEncoder implements Encoder.TextStream<Message> {
 
   /**
    * @see org.codehaus.jackson.map.ObjectMapper
@@ -37,7 +42,6 @@ public class MessageEncoder implements Encoder.Text<Message> {
    * @param message What needs to be serialized
    * @return the resulting JSON (String)
    */
-  @Override
   public String encode(Message message) {
     try {
       return objectMapper.writeValueAsString(message);
@@ -47,6 +51,22 @@ public class MessageEncoder implements Encoder.Text<Message> {
     }
   }
 
+  /**
+   * Encode.
+   * <p>
+   * Writes the JSON structure of a Message to a character stream as it is generated. The writer
+   * is flushed but left open.
+   *
+   * @param message What needs to be serialized
+   * @param writer  the stream to write to
+   * @throws IOException if the stream can not be written
+   */
+  @Override
+  public void encode(Message message, Writer writer) throws IOException {
+    objectMapper.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+            .writeValue(writer, message);
+  }
+
   /**
    * Custom code if anything special is needed when establishing the session with a particular
    * endpoint (the websocket).  Not used at present.
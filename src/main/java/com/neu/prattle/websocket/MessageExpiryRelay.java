@@ -0,0 +1,90 @@
+package com.neu.prattle.websocket;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.neu.prattle.exceptions.GroupNotFoundException;
+import com.neu.prattle.repository.MessageBatchRepository.Expiring;
+import com.neu.prattle.service.MessageExpiryService;
+import com.neu.prattle.service.group.GroupService;
+import com.neu.prattle.websocket.cluster.Delivery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * The Class MessageExpiryRelay.
+ * <p>
+ * Tells the connected users of an expired self-destruct message, on any node, that it expired,
+ * so their clients can remove it: {@code {"type":"expired","messageId":...}} goes to the sender
+ * and recipient of a private message, to the members of the group of a group message and to
+ * everyone for a broadcast. Users who are away learn nothing, the message is simply no longer
+ * read back.
+ */
+@Component
+public class MessageExpiryRelay {
+  private static Logger logger = LoggerFactory.getLogger(MessageExpiryRelay.class);
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private GroupService groupService;
+  private Consumer<Delivery> publisher = delivery -> ChatEndpoint.getBus().publish(delivery);
+
+  @Autowired
+  public void setGroupService(GroupService groupService) {
+    this.groupService = groupService;
+  }
+
+  @Autowired
+  public void setMessageExpiry(MessageExpiryService messageExpiry) {
+    messageExpiry.addListener(this::expired);
+  }
+
+  /**
+   * Replaces what publishes the deliveries, the message bus of the chat endpoints by default.
+   *
+   * @param publisher the publisher
+   */
+  void setPublisher(Consumer<Delivery> publisher) {
+    this.publisher = publisher;
+  }
+
+  /**
+   * Publishes the expiry of messages to their users.
+   *
+   * @param messages the expired messages
+   */
+  void expired(List<Expiring> messages) {
+    for (Expiring message : messages) {
+      OutboundFrame frame = toFrame(message);
+      if (message.isBroadcastMessage()) {
+        publisher.accept(Delivery.toEveryone(frame));
+      } else if (message.isGroupMessage()) {
+        try {
+          publisher.accept(Delivery.toUsers(frame,
+                  groupService.getMemberIdsInGroupAndSubGroups(message.getToUserId()), null));
+        } catch (GroupNotFoundException e) {
+          logger.info("Could not find group {}", message.getToUserId());
+        }
+      } else {
+        Set<Integer> users = new HashSet<>(Arrays.asList(message.getFromUserId(),
+                message.getToUserId()));
+        publisher.accept(Delivery.toUsers(frame, users, null));
+      }
+    }
+  }
+
+  private static OutboundFrame toFrame(Expiring message) {
+    ObjectNode node = mapper.createObjectNode();
+    node.put("type", "expired");
+    node.put("messageId", message.getMessageId());
+    return OutboundFrame.ofText(node.toString());
+  }
+}
@@ -0,0 +1,154 @@
+package com.neu.prattle.websocket;
+
+import com.neu.prattle.configuration.SpringContext;
+import com.neu.prattle.utils.ExecutorFactory;
+import com.neu.prattle.utils.OrderedExecutor;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * The Class MessagePipeline.
+ * <p>
+ * Processes inbound chat messages away from the WebSocket I/O threads. After the container has
+ * decoded a message, it is enriched (hashtags) and persisted on the persistence executor, then
+ * routed to its recipients and delivered on the delivery executor. Both executors keep the
+ * messages of a conversation in the order they arrived while different conversations are
+ * processed in parallel.
+ * <p>
+ * The pipeline tracks its load for admission control: the number of messages waiting to be
+ * persisted, and a moving average of the time the persist stage takes. Reads done for a session,
+ * such as pages of stashed messages or sync pages, run on a read executor of their own and are
+ * left out of both, so a burst of reconnects neither delays nor sheds inbound messages.
+ */
+public class MessagePipeline {
+
+  private static final Timer persistTimer = Metrics.timer("prattle.chat.pipeline.persist");
+
+  private final OrderedExecutor persistence;
+  private final OrderedExecutor delivery;
+  private final OrderedExecutor reads;
+  private final AtomicInteger queueDepth = new AtomicInteger();
+  private final AtomicLong persistLatencyNanos = new AtomicLong();
+
+  /**
+   * Creates a pipeline.
+   *
+   * @param persistenceExecutor executor running the enrich and persist stages
+   * @param deliveryExecutor    executor running the route and deliver stages
+   * @param lanes               number of ordered lanes per executor
+   */
+  public MessagePipeline(Executor persistenceExecutor, Executor deliveryExecutor, int lanes) {
+    this(persistenceExecutor, deliveryExecutor, persistenceExecutor, lanes);
+  }
+
+  /**
+   * Creates a pipeline with an executor of its own for reads.
+   *
+   * @param persistenceExecutor executor running the enrich and persist stages
+   * @param deliveryExecutor    executor running the route and deliver stages
+   * @param readExecutor        executor running the reads
+   * @param lanes               number of ordered lanes per executor
+   */
+  public MessagePipeline(Executor persistenceExecutor, Executor deliveryExecutor,
+                         Executor readExecutor, int lanes) {
+    this.persistence = new OrderedExecutor(persistenceExecutor, lanes);
+    this.delivery = new OrderedExecutor(deliveryExecutor, lanes);
+    this.reads = new OrderedExecutor(readExecutor, lanes);
+  }
+
+  /**
+   * Creates a pipeline configured by the prattle.chat.pipeline.* properties.
+   *
+   * @return the pipeline
+   */
+  public static MessagePipeline create() {
+    int cores = Runtime.getRuntime().availableProcessors();
+    boolean virtualThreads = SpringContext.getProperty("prattle.chat.pipeline.virtual-threads",
+            Boolean.class, true);
+    return new MessagePipeline(
+            ExecutorFactory.newExecutor("chat-persist",
+                    SpringContext.getProperty("prattle.chat.pipeline.persist-threads",
+                            Integer.class, cores * 2), virtualThreads),
+            ExecutorFactory.newExecutor("chat-deliver",
+                    SpringContext.getProperty("prattle.chat.pipeline.delivery-threads",
+                            Integer.class, cores), virtualThreads),
+            ExecutorFactory.newExecutor("chat-read",
+                    SpringContext.getProperty("prattle.chat.pipeline.read-threads",
+                            Integer.class, cores), virtualThreads),
+            SpringContext.getProperty("prattle.chat.pipeline.lanes", Integer.class, 64));
+  }
+
+  /**
+   * Submits a message to the pipeline. Returns immediately.
+   *
+   * @param conversationKey key of the conversation the message belongs to
+   * @param persist         enriches and persists the message, returns null if it must not be
+   *                        delivered
+   * @param deliver         routes the persisted message and delivers it to its recipients
+   * @param <T>             type of the persisted message
+   */
+  public <T> void submit(Object conversationKey, Supplier<T> persist, Consumer<T> deliver) {
+    queueDepth.incrementAndGet();
+    persistence.execute(conversationKey, () -> {
+      long start = System.nanoTime();
+      T persisted;
+      try {
+        persisted = persist.get();
+      } finally {
+        queueDepth.decrementAndGet();
+      }
+      long elapsed = System.nanoTime() - start;
+      persistTimer.record(elapsed, TimeUnit.NANOSECONDS);
+      // a moving average weighing the latest sample by 1/8, lost updates do not matter
+      long average = persistLatencyNanos.get();
+      persistLatencyNanos.set(average + (elapsed - average) / 8);
+      if (persisted != null) {
+        delivery.execute(conversationKey, () -> deliver.accept(persisted));
+      }
+    });
+  }
+
+  /**
+   * Submits a read done for a session. Returns immediately. Reads with the same key run in the
+   * order they were submitted; they count neither in the queue depth nor in the persist latency.
+   *
+   * @param key     key ordering the reads, such as the session
+   * @param read    reads the data, returns null if there is nothing to deliver
+   * @param deliver delivers what was read
+   * @param <T>     type of what is read
+   */
+  public <T> void read(Object key, Supplier<T> read, Consumer<T> deliver) {
+    reads.execute(key, () -> {
+      T result = read.get();
+      if (result != null) {
+        delivery.execute(key, () -> deliver.accept(result));
+      }
+    });
+  }
+
+  /**
+   * Returns the number of messages submitted and not yet persisted.
+   *
+   * @return the queue depth
+   */
+  public int getQueueDepth() {
+    return queueDepth.get();
+  }
+
+  /**
+   * Returns the moving average of the time the persist stage takes.
+   *
+   * @return the latency in milliseconds
+   */
+  public long getPersistLatencyMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(persistLatencyNanos.get());
+  }
+}
@@ -0,0 +1,123 @@
+package com.neu.prattle.websocket;
+
+import com.neu.prattle.model.Message;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * The Class OutboundFrame.
+ * <p>
+ * An immutable, already encoded frame. A message that fans out to many sessions is serialized
+ * once into a frame and the same frame is queued on every recipient's outbox. The JSON text is
+ * encoded up front; the binary encoding is produced the first time a binary session takes the
+ * frame and is then shared the same way.
+ */
+public final class OutboundFrame {
+
+  /**
+   * Shared encoder, the encoder keeps no per call state.
+   */
+  private static final MessageEncoder encoder = new MessageEncoder();
+  private static final MessageBinaryEncoder binaryEncoder = new MessageBinaryEncoder();
+
+  private static Logger logger = LoggerFactory.getLogger(OutboundFrame.class);
+
+  private final String text;
+  private final Message message;
+  private final int messageId;
+  private volatile byte[] binary;
+
+  private OutboundFrame(String text, Message message, int messageId) {
+    this.text = text;
+    this.message = message;
+    this.messageId = messageId;
+  }
+
+  /**
+   * Encodes a message into a frame.
+   *
+   * @param message the message to encode
+   * @return the encoded frame
+   */
+  public static OutboundFrame of(Message message) {
+    return new OutboundFrame(encoder.encode(message), message, message.getMessageId());
+  }
+
+  /**
+   * Wraps text that is already encoded.
+   *
+   * @param text the encoded text
+   * @return the frame
+   */
+  public static OutboundFrame ofText(String text) {
+    return ofText(text, 0);
+  }
+
+  /**
+   * Wraps the already encoded text of a persisted message, as received from another node.
+   *
+   * @param text      the encoded text
+   * @param messageId the id of the message
+   * @return the frame
+   */
+  public static OutboundFrame ofText(String text, int messageId) {
+    return new OutboundFrame(text, null, messageId);
+  }
+
+  /**
+   * Returns the encoded text of the frame.
+   *
+   * @return the JSON text
+   */
+  public String getText() {
+    return text;
+  }
+
+  /**
+   * Returns the binary (CBOR) encoding of the frame, encoding it on the first call. The first
+   * call should happen while the frame is being queued, before the message can change.
+   *
+   * @return the CBOR bytes, not to be modified
+   */
+  public byte[] getBinary() {
+    byte[] result = binary;
+    if (result == null) {
+      result = message != null ? binaryEncoder.encodeToBytes(message) : transcode(text);
+      binary = result;
+    }
+    return result;
+  }
+
+  /**
+   * Converts JSON text into the same structure in CBOR.
+   */
+  private static byte[] transcode(String json) {
+    try {
+      return WireFormat.CBOR.getMapper().writeValueAsBytes(
+              WireFormat.JSON.getMapper().readTree(json));
+    } catch (IOException e) {
+      logger.error(e.getMessage());
+      return new byte[]{(byte) 0xa0};
+    }
+  }
+
+  /**
+   * Returns the id of the persisted message carried by the frame.
+   *
+   * @return the message id, 0 if the frame does not carry a persisted message
+   */
+  public int getMessageId() {
+    return messageId;
+  }
+
+  @Override
+  public String toString() {
+    return "OutboundFrame{" +
+            "messageId=" + messageId +
+            ", length=" + text.length() +
+            '}';
+  }
+}
@@ -0,0 +1,217 @@
+package com.neu.prattle.websocket;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.neu.prattle.configuration.SpringContext;
+import com.neu.prattle.utils.ExecutorFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * The Class PresenceTracker.
+ * <p>
+ * Tells connected users when the users they care about, the users they follow and their group
+ * peers, come online or go offline. Joins and leaves are not announced one by one: the users
+ * whose presence changed are collected and published periodically as one delta frame per
+ * subscriber, so a reconnect storm costs one frame per subscriber and interval instead of a
+ * broadcast per connection. A user that leaves and comes back within an interval is not
+ * announced at all.
+ * <p>
+ * Presence frames are JSON objects of the form
+ * {@code {"type":"presence","online":[ids],"offline":[ids]}}.
+ */
+public class PresenceTracker {
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private static Logger logger = LoggerFactory.getLogger(PresenceTracker.class);
+
+  private final SessionRegistry registry;
+
+  /**
+   * The users each connected user subscribed to, keyed by subscriber id.
+   */
+  private final ConcurrentMap<Integer, Set<Integer>> interests = new ConcurrentHashMap<>();
+
+  /**
+   * The connected users subscribed to each user, keyed by the watched user id.
+   */
+  private final ConcurrentMap<Integer, Set<Integer>> watchers = new ConcurrentHashMap<>();
+
+  /**
+   * The users whose presence may have changed since the last publication.
+   */
+  private final Set<Integer> changed = ConcurrentHashMap.newKeySet();
+
+  /**
+   * The users last published as online. Only touched by {@link #publish}.
+   */
+  private final Set<Integer> published = new HashSet<>();
+
+  /**
+   * Creates a tracker, presence is published by calling {@link #publish}.
+   *
+   * @param registry the registry of live sessions
+   */
+  public PresenceTracker(SessionRegistry registry) {
+    this.registry = registry;
+    Metrics.gauge("prattle.chat.online.users", registry, SessionRegistry::getUserCount);
+  }
+
+  /**
+   * Creates a tracker publishing presence every prattle.chat.presence.interval-ms milliseconds.
+   *
+   * @param registry the registry of live sessions
+   * @return the tracker
+   */
+  public static PresenceTracker create(SessionRegistry registry) {
+    PresenceTracker tracker = new PresenceTracker(registry);
+    long interval = SpringContext.getProperty("prattle.chat.presence.interval-ms", Long.class,
+            1000L);
+    ScheduledExecutorService scheduler = ExecutorFactory.newScheduler("presence");
+    scheduler.scheduleWithFixedDelay(tracker::publish, interval, interval, TimeUnit.MILLISECONDS);
+    return tracker;
+  }
+
+  /**
+   * Records a newly opened session and sends the current presence of the users the connected
+   * user cares about to the new session. Call after the endpoint is registered.
+   *
+   * @param endpoint      the endpoint of the new session
+   * @param userId        id of the connected user
+   * @param userInterests ids of the users the connected user cares about
+   */
+  public void connected(ChatEndpoint endpoint, int userId, Collection<Integer> userInterests) {
+    Set<Integer> subscribed = new HashSet<>(userInterests);
+    subscribed.remove(userId);
+    Set<Integer> previous = interests.put(userId, Collections.unmodifiableSet(subscribed));
+    if (previous != null) {
+      unwatch(userId, previous);
+    }
+    for (int watched : subscribed) {
+      watchers.computeIfAbsent(watched, id -> ConcurrentHashMap.newKeySet()).add(userId);
+    }
+    changed.add(userId);
+
+    List<Integer> online = new ArrayList<>();
+    for (int watched : subscribed) {
+      if (registry.isConnected(watched)) {
+        online.add(watched);
+      }
+    }
+    endpoint.offer(frame(online, Collections.emptyList()));
+  }
+
+  /**
+   * Records a closed session. Call after the endpoint is unregistered.
+   *
+   * @param userId id of the user whose session closed
+   */
+  public void disconnected(int userId) {
+    if (!registry.isConnected(userId)) {
+      Set<Integer> previous = interests.remove(userId);
+      if (previous != null) {
+        unwatch(userId, previous);
+      }
+    }
+    changed.add(userId);
+  }
+
+  private void unwatch(int subscriber, Set<Integer> watchedUsers) {
+    for (int watched : watchedUsers) {
+      watchers.computeIfPresent(watched, (id, subscribers) -> {
+        subscribers.remove(subscriber);
+        return subscribers.isEmpty() ? null : subscribers;
+      });
+    }
+  }
+
+  /**
+   * Publishes the presence changes since the last call, one frame per interested subscriber.
+   */
+  public synchronized void publish() {
+    if (changed.isEmpty()) {
+      return;
+    }
+    Map<Integer, List<Integer>> onlineBySubscriber = new HashMap<>();
+    Map<Integer, List<Integer>> offlineBySubscriber = new HashMap<>();
+    for (Integer userId : new ArrayList<>(changed)) {
+      changed.remove(userId);
+      boolean online = registry.isConnected(userId);
+      if (online == published.contains(userId)) {
+        continue;
+      }
+      if (online) {
+        published.add(userId);
+      } else {
+        published.remove(userId);
+      }
+      Map<Integer, List<Integer>> target = online ? onlineBySubscriber : offlineBySubscriber;
+      for (int subscriber : watchers.getOrDefault(userId, Collections.emptySet())) {
+        target.computeIfAbsent(subscriber, id -> new ArrayList<>()).add(userId);
+      }
+    }
+    Set<Integer> subscribers = new HashSet<>(onlineBySubscriber.keySet());
+    subscribers.addAll(offlineBySubscriber.keySet());
+    for (int subscriber : subscribers) {
+      OutboundFrame frame = frame(
+              onlineBySubscriber.getOrDefault(subscriber, Collections.emptyList()),
+              offlineBySubscriber.getOrDefault(subscriber, Collections.emptyList()));
+      for (ChatEndpoint endpoint : registry.getEndpoints(subscriber)) {
+        endpoint.offer(frame);
+      }
+    }
+  }
+
+  /**
+   * Checks if a user has at least one live session.
+   *
+   * @param userId id of the user
+   * @return true if online, else false
+   */
+  public boolean isOnline(int userId) {
+    return registry.isConnected(userId);
+  }
+
+  /**
+   * Returns the number of users with at least one live session.
+   *
+   * @return number of online users
+   */
+  public int getOnlineCount() {
+    return registry.getUserCount();
+  }
+
+  private static OutboundFrame frame(List<Integer> online, List<Integer> offline) {
+    ObjectNode node = mapper.createObjectNode();
+    node.put("type", "presence");
+    ArrayNode onlineNode = node.putArray("online");
+    online.forEach(onlineNode::add);
+    ArrayNode offlineNode = node.putArray("offline");
+    offline.forEach(offlineNode::add);
+    try {
+      return OutboundFrame.ofText(mapper.writeValueAsString(node));
+    } catch (JsonProcessingException e) {
+      logger.error(e.getMessage());
+      return OutboundFrame.ofText("{\"type\":\"presence\"}");
+    }
+  }
+}
@@ -0,0 +1,392 @@
+package com.neu.prattle.websocket;
+
+import com.neu.prattle.utils.ExecutorFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.websocket.CloseReason;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * The Class SessionOutbox.
+ * <p>
+ * A bounded queue of outbound frames for a single session. Frames are written through the
+ * asynchronous remote of the session one at a time, so a slow client only ever delays its own
+ * queue and never the thread that produced the frame. Once the queue grows past its high-water
+ * mark the configured {@link OverflowPolicy} decides what happens to the client. Frames are
+ * written as text or binary frames depending on the {@link WireFormat} of the session.
+ */
+public class SessionOutbox {
+
+  /**
+   * What to do when a frame is offered to a full queue.
+   */
+  public enum OverflowPolicy {
+    /**
+     * Discard the frame being offered.
+     */
+    DROP_NEWEST,
+    /**
+     * Discard the oldest queued frame to make room for the new one.
+     */
+    DROP_OLDEST,
+    /**
+     * Close the session, the client can reconnect and catch up from the stashed messages.
+     */
+    EVICT
+  }
+
+  private static final AtomicLong totalDepth =
+          Metrics.gauge("prattle.chat.outbox.depth", new AtomicLong());
+  private static final Counter droppedFrames = Metrics.counter("prattle.chat.outbox.dropped");
+  private static final Counter evictedSessions = Metrics.counter("prattle.chat.outbox.evicted");
+
+  /**
+   * Closes evicted sessions, away from the producer that overflowed the outbox, which is often
+   * fanning a frame out to many other sessions and must not wait on a slow close.
+   */
+  private static Executor closer = ExecutorFactory.newExecutor("outbox-evict", 2, true);
+
+  private final Session session;
+  private final int highWaterMark;
+  private final OverflowPolicy overflowPolicy;
+  private final WireFormat format;
+
+  private final Queue<OutboundFrame> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger depth = new AtomicInteger();
+  private final AtomicBoolean sending = new AtomicBoolean();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicReference<Runnable> drainedCallback = new AtomicReference<>();
+  private volatile Runnable failureHandler = () -> {
+  };
+  private volatile boolean closed;
+
+  /**
+   * The logger.
+   */
+  private Logger logger = LoggerFactory.getLogger(SessionOutbox.class);
+
+  /**
+   * Creates an outbox for a session.
+   *
+   * @param session        the session the frames are written to
+   * @param highWaterMark  the maximum number of frames waiting to be written
+   * @param overflowPolicy what to do once the high-water mark is reached
+   */
+  public SessionOutbox(Session session, int highWaterMark, OverflowPolicy overflowPolicy) {
+    this(session, highWaterMark, overflowPolicy, WireFormat.JSON);
+  }
+
+  /**
+   * Creates an outbox for a session using a given wire format.
+   *
+   * @param session        the session the frames are written to
+   * @param highWaterMark  the maximum number of frames waiting to be written
+   * @param overflowPolicy what to do once the high-water mark is reached
+   * @param format         the wire format negotiated for the session
+   */
+  public SessionOutbox(Session session, int highWaterMark, OverflowPolicy overflowPolicy,
+                       WireFormat format) {
+    if (highWaterMark < 1) {
+      throw new IllegalArgumentException("The high-water mark can not be less than 1");
+    }
+    this.session = session;
+    this.highWaterMark = highWaterMark;
+    this.overflowPolicy = overflowPolicy;
+    this.format = format;
+  }
+
+  /**
+   * Queues a frame to be written to the session. Never blocks.
+   *
+   * @param frame the encoded frame to send
+   * @return true if the frame was queued, false if it was dropped
+   */
+  public boolean offer(OutboundFrame frame) {
+    if (closed) {
+      return false;
+    }
+    if (format.isBinary()) {
+      // Encoding while the producer still holds the message, the frame caches the bytes
+      frame.getBinary();
+    }
+    if (depth.incrementAndGet() > highWaterMark) {
+      depth.decrementAndGet();
+      if (!handleOverflow()) {
+        return false;
+      }
+      depth.incrementAndGet();
+    }
+    totalDepth.incrementAndGet();
+    queue.add(frame);
+    scheduleSend();
+    return true;
+  }
+
+  /**
+   * Applies the overflow policy.
+   *
+   * @return true if the frame being offered should still be queued
+   */
+  private boolean handleOverflow() {
+    switch (overflowPolicy) {
+      case DROP_OLDEST:
+        if (queue.poll() != null) {
+          depth.decrementAndGet();
+          totalDepth.decrementAndGet();
+          recordDrop();
+        }
+        return true;
+      case EVICT:
+        evict();
+        return false;
+      default:
+        recordDrop();
+        return false;
+    }
+  }
+
+  private void recordDrop() {
+    dropped.incrementAndGet();
+    droppedFrames.increment();
+  }
+
+  /**
+   * Closes the session of a client that can not keep up and discards its queue. The queue is
+   * discarded right away, the session is closed on another thread.
+   */
+  private void evict() {
+    if (closed) {
+      return;
+    }
+    close();
+    evictedSessions.increment();
+    logger.warn("Evicting session {}, outbound queue exceeded {} frames", session.getId(),
+            highWaterMark);
+    closer.execute(() -> {
+      try {
+        session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER,
+                "Outbound queue overflow"));
+      } catch (IOException | RuntimeException e) {
+        logger.error(e.getMessage());
+      }
+    });
+  }
+
+  /**
+   * Replaces what closes evicted sessions.
+   *
+   * @param executor the executor running the closes
+   */
+  static void setCloser(Executor executor) {
+    closer = executor;
+  }
+
+  /**
+   * Stops accepting frames and discards the frames that were not written yet.
+   */
+  public void close() {
+    closed = true;
+    drainedCallback.set(null);
+    OutboundFrame frame;
+    while ((frame = queue.poll()) != null) {
+      depth.decrementAndGet();
+      totalDepth.decrementAndGet();
+      recordDrop();
+      logger.debug("Discarding unsent frame {}", frame);
+    }
+  }
+
+  /**
+   * Starts writing if no write is in flight for this session.
+   */
+  private void scheduleSend() {
+    if (sending.compareAndSet(false, true)) {
+      sendNext();
+    }
+  }
+
+  /**
+   * Writes queued frames one at a time. A write that completes on the calling thread continues
+   * the loop instead of recursing, so a long queue can not overflow the stack.
+   */
+  private void sendNext() {
+    while (true) {
+      OutboundFrame frame = queue.poll();
+      if (frame == null) {
+        sending.set(false);
+        if (queue.isEmpty()) {
+          runDrainedCallback();
+          return;
+        }
+        if (!sending.compareAndSet(false, true)) {
+          return;
+        }
+        continue;
+      }
+      depth.decrementAndGet();
+      totalDepth.decrementAndGet();
+      if (!write(frame)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Starts an asynchronous write.
+   *
+   * @param frame the frame to write
+   * @return true if the write already completed on this thread, false if it is still in flight
+   */
+  private boolean write(OutboundFrame frame) {
+    InFlight inFlight = new InFlight();
+    try {
+      if (format.isBinary()) {
+        session.getAsyncRemote().sendBinary(ByteBuffer.wrap(frame.getBinary()),
+                result -> onSent(result, inFlight));
+      } else {
+        session.getAsyncRemote().sendText(frame.getText(), result -> onSent(result, inFlight));
+      }
+    } catch (RuntimeException e) {
+      logger.error(e.getMessage());
+      failureHandler.run();
+      return true;
+    }
+    return inFlight.returned();
+  }
+
+  private void onSent(SendResult result, InFlight inFlight) {
+    if (!result.isOK()) {
+      logger.error("Unable to write to session {}: {}", session.getId(),
+              result.getException() == null ? "unknown error" : result.getException().getMessage());
+      failureHandler.run();
+    }
+    if (inFlight.completed()) {
+      sendNext();
+    }
+  }
+
+  /**
+   * Sets what to do when a frame can not be written, such as evicting the session. The handler
+   * runs on the thread that found the failure and must not block.
+   *
+   * @param handler the handler
+   */
+  public void onFailure(Runnable handler) {
+    this.failureHandler = handler;
+  }
+
+  /**
+   * Runs a callback once every queued frame has been written, right away if nothing is queued.
+   * Lets a producer of many frames, such as the delivery of stashed messages, queue the next
+   * batch only after the client took the previous one. Only one callback is pending at a time, a
+   * new one replaces the previous one; it is discarded when the outbox closes.
+   *
+   * @param callback the callback, run on the thread that completed the last write
+   */
+  public void whenDrained(Runnable callback) {
+    if (closed) {
+      return;
+    }
+    drainedCallback.set(callback);
+    if (queue.isEmpty() && !sending.get()) {
+      runDrainedCallback();
+    }
+  }
+
+  private void runDrainedCallback() {
+    Runnable callback = drainedCallback.getAndSet(null);
+    if (callback != null) {
+      callback.run();
+    }
+  }
+
+  /**
+   * Returns the wire format of the session.
+   *
+   * @return the wire format
+   */
+  public WireFormat getFormat() {
+    return format;
+  }
+
+  /**
+   * Returns the number of frames waiting to be written.
+   *
+   * @return queue depth
+   */
+  public int getDepth() {
+    return depth.get();
+  }
+
+  /**
+   * Returns the number of frames this outbox dropped.
+   *
+   * @return number of dropped frames
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * Returns whether the outbox stopped accepting frames.
+   *
+   * @return true if closed, else false
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Returns the number of frames waiting to be written across all sessions.
+   *
+   * @return total queue depth
+   */
+  public static long getTotalDepth() {
+    return totalDepth.get();
+  }
+
+  /**
+   * Tracks whether a write completed before or after the call that started it returned.
+   */
+  private static final class InFlight {
+    private boolean hasReturned;
+    private boolean hasCompleted;
+
+    /**
+     * Marks the starting call as returned.
+     *
+     * @return true if the write has already completed
+     */
+    synchronized boolean returned() {
+      hasReturned = true;
+      return hasCompleted;
+    }
+
+    /**
+     * Marks the write as completed.
+     *
+     * @return true if the starting call has already returned, so the completion must continue
+     *     the loop itself
+     */
+    synchronized boolean completed() {
+      hasCompleted = true;
+      return hasReturned;
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package com.neu.prattle.websocket;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The Class SessionRegistry.
+ * <p>
+ * Keeps track of the live chat endpoints, indexed by the id and the name of the connected user so
+ * that a recipient can be resolved in constant time instead of scanning every open session. A
+ * user may be connected from several devices at once, each device has its own endpoint and all
+ * of them are returned for the user. Registration and removal are safe to call concurrently from
+ * {@code onOpen} and {@code onClose}.
+ */
+public class SessionRegistry {
+
+  /**
+   * Every endpoint that is currently open, used for broadcasts.
+   */
+  private final Set<ChatEndpoint> endpoints = ConcurrentHashMap.newKeySet();
+
+  /**
+   * The endpoints of each connected user, one per device, keyed by user id.
+   */
+  private final ConcurrentMap<Integer, Set<ChatEndpoint>> endpointsByUserId =
+          new ConcurrentHashMap<>();
+
+  /**
+   * The id of each connected user, keyed by username.
+   */
+  private final ConcurrentMap<String, Integer> userIdsByName = new ConcurrentHashMap<>();
+
+  /**
+   * Registers the endpoint of a newly connected device of a user.
+   *
+   * @param userId   id of the connected user
+   * @param username name of the connected user
+   * @param endpoint the endpoint serving the connection
+   */
+  public void register(int userId, String username, ChatEndpoint endpoint) {
+    endpoints.add(endpoint);
+    endpointsByUserId.compute(userId, (id, devices) -> {
+      Set<ChatEndpoint> result = devices == null ? ConcurrentHashMap.newKeySet() : devices;
+      result.add(endpoint);
+      userIdsByName.put(username, userId);
+      return result;
+    });
+  }
+
+  /**
+   * Removes the endpoint of one device of a user. The user is forgotten once their last device
+   * disconnects.
+   *
+   * @param userId   id of the user
+   * @param username name of the user
+   * @param endpoint the endpoint being closed
+   * @return true if the endpoint was registered, else false
+   */
+  public boolean unregister(int userId, String username, ChatEndpoint endpoint) {
+    boolean removed = endpoints.remove(endpoint);
+    endpointsByUserId.computeIfPresent(userId, (id, devices) -> {
+      devices.remove(endpoint);
+      if (devices.isEmpty()) {
+        userIdsByName.remove(username, userId);
+        return null;
+      }
+      return devices;
+    });
+    return removed;
+  }
+
+  /**
+   * Returns the endpoints of every device of a connected user.
+   *
+   * @param userId id of the user
+   * @return read only view of the endpoints, empty if the user is not connected
+   */
+  public Collection<ChatEndpoint> getEndpoints(int userId) {
+    Set<ChatEndpoint> devices = endpointsByUserId.get(userId);
+    return devices == null ? Collections.emptySet() : Collections.unmodifiableSet(devices);
+  }
+
+  /**
+   * Returns the endpoints of every device of a connected user.
+   *
+   * @param username name of the user
+   * @return read only view of the endpoints, empty if the user is not connected
+   */
+  public Collection<ChatEndpoint> getEndpoints(String username) {
+    Integer userId = userIdsByName.get(username);
+    return userId == null ? Collections.emptySet() : getEndpoints(userId);
+  }
+
+  /**
+   * Checks if a user has at least one live session.
+   *
+   * @param userId id of the user
+   * @return true if connected, else false
+   */
+  public boolean isConnected(int userId) {
+    return endpointsByUserId.containsKey(userId);
+  }
+
+  /**
+   * Returns the number of users with at least one live session.
+   *
+   * @return number of connected users
+   */
+  public int getUserCount() {
+    return endpointsByUserId.size();
+  }
+
+  /**
+   * Returns the users with at least one live session.
+   *
+   * @return read only view of the ids of the connected users
+   */
+  public Set<Integer> getUserIds() {
+    return Collections.unmodifiableSet(endpointsByUserId.keySet());
+  }
+
+  /**
+   * Returns a read only view of all open endpoints.
+   *
+   * @return open endpoints
+   */
+  public Collection<ChatEndpoint> getEndpoints() {
+    return Collections.unmodifiableSet(endpoints);
+  }
+
+  /**
+   * Returns the number of open endpoints.
+   *
+   * @return number of open endpoints
+   */
+  public int size() {
+    return endpoints.size();
+  }
+}
@@ -0,0 +1,102 @@
+package com.neu.prattle.websocket;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.neu.prattle.dto.SyncPage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * The Class SyncRequest.
+ * <p>
+ * A client catching up over its session asks for the changes since its cursor with the text
+ * frame {@code {"type":"sync","since":...,"limit":...}} and is answered with the page as
+ * {@code {"type":"sync","events":[...],"nextCursor":...,"hasMore":...}}, the same page the REST
+ * sync endpoint returns.
+ */
+public final class SyncRequest {
+  private static Logger logger = LoggerFactory.getLogger(SyncRequest.class);
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  static final String SYNC = "sync";
+
+  /**
+   * The longest text frame checked for a request.
+   */
+  private static final int MAX_REQUEST_SIZE = 256;
+
+  /**
+   * The size of a page when the request gives none.
+   */
+  static final int DEFAULT_LIMIT = 100;
+
+  /**
+   * The most changes in a page.
+   */
+  static final int MAX_LIMIT = 500;
+
+  private final long since;
+  private final int limit;
+
+  SyncRequest(long since, int limit) {
+    this.since = since;
+    this.limit = limit;
+  }
+
+  /**
+   * Reads an inbound text frame as a sync request.
+   *
+   * @param text the text frame
+   * @return the request, null if the frame is not a sync request
+   */
+  public static SyncRequest parse(String text) {
+    if (text.length() > MAX_REQUEST_SIZE || !text.contains("\"" + SYNC + "\"")) {
+      return null;
+    }
+    JsonNode node;
+    try {
+      node = mapper.readTree(text);
+    } catch (IOException e) {
+      return null;
+    }
+    if (!SYNC.equals(node.path("type").asText())) {
+      return null;
+    }
+    return new SyncRequest(Math.max(0, node.path("since").asLong()),
+            Math.max(1, Math.min(node.path("limit").asInt(DEFAULT_LIMIT), MAX_LIMIT)));
+  }
+
+  /**
+   * Encodes the answer to the request. A page that cannot be encoded is answered with an empty
+   * page at the cursor of the request, so the client asks again rather than skip changes.
+   *
+   * @param page the page of changes
+   * @return the frame
+   */
+  public OutboundFrame answer(SyncPage page) {
+    ObjectNode node = mapper.createObjectNode();
+    node.put("type", SYNC);
+    try {
+      node.setAll((ObjectNode) mapper.valueToTree(page));
+    } catch (IllegalArgumentException e) {
+      logger.error("Unable to encode a sync page: {}", e.getMessage());
+      node.putArray("events");
+      node.put("nextCursor", since);
+      node.put("hasMore", true);
+    }
+    return OutboundFrame.ofText(node.toString());
+  }
+
+  public long getSince() {
+    return since;
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+}
@@ -0,0 +1,114 @@
+package com.neu.prattle.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * The Class UploadChunk.
+ * <p>
+ * The header of a binary frame carrying a chunk of an attachment upload, see {@link
+ * AttachmentUploads}. A chunk frame is laid out as:
+ * <pre>
+ *   magic    4 bytes  "PRUP"
+ *   upload  16 bytes  id of the upload, a UUID chosen by the client
+ *   offset   8 bytes  position of the payload in the attachment
+ *   flags    1 byte   bit 0 set on the last chunk of the upload
+ *   crc32    4 bytes  CRC-32 of the payload
+ *   payload  the rest of the frame
+ * </pre>
+ * All numbers are big endian. The magic can not start a CBOR message, which is a map, so chunk
+ * frames and binary messages share the connection.
+ */
+public final class UploadChunk {
+
+  /**
+   * The first four bytes of a chunk frame.
+   */
+  static final int MAGIC = ('P' << 24) | ('R' << 16) | ('U' << 8) | 'P';
+
+  /**
+   * The length of the header, the payload follows it.
+   */
+  public static final int HEADER_SIZE = 33;
+
+  private static final int LAST = 1;
+
+  private final UUID uploadId;
+  private final long offset;
+  private final boolean last;
+  private final int checksum;
+
+  private UploadChunk(UUID uploadId, long offset, boolean last, int checksum) {
+    this.uploadId = uploadId;
+    this.offset = offset;
+    this.last = last;
+    this.checksum = checksum;
+  }
+
+  /**
+   * Checks if a binary frame is a chunk frame, without reading from it.
+   *
+   * @param frame the first part of the frame
+   * @return true if the frame starts with the magic, else false
+   */
+  static boolean isChunk(ByteBuffer frame) {
+    return frame.remaining() >= 4 && frame.getInt(frame.position()) == MAGIC;
+  }
+
+  /**
+   * Reads the header of a chunk frame, leaving the buffer at the payload.
+   *
+   * @param frame the first part of the frame, starting with the magic
+   * @return the header, null if the part is too short to hold one
+   */
+  static UploadChunk read(ByteBuffer frame) {
+    if (frame.remaining() < HEADER_SIZE || frame.getInt() != MAGIC) {
+      return null;
+    }
+    UUID uploadId = new UUID(frame.getLong(), frame.getLong());
+    long offset = frame.getLong();
+    boolean last = (frame.get() & LAST) != 0;
+    return new UploadChunk(uploadId, offset, last, frame.getInt());
+  }
+
+  /**
+   * Builds a chunk frame, as a client does.
+   *
+   * @param uploadId id of the upload
+   * @param offset   position of the payload in the attachment
+   * @param last     whether this is the last chunk
+   * @param payload  the payload, read up to its limit
+   * @return the frame, ready to be sent
+   */
+  public static ByteBuffer encode(UUID uploadId, long offset, boolean last, ByteBuffer payload) {
+    CRC32 crc = new CRC32();
+    crc.update(payload.duplicate());
+    ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.remaining());
+    frame.putInt(MAGIC)
+            .putLong(uploadId.getMostSignificantBits())
+            .putLong(uploadId.getLeastSignificantBits())
+            .putLong(offset)
+            .put((byte) (last ? LAST : 0))
+            .putInt((int) crc.getValue())
+            .put(payload.duplicate());
+    frame.flip();
+    return frame;
+  }
+
+  public UUID getUploadId() {
+    return uploadId;
+  }
+
+  public long getOffset() {
+    return offset;
+  }
+
+  public boolean isLast() {
+    return last;
+  }
+
+  public int getChecksum() {
+    return checksum;
+  }
+}
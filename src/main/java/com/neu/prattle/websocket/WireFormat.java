@@ -0,0 +1,255 @@
+package com.neu.prattle.websocket;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.neu.prattle.model.MessageAttachment;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * The wire formats a chat connection can use, selected per connection through WebSocket
+ * subprotocol negotiation. A client asks for {@code prattle.cbor} to exchange binary CBOR frames;
+ * a client that asks for no subprotocol, or for {@code prattle.json}, exchanges JSON text frames.
+ * <p>
+ * Both formats carry the same fields. CBOR additionally carries the payload of base64 data URL
+ * attachments as a raw byte string next to the data URL prefix, which saves the third base64
+ * adds to the size of a frame.
+ * <p>
+ * When a reader is given an {@link AttachmentSpill}, large attachment values are written to the
+ * attachment store as they are read: JSON strings through the parser's text buffer, CBOR byte
+ * strings straight from the input.
+ */
+public enum WireFormat {
+
+  /**
+   * JSON text frames, the default.
+   */
+  JSON(WireFormat.JSON_SUBPROTOCOL, new ObjectMapper()
+          .addMixIn(MessageAttachment.class, TextAttachmentMixIn.class)),
+
+  /**
+   * CBOR binary frames.
+   */
+  CBOR(WireFormat.CBOR_SUBPROTOCOL, new ObjectMapper(new CBORFactory())
+          .addMixIn(MessageAttachment.class, BinaryAttachmentMixIn.class));
+
+  /**
+   * The subprotocol selecting JSON.
+   */
+  public static final String JSON_SUBPROTOCOL = "prattle.json";
+
+  /**
+   * The subprotocol selecting CBOR.
+   */
+  public static final String CBOR_SUBPROTOCOL = "prattle.cbor";
+
+  private final String subprotocol;
+  private final ObjectMapper mapper;
+
+  WireFormat(String subprotocol, ObjectMapper mapper) {
+    this.subprotocol = subprotocol;
+    this.mapper = mapper;
+  }
+
+  /**
+   * Returns the name of the subprotocol selecting this format.
+   *
+   * @return the subprotocol name
+   */
+  public String getSubprotocol() {
+    return subprotocol;
+  }
+
+  /**
+   * Returns the mapper reading and writing this format. Mappers are thread safe.
+   *
+   * @return the mapper
+   */
+  public ObjectMapper getMapper() {
+    return mapper;
+  }
+
+  /**
+   * Returns whether frames of this format are binary frames.
+   *
+   * @return true for binary frames, false for text frames
+   */
+  public boolean isBinary() {
+    return this == CBOR;
+  }
+
+  /**
+   * Returns the format selected by a negotiated subprotocol.
+   *
+   * @param subprotocol the negotiated subprotocol, null or empty if none was negotiated
+   * @return the format, JSON unless the subprotocol selects another one
+   */
+  public static WireFormat fromSubprotocol(String subprotocol) {
+    for (WireFormat format : values()) {
+      if (format.subprotocol.equals(subprotocol)) {
+        return format;
+      }
+    }
+    return JSON;
+  }
+
+  /**
+   * Lets the web URL of attachments spill to the attachment store.
+   */
+  abstract static class TextAttachmentMixIn {
+    @JsonDeserialize(using = SpillingStringDeserializer.class)
+    private String webUrl;
+  }
+
+  /**
+   * Applies the data URL codec to the web URL of attachments.
+   */
+  abstract static class BinaryAttachmentMixIn {
+    @JsonSerialize(using = DataUrlSerializer.class)
+    @JsonDeserialize(using = DataUrlDeserializer.class)
+    private String webUrl;
+  }
+
+  /**
+   * Writes a base64 data URL as a two element array of its prefix and its decoded bytes, any
+   * other value as a plain string.
+   */
+  static class DataUrlSerializer extends JsonSerializer<String> {
+    private static final String BASE64_MARKER = ";base64,";
+
+    @Override
+    public void serialize(String value, JsonGenerator generator, SerializerProvider provider)
+            throws IOException {
+      int marker = value.startsWith("data:") ? value.indexOf(BASE64_MARKER) : -1;
+      byte[] data = marker < 0 ? null : decode(value.substring(marker + BASE64_MARKER.length()));
+      if (data == null) {
+        generator.writeString(value);
+        return;
+      }
+      generator.writeStartArray();
+      generator.writeString(value.substring(0, marker + BASE64_MARKER.length()));
+      generator.writeBinary(data);
+      generator.writeEndArray();
+    }
+
+    /**
+     * Decodes a payload that encodes back to the exact same text, so the receiving side can
+     * restore the original string. The decoder only accepts the base64 alphabet; what it accepts
+     * but does not produce, missing padding or unused bits set, can only occur in the last
+     * quantum, so only that quantum is encoded again and compared.
+     */
+    private static byte[] decode(String payload) {
+      byte[] data;
+      try {
+        data = Base64.getDecoder().decode(payload);
+      } catch (IllegalArgumentException e) {
+        return null;
+      }
+      int tail = data.length % 3 == 0 ? Math.min(3, data.length) : data.length % 3;
+      String lastQuantum = Base64.getEncoder().encodeToString(
+              Arrays.copyOfRange(data, data.length - tail, data.length));
+      return payload.endsWith(lastQuantum) ? data : null;
+    }
+  }
+
+  /**
+   * Reads a string, written to the attachment store if the reader has a spill and the string is
+   * large.
+   */
+  static class SpillingStringDeserializer extends JsonDeserializer<String> {
+    @Override
+    public String deserialize(JsonParser parser, DeserializationContext context)
+            throws IOException {
+      AttachmentSpill spill = AttachmentSpill.from(context);
+      if (spill == null || parser.getCurrentToken() != JsonToken.VALUE_STRING) {
+        return parser.getValueAsString();
+      }
+      AttachmentSpill.ValueWriter value = spill.newValue();
+      parser.getText(value);
+      return value.finish();
+    }
+  }
+
+  /**
+   * Reads what {@link DataUrlSerializer} wrote back into the original string. With a spill the
+   * bytes are encoded to base64 as they are read and a large result is written to the attachment
+   * store.
+   */
+  static class DataUrlDeserializer extends JsonDeserializer<String> {
+    @Override
+    public String deserialize(JsonParser parser, DeserializationContext context)
+            throws IOException {
+      if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+        return parser.getValueAsString();
+      }
+      parser.nextToken();
+      String prefix = parser.getText();
+      parser.nextToken();
+      AttachmentSpill spill = AttachmentSpill.from(context);
+      String result;
+      if (spill == null) {
+        result = prefix + Base64.getEncoder().encodeToString(parser.getBinaryValue());
+      } else {
+        AttachmentSpill.ValueWriter value = spill.newValue();
+        value.write(prefix);
+        try (OutputStream base64 = Base64.getEncoder().wrap(new AsciiOutputStream(value))) {
+          parser.readBinaryValue(base64);
+        }
+        result = value.finish();
+      }
+      if (parser.nextToken() != JsonToken.END_ARRAY) {
+        return (String) context.handleUnexpectedToken(String.class, parser);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Passes bytes of ASCII text, such as base64 output, on to a writer. Closing it leaves the
+   * writer open.
+   */
+  private static final class AsciiOutputStream extends OutputStream {
+    private final Writer writer;
+    private final char[] chars = new char[4096];
+
+    AsciiOutputStream(Writer writer) {
+      this.writer = writer;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      writer.write(b & 0xff);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      while (length > 0) {
+        int count = Math.min(length, chars.length);
+        for (int i = 0; i < count; i++) {
+          chars[i] = (char) (bytes[offset + i] & 0xff);
+        }
+        writer.write(chars, 0, count);
+        offset += count;
+        length -= count;
+      }
+    }
+
+    @Override
+    public void close() {
+      // the writer is finished by its owner
+    }
+  }
+}
@@ -0,0 +1,203 @@
+package com.neu.prattle.websocket.cluster;
+
+import com.neu.prattle.configuration.SpringContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * The Class AbstractMessageBus.
+ * <p>
+ * The user ownership shared by the buses: the ring of the nodes, the delivery state of the owned
+ * users, and the routing of queued messages and handoffs to owners. A bus only has to carry
+ * those to the other nodes and to keep the members of the ring up to date.
+ */
+abstract class AbstractMessageBus implements MessageBus {
+
+  private static Logger logger = LoggerFactory.getLogger(AbstractMessageBus.class);
+
+  protected final String nodeId;
+  protected final SessionDirectory directory = new SessionDirectory();
+  private final ConsistentHashRing ring = new ConsistentHashRing(
+          SpringContext.getProperty("prattle.cluster.virtual-nodes", Integer.class, 128));
+  private final DeliveryStateTable states = new DeliveryStateTable(
+          SpringContext.getProperty("prattle.cluster.pending-capacity", Integer.class, 200),
+          SpringContext.getProperty("prattle.cluster.pending-total-capacity", Integer.class,
+                  1000000),
+          SpringContext.getProperty("prattle.cluster.pending-max-age-ms", Long.class, 3600000L),
+          System::currentTimeMillis);
+
+  /**
+   * Creates a bus.
+   *
+   * @param nodeId id of this node
+   */
+  protected AbstractMessageBus(String nodeId) {
+    this.nodeId = nodeId;
+    directory.setListener((userId, connected) -> {
+      if (!connected && isOwner(userId)) {
+        states.userLeft(userId);
+      }
+    });
+  }
+
+  /**
+   * Queues a message on the node that owns a user who is away.
+   *
+   * @param owner     id of the owning node, another node
+   * @param userId    id of the user
+   * @param messageId id of the message
+   */
+  protected abstract void sendPending(String owner, int userId, int messageId);
+
+  /**
+   * Hands the state of some users off to their new owner.
+   *
+   * @param owner   id of the new owner, another node
+   * @param handoff the states
+   */
+  protected abstract void sendHandoff(String owner, List<DeliveryStateTable.State> handoff);
+
+  /**
+   * Asks the node that owns a user for the messages queued while the user was away.
+   *
+   * @param owner  id of the owning node, another node
+   * @param userId id of the user
+   * @param reply  takes the message ids, or null
+   */
+  protected abstract void requestStash(String owner, int userId, Consumer<List<Integer>> reply);
+
+  /**
+   * Queues the message of a delivery for the recipients who are away, on their owners.
+   *
+   * @param delivery the published delivery
+   */
+  protected void routePending(Delivery delivery) {
+    if (delivery.isBroadcast() || delivery.getFrame().getMessageId() < 1) {
+      return;
+    }
+    for (int userId : delivery.getRecipients()) {
+      if (!directory.isConnected(userId)) {
+        receivePending(userId, delivery.getFrame().getMessageId());
+      }
+    }
+  }
+
+  /**
+   * Queues a message for a user who is away, passing it on if this node is no longer the owner,
+   * as happens while the nodes catch up with a change of members.
+   *
+   * @param userId    id of the user
+   * @param messageId id of the message
+   */
+  protected void receivePending(int userId, int messageId) {
+    String owner = ring.ownerOf(userId);
+    if (owner == null || owner.equals(nodeId)) {
+      states.append(userId, messageId);
+    } else {
+      sendPending(owner, userId, messageId);
+    }
+  }
+
+  /**
+   * Takes over the states handed off by another node.
+   *
+   * @param handoff the states
+   */
+  protected void receiveHandoff(Collection<DeliveryStateTable.State> handoff) {
+    states.putAll(handoff);
+  }
+
+  /**
+   * Answers the request of another node for the messages queued for a user.
+   *
+   * @param userId id of the user
+   * @return the message ids, or null if this node does not know them
+   */
+  protected List<Integer> receiveStashRequest(int userId) {
+    return isOwner(userId) ? states.take(userId) : null;
+  }
+
+  @Override
+  public void takeStash(int userId, Consumer<List<Integer>> reply) {
+    String owner = ring.ownerOf(userId);
+    if (owner == null || owner.equals(nodeId)) {
+      reply.accept(states.take(userId));
+    } else {
+      requestStash(owner, userId, reply);
+    }
+  }
+
+  /**
+   * Sets the nodes of the cluster, handing off the users this node no longer owns.
+   *
+   * @param members ids of the nodes, including this node
+   */
+  protected void membersChanged(Collection<String> members) {
+    synchronized (ring) {
+      if (ring.setMembers(members)) {
+        handOff(ring);
+      }
+    }
+  }
+
+  /**
+   * Hands off every user this node owns to the remaining nodes, before leaving the cluster.
+   */
+  protected void handOffAll() {
+    synchronized (ring) {
+      handOff(ring.without(nodeId));
+    }
+  }
+
+  private void handOff(ConsistentHashRing next) {
+    Map<String, List<DeliveryStateTable.State>> byOwner = new HashMap<>();
+    for (DeliveryStateTable.State state : states.removeIf(
+            userId -> !nodeId.equals(next.ownerOf(userId)))) {
+      String owner = next.ownerOf(state.userId);
+      if (owner != null) {
+        byOwner.computeIfAbsent(owner, id -> new ArrayList<>()).add(state);
+      }
+    }
+    byOwner.forEach((owner, handoff) -> {
+      logger.info("Handing off {} users from node {} to node {}", handoff.size(), nodeId, owner);
+      sendHandoff(owner, handoff);
+    });
+  }
+
+  private boolean isOwner(int userId) {
+    String owner = ring.ownerOf(userId);
+    return owner == null || owner.equals(nodeId);
+  }
+
+  /**
+   * Returns the number of users whose delivery state this node holds.
+   *
+   * @return number of users
+   */
+  int getOwnedStateCount() {
+    return states.size();
+  }
+
+  @Override
+  public ConsistentHashRing getRing() {
+    return ring;
+  }
+
+  @Override
+  public SessionDirectory getDirectory() {
+    return directory;
+  }
+
+  @Override
+  public String getNodeId() {
+    return nodeId;
+  }
+}
@@ -0,0 +1,136 @@
+package com.neu.prattle.websocket.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The Class ConsistentHashRing.
+ * <p>
+ * Chooses the node that owns each user. Every node is placed on a 64 bit ring at a number of
+ * points, its virtual nodes, and a user is owned by the node of the first point at or after the
+ * hash of the user id. When a node joins or leaves only the users between its points and the
+ * points before them change owner, about one user in every {@code n} for a cluster of {@code n}
+ * nodes, and the virtual nodes spread those users over all the other nodes.
+ * <p>
+ * Lookups read an immutable snapshot of the ring and do not lock.
+ */
+public class ConsistentHashRing {
+
+  private final int virtualNodes;
+  private volatile NavigableMap<Long, String> points = Collections.emptyNavigableMap();
+  private volatile Set<String> members = Collections.emptySet();
+
+  /**
+   * Creates an empty ring.
+   *
+   * @param virtualNodes number of points placed on the ring for each node
+   */
+  public ConsistentHashRing(int virtualNodes) {
+    if (virtualNodes < 1) {
+      throw new IllegalArgumentException("A node needs at least one virtual node");
+    }
+    this.virtualNodes = virtualNodes;
+  }
+
+  /**
+   * Creates a ring of some nodes.
+   *
+   * @param virtualNodes number of points placed on the ring for each node
+   * @param nodeIds      ids of the nodes
+   */
+  public ConsistentHashRing(int virtualNodes, Collection<String> nodeIds) {
+    this(virtualNodes);
+    setMembers(nodeIds);
+  }
+
+  /**
+   * Replaces the nodes on the ring.
+   *
+   * @param nodeIds ids of the nodes
+   * @return true if the nodes changed, else false
+   */
+  public synchronized boolean setMembers(Collection<String> nodeIds) {
+    Set<String> next = Collections.unmodifiableSet(new TreeSet<>(nodeIds));
+    if (next.equals(members)) {
+      return false;
+    }
+    NavigableMap<Long, String> ring = new TreeMap<>();
+    for (String nodeId : next) {
+      for (int i = 0; i < virtualNodes; i++) {
+        // on the rare collision the smaller id wins, so every node agrees on the owner
+        ring.merge(hash(nodeId + "#" + i), nodeId, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+      }
+    }
+    points = Collections.unmodifiableNavigableMap(ring);
+    members = next;
+    return true;
+  }
+
+  /**
+   * Returns the ring without one of its nodes, as the other nodes will see it once the node left.
+   *
+   * @param nodeId id of the node
+   * @return a new ring
+   */
+  public ConsistentHashRing without(String nodeId) {
+    Set<String> others = new TreeSet<>(members);
+    others.remove(nodeId);
+    return new ConsistentHashRing(virtualNodes, others);
+  }
+
+  /**
+   * Returns the node that owns a user.
+   *
+   * @param userId id of the user
+   * @return id of the owning node, null if the ring is empty
+   */
+  public String ownerOf(int userId) {
+    NavigableMap<Long, String> ring = points;
+    if (ring.isEmpty()) {
+      return null;
+    }
+    Map.Entry<Long, String> point = ring.ceilingEntry(mix(userId + 0x9E3779B97F4A7C15L));
+    return point != null ? point.getValue() : ring.firstEntry().getValue();
+  }
+
+  /**
+   * Returns the nodes on the ring.
+   *
+   * @return ids of the nodes
+   */
+  public Set<String> getMembers() {
+    return members;
+  }
+
+  /**
+   * Hashes a string with 64 bit FNV-1a, then mixes the result so that similar strings land far
+   * apart on the ring.
+   */
+  private static long hash(String key) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    return mix(hash);
+  }
+
+  /**
+   * The finalizer of MurmurHash3.
+   */
+  private static long mix(long value) {
+    long h = value;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,92 @@
+package com.neu.prattle.websocket.cluster;
+
+import com.neu.prattle.websocket.OutboundFrame;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The Class Delivery.
+ * <p>
+ * An encoded frame on its way to the sessions of a set of users, or of every user, wherever in
+ * the cluster they are connected. Each node hands the frame to the sessions it hosts.
+ * <p>
+ * A delivery may carry the content of the message it was encoded from; recipients whose filters
+ * match the content are then skipped. Deliveries without content reach every recipient.
+ */
+public final class Delivery {
+
+  private final OutboundFrame frame;
+  private final Set<Integer> recipients;
+  private final boolean broadcast;
+  private final String content;
+
+  private Delivery(OutboundFrame frame, Set<Integer> recipients, boolean broadcast,
+                   String content) {
+    this.frame = frame;
+    this.recipients = recipients;
+    this.broadcast = broadcast;
+    this.content = content;
+  }
+
+  /**
+   * Creates a delivery to the sessions of some users.
+   *
+   * @param frame      the frame to deliver
+   * @param recipients ids of the users to deliver to
+   * @param content    the content to check the filters of the recipients against, null to
+   *                   deliver to every recipient
+   * @return the delivery
+   */
+  public static Delivery toUsers(OutboundFrame frame, Collection<Integer> recipients,
+                                 String content) {
+    return new Delivery(frame, Collections.unmodifiableSet(new LinkedHashSet<>(recipients)),
+            false, content);
+  }
+
+  /**
+   * Creates a delivery to every session of the cluster.
+   *
+   * @param frame the frame to deliver
+   * @return the delivery
+   */
+  public static Delivery toEveryone(OutboundFrame frame) {
+    return new Delivery(frame, Collections.emptySet(), true, null);
+  }
+
+  public OutboundFrame getFrame() {
+    return frame;
+  }
+
+  /**
+   * Returns the users to deliver to.
+   *
+   * @return ids of the recipients, empty for a broadcast
+   */
+  public Set<Integer> getRecipients() {
+    return recipients;
+  }
+
+  public boolean isBroadcast() {
+    return broadcast;
+  }
+
+  /**
+   * Returns the content the filters of the recipients are checked against.
+   *
+   * @return the content, null if the recipients are not filtered
+   */
+  public String getContent() {
+    return content;
+  }
+
+  @Override
+  public String toString() {
+    return "Delivery{" +
+            "frame=" + frame +
+            ", recipients=" + (broadcast ? "everyone" : recipients.toString()) +
+            '}';
+  }
+}
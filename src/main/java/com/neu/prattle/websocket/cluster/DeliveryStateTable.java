@@ -0,0 +1,258 @@
+package com.neu.prattle.websocket.cluster;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * The Class DeliveryStateTable.
+ * <p>
+ * The delivery state of the users a node owns. When an owned user leaves the cluster, the owner
+ * starts queuing the ids of the messages published to the user; when the user comes back, the
+ * node the user reconnects to reads those messages by id instead of searching the stashed
+ * messages in the database, and checks them against the filters of the user and their expiry as
+ * it reads them. A queue is only served while it is known to hold every message since the user
+ * left: a queue that overflows, or that was started without seeing the user leave, is served as
+ * unknown and the node falls back to the database.
+ * <p>
+ * The table is bounded. The state of a user who left longer than the maximum age ago is dropped,
+ * and when more messages are queued across all users than the total capacity, the queues of the
+ * users who left first are given up; either way the user is served from the database.
+ */
+class DeliveryStateTable {
+
+  private final int capacity;
+  private final int totalCapacity;
+  private final long maxAgeMillis;
+  private final LongSupplier clock;
+
+  /**
+   * The states, oldest first.
+   */
+  private final Map<Integer, State> states = new LinkedHashMap<>();
+
+  /**
+   * The number of messages queued across all states.
+   */
+  private int queued;
+
+  /**
+   * Creates a table without a total capacity or maximum age.
+   *
+   * @param capacity most messages queued for one user before the queue is given up
+   */
+  DeliveryStateTable(int capacity) {
+    this(capacity, Integer.MAX_VALUE, Long.MAX_VALUE, System::currentTimeMillis);
+  }
+
+  /**
+   * Creates a table.
+   *
+   * @param capacity      most messages queued for one user before the queue is given up
+   * @param totalCapacity most messages queued across all users before the oldest queues are
+   *                      given up
+   * @param maxAgeMillis  how long after a user left their state is kept
+   * @param clock         the current time in milliseconds
+   */
+  DeliveryStateTable(int capacity, int totalCapacity, long maxAgeMillis, LongSupplier clock) {
+    this.capacity = capacity;
+    this.totalCapacity = totalCapacity;
+    this.maxAgeMillis = maxAgeMillis;
+    this.clock = clock;
+  }
+
+  /**
+   * Starts queuing for a user who just left the cluster.
+   *
+   * @param userId id of the user
+   */
+  synchronized void userLeft(int userId) {
+    expire();
+    remove(userId);
+    states.put(userId, new State(userId, true, new int[0], clock.getAsLong()));
+  }
+
+  /**
+   * Queues a message published to a user who is away.
+   *
+   * @param userId    id of the user
+   * @param messageId id of the message
+   */
+  synchronized void append(int userId, int messageId) {
+    expire();
+    State state = states.computeIfAbsent(userId,
+            id -> new State(id, false, new int[0], clock.getAsLong()));
+    if (!state.complete) {
+      return;
+    }
+    if (state.size < capacity) {
+      state.add(messageId);
+      queued++;
+      trim();
+    } else {
+      giveUp(state);
+    }
+  }
+
+  /**
+   * Takes the messages queued for a user who is back.
+   *
+   * @param userId id of the user
+   * @return the message ids, oldest first, or null if the queue is unknown
+   */
+  synchronized List<Integer> take(int userId) {
+    expire();
+    State state = remove(userId);
+    return state != null && state.complete ? state.getMessageIds() : null;
+  }
+
+  /**
+   * Removes the states of the users that match a condition, to hand them off to another node.
+   *
+   * @param condition the condition on the user id
+   * @return the removed states
+   */
+  synchronized List<State> removeIf(Predicate<Integer> condition) {
+    List<State> removed = new ArrayList<>();
+    states.values().removeIf(state -> condition.test(state.userId) && removed.add(state));
+    removed.forEach(state -> queued -= state.size);
+    return removed;
+  }
+
+  /**
+   * Takes over states handed off by another node. A state this node already had started on its
+   * own means messages may have gone to either node, so the merged queue is unknown.
+   *
+   * @param handedOff the states
+   */
+  synchronized void putAll(Collection<State> handedOff) {
+    for (State state : handedOff) {
+      State mine = remove(state.userId);
+      states.put(state.userId, mine == null ? state
+              : new State(state.userId, false, new int[0], Math.min(mine.since, state.since)));
+      queued += states.get(state.userId).size;
+    }
+    expire();
+    trim();
+  }
+
+  private State remove(int userId) {
+    State state = states.remove(userId);
+    if (state != null) {
+      queued -= state.size;
+    }
+    return state;
+  }
+
+  private void giveUp(State state) {
+    queued -= state.size;
+    state.giveUp();
+  }
+
+  /**
+   * Drops the states of the users who left longer than the maximum age ago. A handed off state
+   * may be older than the states queued before it, it is then dropped a little late.
+   */
+  private void expire() {
+    long oldest = clock.getAsLong() - maxAgeMillis;
+    Iterator<State> iterator = states.values().iterator();
+    while (iterator.hasNext()) {
+      State state = iterator.next();
+      if (state.since > oldest) {
+        return;
+      }
+      queued -= state.size;
+      iterator.remove();
+    }
+  }
+
+  /**
+   * Gives up the queues of the users who left first until the total capacity is respected.
+   */
+  private void trim() {
+    Iterator<State> iterator = states.values().iterator();
+    while (queued > totalCapacity && iterator.hasNext()) {
+      State state = iterator.next();
+      if (state.complete) {
+        giveUp(state);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of users with a state.
+   *
+   * @return number of users
+   */
+  synchronized int size() {
+    return states.size();
+  }
+
+  /**
+   * Returns the number of messages queued across all users.
+   *
+   * @return number of messages
+   */
+  synchronized int getQueuedCount() {
+    return queued;
+  }
+
+  /**
+   * The delivery state of one user.
+   */
+  static final class State {
+    final int userId;
+    final long since;
+    boolean complete;
+    private int[] messageIds;
+    private int size;
+
+    /**
+     * Creates a state.
+     *
+     * @param userId     id of the user
+     * @param complete   true if the messages queued are all those published since the user left
+     * @param messageIds the ids of the messages queued, oldest first
+     * @param since      when the state started, in milliseconds
+     */
+    State(int userId, boolean complete, int[] messageIds, long since) {
+      this.userId = userId;
+      this.since = since;
+      this.complete = complete;
+      this.messageIds = messageIds;
+      this.size = messageIds.length;
+    }
+
+    private void add(int messageId) {
+      if (size == messageIds.length) {
+        messageIds = Arrays.copyOf(messageIds, Math.max(4, size * 2));
+      }
+      messageIds[size++] = messageId;
+    }
+
+    private void giveUp() {
+      complete = false;
+      messageIds = new int[0];
+      size = 0;
+    }
+
+    /**
+     * Returns the ids of the messages queued.
+     *
+     * @return the message ids, oldest first
+     */
+    List<Integer> getMessageIds() {
+      List<Integer> ids = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        ids.add(messageIds[i]);
+      }
+      return ids;
+    }
+  }
+}
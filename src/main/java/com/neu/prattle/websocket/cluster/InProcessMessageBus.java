@@ -0,0 +1,146 @@
+package com.neu.prattle.websocket.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * The Class InProcessMessageBus.
+ * <p>
+ * A bus between nodes running in the same JVM. A single node, the default deployment, uses a bus
+ * of its own; nodes embedded in one JVM, as in tests, join the same {@link Hub}. Deliveries,
+ * queued messages, handoffs and invalidations are handed to the other nodes on the calling
+ * thread.
+ */
+public class InProcessMessageBus extends AbstractMessageBus {
+
+  private final Hub hub;
+  private volatile LocalNode node;
+
+  /**
+   * Creates the bus of a single node.
+   *
+   * @param nodeId id of the node
+   */
+  public InProcessMessageBus(String nodeId) {
+    this(nodeId, new Hub());
+  }
+
+  /**
+   * Creates a bus joining the other nodes of a hub once started.
+   *
+   * @param nodeId id of the node
+   * @param hub    the hub of the nodes
+   */
+  public InProcessMessageBus(String nodeId, Hub hub) {
+    super(nodeId);
+    this.hub = hub;
+  }
+
+  @Override
+  public void start(LocalNode localNode) {
+    this.node = localNode;
+    hub.join(this);
+  }
+
+  @Override
+  public void publish(Delivery delivery) {
+    node.deliver(delivery);
+    Set<String> nodes = delivery.isBroadcast() ? null
+            : directory.getNodes(delivery.getRecipients());
+    for (InProcessMessageBus peer : hub.buses) {
+      if (peer != this && (nodes == null || nodes.contains(peer.nodeId))) {
+        peer.node.deliver(delivery);
+      }
+    }
+    routePending(delivery);
+  }
+
+  @Override
+  public synchronized void sessionChanged(int userId) {
+    boolean connected = node.isConnected(userId);
+    for (InProcessMessageBus bus : hub.buses) {
+      bus.directory.update(nodeId, userId, connected);
+    }
+  }
+
+  @Override
+  public void invalidate(String cache, int key) {
+    for (InProcessMessageBus peer : hub.buses) {
+      if (peer != this) {
+        peer.node.invalidated(cache, key);
+      }
+    }
+  }
+
+  @Override
+  protected void sendPending(String owner, int userId, int messageId) {
+    InProcessMessageBus peer = hub.find(owner);
+    if (peer != null) {
+      peer.receivePending(userId, messageId);
+    }
+  }
+
+  @Override
+  protected void sendHandoff(String owner, List<DeliveryStateTable.State> handoff) {
+    InProcessMessageBus peer = hub.find(owner);
+    if (peer != null) {
+      peer.receiveHandoff(handoff);
+    }
+  }
+
+  @Override
+  protected void requestStash(String owner, int userId, Consumer<List<Integer>> reply) {
+    InProcessMessageBus peer = hub.find(owner);
+    reply.accept(peer != null ? peer.receiveStashRequest(userId) : null);
+  }
+
+  @Override
+  public void close() {
+    hub.leave(this);
+  }
+
+  /**
+   * The nodes of an in-process cluster.
+   */
+  public static class Hub {
+    private final List<InProcessMessageBus> buses = new CopyOnWriteArrayList<>();
+
+    private InProcessMessageBus find(String nodeId) {
+      for (InProcessMessageBus bus : buses) {
+        if (bus.nodeId.equals(nodeId)) {
+          return bus;
+        }
+      }
+      return null;
+    }
+
+    private synchronized void join(InProcessMessageBus joining) {
+      buses.add(joining);
+      membersChanged();
+      for (InProcessMessageBus bus : buses) {
+        synchronized (bus) {
+          joining.directory.replace(bus.nodeId, bus.node.getUserIds());
+          bus.directory.replace(joining.nodeId, joining.node.getUserIds());
+        }
+      }
+    }
+
+    private synchronized void leave(InProcessMessageBus leaving) {
+      leaving.handOffAll();
+      buses.remove(leaving);
+      membersChanged();
+      for (InProcessMessageBus bus : buses) {
+        bus.directory.removeNode(leaving.nodeId);
+      }
+    }
+
+    private void membersChanged() {
+      List<String> members = new ArrayList<>();
+      buses.forEach(bus -> members.add(bus.nodeId));
+      buses.forEach(bus -> bus.membersChanged(members));
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package com.neu.prattle.websocket.cluster;
+
+import java.util.Collection;
+
+/**
+ * The sessions hosted by the node a {@link MessageBus} runs on, as seen by the bus.
+ */
+public interface LocalNode {
+
+  /**
+   * Hands a delivery to the sessions of this node. Must not block.
+   *
+   * @param delivery the delivery
+   */
+  void deliver(Delivery delivery);
+
+  /**
+   * Checks if a user has at least one session on this node.
+   *
+   * @param userId id of the user
+   * @return true if connected here, else false
+   */
+  boolean isConnected(int userId);
+
+  /**
+   * Returns the users with at least one session on this node.
+   *
+   * @return ids of the connected users
+   */
+  Collection<Integer> getUserIds();
+
+  /**
+   * Drops an entry of a cache of this node after it changed on another node. Must not block.
+   *
+   * @param cache the name of the cache
+   * @param key   the key of the entry
+   */
+  void invalidated(String cache, int key);
+
+  /**
+   * Drops every cached entry that may have changed on another node while it was not connected
+   * to this node. Must not block.
+   */
+  void invalidatedAll();
+}
@@ -0,0 +1,130 @@
+package com.neu.prattle.websocket.cluster;
+
+import com.neu.prattle.configuration.SpringContext;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Carries deliveries between the nodes of a Prattle cluster. The chat endpoint publishes every
+ * delivery to the bus, and the bus hands it to each node hosting a session of a recipient,
+ * including the publishing node. The bus also keeps the {@link SessionDirectory} of the cluster
+ * up to date.
+ * <p>
+ * Each user is owned by one node of the cluster, chosen by a {@link ConsistentHashRing}. While a
+ * user is away, its owner queues the ids of the messages published to the user, and the node the
+ * user reconnects to reads those messages instead of searching the stashed messages in the
+ * database.
+ * When nodes join or leave, the queues are handed off to their new owners.
+ */
+public interface MessageBus {
+
+  /**
+   * Starts the bus for the sessions of this node.
+   *
+   * @param node the sessions of this node
+   */
+  void start(LocalNode node);
+
+  /**
+   * Hands a delivery to the nodes hosting its recipients. Returns without waiting for remote
+   * nodes.
+   *
+   * @param delivery the delivery
+   */
+  void publish(Delivery delivery);
+
+  /**
+   * Tells the cluster that the sessions of a user on this node changed. The bus reads whether
+   * the user is still connected from the local node, so calls may come in any order.
+   *
+   * @param userId id of the user
+   */
+  void sessionChanged(int userId);
+
+  /**
+   * Tells the other nodes that an entry of a cache changed on this node, so that they drop their
+   * copy. Returns without waiting for remote nodes.
+   *
+   * @param cache the name of the cache
+   * @param key   the key of the entry
+   */
+  void invalidate(String cache, int key);
+
+  /**
+   * Takes the ids of the messages the owner of a user queued while the user was away. The reply
+   * may come on another thread; it is null when the owner does not know every message published
+   * since the user left, in which case the stashed messages are to be searched in the database.
+   *
+   * @param userId id of the user, who must have just connected to this node
+   * @param reply  takes the message ids, oldest first, or null
+   */
+  void takeStash(int userId, Consumer<List<Integer>> reply);
+
+  /**
+   * Returns the ring choosing the owner of each user among the nodes of the cluster.
+   *
+   * @return the ring
+   */
+  ConsistentHashRing getRing();
+
+  /**
+   * Returns the directory of the users connected anywhere in the cluster.
+   *
+   * @return the session directory
+   */
+  SessionDirectory getDirectory();
+
+  /**
+   * Returns the id of this node.
+   *
+   * @return the node id
+   */
+  String getNodeId();
+
+  /**
+   * Stops the bus, handing off the users this node owns to the remaining nodes.
+   */
+  void close();
+
+  /**
+   * Creates the bus configured by the prattle.cluster.* properties, for the node named by
+   * prattle.cluster.node-id or a random id: an in-process bus unless
+   * prattle.cluster.bus is {@code tcp}, in which case the node listens on
+   * prattle.cluster.bind-address and prattle.cluster.port, connects to the comma separated
+   * host:port pairs of prattle.cluster.peers, and authenticates its peers with
+   * prattle.cluster.secret, which must be set.
+   *
+   * @return the bus, not started
+   */
+  static MessageBus create() {
+    String nodeId = SpringContext.getProperty("prattle.cluster.node-id", String.class, "");
+    if (nodeId.isEmpty()) {
+      nodeId = UUID.randomUUID().toString();
+    }
+    if (!"tcp".equals(SpringContext.getProperty("prattle.cluster.bus", String.class, "local"))) {
+      return new InProcessMessageBus(nodeId);
+    }
+    List<InetSocketAddress> peers = new ArrayList<>();
+    for (String peer : SpringContext.getProperty("prattle.cluster.peers", String.class, "")
+            .split(",")) {
+      int colon = peer.lastIndexOf(':');
+      if (colon > 0) {
+        peers.add(InetSocketAddress.createUnresolved(peer.substring(0, colon).trim(),
+                Integer.parseInt(peer.substring(colon + 1).trim())));
+      }
+    }
+    String secret = SpringContext.getProperty("prattle.cluster.secret", String.class, "");
+    if (secret.isEmpty()) {
+      throw new IllegalStateException("prattle.cluster.secret must be set for the tcp bus");
+    }
+    return new TcpMessageBus(nodeId, new InetSocketAddress(
+            SpringContext.getProperty("prattle.cluster.bind-address", String.class, "127.0.0.1"),
+            SpringContext.getProperty("prattle.cluster.port", Integer.class, 7701)), secret,
+            peers,
+            SpringContext.getProperty("prattle.cluster.retry-interval-ms", Long.class, 1000L));
+  }
+}
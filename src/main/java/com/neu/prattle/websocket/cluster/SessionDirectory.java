@@ -0,0 +1,173 @@
+package com.neu.prattle.websocket.cluster;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The Class SessionDirectory.
+ * <p>
+ * Knows which nodes of the cluster each connected user has sessions on. Every node keeps its own
+ * copy, filled by its {@link MessageBus} from the announcements of the other nodes and from its
+ * own sessions. A node that leaves the cluster takes its users with it.
+ */
+public class SessionDirectory {
+
+  /**
+   * The nodes each connected user has sessions on, keyed by user id.
+   */
+  private final ConcurrentMap<Integer, Set<String>> nodesByUser = new ConcurrentHashMap<>();
+
+  /**
+   * The users connected to each node, keyed by node id.
+   */
+  private final ConcurrentMap<String, Set<Integer>> usersByNode = new ConcurrentHashMap<>();
+
+  private volatile Listener listener = (userId, connected) -> {
+  };
+
+  /**
+   * Sets the listener told when a user connects to or leaves the cluster.
+   *
+   * @param listener the listener
+   */
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Records whether a user has sessions on a node.
+   *
+   * @param nodeId    id of the node
+   * @param userId    id of the user
+   * @param connected true if the user has at least one session on the node
+   */
+  public synchronized void update(String nodeId, int userId, boolean connected) {
+    if (connected) {
+      usersByNode.computeIfAbsent(nodeId, id -> ConcurrentHashMap.newKeySet()).add(userId);
+      if (!nodesByUser.containsKey(userId)) {
+        nodesByUser.computeIfAbsent(userId, id -> ConcurrentHashMap.newKeySet()).add(nodeId);
+        listener.connectionChanged(userId, true);
+      } else {
+        nodesByUser.get(userId).add(nodeId);
+      }
+    } else {
+      forget(nodeId, userId);
+      usersByNode.computeIfPresent(nodeId, (id, users) -> {
+        users.remove(userId);
+        return users.isEmpty() ? null : users;
+      });
+    }
+  }
+
+  /**
+   * Replaces the users connected to a node, as announced by the node when it joins.
+   *
+   * @param nodeId  id of the node
+   * @param userIds ids of the users connected to the node
+   */
+  public synchronized void replace(String nodeId, Collection<Integer> userIds) {
+    Set<Integer> next = new HashSet<>(userIds);
+    for (int userId : new HashSet<>(getUsers(nodeId))) {
+      if (!next.contains(userId)) {
+        update(nodeId, userId, false);
+      }
+    }
+    for (int userId : next) {
+      update(nodeId, userId, true);
+    }
+  }
+
+  /**
+   * Forgets a node and the sessions of its users.
+   *
+   * @param nodeId id of the node
+   */
+  public synchronized void removeNode(String nodeId) {
+    Set<Integer> users = usersByNode.remove(nodeId);
+    if (users != null) {
+      users.forEach(userId -> forget(nodeId, userId));
+    }
+  }
+
+  private void forget(String nodeId, int userId) {
+    Set<String> nodes = nodesByUser.get(userId);
+    if (nodes != null && nodes.remove(nodeId) && nodes.isEmpty()) {
+      nodesByUser.remove(userId);
+      listener.connectionChanged(userId, false);
+    }
+  }
+
+  /**
+   * Returns the nodes a user has sessions on.
+   *
+   * @param userId id of the user
+   * @return ids of the nodes, empty if the user is not connected
+   */
+  public Set<String> getNodes(int userId) {
+    Set<String> nodes = nodesByUser.get(userId);
+    return nodes == null ? Collections.emptySet() : Collections.unmodifiableSet(nodes);
+  }
+
+  /**
+   * Returns the nodes that host a session of any of some users.
+   *
+   * @param userIds ids of the users
+   * @return ids of the nodes
+   */
+  public Set<String> getNodes(Collection<Integer> userIds) {
+    Set<String> result = new HashSet<>();
+    for (int userId : userIds) {
+      result.addAll(getNodes(userId));
+    }
+    return result;
+  }
+
+  /**
+   * Returns the users connected to a node.
+   *
+   * @param nodeId id of the node
+   * @return ids of the users, empty if the node is unknown
+   */
+  public Set<Integer> getUsers(String nodeId) {
+    Set<Integer> users = usersByNode.get(nodeId);
+    return users == null ? Collections.emptySet() : Collections.unmodifiableSet(users);
+  }
+
+  /**
+   * Checks if a user has at least one session anywhere in the cluster.
+   *
+   * @param userId id of the user
+   * @return true if connected, else false
+   */
+  public boolean isConnected(int userId) {
+    return nodesByUser.containsKey(userId);
+  }
+
+  /**
+   * Returns the number of users connected anywhere in the cluster.
+   *
+   * @return number of connected users
+   */
+  public int getUserCount() {
+    return nodesByUser.size();
+  }
+
+  /**
+   * Told when a user connects to the cluster or leaves it, while the directory is locked.
+   */
+  @FunctionalInterface
+  public interface Listener {
+
+    /**
+     * Called when a user gets a first session in the cluster or loses the last one.
+     *
+     * @param userId    id of the user
+     * @param connected true if the user connected, false if the user left
+     */
+    void connectionChanged(int userId, boolean connected);
+  }
+}
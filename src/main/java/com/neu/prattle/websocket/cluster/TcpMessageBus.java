@@ -0,0 +1,662 @@
+package com.neu.prattle.websocket.cluster;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.neu.prattle.configuration.SpringContext;
+import com.neu.prattle.utils.ExecutorFactory;
+import com.neu.prattle.websocket.OutboundFrame;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The Class TcpMessageBus.
+ * <p>
+ * A peer-to-peer bus between nodes connected by TCP. Every node listens on a configured address
+ * and dials the peers it was configured with, retrying those it can not reach, so the nodes form a
+ * full mesh. The nodes of a cluster share a secret, and a link carries nothing but the handshake
+ * until the peer has proven it knows the secret. A link carries length prefixed JSON records both
+ * ways:
+ * <ul>
+ * <li>{@code challenge}, the first record on a link, carries a random nonce;</li>
+ * <li>{@code hello} answers the challenge of the peer: it names the node and carries the HMAC of
+ * the nonce and the node id under the shared secret. Any other record before a valid hello, or a
+ * handshake that takes too long, closes the link;</li>
+ * <li>{@code users}, sent once the hello of the peer is checked, lists the connected users of
+ * the node. A node receiving it drops every cached entry, as it may have missed invalidations
+ * while the peer was not connected;</li>
+ * <li>{@code invalidate} names an entry of a cache that changed on the node;</li>
+ * <li>{@code session} tells whether a user still has sessions on the node;</li>
+ * <li>{@code delivery} carries a frame to the sessions of the node;</li>
+ * <li>{@code pending} queues a message id on the owner of a user who is away;</li>
+ * <li>{@code handoff} hands the delivery state of some users to their new owner;</li>
+ * <li>{@code stash-request} asks the owner of a user for the message ids queued for the user,
+ * and {@code stash} answers it.</li>
+ * </ul>
+ * A delivery is sent once to each node that hosts a session of a recipient, according to the
+ * session directory, and a broadcast once to every node. Records are written by a writer thread
+ * per link so a slow peer does not hold up the publisher; records for a peer whose queue is full
+ * are dropped. A node that disconnects is removed from the directory and from the ring. A node
+ * that is closed hands its users off and lets its links drain before disconnecting, though a
+ * message still on its way to it from a node that has not yet seen it leave is missed by the
+ * queue it hands off. An owner that fails loses the queues it held, and its users fall back to
+ * the database.
+ */
+public class TcpMessageBus extends AbstractMessageBus {
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private static final int QUEUE_CAPACITY = 10000;
+  private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+  private static final int CONNECT_TIMEOUT_MS = 1000;
+  private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+  private static final int MAX_HANDSHAKE_LENGTH = 1024;
+  private static final int NONCE_LENGTH = 32;
+  private static final String HMAC = "HmacSHA256";
+
+  private static final SecureRandom random = new SecureRandom();
+
+  private static Logger logger = LoggerFactory.getLogger(TcpMessageBus.class);
+
+  private final InetSocketAddress bindAddress;
+  private final byte[] secret;
+  private final List<InetSocketAddress> peers;
+  private final long retryIntervalMillis;
+  private final long requestTimeoutMillis =
+          SpringContext.getProperty("prattle.cluster.request-timeout-ms", Long.class, 2000L);
+
+  /**
+   * Every open link, named or not yet.
+   */
+  private final Set<Link> links = ConcurrentHashMap.newKeySet();
+
+  /**
+   * The link used to write to each peer, keyed by node id.
+   */
+  private final ConcurrentMap<String, Link> linksByNode = new ConcurrentHashMap<>();
+
+  /**
+   * The links this node dialed, keyed by the configured peer address.
+   */
+  private final ConcurrentMap<InetSocketAddress, Link> dialed = new ConcurrentHashMap<>();
+
+  /**
+   * The replies awaited from other nodes, keyed by request id.
+   */
+  private final ConcurrentMap<Long, Consumer<List<Integer>>> requests =
+          new ConcurrentHashMap<>();
+  private final AtomicLong requestIds = new AtomicLong();
+
+  private final ExecutorService readers =
+          Executors.newCachedThreadPool(ExecutorFactory.newThreadFactory("bus-reader"));
+  private ScheduledExecutorService dialer;
+  private ServerSocket serverSocket;
+  private volatile LocalNode node;
+  private volatile boolean closed;
+
+  /**
+   * Creates a bus.
+   *
+   * @param nodeId              id of this node, unique in the cluster
+   * @param bindAddress         address to listen on, port 0 for any free port
+   * @param secret              the secret shared by the nodes of the cluster
+   * @param peers               addresses of the peers to dial
+   * @param retryIntervalMillis how often unreachable peers are dialed again
+   */
+  public TcpMessageBus(String nodeId, InetSocketAddress bindAddress, String secret,
+                       Collection<InetSocketAddress> peers, long retryIntervalMillis) {
+    super(nodeId);
+    if (secret == null || secret.isEmpty()) {
+      throw new IllegalArgumentException("The cluster secret can not be empty");
+    }
+    this.bindAddress = bindAddress;
+    this.secret = secret.getBytes(StandardCharsets.UTF_8);
+    this.peers = new CopyOnWriteArrayList<>(peers);
+    this.retryIntervalMillis = retryIntervalMillis;
+  }
+
+  @Override
+  public void start(LocalNode localNode) {
+    this.node = localNode;
+    directory.replace(nodeId, localNode.getUserIds());
+    membersChanged(Collections.singleton(nodeId));
+    try {
+      serverSocket = new ServerSocket();
+      serverSocket.bind(bindAddress);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to listen on " + bindAddress, e);
+    }
+    readers.execute(this::accept);
+    dialer = ExecutorFactory.newScheduler("bus-dialer");
+    dialer.scheduleWithFixedDelay(this::dialPeers, 0, retryIntervalMillis,
+            TimeUnit.MILLISECONDS);
+    logger.info("Node {} listening on {}", nodeId, serverSocket.getLocalSocketAddress());
+  }
+
+  /**
+   * Returns the port this node listens on.
+   *
+   * @return the port
+   */
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Adds a peer to dial.
+   *
+   * @param peer the address of the peer
+   */
+  public void connect(InetSocketAddress peer) {
+    peers.add(peer);
+    dialer.execute(this::dialPeers);
+  }
+
+  @Override
+  public void publish(Delivery delivery) {
+    node.deliver(delivery);
+    routePending(delivery);
+    Collection<Link> targets;
+    if (delivery.isBroadcast()) {
+      targets = new HashSet<>(linksByNode.values());
+    } else {
+      targets = new ArrayList<>();
+      for (String peerId : directory.getNodes(delivery.getRecipients())) {
+        Link link = linksByNode.get(peerId);
+        if (link != null) {
+          targets.add(link);
+        }
+      }
+    }
+    if (targets.isEmpty()) {
+      return;
+    }
+    byte[] record = encode(deliveryRecord(delivery));
+    for (Link link : targets) {
+      link.send(() -> record);
+    }
+  }
+
+  @Override
+  public synchronized void sessionChanged(int userId) {
+    directory.update(nodeId, userId, node.isConnected(userId));
+    for (Link link : links) {
+      if (link.trusted) {
+        link.send(() -> encode(sessionRecord(userId)));
+      }
+    }
+  }
+
+  @Override
+  public void invalidate(String cache, int key) {
+    ObjectNode record = mapper.createObjectNode();
+    record.put("type", "invalidate");
+    record.put("cache", cache);
+    record.put("key", key);
+    byte[] bytes = encode(record);
+    for (Link link : new HashSet<>(linksByNode.values())) {
+      link.send(() -> bytes);
+    }
+  }
+
+  @Override
+  protected void sendPending(String owner, int userId, int messageId) {
+    Link link = linksByNode.get(owner);
+    if (link != null) {
+      link.send(() -> encode(pendingRecord(userId, messageId)));
+    }
+  }
+
+  @Override
+  protected void sendHandoff(String owner, List<DeliveryStateTable.State> handoff) {
+    Link link = linksByNode.get(owner);
+    if (link != null) {
+      link.send(() -> encode(handoffRecord(handoff)));
+    }
+  }
+
+  @Override
+  protected void requestStash(String owner, int userId, Consumer<List<Integer>> reply) {
+    Link link = linksByNode.get(owner);
+    if (link == null || closed) {
+      reply.accept(null);
+      return;
+    }
+    long id = requestIds.incrementAndGet();
+    requests.put(id, reply);
+    dialer.schedule(() -> answer(id, null), requestTimeoutMillis, TimeUnit.MILLISECONDS);
+    ObjectNode record = mapper.createObjectNode();
+    record.put("type", "stash-request");
+    record.put("id", id);
+    record.put("user", userId);
+    link.send(() -> encode(record));
+  }
+
+  /**
+   * Passes a reply to its request, unless the request was already answered or timed out.
+   */
+  private void answer(long id, List<Integer> messageIds) {
+    Consumer<List<Integer>> reply = requests.remove(id);
+    if (reply != null) {
+      reply.accept(messageIds);
+    }
+  }
+
+  @Override
+  public void close() {
+    handOffAll();
+    closed = true;
+    if (dialer != null) {
+      dialer.shutdownNow();
+    }
+    new ArrayList<>(requests.keySet()).forEach(id -> answer(id, null));
+    links.forEach(Link::drain);
+    try {
+      if (serverSocket != null) {
+        serverSocket.close();
+      }
+    } catch (IOException e) {
+      logger.error(e.getMessage());
+    }
+    links.forEach(Link::close);
+    readers.shutdownNow();
+  }
+
+  private void accept() {
+    while (!closed) {
+      try {
+        open(serverSocket.accept());
+      } catch (IOException e) {
+        if (!closed) {
+          logger.error("Unable to accept a peer: {}", e.getMessage());
+        }
+      }
+    }
+  }
+
+  private void dialPeers() {
+    for (InetSocketAddress peer : peers) {
+      Link link = dialed.get(peer);
+      if (closed || (link != null && link.open)) {
+        continue;
+      }
+      try {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(peer.getHostString(), peer.getPort()),
+                CONNECT_TIMEOUT_MS);
+        dialed.put(peer, open(socket));
+      } catch (IOException e) {
+        logger.debug("Peer {} is unreachable: {}", peer, e.getMessage());
+      }
+    }
+  }
+
+  private Link open(Socket socket) throws IOException {
+    socket.setTcpNoDelay(true);
+    socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+    Link link = new Link(socket);
+    links.add(link);
+    ObjectNode challenge = mapper.createObjectNode();
+    challenge.put("type", "challenge");
+    challenge.put("nonce", Base64.getEncoder().encodeToString(link.nonce));
+    // written before the link reads anything, so a peer breaking the handshake, which closes
+    // the link and drops the queued records, still sees the challenge
+    try {
+      link.writeNow(encode(challenge));
+    } catch (IOException e) {
+      link.close();
+      throw e;
+    }
+    readers.execute(() -> read(link));
+    return link;
+  }
+
+  /**
+   * Returns the proof that a node knows the secret, for a nonce of its peer.
+   */
+  private byte[] proof(byte[] nonce, String proverId) {
+    try {
+      Mac mac = Mac.getInstance(HMAC);
+      mac.init(new SecretKeySpec(secret, HMAC));
+      mac.update(nonce);
+      return mac.doFinal(proverId.getBytes(StandardCharsets.UTF_8));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Unable to compute " + HMAC, e);
+    }
+  }
+
+  /**
+   * Checks the hello of a peer and trusts the link. The users of this node are queued before
+   * the link is trusted, and so before any session change, and listed when the record is written.
+   */
+  private void trust(Link link, JsonNode hello) throws IOException {
+    String peerId = hello.path("node").asText();
+    if (peerId.isEmpty() || nodeId.equals(peerId)) {
+      throw new IOException("Invalid hello from " + link.socket.getRemoteSocketAddress());
+    }
+    byte[] proof;
+    try {
+      proof = Base64.getDecoder().decode(hello.path("proof").asText());
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Invalid proof from node " + peerId);
+    }
+    if (!MessageDigest.isEqual(proof, proof(link.nonce, peerId))) {
+      throw new IOException("Node " + peerId + " failed to authenticate");
+    }
+    link.socket.setSoTimeout(0);
+    link.peerId = peerId;
+    synchronized (this) {
+      link.send(() -> encode(usersRecord()));
+      link.trusted = true;
+    }
+    linksByNode.put(peerId, link);
+    membersChanged();
+  }
+
+  private void read(Link link) {
+    try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(link.socket.getInputStream()))) {
+      while (link.open) {
+        int length = in.readInt();
+        if (length < 0 || length > (link.peerId == null ? MAX_HANDSHAKE_LENGTH
+                : MAX_RECORD_LENGTH)) {
+          throw new IOException("Invalid record length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        receive(link, mapper.readTree(bytes));
+      }
+    } catch (IOException e) {
+      if (!closed) {
+        logger.info("Link to node {} closed: {}", link.peerId, e.getMessage());
+      }
+    } finally {
+      link.close();
+    }
+  }
+
+  private void receive(Link link, JsonNode record) throws IOException {
+    String type = record.path("type").asText();
+    if ("challenge".equals(type) && !link.challenged) {
+      link.challenged = true;
+      byte[] nonce;
+      try {
+        nonce = Base64.getDecoder().decode(record.path("nonce").asText());
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Invalid challenge");
+      }
+      ObjectNode hello = mapper.createObjectNode();
+      hello.put("type", "hello");
+      hello.put("node", nodeId);
+      hello.put("proof", Base64.getEncoder().encodeToString(proof(nonce, nodeId)));
+      link.send(() -> encode(hello));
+    } else if ("hello".equals(type) && link.challenged && link.peerId == null) {
+      trust(link, record);
+    } else if (link.peerId == null) {
+      throw new IOException("Unexpected " + type + " record during the handshake");
+    } else if ("users".equals(type)) {
+      directory.replace(link.peerId, ids(record.path("users")));
+      node.invalidatedAll();
+      logger.info("Node {} joined with {} users", link.peerId, record.path("users").size());
+    } else if ("invalidate".equals(type)) {
+      node.invalidated(record.path("cache").asText(), record.path("key").asInt());
+    } else if ("session".equals(type)) {
+      directory.update(link.peerId, record.path("user").asInt(),
+              record.path("connected").asBoolean());
+    } else if ("delivery".equals(type)) {
+      node.deliver(toDelivery(record));
+    } else if ("pending".equals(type)) {
+      receivePending(record.path("user").asInt(), record.path("messageId").asInt());
+    } else if ("handoff".equals(type)) {
+      receiveHandoff(toStates(record.path("states")));
+    } else if ("stash-request".equals(type)) {
+      List<Integer> messageIds = receiveStashRequest(record.path("user").asInt());
+      ObjectNode reply = mapper.createObjectNode();
+      reply.put("type", "stash");
+      reply.put("id", record.path("id").asLong());
+      if (messageIds != null) {
+        ArrayNode array = reply.putArray("messages");
+        messageIds.forEach(array::add);
+      }
+      link.send(() -> encode(reply));
+    } else if ("stash".equals(type)) {
+      JsonNode messageIds = record.path("messages");
+      answer(record.path("id").asLong(), messageIds.isArray() ? ids(messageIds) : null);
+    } else {
+      logger.warn("Ignoring record of unknown type {}", type);
+    }
+  }
+
+  private ObjectNode usersRecord() {
+    ObjectNode record = mapper.createObjectNode();
+    record.put("type", "users");
+    ArrayNode users = record.putArray("users");
+    node.getUserIds().forEach(users::add);
+    return record;
+  }
+
+  private ObjectNode sessionRecord(int userId) {
+    ObjectNode record = mapper.createObjectNode();
+    record.put("type", "session");
+    record.put("user", userId);
+    record.put("connected", node.isConnected(userId));
+    return record;
+  }
+
+  private static ObjectNode deliveryRecord(Delivery delivery) {
+    ObjectNode record = mapper.createObjectNode();
+    record.put("type", "delivery");
+    record.put("frame", delivery.getFrame().getText());
+    record.put("messageId", delivery.getFrame().getMessageId());
+    record.put("broadcast", delivery.isBroadcast());
+    ArrayNode recipients = record.putArray("recipients");
+    delivery.getRecipients().forEach(recipients::add);
+    record.put("content", delivery.getContent());
+    return record;
+  }
+
+  private static ObjectNode pendingRecord(int userId, int messageId) {
+    ObjectNode record = mapper.createObjectNode();
+    record.put("type", "pending");
+    record.put("user", userId);
+    record.put("messageId", messageId);
+    return record;
+  }
+
+  private static ObjectNode handoffRecord(List<DeliveryStateTable.State> handoff) {
+    ObjectNode record = mapper.createObjectNode();
+    record.put("type", "handoff");
+    ArrayNode states = record.putArray("states");
+    for (DeliveryStateTable.State state : handoff) {
+      ObjectNode entry = states.addObject();
+      entry.put("user", state.userId);
+      entry.put("complete", state.complete);
+      entry.put("since", state.since);
+      ArrayNode pending = entry.putArray("pending");
+      state.getMessageIds().forEach(pending::add);
+    }
+    return record;
+  }
+
+  private static List<DeliveryStateTable.State> toStates(JsonNode array) {
+    List<DeliveryStateTable.State> states = new ArrayList<>();
+    array.forEach(entry -> states.add(new DeliveryStateTable.State(entry.path("user").asInt(),
+            entry.path("complete").asBoolean(),
+            ids(entry.path("pending")).stream().mapToInt(Integer::intValue).toArray(),
+            entry.path("since").asLong())));
+    return states;
+  }
+
+  private static OutboundFrame toFrame(JsonNode record) {
+    return OutboundFrame.ofText(record.path("frame").asText(), record.path("messageId").asInt());
+  }
+
+  /**
+   * Sets the members of the ring to this node and the named peers. Synchronized so that the
+   * peers are read and set in the same order when several links open or close at once.
+   */
+  private synchronized void membersChanged() {
+    Set<String> members = new HashSet<>(linksByNode.keySet());
+    members.add(nodeId);
+    membersChanged(members);
+  }
+
+  private static Delivery toDelivery(JsonNode record) {
+    OutboundFrame frame = toFrame(record);
+    if (record.path("broadcast").asBoolean()) {
+      return Delivery.toEveryone(frame);
+    }
+    JsonNode content = record.path("content");
+    return Delivery.toUsers(frame, ids(record.path("recipients")),
+            content.isTextual() ? content.asText() : null);
+  }
+
+  private static List<Integer> ids(JsonNode array) {
+    List<Integer> ids = new ArrayList<>();
+    array.forEach(id -> ids.add(id.asInt()));
+    return ids;
+  }
+
+  private static byte[] encode(ObjectNode record) {
+    try {
+      return mapper.writeValueAsBytes(record);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to encode a record", e);
+    }
+  }
+
+  /**
+   * A connection to a peer, dialed or accepted.
+   */
+  private final class Link {
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final ThreadPoolExecutor writer;
+    private final byte[] nonce = new byte[NONCE_LENGTH];
+    private volatile String peerId;
+    private volatile boolean challenged;
+    private volatile boolean trusted;
+    private volatile boolean open = true;
+
+    Link(Socket socket) throws IOException {
+      this.socket = socket;
+      this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+              new LinkedBlockingQueue<>(QUEUE_CAPACITY),
+              ExecutorFactory.newThreadFactory("bus-writer"));
+      random.nextBytes(nonce);
+    }
+
+    /**
+     * Queues a record, produced when it is written.
+     */
+    void send(Supplier<byte[]> record) {
+      try {
+        writer.execute(() -> write(record.get()));
+      } catch (RejectedExecutionException e) {
+        if (open) {
+          logger.warn("Record to node {} dropped, the link is backed up", peerId);
+        }
+      }
+    }
+
+    /**
+     * Writes the records already queued, waiting a little for them, and closes the link.
+     */
+    void drain() {
+      writer.shutdown();
+      try {
+        writer.awaitTermination(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      close();
+    }
+
+    private void write(byte[] record) {
+      if (!open) {
+        return;
+      }
+      try {
+        writeNow(record);
+      } catch (IOException e) {
+        logger.info("Unable to write to node {}: {}", peerId, e.getMessage());
+        close();
+      }
+    }
+
+    /**
+     * Writes a record on the calling thread, only before the writer thread is used.
+     */
+    void writeNow(byte[] record) throws IOException {
+      out.writeInt(record.length);
+      out.write(record);
+      out.flush();
+    }
+
+    void close() {
+      if (!open) {
+        return;
+      }
+      open = false;
+      try {
+        socket.close();
+      } catch (IOException e) {
+        logger.error(e.getMessage());
+      }
+      writer.shutdownNow();
+      links.remove(this);
+      if (peerId != null && linksByNode.remove(peerId, this)) {
+        for (Link other : links) {
+          if (peerId.equals(other.peerId)) {
+            linksByNode.putIfAbsent(peerId, other);
+            return;
+          }
+        }
+        if (!closed) {
+          membersChanged();
+        }
+        directory.removeNode(peerId);
+        logger.info("Node {} left", peerId);
+      }
+    }
+  }
+}
@@ -0,0 +1,14 @@
+-- The conversation index, the latest message of every conversation, read by the inbox.
+-- See ConversationIndexRepository. Run once against the schema, which
+-- spring.jpa.hibernate.ddl-auto=none leaves unchanged.
+create table if not exists conversation_index (
+  owner_id int not null,
+  peer_id int not null,
+  is_group boolean not null,
+  last_msg_id int not null,
+  last_from_user_id int not null,
+  preview varchar(100),
+  last_time timestamp null,
+  primary key (owner_id, peer_id, is_group),
+  index idx_conversation_recency (owner_id, is_group, last_msg_id)
+);
@@ -0,0 +1,3 @@
+-- The index the pages of a conversation are read by, MessageRepository.fetchConversationBefore.
+-- Run once against the schema, which spring.jpa.hibernate.ddl-auto=none leaves unchanged.
+create index idx_message_conversation on message (from_user_id, to_user_id, msg_id);
@@ -0,0 +1,19 @@
+-- The sync log and the counters numbering the events of every user. See SyncLogRepository.
+-- Run once against the schema, which spring.jpa.hibernate.ddl-auto=none leaves unchanged.
+create table if not exists sync_log (
+  user_id int not null,
+  seq bigint not null,
+  event_type varchar(10) not null,
+  msg_id int not null,
+  msg_status varchar(20) null,
+  primary key (user_id, seq)
+);
+
+create table if not exists sync_seq (
+  user_id int not null primary key,
+  seq bigint not null
+);
+
+-- Seeds the counters of a sync log written before sync_seq existed; does nothing otherwise.
+insert ignore into sync_seq (user_id, seq)
+  select user_id, max(seq) from sync_log group by user_id;
@@ -0,0 +1,103 @@
+package com.neu.prattle.benchmark;
+
+import com.neu.prattle.model.HashTag;
+import com.neu.prattle.model.Message;
+import com.neu.prattle.model.MessageAttachment;
+import com.neu.prattle.websocket.MessageEncoder;
+import com.neu.prattle.websocket.OutboundFrame;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.sql.Timestamp;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares encoding a group message for every recipient, as the endpoint used to do, with
+ * encoding it once into a shared {@link OutboundFrame}.
+ * <p>
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.neu.prattle.benchmark.FanOutEncodingBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutEncodingBenchmark {
+
+  @Param({"10", "100", "1000"})
+  private int recipients;
+
+  @Param({"0", "65536"})
+  private int attachmentBytes;
+
+  private Message message;
+  private MessageEncoder encoder;
+
+  @Setup
+  public void setUp() {
+    encoder = new MessageEncoder();
+    Set<HashTag> hashTags = new HashSet<>();
+    for (int i = 0; i < 5; i++) {
+      hashTags.add(HashTag.hashTagBuilder().setHashTagId(i + 1).setHashTagValue("tag" + i).build());
+    }
+    message = Message.messageBuilder()
+            .setMessageId(1)
+            .setFromUserId(1)
+            .setToUserId(2)
+            .setIsGroupMessage(true)
+            .setMessageContent("Hello group, this is a benchmark message #tag0 #tag1")
+            .setMessageGenerationTime(new Timestamp(System.currentTimeMillis()))
+            .setHashtags(hashTags)
+            .build();
+    if (attachmentBytes > 0) {
+      byte[] data = new byte[attachmentBytes];
+      new Random(42).nextBytes(data);
+      MessageAttachment attachment = new MessageAttachment();
+      attachment.setWebUrl(Base64.getEncoder().encodeToString(data));
+      message.setHasAttachment(true);
+      message.setAttachments(new HashSet<>(Collections.singletonList(attachment)));
+    }
+  }
+
+  @Benchmark
+  public void encodePerRecipient(Blackhole blackhole) {
+    for (int i = 0; i < recipients; i++) {
+      blackhole.consume(encoder.encode(message));
+    }
+  }
+
+  @Benchmark
+  public void encodeOnce(Blackhole blackhole) {
+    OutboundFrame frame = OutboundFrame.of(message);
+    for (int i = 0; i < recipients; i++) {
+      blackhole.consume(frame.getText());
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+            .include(FanOutEncodingBenchmark.class.getSimpleName())
+            .build()).run();
+  }
+}
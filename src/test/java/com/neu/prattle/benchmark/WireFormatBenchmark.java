@@ -0,0 +1,123 @@
+package com.neu.prattle.benchmark;
+
+import com.neu.prattle.model.HashTag;
+import com.neu.prattle.model.Message;
+import com.neu.prattle.model.MessageAttachment;
+import com.neu.prattle.websocket.MessageBinaryDecoder;
+import com.neu.prattle.websocket.MessageBinaryEncoder;
+import com.neu.prattle.websocket.MessageDecoder;
+import com.neu.prattle.websocket.MessageEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the JSON text codecs with the CBOR binary codecs, encoding and decoding a chat
+ * message with and without a base64 data URL attachment. The frame size of each format is
+ * printed when a trial starts.
+ * <p>
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.neu.prattle.benchmark.WireFormatBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireFormatBenchmark {
+
+  @Param({"0", "65536"})
+  private int attachmentBytes;
+
+  private Message message;
+  private MessageEncoder jsonEncoder;
+  private MessageDecoder jsonDecoder;
+  private MessageBinaryEncoder cborEncoder;
+  private MessageBinaryDecoder cborDecoder;
+  private String jsonFrame;
+  private byte[] cborFrame;
+
+  @Setup
+  public void setUp() {
+    jsonEncoder = new MessageEncoder();
+    jsonDecoder = new MessageDecoder();
+    cborEncoder = new MessageBinaryEncoder();
+    cborDecoder = new MessageBinaryDecoder();
+    Set<HashTag> hashTags = new HashSet<>();
+    for (int i = 0; i < 5; i++) {
+      hashTags.add(HashTag.hashTagBuilder().setHashTagId(i + 1).setHashTagValue("tag" + i).build());
+    }
+    message = Message.messageBuilder()
+            .setMessageId(1)
+            .setSourceMessageId(1)
+            .setFromUserId(1)
+            .setToUserId(2)
+            .setIsPrivateMessage(true)
+            .setMessageContent("Hello, this is a benchmark message #tag0 #tag1")
+            .setMessageGenerationTime(new Timestamp(System.currentTimeMillis()))
+            .setHashtags(hashTags)
+            .build();
+    if (attachmentBytes > 0) {
+      byte[] data = new byte[attachmentBytes];
+      new Random(42).nextBytes(data);
+      MessageAttachment attachment = new MessageAttachment();
+      attachment.setWebUrl("data:image/png;base64," + Base64.getEncoder().encodeToString(data));
+      message.setHasAttachment(true);
+      message.setAttachments(new HashSet<>(Collections.singletonList(attachment)));
+    }
+    jsonFrame = jsonEncoder.encode(message);
+    cborFrame = cborEncoder.encodeToBytes(message);
+    System.out.printf("%nattachment %d bytes: JSON frame %d bytes, CBOR frame %d bytes%n",
+            attachmentBytes, jsonFrame.getBytes(StandardCharsets.UTF_8).length,
+            cborFrame.length);
+  }
+
+  @Benchmark
+  public String encodeJson() {
+    return jsonEncoder.encode(message);
+  }
+
+  @Benchmark
+  public byte[] encodeCbor() {
+    return cborEncoder.encodeToBytes(message);
+  }
+
+  @Benchmark
+  public Message decodeJson() {
+    return jsonDecoder.decode(jsonFrame);
+  }
+
+  @Benchmark
+  public Message decodeCbor() {
+    return cborDecoder.decode(ByteBuffer.wrap(cborFrame));
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+            .include(WireFormatBenchmark.class.getSimpleName())
+            .build()).run();
+  }
+}
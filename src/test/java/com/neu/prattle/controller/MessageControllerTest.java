@@ -1,6 +1,13 @@
 package com.neu.prattle.controller;
 
+import com.neu.prattle.dto.ConversationPage;
+import com.neu.prattle.dto.ConversationSummary;
 import com.neu.prattle.dto.MessageDTO;
+import com.neu.prattle.dto.MessagePage;
+import com.neu.prattle.dto.SyncEvent;
+import com.neu.prattle.dto.SyncPage;
+import com.neu.prattle.dto.UnreadCounts;
+import com.neu.prattle.exceptions.MessageDoesNotExistException;
 import com.neu.prattle.exceptions.UserDoesNotExistException;
 import com.neu.prattle.model.HashTag;
 import com.neu.prattle.model.Message;
@@ -130,6 +137,144 @@ public class MessageControllerTest {
     }
   }
 
+  @Test
+  public void testGetChatHistoryPage() throws UserDoesNotExistException {
+    Message msg = Message.messageBuilder().setMessageContent("Mario").build();
+    when(messageService.getChatHistory("bob", "rob", 40, MessageController.MAX_HISTORY_PAGE))
+            .thenReturn(new MessagePage(Collections.singletonList(msg), 31, true));
+    MvcResult mvcResult;
+    try {
+      mvcResult = mockMvc.perform(MockMvcRequestBuilders
+              .get("/rest/message/bob/chathistory/rob/page?before=40&limit=5000")
+      ).andReturn();
+
+      assertEquals(200, mvcResult.getResponse().getStatus());
+      String content = mvcResult.getResponse().getContentAsString();
+      assertTrue(content.contains("Mario"));
+      assertTrue(content.contains("\"nextCursor\":31"));
+      assertTrue(content.contains("\"hasMore\":true"));
+    } catch (Exception e) {
+      fail(e.getMessage());
+    }
+  }
+
+  @Test
+  public void testInvalidGetChatHistoryPage() throws UserDoesNotExistException {
+    doThrow(UserDoesNotExistException.class).when(messageService)
+            .getChatHistory("bob", "rob", 0, 50);
+    MvcResult mvcResult;
+    try {
+      mvcResult = mockMvc.perform(MockMvcRequestBuilders
+              .get("/rest/message/bob/chathistory/rob/page")
+      ).andReturn();
+
+      assertEquals(200, mvcResult.getResponse().getStatus());
+      assertTrue(mvcResult.getResponse().getContentAsString().contains("\"hasMore\":false"));
+    } catch (Exception e) {
+      fail(e.getMessage());
+    }
+  }
+
+  @Test
+  public void testGetUnreadCounts() throws UserDoesNotExistException {
+    when(messageService.getUnreadCounts("bob"))
+            .thenReturn(new UnreadCounts(Collections.singletonMap(2, 3),
+                    Collections.singletonMap(5, 1)));
+    MvcResult mvcResult;
+    try {
+      mvcResult = mockMvc.perform(MockMvcRequestBuilders.get("/rest/message/bob/unreadcounts")
+      ).andReturn();
+      assertEquals(200, mvcResult.getResponse().getStatus());
+      assertEquals("{\"users\":{\"2\":3},\"groupsUnreadByAll\":{\"5\":1}}",
+              mvcResult.getResponse().getContentAsString());
+    } catch (Exception e) {
+      fail(e.getMessage());
+    }
+  }
+
+  @Test
+  public void testInvalidGetUnreadCounts() throws UserDoesNotExistException {
+    doThrow(UserDoesNotExistException.class).when(messageService).getUnreadCounts("bob");
+    MvcResult mvcResult;
+    try {
+      mvcResult = mockMvc.perform(MockMvcRequestBuilders.get("/rest/message/bob/unreadcounts")
+      ).andReturn();
+      assertEquals(200, mvcResult.getResponse().getStatus());
+      assertEquals("{\"users\":{},\"groupsUnreadByAll\":{}}",
+              mvcResult.getResponse().getContentAsString());
+    } catch (Exception e) {
+      fail(e.getMessage());
+    }
+  }
+
+  @Test
+  public void testGetInbox() throws UserDoesNotExistException {
+    ConversationSummary summary = new ConversationSummary(2, false, 40, 2, "hello", null);
+    summary.setUnreadCount(3);
+    when(messageService.getInbox("bob", 0, 100))
+            .thenReturn(new ConversationPage(Collections.singletonList(summary), 40, false));
+    MvcResult mvcResult;
+    try {
+      mvcResult = mockMvc.perform(MockMvcRequestBuilders
+              .get("/rest/message/bob/conversations?limit=500")).andReturn();
+      assertEquals(200, mvcResult.getResponse().getStatus());
+      String content = mvcResult.getResponse().getContentAsString();
+      assertTrue(content.contains("\"peerId\":2"));
+      assertTrue(content.contains("\"unreadCount\":3"));
+      assertTrue(content.contains("\"nextCursor\":40"));
+    } catch (Exception e) {
+      fail(e.getMessage());
+    }
+  }
+
+  @Test
+  public void testInvalidGetInbox() throws UserDoesNotExistException {
+    doThrow(UserDoesNotExistException.class).when(messageService).getInbox("bob", 7, 20);
+    MvcResult mvcResult;
+    try {
+      mvcResult = mockMvc.perform(MockMvcRequestBuilders
+              .get("/rest/message/bob/conversations?before=7")).andReturn();
+      assertEquals(200, mvcResult.getResponse().getStatus());
+      assertEquals("{\"conversations\":[],\"nextCursor\":7,\"hasMore\":false}",
+              mvcResult.getResponse().getContentAsString());
+    } catch (Exception e) {
+      fail(e.getMessage());
+    }
+  }
+
+  @Test
+  public void testSync() throws UserDoesNotExistException {
+    when(messageService.sync("bob", 4, 500)).thenReturn(new SyncPage(Collections.singletonList(
+            new SyncEvent(5, SyncEvent.STATUS, 9, MessageStatus.READ)), 5, false));
+    MvcResult mvcResult;
+    try {
+      mvcResult = mockMvc.perform(MockMvcRequestBuilders
+              .get("/rest/message/bob/sync?since=4&limit=1000")).andReturn();
+      assertEquals(200, mvcResult.getResponse().getStatus());
+      String content = mvcResult.getResponse().getContentAsString();
+      assertTrue(content.contains("\"type\":\"status\""));
+      assertTrue(content.contains("\"status\":\"READ\""));
+      assertTrue(content.contains("\"nextCursor\":5"));
+    } catch (Exception e) {
+      fail(e.getMessage());
+    }
+  }
+
+  @Test
+  public void testInvalidSync() throws UserDoesNotExistException {
+    doThrow(UserDoesNotExistException.class).when(messageService).sync("bob", 3, 100);
+    MvcResult mvcResult;
+    try {
+      mvcResult = mockMvc.perform(MockMvcRequestBuilders
+              .get("/rest/message/bob/sync?since=3")).andReturn();
+      assertEquals(200, mvcResult.getResponse().getStatus());
+      assertEquals("{\"events\":[],\"nextCursor\":3,\"hasMore\":false}",
+              mvcResult.getResponse().getContentAsString());
+    } catch (Exception e) {
+      fail(e.getMessage());
+    }
+  }
+
   @Test
   public void testGetMessageCount() throws UserDoesNotExistException {
     when(messageService.getNewMessageCount("bob", "rob"))
@@ -478,4 +623,23 @@ public class MessageControllerTest {
       fail(e.getMessage());
     }
   }
+
+  @Test
+  public void testGetAttachment() throws Exception {
+    when(messageService.getAttachmentData(1)).thenReturn("data:image/png;base64,AAAA");
+    MvcResult mvcResult = mockMvc.perform(MockMvcRequestBuilders.get("/rest/message/attachment/1"))
+            .andReturn();
+    assertEquals(200, mvcResult.getResponse().getStatus());
+    assertEquals("data:image/png;base64,AAAA", mvcResult.getResponse().getContentAsString());
+  }
+
+  @Test
+  public void testGetAttachmentNotFound() throws Exception {
+    when(messageService.getAttachmentData(2))
+            .thenThrow(new MessageDoesNotExistException("This attachment does not exist"));
+    MvcResult mvcResult = mockMvc.perform(MockMvcRequestBuilders.get("/rest/message/attachment/2"))
+            .andReturn();
+    assertEquals(200, mvcResult.getResponse().getStatus());
+    assertEquals("", mvcResult.getResponse().getContentAsString());
+  }
 }
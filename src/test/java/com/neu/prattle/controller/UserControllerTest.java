@@ -7,6 +7,7 @@ import com.neu.prattle.model.User;
 import com.neu.prattle.model.UserFeedMapper;
 import com.neu.prattle.repository.UserIPMapperRepository;
 import com.neu.prattle.service.UserService;
+import com.neu.prattle.websocket.ChatEndpoint;
 
 import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.Before;
@@ -481,6 +482,23 @@ public class UserControllerTest {
     }
   }
 
+  @Test
+  public void testIsOnline() throws Exception {
+    MvcResult mvcResult = mockMvc.perform(MockMvcRequestBuilders.get("/rest/user/42/online"))
+            .andReturn();
+    assertEquals(200, mvcResult.getResponse().getStatus());
+    assertEquals("false", mvcResult.getResponse().getContentAsString());
+  }
+
+  @Test
+  public void testGetOnlineCount() throws Exception {
+    MvcResult mvcResult = mockMvc.perform(MockMvcRequestBuilders.get("/rest/user/online/count"))
+            .andReturn();
+    assertEquals(200, mvcResult.getResponse().getStatus());
+    assertEquals(String.valueOf(ChatEndpoint.getPresence().getOnlineCount()),
+            mvcResult.getResponse().getContentAsString());
+  }
+
   @Test
   public void testGetUserFeeds() throws UserDoesNotExistException {
     User user = User.getUserBuilder().username("john").password(PASSWORD_101).build();
@@ -0,0 +1,86 @@
+package com.neu.prattle.repository;
+
+import com.neu.prattle.repository.ConversationIndexRepository.Entry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * A test class to test the implementation of ConversationIndexRepository class.
+ */
+public class ConversationIndexRepositoryTest {
+
+  private JdbcTemplate jdbcTemplate;
+  private ConversationIndexRepository repository;
+
+  @Before
+  public void setUp() {
+    jdbcTemplate = mock(JdbcTemplate.class);
+    repository = new ConversationIndexRepository();
+    repository.setJdbcTemplate(jdbcTemplate);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testUpsertAllIsOneBatch() {
+    Timestamp time = new Timestamp(1000L);
+    repository.upsertAll(Arrays.asList(new Entry(1, 2, false, 9, 1, "hi", time),
+            new Entry(0, 5, true, 10, 1, null, time)));
+
+    ArgumentCaptor<List<Object[]>> rows = ArgumentCaptor.forClass(List.class);
+    verify(jdbcTemplate).batchUpdate(startsWith("insert into conversation_index"),
+            rows.capture());
+    assertEquals(2, rows.getValue().size());
+    assertArrayEquals(new Object[]{1, 2, false, 9, 1, "hi", time}, rows.getValue().get(0));
+    assertArrayEquals(new Object[]{0, 5, true, 10, 1, null, time}, rows.getValue().get(1));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testFindPageWithGroups() {
+    repository.findPage(1, Arrays.asList(5, 6), 100, 20);
+
+    ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+    ArgumentCaptor<Object[]> args = ArgumentCaptor.forClass(Object[].class);
+    verify(jdbcTemplate).query(sql.capture(), args.capture(), any(RowMapper.class));
+    assertTrue(sql.getValue().contains("peer_id in (?, ?)"));
+    assertTrue(sql.getValue().endsWith("order by last_msg_id desc limit ?"));
+    assertArrayEquals(new Object[]{1, 5, 6, 100, 20}, args.getValue());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testFindPageWithoutGroups() {
+    repository.findPage(1, Collections.emptyList(), 100, 20);
+
+    ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+    ArgumentCaptor<Object[]> args = ArgumentCaptor.forClass(Object[].class);
+    verify(jdbcTemplate).query(sql.capture(), args.capture(), any(RowMapper.class));
+    assertFalse(sql.getValue().contains("peer_id in"));
+    assertArrayEquals(new Object[]{1, 100, 20}, args.getValue());
+  }
+
+  @Test
+  public void testEntryKey() {
+    assertEquals("0:5:true", new Entry(0, 5, true, 1, 2, null, null).getKey());
+    assertEquals("1:2:false", new Entry(1, 2, false, 1, 2, null, null).getKey());
+  }
+}
@@ -0,0 +1,127 @@
+package com.neu.prattle.repository;
+
+import com.neu.prattle.model.HashTag;
+import com.neu.prattle.model.Message;
+import com.neu.prattle.model.MessageStatus;
+import com.neu.prattle.repository.MessageBatchRepository.Row;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * A test class to test the implementation of MessageBatchRepository class.
+ */
+public class MessageBatchRepositoryTest {
+
+  private JdbcTemplate jdbcTemplate;
+  private MessageBatchRepository repository;
+
+  @Before
+  public void setUp() {
+    jdbcTemplate = mock(JdbcTemplate.class);
+    repository = new MessageBatchRepository();
+    repository.setJdbcTemplate(jdbcTemplate);
+  }
+
+  private static Message message(int id) {
+    return Message.messageBuilder().setMessageId(id).setFromUserId(1).setToUserId(2)
+            .setMessageContent("content #wfh").setMessageStatus(MessageStatus.DELIVERED)
+            .setMessageGenerationTime(new Timestamp(1000L))
+            .setIsPrivateMessage(true)
+            .setHashtags(new HashSet<>(Collections.singletonList(
+                    HashTag.hashTagBuilder().setHashTagId(7).setHashTagValue("wfh").build())))
+            .build();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testInsertAllBatchesEveryTable() {
+    Message encrypted = message(2);
+    encrypted.setEncryptionString("key");
+    List<Row> rows = Arrays.asList(Row.of(message(1), Collections.emptyList()),
+            Row.of(encrypted, Collections.singletonList("file.txt")));
+
+    repository.insertAll(rows);
+
+    ArgumentCaptor<List<Object[]>> messages = ArgumentCaptor.forClass(List.class);
+    verify(jdbcTemplate).batchUpdate(startsWith("insert into message ("), messages.capture());
+    assertEquals(2, messages.getValue().size());
+    assertEquals(1, messages.getValue().get(0)[0]);
+    assertEquals("DELIVERED", messages.getValue().get(0)[5]);
+    assertEquals(new Timestamp(1000L), messages.getValue().get(0)[8]);
+
+    ArgumentCaptor<List<Object[]>> encryptions = ArgumentCaptor.forClass(List.class);
+    verify(jdbcTemplate).batchUpdate(startsWith("insert into message_encryption"),
+            encryptions.capture());
+    assertEquals(1, encryptions.getValue().size());
+
+    ArgumentCaptor<List<Object[]>> hashTags = ArgumentCaptor.forClass(List.class);
+    verify(jdbcTemplate).batchUpdate(startsWith("insert into msg_hashtag_mapping"),
+            hashTags.capture());
+    assertEquals(7, hashTags.getValue().get(1)[1]);
+
+    verify(jdbcTemplate).batchUpdate(startsWith("insert into message_type_details"), anyList());
+    verify(jdbcTemplate).batchUpdate(startsWith("insert into msg_attachment_map"), anyList());
+  }
+
+  @Test
+  public void testOptionalTablesSkipped() {
+    Message message = message(1);
+    message.setHashTagSet(null);
+    repository.insertAll(Collections.singletonList(Row.of(message, Collections.emptyList())));
+    verify(jdbcTemplate, never()).batchUpdate(startsWith("insert into message_encryption"),
+            anyList());
+    verify(jdbcTemplate, never()).batchUpdate(startsWith("insert into msg_hashtag_mapping"),
+            anyList());
+    verify(jdbcTemplate, never()).batchUpdate(startsWith("insert into msg_attachment_map"),
+            anyList());
+  }
+
+  @Test
+  public void testFindMaxMessageId() {
+    when(jdbcTemplate.queryForObject(eq("select max(msg_id) from message"), eq(Integer.class)))
+            .thenReturn(null, 12);
+    assertEquals(0, repository.findMaxMessageId());
+    assertEquals(12, repository.findMaxMessageId());
+  }
+
+  @Test
+  public void testDeleteAllDeletesEveryTable() {
+    when(jdbcTemplate.queryForList(startsWith("select web_url from msg_attachment_map"),
+            eq(String.class), eq(3), eq(4))).thenReturn(Collections.singletonList("file.txt"));
+
+    assertEquals(Collections.singletonList("file.txt"), repository.deleteAll(Arrays.asList(3, 4)));
+
+    for (String table : Arrays.asList("msg_hashtag_mapping", "message_type_details",
+            "message_encryption", "message where")) {
+      verify(jdbcTemplate).update(startsWith("delete from " + table), eq(3), eq(4));
+    }
+    verify(jdbcTemplate).update("delete from msg_attachment_map where message_id in (?, ?)", 3,
+            4);
+  }
+
+  @Test
+  public void testDeleteAllNothingToDelete() {
+    assertTrue(repository.deleteAll(Collections.emptyList()).isEmpty());
+    verifyNoInteractions(jdbcTemplate);
+  }
+}
@@ -0,0 +1,72 @@
+package com.neu.prattle.repository;
+
+import com.neu.prattle.dto.SyncEvent;
+import com.neu.prattle.model.MessageStatus;
+import com.neu.prattle.repository.SyncLogRepository.Entry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * A test class to test the implementation of SyncLogRepository class.
+ */
+public class SyncLogRepositoryTest {
+
+  private JdbcTemplate jdbcTemplate;
+  private SyncLogRepository repository;
+
+  @Before
+  public void setUp() {
+    jdbcTemplate = mock(JdbcTemplate.class);
+    repository = new SyncLogRepository();
+    repository.setJdbcTemplate(jdbcTemplate);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testAppendAllNumbersEventsPerUser() {
+    when(jdbcTemplate.query(startsWith("select user_id, seq from sync_seq"),
+            any(Object[].class), any(RowMapper.class)))
+            .thenReturn(Arrays.asList(new long[]{1, 6}, new long[]{2, 8}));
+
+    repository.appendAll(Arrays.asList(
+            new Entry(2, SyncEvent.MESSAGE, 9, null),
+            new Entry(1, SyncEvent.MESSAGE, 9, null),
+            new Entry(1, SyncEvent.STATUS, 9, MessageStatus.READ)));
+
+    ArgumentCaptor<List<Object[]>> allocations = ArgumentCaptor.forClass(List.class);
+    verify(jdbcTemplate).batchUpdate(startsWith("insert into sync_seq"), allocations.capture());
+    assertArrayEquals(new Object[]{1, 2}, allocations.getValue().get(0));
+    assertArrayEquals(new Object[]{2, 1}, allocations.getValue().get(1));
+    ArgumentCaptor<List<Object[]>> rows = ArgumentCaptor.forClass(List.class);
+    verify(jdbcTemplate).batchUpdate(startsWith("insert into sync_log"), rows.capture());
+    assertEquals(3, rows.getValue().size());
+    assertArrayEquals(new Object[]{2, 8L, "message", 9, null}, rows.getValue().get(0));
+    assertArrayEquals(new Object[]{1, 5L, "message", 9, null}, rows.getValue().get(1));
+    assertArrayEquals(new Object[]{1, 6L, "status", 9, "READ"}, rows.getValue().get(2));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testFindAfter() {
+    repository.findAfter(1, 40, 100);
+
+    ArgumentCaptor<Object[]> args = ArgumentCaptor.forClass(Object[].class);
+    verify(jdbcTemplate).query(startsWith("select seq"), args.capture(), any(RowMapper.class));
+    assertArrayEquals(new Object[]{1, 40L, 100}, args.getValue());
+  }
+}
@@ -0,0 +1,138 @@
+package com.neu.prattle.service;
+
+import com.neu.prattle.dto.ConversationPage;
+import com.neu.prattle.dto.ConversationSummary;
+import com.neu.prattle.dto.UnreadCounts;
+import com.neu.prattle.model.Message;
+import com.neu.prattle.repository.ConversationIndexRepository;
+import com.neu.prattle.repository.ConversationIndexRepository.Entry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * A test class to test the implementation of ConversationIndexService class.
+ */
+public class ConversationIndexServiceTest {
+
+  private ConversationIndexRepository indexRepository;
+  private ConversationIndexService index;
+
+  @Before
+  public void setUp() {
+    indexRepository = mock(ConversationIndexRepository.class);
+    index = new ConversationIndexService();
+    index.setIndexRepository(indexRepository);
+  }
+
+  private static Message message(int id, int from, int to) {
+    return Message.messageBuilder().setMessageId(id).setFromUserId(from).setToUserId(to)
+            .setMessageContent("message " + id).build();
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<Entry> flushed() {
+    ArgumentCaptor<Collection<Entry>> batch = ArgumentCaptor.forClass(Collection.class);
+    verify(indexRepository).upsertAll(batch.capture());
+    return new ArrayList<>(batch.getValue());
+  }
+
+  @Test
+  public void testPrivateMessagesCoalescedPerConversation() {
+    index.messageSaved(message(2, 1, 2));
+    index.messageSaved(message(3, 2, 1));
+    index.messageSaved(message(1, 1, 2));
+    index.messageSaved(message(4, 1, 1));
+    assertEquals(3, index.getPendingCount());
+
+    index.flush();
+
+    List<Entry> batch = flushed();
+    assertEquals(3, batch.size());
+    for (Entry entry : batch) {
+      assertEquals(entry.getKey().equals("1:1:false") ? 4 : 3, entry.getMessageId());
+    }
+    assertEquals(0, index.getPendingCount());
+  }
+
+  @Test
+  public void testGroupMessageOneRowBroadcastNone() {
+    Message group = message(5, 1, 9);
+    group.setIsGroupMessage(true);
+    Message broadcast = message(6, 1, 2);
+    broadcast.setIsBroadcastMessage(true);
+    index.messageSaved(group);
+    index.messageSaved(broadcast);
+
+    index.flush();
+
+    List<Entry> batch = flushed();
+    assertEquals(1, batch.size());
+    assertEquals("0:9:true", batch.get(0).getKey());
+  }
+
+  @Test
+  public void testFailedFlushRetried() {
+    doThrow(new IllegalStateException("database down")).doNothing()
+            .when(indexRepository).upsertAll(anyCollection());
+    index.messageSaved(message(2, 1, 2));
+
+    index.flush();
+    assertEquals(2, index.getPendingCount());
+    index.flush();
+
+    assertEquals(0, index.getPendingCount());
+    verify(indexRepository, times(2)).upsertAll(anyCollection());
+  }
+
+  @Test
+  public void testNothingPendingNothingWritten() {
+    index.flush();
+    verify(indexRepository, times(0)).upsertAll(anyCollection());
+  }
+
+  @Test
+  public void testInboxFilledWithUnreadCounts() {
+    ConversationSummary user = new ConversationSummary(2, false, 40, 2, "hi", null);
+    ConversationSummary group = new ConversationSummary(5, true, 30, 3, "hey", null);
+    when(indexRepository.findPage(1, Collections.singletonList(5), Integer.MAX_VALUE, 2))
+            .thenReturn(Arrays.asList(user, group));
+
+    ConversationPage page = index.getInbox(1, Collections.singletonList(5),
+            new UnreadCounts(Collections.singletonMap(2, 3), Collections.emptyMap()), 0, 2);
+
+    assertEquals(3, user.getUnreadCount());
+    assertEquals(0, group.getUnreadCount());
+    assertEquals(30, page.getNextCursor());
+    assertTrue(page.hasMore());
+  }
+
+  @Test
+  public void testEmptyInboxKeepsCursor() {
+    when(indexRepository.findPage(1, Collections.emptyList(), 30, 20))
+            .thenReturn(Collections.emptyList());
+
+    ConversationPage page = index.getInbox(1, Collections.emptyList(),
+            new UnreadCounts(Collections.emptyMap(), Collections.emptyMap()), 30, 20);
+
+    assertEquals(30, page.getNextCursor());
+    assertFalse(page.hasMore());
+  }
+}
@@ -0,0 +1,124 @@
+package com.neu.prattle.service;
+
+import com.neu.prattle.model.Filter;
+import com.neu.prattle.model.User;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class to test the implementation of FilterIndex class.
+ */
+public class FilterIndexTest {
+
+  private FilterIndex filterIndex;
+  private User alice;
+  private User bob;
+
+  @Before
+  public void setUp() {
+    filterIndex = new FilterIndex();
+    alice = user(1, "spam");
+    bob = user(2, "offer", "SPAM");
+  }
+
+  private static Filter filter(String text) {
+    Filter filter = new Filter();
+    filter.setFilterString(text);
+    return filter;
+  }
+
+  private static User user(int id, String... filters) {
+    User user = User.getUserBuilder().username("user" + id).password("123456789").build();
+    user.setUserID(id);
+    Set<Filter> set = new HashSet<>();
+    for (String text : filters) {
+      set.add(filter(text));
+    }
+    user.setFilters(set);
+    return user;
+  }
+
+  @Test
+  public void testOneScanForManyRecipients() {
+    FilterIndex.Scan scan = filterIndex.scan("Great Offer inside");
+    // the users are indexed on first use, the scan picks up their keywords
+    assertFalse(scan.isFiltered(alice));
+    assertTrue(scan.isFiltered(bob));
+    assertEquals(2, filterIndex.getKeywordCount());
+
+    FilterIndex.Scan next = filterIndex.scan("spam");
+    assertTrue(next.isFiltered(alice));
+    assertTrue(next.isFiltered(bob));
+    assertFalse(next.isFiltered(user(4)));
+  }
+
+  @Test
+  public void testSameResultAsContains() {
+    assertTrue(filterIndex.isFiltered("No sPaM please", alice));
+    assertTrue(filterIndex.isFiltered("No sPaM please", bob));
+    assertFalse(filterIndex.isFiltered("Hello", alice));
+  }
+
+  @Test
+  public void testUpdateFilters() {
+    assertFalse(filterIndex.isFiltered("hello there", alice));
+
+    filterIndex.updateFilters(1, Collections.singleton(filter("hello")));
+    assertTrue(filterIndex.isFiltered("hello there", alice));
+    assertFalse(filterIndex.isFiltered("spam", alice));
+
+    filterIndex.updateFilters(1, Collections.emptySet());
+    assertFalse(filterIndex.isFiltered("hello there", alice));
+  }
+
+  @Test
+  public void testKeywordsAreReferenceCounted() {
+    filterIndex.isFiltered("x", alice);
+    filterIndex.isFiltered("x", bob);
+    assertEquals(2, filterIndex.getKeywordCount());
+
+    filterIndex.updateFilters(2, Arrays.asList(filter("offer")));
+    // alice still uses spam
+    assertEquals(2, filterIndex.getKeywordCount());
+    assertTrue(filterIndex.isFiltered("spam", alice));
+
+    filterIndex.forget(1);
+    assertEquals(1, filterIndex.getKeywordCount());
+
+    // freed slots are reused
+    filterIndex.updateFilters(3, Arrays.asList(filter("news")));
+    assertEquals(2, filterIndex.getKeywordCount());
+    assertTrue(filterIndex.isFiltered("Breaking news", user(3)));
+    assertFalse(filterIndex.isFiltered("Breaking news", bob));
+  }
+
+  @Test
+  public void testRefreshFiltersFromAnotherNode() {
+    List<Integer> changed = new ArrayList<>();
+    filterIndex.addListener(changed::add);
+    assertTrue(filterIndex.isFiltered("spam", alice));
+
+    filterIndex.refreshFilters(1, Collections.singleton(filter("offer")));
+    filterIndex.refreshFilters(3, Collections.singleton(filter("offer")));
+
+    assertFalse(filterIndex.isFiltered("spam", alice));
+    assertTrue(filterIndex.isFiltered("an offer", alice));
+    assertEquals(Collections.singleton(1), filterIndex.getUserIds());
+    assertTrue(changed.isEmpty());
+
+    filterIndex.updateFilters(1, Collections.emptySet());
+    assertEquals(Collections.singletonList(1), changed);
+  }
+}
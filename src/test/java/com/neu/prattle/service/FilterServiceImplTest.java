@@ -18,9 +18,11 @@ import java.util.Collections;
 import java.util.Optional;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -35,6 +37,9 @@ public class FilterServiceImplTest {
   @Mock
   private UserRepository userRepository;
 
+  @Mock
+  private FilterIndex filterIndex;
+
   @InjectMocks
   private FilterServiceImpl filterService;
 
@@ -83,6 +88,7 @@ public class FilterServiceImplTest {
     } catch (UserDoesNotExistException e) {
       fail("Should not have failed");
     }
+    verify(filterIndex).updateFilters(user.getUserID(), user.getFilters());
   }
 
   @Test(expected = UserDoesNotExistException.class)
@@ -114,6 +120,8 @@ public class FilterServiceImplTest {
     } catch (UserDoesNotExistException e) {
       fail("Should not have failed");
     }
+    assertTrue(user.getFilters().isEmpty());
+    verify(filterIndex).updateFilters(user.getUserID(), user.getFilters());
   }
 
   @Test(expected = UserDoesNotExistException.class)
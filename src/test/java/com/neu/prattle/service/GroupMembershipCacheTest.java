@@ -0,0 +1,103 @@
+package com.neu.prattle.service;
+
+import com.neu.prattle.service.group.GroupMembershipCache;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class to test the implementation of GroupMembershipCache class.
+ */
+public class GroupMembershipCacheTest {
+
+  private GroupMembershipCache cache;
+
+  @Before
+  public void setUp() {
+    cache = new GroupMembershipCache();
+  }
+
+  private static Set<Integer> setOf(Integer... values) {
+    return new HashSet<>(Arrays.asList(values));
+  }
+
+  @Test
+  public void testPutAndGet() {
+    assertFalse(cache.get(1).isPresent());
+    cache.put(1, setOf(10, 11), setOf(1, 2), cache.getGeneration());
+    assertEquals(setOf(10, 11), cache.get(1).get());
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testEntriesAreReadOnly() {
+    cache.put(1, setOf(10), setOf(1), cache.getGeneration()).add(11);
+  }
+
+  @Test
+  public void testStaleResolutionIsNotStored() {
+    long generation = cache.getGeneration();
+    cache.addMember(2, 12);
+    Set<Integer> resolved = cache.put(1, setOf(10), setOf(1, 2), generation);
+    assertEquals(setOf(10), resolved);
+    assertFalse(cache.get(1).isPresent());
+  }
+
+  @Test
+  public void testAddMemberPatchesDependentGroups() {
+    // group 1 has subgroup 2, group 3 is unrelated
+    cache.put(1, setOf(10), setOf(1, 2), cache.getGeneration());
+    cache.put(2, setOf(20), setOf(2), cache.getGeneration());
+    cache.put(3, setOf(30), setOf(3), cache.getGeneration());
+
+    cache.addMember(2, 21);
+
+    assertEquals(setOf(10, 21), cache.get(1).get());
+    assertEquals(setOf(20, 21), cache.get(2).get());
+    assertEquals(setOf(30), cache.get(3).get());
+  }
+
+  @Test
+  public void testInvalidateDropsDependentGroups() {
+    cache.put(1, setOf(10), setOf(1, 2), cache.getGeneration());
+    cache.put(2, setOf(20), setOf(2), cache.getGeneration());
+    cache.put(3, setOf(30), setOf(3), cache.getGeneration());
+
+    cache.invalidate(2);
+
+    assertFalse(cache.get(1).isPresent());
+    assertFalse(cache.get(2).isPresent());
+    assertTrue(cache.get(3).isPresent());
+  }
+
+  @Test
+  public void testClear() {
+    cache.put(1, Collections.singleton(10), Collections.singleton(1), cache.getGeneration());
+    cache.clear();
+    assertFalse(cache.get(1).isPresent());
+  }
+
+  @Test
+  public void testListenersLearnOfLocalChangesOnly() {
+    List<Integer> changed = new ArrayList<>();
+    cache.addListener(changed::add);
+    cache.put(1, setOf(10), setOf(1, 2), cache.getGeneration());
+
+    cache.addMember(2, 12);
+    cache.invalidate(3);
+    cache.evict(2);
+
+    assertEquals(Arrays.asList(2, 3), changed);
+    assertFalse(cache.get(1).isPresent());
+  }
+}
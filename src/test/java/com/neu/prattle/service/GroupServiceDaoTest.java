@@ -26,6 +26,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.stream.Collectors;
@@ -41,6 +42,8 @@ import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.Silent.class)
@@ -483,4 +486,81 @@ public class GroupServiceDaoTest {
 
     assertEquals(2, groupServiceDao.getAllUsersInGroupsAndSubGroups("group1").size());
   }
+
+  private User userWithId(int id) {
+    User user = User.getUserBuilder().username("user" + id).password("123455678").build();
+    user.setUserID(id);
+    return user;
+  }
+
+  private GroupUserMapper mapping(Group group, int groupId, User user) {
+    return new GroupUserMapper(group, user,
+            new GroupUserCompositeKey(groupId, user.getUserID()), false, false, true);
+  }
+
+  @Test
+  public void testGetMemberIdsIsCachedAndDeduplicated() {
+    Group group1 = mock(Group.class);
+    Group group2 = mock(Group.class);
+    when(group1.getGroupID()).thenReturn(1);
+    when(group2.getGroupID()).thenReturn(2);
+    // group 2 is a subgroup of group 1 and lists group 1 as a subgroup again
+    when(group1.getSubGroups()).thenReturn(Collections.singletonList(group2));
+    when(group2.getSubGroups()).thenReturn(Collections.singletonList(group1));
+    User user1 = userWithId(1);
+    User user2 = userWithId(2);
+    when(groupRepository.findByGroupID(1)).thenReturn(Optional.of(group1));
+    when(mapperRepository.getMapsByGroupId(1)).thenReturn(Arrays.asList(mapping(group1, 1, user1),
+            mapping(group1, 1, user2)));
+    when(mapperRepository.getMapsByGroupId(2)).thenReturn(
+            Collections.singletonList(mapping(group2, 2, user2)));
+
+    assertEquals(new HashSet<>(Arrays.asList(1, 2)),
+            groupServiceDao.getMemberIdsInGroupAndSubGroups(1));
+    assertEquals(new HashSet<>(Arrays.asList(1, 2)),
+            groupServiceDao.getMemberIdsInGroupAndSubGroups(1));
+
+    verify(groupRepository, times(1)).findByGroupID(1);
+    verify(mapperRepository, times(1)).getMapsByGroupId(1);
+    verify(mapperRepository, times(1)).getMapsByGroupId(2);
+  }
+
+  @Test
+  public void testGetMemberIdsPatchedAndInvalidated() {
+    Group parent = mock(Group.class);
+    Group child = mock(Group.class);
+    when(parent.getGroupID()).thenReturn(1);
+    when(child.getGroupID()).thenReturn(2);
+    when(parent.getSubGroups()).thenReturn(new ArrayList<>());
+    when(child.getSubGroups()).thenReturn(new ArrayList<>());
+    when(parent.getParentGroups()).thenReturn(new ArrayList<>());
+    when(child.getParentGroups()).thenReturn(new ArrayList<>());
+    User user1 = userWithId(1);
+    User user3 = userWithId(3);
+    when(groupRepository.findByGroupID(1)).thenReturn(Optional.of(parent));
+    when(mapperRepository.getMapsByGroupId(1)).thenReturn(
+            Collections.singletonList(mapping(parent, 1, user1)));
+    assertEquals(Collections.singleton(1), groupServiceDao.getMemberIdsInGroupAndSubGroups(1));
+
+    // patched without going to the database
+    groupServiceDao.addMemberToGroup(parent, user3, false, false, false);
+    assertEquals(new HashSet<>(Arrays.asList(1, 3)),
+            groupServiceDao.getMemberIdsInGroupAndSubGroups(1));
+    verify(groupRepository, times(1)).findByGroupID(1);
+
+    // resolved again after the structure changed
+    groupServiceDao.addSubGroup(parent, child);
+    groupServiceDao.getMemberIdsInGroupAndSubGroups(1);
+    verify(groupRepository, times(2)).findByGroupID(1);
+
+    groupServiceDao.rejectInvite(parent, user3);
+    groupServiceDao.getMemberIdsInGroupAndSubGroups(1);
+    verify(groupRepository, times(3)).findByGroupID(1);
+  }
+
+  @Test(expected = GroupNotFoundException.class)
+  public void testGetMemberIdsOfUnknownGroup() {
+    when(groupRepository.findByGroupID(5)).thenReturn(Optional.empty());
+    groupServiceDao.getMemberIdsInGroupAndSubGroups(5);
+  }
 }
@@ -0,0 +1,68 @@
+package com.neu.prattle.service;
+
+import com.neu.prattle.model.HashTag;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HashTagDictionaryTest {
+
+  private static HashTag hashTag(int id, String tag) {
+    return HashTag.hashTagBuilder().setHashTagId(id).setHashTagValue(tag)
+            .setHashTagMessages(new HashSet<>()).build();
+  }
+
+  @Test
+  public void testExtract() {
+    assertEquals(Arrays.asList("one", "two_2", "three"), new ArrayList<>(
+            HashTagDictionary.extract("#one and #two_2, #one again #three")));
+    assertTrue(HashTagDictionary.extract("no tags").isEmpty());
+    assertTrue(HashTagDictionary.extract(null).isEmpty());
+    assertTrue(HashTagDictionary.extract("# alone").isEmpty());
+  }
+
+  @Test
+  public void testPutAllCachesWithoutMessages() {
+    HashTagDictionary dictionary = new HashTagDictionary(10);
+    Map<String, HashTag> cached = dictionary.putAll(Arrays.asList(hashTag(1, "a"),
+            hashTag(2, "b")));
+
+    assertEquals(2, cached.size());
+    assertEquals(2, dictionary.size());
+    assertEquals(1, dictionary.get("a").getHashtagId());
+    assertNull(dictionary.get("a").getMessages());
+    assertSame(cached.get("b"), dictionary.get("b"));
+    assertNull(dictionary.get("c"));
+  }
+
+  @Test
+  public void testFirstEntryWins() {
+    HashTagDictionary dictionary = new HashTagDictionary(10);
+    HashTag first = dictionary.putAll(Collections.singletonList(hashTag(1, "a"))).get("a");
+    Map<String, HashTag> cached = dictionary.putAll(Collections.singletonList(hashTag(7, "a")));
+
+    assertSame(first, cached.get("a"));
+    assertEquals(1, dictionary.get("a").getHashtagId());
+  }
+
+  @Test
+  public void testCapacity() {
+    HashTagDictionary dictionary = new HashTagDictionary(1);
+    Map<String, HashTag> cached = dictionary.putAll(Arrays.asList(hashTag(1, "a"),
+            hashTag(2, "b")));
+
+    assertEquals(2, cached.size());
+    assertEquals(1, dictionary.size());
+    assertNull(dictionary.get("b"));
+  }
+}
@@ -12,14 +12,22 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -71,6 +79,41 @@ public class HashTagServiceImplTest {
     assertEquals(hashTag, hashTagService.createHashTag("awesomeness", message));
   }
 
+  @Test
+  public void testResolveHashTags() {
+    HashTag one = HashTag.hashTagBuilder().setHashTagId(1).setHashTagValue("one").build();
+    HashTag two = HashTag.hashTagBuilder().setHashTagId(2).setHashTagValue("two").build();
+    when(hashTagRepository.findByHashtagStringIn(any())).thenReturn(Collections.singletonList(one));
+    when(hashTagRepository.saveAll(any())).thenAnswer(invocation -> {
+      List<HashTag> created = invocation.getArgument(0);
+      assertEquals(1, created.size());
+      assertEquals("two", created.get(0).getHashtagString());
+      return Collections.singletonList(two);
+    });
+
+    Set<HashTag> hashTags = hashTagService.resolveHashTags(Arrays.asList("one", "two"));
+    assertEquals(new HashSet<>(Arrays.asList(1, 2)),
+            hashTags.stream().map(HashTag::getHashtagId).collect(Collectors.toSet()));
+    verify(hashTagRepository, times(1)).saveAll(any());
+
+    // Known tags are served from the dictionary
+    assertEquals(2, hashTagService.resolveHashTags(Arrays.asList("two", "one")).size());
+    assertEquals(2, hashTagService.createHashTag("two", null).getHashtagId());
+    verify(hashTagRepository, times(2)).findByHashtagStringIn(any());
+    verify(hashTagRepository, times(1)).saveAll(any());
+    verify(hashTagRepository, never()).findByHashtagString(anyString());
+  }
+
+  @Test
+  public void testResolveHashTagsAllExisting() {
+    HashTag one = HashTag.hashTagBuilder().setHashTagId(1).setHashTagValue("one").build();
+    when(hashTagRepository.findByHashtagStringIn(any())).thenReturn(Collections.singletonList(one));
+
+    assertEquals(1, hashTagService.resolveHashTags(Collections.singletonList("one")).size());
+    verify(hashTagRepository, times(1)).findByHashtagStringIn(any());
+    verify(hashTagRepository, never()).saveAll(any());
+  }
+
   @Test
   public void testGetTopHashTags() {
     when(hashTagRepository.findTop5ByOrderBySearchHitsDesc()).thenReturn(Collections.emptyList());
@@ -0,0 +1,147 @@
+package com.neu.prattle.service;
+
+import com.neu.prattle.model.Message;
+import com.neu.prattle.repository.MessageBatchRepository;
+import com.neu.prattle.repository.MessageBatchRepository.Expiring;
+import com.neu.prattle.utils.FileHandler;
+import com.neu.prattle.utils.HashedTimerWheel;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * A test class to test the implementation of MessageExpiryService class.
+ */
+public class MessageExpiryServiceTest {
+
+  private MessageBatchRepository batchRepository;
+  private MessageExpiryService expiry;
+  private HashedTimerWheel wheel;
+  private List<List<Expiring>> announced;
+
+  @Before
+  public void setUp() {
+    batchRepository = mock(MessageBatchRepository.class);
+    expiry = new MessageExpiryService();
+    expiry.setBatchRepository(batchRepository);
+    announced = new ArrayList<>();
+    expiry.addListener(announced::add);
+    wheel = new HashedTimerWheel(1000, 8);
+  }
+
+  private static Expiring expiring(int messageId, long age) {
+    return new Expiring(messageId, 1, 2,
+            System.currentTimeMillis() - age, false, false);
+  }
+
+  @Test
+  public void testRestoredMessagesExpireOnTheWheel() {
+    when(batchRepository.findSelfDestructMessages()).thenReturn(Arrays.asList(
+            expiring(1, MessageServiceDaoImpl.SELF_DESTRUCT_MILLIS + 1000),
+            expiring(2, MessageServiceDaoImpl.SELF_DESTRUCT_MILLIS - 500)));
+
+    expiry.start(wheel);
+
+    assertEquals(1, expiry.getPurgeBacklog());
+    assertEquals(1, wheel.getPendingCount());
+    expiry.purge();
+    verify(batchRepository).deleteAll(Collections.singletonList(1));
+    assertTrue(announced.isEmpty());
+
+    wheel.tick();
+    expiry.purge();
+    assertEquals(1, announced.size());
+    assertEquals(2, announced.get(0).get(0).getMessageId());
+    verify(batchRepository).deleteAll(Collections.singletonList(2));
+    assertEquals(0, expiry.getPurgeBacklog());
+  }
+
+  @Test
+  public void testOnlySelfDestructMessagesScheduled() {
+    expiry.start(wheel);
+    Message message = Message.messageBuilder().setMessageId(3).setFromUserId(1).setToUserId(2)
+            .setMessageGenerationTime(new Timestamp(System.currentTimeMillis())).build();
+
+    expiry.schedule(message);
+    assertEquals(0, wheel.getPendingCount());
+
+    message.setIsSelfDestructMessage(true);
+    expiry.schedule(message);
+    assertEquals(1, wheel.getPendingCount());
+  }
+
+  @Test
+  public void testPurgeIsBatched() {
+    expiry.setPurgeBatchSize(2);
+    when(batchRepository.findSelfDestructMessages()).thenReturn(Arrays.asList(
+            expiring(1, MessageServiceDaoImpl.SELF_DESTRUCT_MILLIS),
+            expiring(2, MessageServiceDaoImpl.SELF_DESTRUCT_MILLIS),
+            expiring(3, MessageServiceDaoImpl.SELF_DESTRUCT_MILLIS)));
+    expiry.start(wheel);
+
+    expiry.purge();
+    verify(batchRepository).deleteAll(Arrays.asList(1, 2));
+    assertEquals(1, expiry.getPurgeBacklog());
+    expiry.purge();
+    verify(batchRepository).deleteAll(Collections.singletonList(3));
+  }
+
+  @Test
+  public void testFailedPurgeRetried() {
+    when(batchRepository.findSelfDestructMessages()).thenReturn(Collections.singletonList(
+            expiring(1, MessageServiceDaoImpl.SELF_DESTRUCT_MILLIS)));
+    when(batchRepository.deleteAll(anyList()))
+            .thenThrow(new IllegalStateException("database down"))
+            .thenReturn(Collections.emptyList());
+    expiry.start(wheel);
+
+    expiry.purge();
+    assertEquals(1, expiry.getPurgeBacklog());
+    expiry.purge();
+    assertEquals(0, expiry.getPurgeBacklog());
+    verify(batchRepository, times(2)).deleteAll(Collections.singletonList(1));
+  }
+
+  @Test
+  public void testAttachmentFilesDeleted() {
+    String path = FileHandler.createFileForMediaTypeData("data:image/png;base64,AAAA");
+    when(batchRepository.findSelfDestructMessages()).thenReturn(Collections.singletonList(
+            expiring(1, MessageServiceDaoImpl.SELF_DESTRUCT_MILLIS)));
+    when(batchRepository.deleteAll(Collections.singletonList(1)))
+            .thenReturn(Collections.singletonList(path));
+    expiry.start(wheel);
+
+    expiry.purge();
+
+    assertFalse(new File(path).exists());
+  }
+
+  @Test
+  public void testNothingScheduledWhenDisabled() {
+    expiry.setEnabled(false);
+    expiry.start();
+    Message message = Message.messageBuilder().setMessageId(3).setIsSelfDestructMessage(true)
+            .build();
+    expiry.schedule(message);
+    expiry.purge();
+    verify(batchRepository, never()).findSelfDestructMessages();
+    verify(batchRepository, never()).deleteAll(anyList());
+  }
+}
@@ -1,6 +1,11 @@
 package com.neu.prattle.service;
 
+import com.neu.prattle.dto.ConversationPage;
 import com.neu.prattle.dto.MessageDTO;
+import com.neu.prattle.dto.MessagePage;
+import com.neu.prattle.dto.SyncEvent;
+import com.neu.prattle.dto.SyncPage;
+import com.neu.prattle.dto.UnreadCounts;
 import com.neu.prattle.exceptions.ConversationNotFoundException;
 import com.neu.prattle.exceptions.MessageAlreadyExistsException;
 import com.neu.prattle.exceptions.MessageDoesNotExistException;
@@ -13,19 +18,23 @@ import com.neu.prattle.model.MessageStatus;
 import com.neu.prattle.model.User;
 import com.neu.prattle.model.group.Group;
 import com.neu.prattle.repository.HashTagRepository;
+import com.neu.prattle.repository.MessageAttachmentRepository;
 import com.neu.prattle.repository.MessageRepository;
 import com.neu.prattle.repository.UserRepository;
 import com.neu.prattle.service.group.GroupServiceDaoImpl;
+import com.neu.prattle.utils.FileHandler;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.io.File;
 import java.sql.Timestamp;
 import java.time.LocalDateTime;
 import java.time.Month;
@@ -37,10 +46,13 @@ import java.util.List;
 import java.util.Optional;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.mock;
@@ -74,6 +86,24 @@ public class MessageServiceDaoImplTest {
   @Mock
   private UserRepository userRepository;
 
+  @Mock
+  private MessageWriteBehindBuffer writeBehindBuffer;
+
+  @Mock
+  private MessageAttachmentRepository attachmentRepository;
+
+  @Mock
+  private MessageExpiryService messageExpiry;
+
+  @Mock
+  private UnreadCounterService unreadCounters;
+
+  @Mock
+  private ConversationIndexService conversationIndex;
+
+  @Mock
+  private SyncLogService syncLog;
+
   @InjectMocks
   private MessageServiceDaoImpl messageService;
 
@@ -81,6 +111,7 @@ public class MessageServiceDaoImplTest {
   public void setUp() {
     MockitoAnnotations.initMocks(this);
     messageService.setMessageRepository(messageRepository);
+    messageService.setFilterIndex(new FilterIndex());
     attachment = new MessageAttachment();
     attachment.setFileID(1);
     attachment.setWebUrl("www.googledrive.com");
@@ -93,10 +124,76 @@ public class MessageServiceDaoImplTest {
     assertEquals(messageService.saveNewMessage(testMessage), testMessage);
   }
 
+  @Test
+  public void testSaveMessageWithStoredAttachment() {
+    MessageAttachment stored = new MessageAttachment();
+    stored.setWebUrl("spilled.txt");
+    stored.setStored(true);
+    Message message = Message.messageBuilder().setFromUserId(1).setToUserId(2)
+            .setMessageContent("large").setMessageHasAttachment(true).build();
+    message.setAttachments(new HashSet<>(Collections.singletonList(stored)));
+    given(messageRepository.saveAndFlush(any(Message.class))).willAnswer(invocation -> {
+      assertEquals("spilled.txt", stored.getWebUrl());
+      stored.setFileID(12);
+      return invocation.getArgument(0);
+    });
+
+    messageService.saveNewMessage(message);
+
+    assertEquals(MessageServiceDaoImpl.ATTACHMENT_PATH + 12, stored.getWebUrl());
+  }
+
   @Test
   public void testSaveMessage() {
     given(messageRepository.saveAndFlush(any(Message.class))).willReturn(testMessage1);
     assertEquals(messageService.saveNewMessage(testMessage1), testMessage1);
+    Mockito.verify(messageExpiry).schedule(testMessage1);
+    Mockito.verify(unreadCounters).messageSaved(testMessage1);
+    Mockito.verify(conversationIndex).messageSaved(testMessage1);
+    Mockito.verify(syncLog).messageSaved(testMessage1);
+  }
+
+  @Test
+  public void testSaveMessageWriteBehind() {
+    when(writeBehindBuffer.isEnabled()).thenReturn(true);
+    when(writeBehindBuffer.accept(any(Message.class), any())).thenAnswer(invocation -> {
+      Message message = invocation.getArgument(0);
+      message.setMessageId(10);
+      return message;
+    });
+    Message message = Message.messageBuilder().setFromUserId(1).setToUserId(2)
+            .setMessageContent("buffered").build();
+
+    assertEquals(10, messageService.saveNewMessage(message).getMessageId());
+    Mockito.verify(messageRepository, Mockito.never()).existsById(anyInt());
+    Mockito.verify(messageRepository, Mockito.never()).saveAndFlush(any(Message.class));
+    Mockito.verify(messageExpiry).schedule(message);
+  }
+
+  @Test(expected = MessageAlreadyExistsException.class)
+  public void testSaveMessageWriteBehindAlreadyPending() {
+    when(writeBehindBuffer.isEnabled()).thenReturn(true);
+    when(writeBehindBuffer.findPending(1)).thenReturn(Optional.of(testMessage));
+    messageService.saveNewMessage(testMessage);
+  }
+
+  @Test
+  public void testFindPendingMessageById() {
+    when(writeBehindBuffer.findPending(2)).thenReturn(Optional.of(testMessage1));
+    assertEquals(testMessage1, messageService.findMessageById(2));
+    Mockito.verify(messageRepository, Mockito.never()).findById(anyInt());
+  }
+
+  @Test
+  public void testUpdatePendingMessageFlushesFirst() {
+    when(writeBehindBuffer.findPending(2)).thenReturn(Optional.of(testMessage1));
+    when(messageRepository.save(any(Message.class))).thenAnswer(s -> s.getArguments()[0]);
+    MessageDTO messageDTO = new MessageDTO();
+    messageDTO.setMessageStatus(MessageStatus.READ);
+
+    assertEquals(MessageStatus.READ,
+            messageService.updateMessage(messageDTO, 2).getMessageStatus());
+    Mockito.verify(writeBehindBuffer).flush();
   }
 
   @Test(expected = MessageAlreadyExistsException.class)
@@ -125,6 +222,8 @@ public class MessageServiceDaoImplTest {
     messageDTO.setMessageStatus(MessageStatus.READ);
     assertEquals(MessageStatus.READ,
             this.messageService.updateMessage(messageDTO, 4).getMessageStatus());
+    Mockito.verify(unreadCounters).statusChanged(testMessage, MessageStatus.DELETED);
+    Mockito.verify(syncLog).statusChanged(testMessage, MessageStatus.DELETED);
   }
 
   @Test(expected = MessageDoesNotExistException.class)
@@ -155,18 +254,17 @@ public class MessageServiceDaoImplTest {
   public void testGetMessagesForRecievingUser() throws UserDoesNotExistException {
     User bob = User.getUserBuilder().username("bob").password("123456789").build();
     when(userRepository.findByUsername(anyString())).thenReturn(Optional.of(bob));
-    given(messageRepository.findByToUserId(0))
-            .willReturn(Arrays.asList(this.testMessage3, this.testMessage5, this.testMessage1));
+    given(messageRepository.findReceivedMessages(eq(0), any(Timestamp.class)))
+            .willReturn(Arrays.asList(this.testMessage1, this.testMessage3, this.testMessage5));
     assertEquals(this.messageService.findMessagesForReceivingUser("bob", true),
             Arrays.asList(this.testMessage1, this.testMessage3, this.testMessage5));
   }
 
   @Test
   public void testGetMessagesForBetweenTwoUsers() throws UserDoesNotExistException {
-    given(messageRepository.findByFromUserIdAndToUserId(2, 1)).willReturn(
-            new ArrayList<>(Arrays.asList(this.testMessage1, this.testMessage3, this.testMessage5)));
-    given(messageRepository.findByFromUserIdAndToUserId(1, 2)).willReturn(
-            new ArrayList<>(Arrays.asList(this.testMessage, this.testMessage2, this.testMessage4)));
+    given(messageRepository.findConversation(eq(1), eq(2), any(Timestamp.class))).willReturn(
+            new ArrayList<>(Arrays.asList(testMessage, testMessage1, testMessage2, testMessage3,
+                    testMessage4, testMessage5)));
     User user1 = mock(User.class);
     User user2 = mock(User.class);
     given(user1.getUserID()).willReturn(1);
@@ -177,14 +275,28 @@ public class MessageServiceDaoImplTest {
     assertEquals(this.messageService.findMessagesBetweenTwoUsers("james", "jamie", true), new ArrayList<>(
             Arrays.asList(testMessage, testMessage1, testMessage2, testMessage3, testMessage4,
                     testMessage5)));
+  }
 
-    given(messageRepository.findByFromUserIdAndToUserId(2, 1)).willReturn(
-            new ArrayList<>(Arrays.asList(this.testMessage3, this.testMessage5, this.testMessage1)));
-    given(messageRepository.findByFromUserIdAndToUserId(1, 2)).willReturn(
-            new ArrayList<>(Arrays.asList(this.testMessage4, this.testMessage, this.testMessage2)));
-    assertEquals(this.messageService.findMessagesBetweenTwoUsers("james", "jamie", true), new ArrayList<>(
-            Arrays.asList(testMessage, testMessage1, testMessage2, testMessage3, testMessage4,
-                    testMessage5)));
+  @Test
+  public void testGetMessagesBetweenTwoUsersExpiryInQuery() throws UserDoesNotExistException {
+    User user1 = mock(User.class);
+    User user2 = mock(User.class);
+    given(user1.getUserID()).willReturn(1);
+    given(user2.getUserID()).willReturn(2);
+    given(userRepository.findByUsername("james")).willReturn(Optional.of(user1));
+    given(userRepository.findByUsername("jamie")).willReturn(Optional.of(user2));
+    ArgumentCaptor<Timestamp> expiredBefore = ArgumentCaptor.forClass(Timestamp.class);
+    given(messageRepository.findConversation(eq(1), eq(2), expiredBefore.capture()))
+            .willReturn(new ArrayList<>(Collections.singletonList(testMessage)));
+
+    long now = System.currentTimeMillis();
+    messageService.findMessagesBetweenTwoUsers("james", "jamie", true);
+    messageService.findMessagesBetweenTwoUsers("james", "jamie", false);
+
+    long cutoff = expiredBefore.getAllValues().get(0).getTime();
+    assertTrue(cutoff >= now - MessageServiceDaoImpl.SELF_DESTRUCT_MILLIS);
+    assertTrue(cutoff <= System.currentTimeMillis() - MessageServiceDaoImpl.SELF_DESTRUCT_MILLIS);
+    assertEquals(0, expiredBefore.getAllValues().get(1).getTime());
   }
 
   @Test(expected = ConversationNotFoundException.class)
@@ -195,8 +307,8 @@ public class MessageServiceDaoImplTest {
     given(user2.getUserID()).willReturn(2);
     given(userRepository.findByUsername("james")).willReturn(Optional.of(user1));
     given(userRepository.findByUsername("jamie")).willReturn(Optional.of(user2));
-    given(messageRepository.findByFromUserIdAndToUserId(2, 1)).willReturn(new ArrayList<>());
-    given(messageRepository.findByFromUserIdAndToUserId(1, 2)).willReturn(new ArrayList<>());
+    given(messageRepository.findConversation(eq(1), eq(2), any(Timestamp.class)))
+            .willReturn(new ArrayList<>());
     this.messageService.findMessagesBetweenTwoUsers("james", "jamie", true);
   }
 
@@ -215,9 +327,7 @@ public class MessageServiceDaoImplTest {
             .setMessageGenerationTime(Timestamp.valueOf(LocalDateTime.now())).build();
     Message message4 = Message.messageBuilder().setFromUserId(1).setToUserId(3)
             .setMessageGenerationTime(Timestamp.valueOf(LocalDateTime.now())).build();
-    given(messageRepository.findByToUserId(3))
-            .willReturn(new ArrayList<>(Arrays.asList(message1, message2, message3, message4)));
-    given(messageRepository.fetchUnreadMessages(user1.getUserID()))
+    given(messageRepository.fetchUnreadMessages(eq(3), any(Timestamp.class)))
             .willReturn(new ArrayList<>(Arrays.asList(message1, message2, message3, message4)));
     assertEquals(new ArrayList<>(Arrays.asList(message1, message2, message3, message4)),
             messageService.getUnsentMessages("jamie", true));
@@ -234,8 +344,6 @@ public class MessageServiceDaoImplTest {
             .setMessageGenerationTime(Timestamp.valueOf(LocalDateTime.now())).build();
     Message message4 = Message.messageBuilder().setFromUserId(1).setToUserId(3)
             .setMessageGenerationTime(Timestamp.valueOf(LocalDateTime.now())).build();
-    given(messageRepository.findByToUserId(3))
-            .willReturn(new ArrayList<>(Arrays.asList(message1, message2, message3, message4)));
     User user1 = mock(User.class);
     given(user1.getUserID()).willReturn(3);
     given(userRepository.findByUsername("jamie")).willReturn(Optional.empty());
@@ -243,9 +351,191 @@ public class MessageServiceDaoImplTest {
             messageService.getUnsentMessages("jamie", true));
   }
 
+  @Test
+  public void testGetUnsentMessagesPage() {
+    User user = User.getUserBuilder().username("jamie").password("Password@123").build();
+    user.setUserID(3);
+    Message fresh = Message.messageBuilder().setFromUserId(1).setToUserId(3)
+            .setMessageContent("fresh")
+            .setMessageHasAttachment(true)
+            .setMessageGenerationTime(Timestamp.valueOf(LocalDateTime.now())).build();
+    fresh.setMessageId(11);
+    fresh.setAttachments(new HashSet<>(Collections.singletonList(attachment)));
+    Message later = Message.messageBuilder().setFromUserId(1).setToUserId(3)
+            .setMessageContent("later")
+            .setMessageGenerationTime(Timestamp.valueOf(LocalDateTime.now())).build();
+    later.setMessageId(12);
+    given(messageRepository.fetchUnreadMessagesAfter(eq(3), eq(10), eq(2), any(Timestamp.class)))
+            .willReturn(new ArrayList<>(Arrays.asList(fresh, later)));
+
+    MessagePage page = messageService.getUnsentMessages(user, 10, 2);
+
+    assertEquals(Arrays.asList(fresh, later), page.getMessages());
+    assertEquals(12, page.getNextCursor());
+    assertTrue(page.hasMore());
+    assertEquals(MessageServiceDaoImpl.ATTACHMENT_PATH + "1", attachment.getWebUrl());
+  }
+
+  @Test
+  public void testGetUnsentMessagesLastPage() {
+    User user = User.getUserBuilder().username("jamie").password("Password@123").build();
+    user.setUserID(3);
+    given(messageRepository.fetchUnreadMessagesAfter(eq(3), eq(12), eq(2), any(Timestamp.class)))
+            .willReturn(new ArrayList<>());
+
+    MessagePage page = messageService.getUnsentMessages(user, 12, 2);
+
+    assertTrue(page.getMessages().isEmpty());
+    assertEquals(12, page.getNextCursor());
+    assertFalse(page.hasMore());
+  }
+
+  @Test
+  public void testGetMessagesForUser() {
+    User user = User.getUserBuilder().username("jamie").password("Password@123").build();
+    user.setUserID(3);
+    Filter filter = new Filter();
+    filter.setFilterString("spam");
+    user.setFilters(Collections.singleton(filter));
+    Message first = Message.messageBuilder().setFromUserId(1).setToUserId(3)
+            .setMessageContent("first").build();
+    first.setMessageId(11);
+    Message spam = Message.messageBuilder().setFromUserId(1).setToUserId(3)
+            .setMessageContent("spam").build();
+    spam.setMessageId(12);
+    Message second = Message.messageBuilder().setFromUserId(1).setToUserId(3)
+            .setMessageContent("second").build();
+    second.setMessageId(14);
+    given(writeBehindBuffer.findPending(anyInt())).willReturn(Optional.empty());
+    // 13 expired, the query leaves it out
+    given(messageRepository.findUnexpiredByIds(eq(Arrays.asList(11, 12, 13, 14)),
+            any(Timestamp.class))).willReturn(Arrays.asList(second, spam, first));
+
+    assertEquals(Arrays.asList(first, second),
+            messageService.getMessagesForUser(user, Arrays.asList(11, 12, 13, 14)));
+    Mockito.verify(writeBehindBuffer, Mockito.never()).flush();
+  }
+
+  @Test
+  public void testSyncFillsMessages() throws UserDoesNotExistException {
+    User user = User.getUserBuilder().username("jamie").password("Password@123").build();
+    user.setUserID(3);
+    given(userRepository.findByUsername("jamie")).willReturn(Optional.of(user));
+    Message fresh = Message.messageBuilder().setFromUserId(1).setToUserId(3)
+            .setMessageContent("fresh").build();
+    fresh.setMessageId(11);
+    SyncEvent saved = new SyncEvent(5, SyncEvent.MESSAGE, 11, null);
+    SyncEvent expired = new SyncEvent(6, SyncEvent.MESSAGE, 12, null);
+    SyncEvent read = new SyncEvent(7, SyncEvent.STATUS, 11, MessageStatus.READ);
+    given(syncLog.sync(3, 4, 3))
+            .willReturn(new SyncPage(Arrays.asList(saved, expired, read), 7, true));
+    given(writeBehindBuffer.findPending(anyInt())).willReturn(Optional.empty());
+    given(writeBehindBuffer.findPending(12)).willReturn(Optional.of(fresh));
+    // 12 expired, the query leaves it out
+    given(messageRepository.findUnexpiredByIds(eq(Arrays.asList(11, 12)), any(Timestamp.class)))
+            .willReturn(Collections.singletonList(fresh));
+
+    SyncPage page = messageService.sync("jamie", 4, 3);
+
+    assertEquals(Arrays.asList(saved, expired, read), page.getEvents());
+    assertEquals(fresh, saved.getMessage());
+    assertEquals(null, expired.getMessage());
+    assertEquals(null, read.getMessage());
+    assertEquals(7, page.getNextCursor());
+    assertTrue(page.hasMore());
+    Mockito.verify(writeBehindBuffer).flush();
+  }
+
+  @Test
+  public void testSyncOnlyStatusChanges() throws UserDoesNotExistException {
+    User user = User.getUserBuilder().username("jamie").password("Password@123").build();
+    user.setUserID(3);
+    given(userRepository.findByUsername("jamie")).willReturn(Optional.of(user));
+    SyncPage page = new SyncPage(Collections.singletonList(
+            new SyncEvent(5, SyncEvent.STATUS, 11, MessageStatus.READ)), 5, false);
+    given(syncLog.sync(3, 4, 3)).willReturn(page);
+
+    assertEquals(page, messageService.sync("jamie", 4, 3));
+    Mockito.verify(messageRepository, Mockito.never()).findUnexpiredByIds(any(), any());
+  }
+
+  @Test(expected = UserDoesNotExistException.class)
+  public void testSyncUnknownUser() throws UserDoesNotExistException {
+    given(userRepository.findByUsername("nobody")).willReturn(Optional.empty());
+    messageService.sync("nobody", 0, 10);
+  }
+
+  @Test
+  public void testGetChatHistoryLatestPage() throws UserDoesNotExistException {
+    User user1 = mock(User.class);
+    User user2 = mock(User.class);
+    given(user1.getUserID()).willReturn(1);
+    given(user2.getUserID()).willReturn(2);
+    given(userRepository.findByUsername("james")).willReturn(Optional.of(user1));
+    given(userRepository.findByUsername("jamie")).willReturn(Optional.of(user2));
+    Message reply = Message.messageBuilder().setFromUserId(2).setToUserId(1)
+            .setMessageContent("reply")
+            .setMessageGenerationTime(Timestamp.valueOf(LocalDateTime.now())).build();
+    reply.setMessageId(20);
+    Message latest = Message.messageBuilder().setFromUserId(1).setToUserId(2)
+            .setMessageContent("latest")
+            .setMessageGenerationTime(Timestamp.valueOf(LocalDateTime.now())).build();
+    latest.setMessageId(21);
+    given(messageRepository.fetchConversationBefore(eq(1), eq(2), eq(Integer.MAX_VALUE), eq(2),
+            any(Timestamp.class))).willReturn(new ArrayList<>(Arrays.asList(reply, latest)));
+
+    MessagePage page = messageService.getChatHistory("james", "jamie", 0, 2);
+
+    assertEquals(Arrays.asList(reply, latest), page.getMessages());
+    assertEquals(20, page.getNextCursor());
+    assertTrue(page.hasMore());
+  }
+
+  @Test
+  public void testGetChatHistoryFirstPage() throws UserDoesNotExistException {
+    User user1 = mock(User.class);
+    User user2 = mock(User.class);
+    given(user1.getUserID()).willReturn(1);
+    given(user2.getUserID()).willReturn(2);
+    given(userRepository.findByUsername("james")).willReturn(Optional.of(user1));
+    given(userRepository.findByUsername("jamie")).willReturn(Optional.of(user2));
+    given(messageRepository.fetchConversationBefore(eq(1), eq(2), eq(20), eq(2),
+            any(Timestamp.class))).willReturn(new ArrayList<>());
+
+    MessagePage page = messageService.getChatHistory("james", "jamie", 20, 2);
+
+    assertTrue(page.getMessages().isEmpty());
+    assertEquals(20, page.getNextCursor());
+    assertFalse(page.hasMore());
+  }
+
+  @Test(expected = UserDoesNotExistException.class)
+  public void testGetChatHistoryUnknownUser() throws UserDoesNotExistException {
+    given(userRepository.findByUsername("james")).willReturn(Optional.empty());
+    messageService.getChatHistory("james", "jamie", 0, 2);
+  }
+
+  @Test
+  public void testGetAttachmentData() {
+    MessageAttachment stored = new MessageAttachment();
+    stored.setWebUrl(FileHandler.createFileForMediaTypeData("data:image/png;base64,AAAA"));
+    given(attachmentRepository.findById(5)).willReturn(Optional.of(stored));
+
+    try {
+      assertEquals("data:image/png;base64,AAAA", messageService.getAttachmentData(5));
+    } finally {
+      new File(stored.getWebUrl()).delete();
+    }
+  }
+
+  @Test(expected = MessageDoesNotExistException.class)
+  public void testGetAttachmentDataNotFound() {
+    given(attachmentRepository.findById(5)).willReturn(Optional.empty());
+    messageService.getAttachmentData(5);
+  }
+
   @Test
   public void getUnsetMessagesNoMessages() throws UserDoesNotExistException {
-    given(messageRepository.findByToUserId(3)).willReturn(new ArrayList<>());
     User user1 = mock(User.class);
     given(user1.getUserID()).willReturn(3);
     given(userRepository.findByUsername("jamie")).willReturn(Optional.of(user1));
@@ -262,8 +552,6 @@ public class MessageServiceDaoImplTest {
             .setMessageGenerationTime(Timestamp.valueOf(LocalDateTime.now())).build();
     Message message4 = Message.messageBuilder().setFromUserId(1).setToUserId(3)
             .setMessageGenerationTime(Timestamp.valueOf(LocalDateTime.now())).build();
-    given(messageRepository.findByToUserId(3))
-            .willReturn(new ArrayList<>(Arrays.asList(message1, message2, message3, message4)));
     Timestamp ts = Timestamp.valueOf(LocalDateTime.now());
     User user1 = mock(User.class);
     given(user1.getUserID()).willReturn(3);
@@ -274,23 +562,52 @@ public class MessageServiceDaoImplTest {
 
   @Test
   public void testGetMessagesCount() throws UserDoesNotExistException {
-    given(messageRepository.findByFromUserIdAndToUserId(2, 1)).willReturn(
-            new ArrayList<>(Arrays.asList(this.testMessage1, this.testMessage3, this.testMessage5)));
-    given(messageRepository.findByFromUserIdAndToUserId(1, 2)).willReturn(
-            new ArrayList<>(Arrays.asList(this.testMessage, this.testMessage2, this.testMessage4)));
     User user1 = mock(User.class);
     User user2 = mock(User.class);
     given(user1.getUserID()).willReturn(1);
     given(user2.getUserID()).willReturn(2);
     given(userRepository.findByUsername("james")).willReturn(Optional.of(user1));
     given(userRepository.findByUsername("jamie")).willReturn(Optional.of(user2));
-    given(messageRepository.findNewMessages(1, 2)).willReturn(new ArrayList<>(
-            Arrays.asList(testMessage, testMessage1, testMessage2, testMessage3, testMessage4,
-                    testMessage5)));
+    given(unreadCounters.getCount(1, 2)).willReturn(6);
 
     assertEquals(6, this.messageService.getNewMessageCount("james", "jamie"));
   }
 
+  @Test
+  public void testGetUnreadCounts() throws UserDoesNotExistException {
+    User user1 = mock(User.class);
+    given(user1.getUserID()).willReturn(1);
+    given(userRepository.findByUsername("james")).willReturn(Optional.of(user1));
+    given(groupService.getGroupIdsForUser(1)).willReturn(Collections.singletonList(5));
+    UnreadCounts counts = new UnreadCounts(Collections.singletonMap(2, 3),
+            Collections.singletonMap(5, 1));
+    given(unreadCounters.getCounts(1, Collections.singletonList(5))).willReturn(counts);
+
+    assertEquals(counts, messageService.getUnreadCounts("james"));
+  }
+
+  @Test
+  public void testGetInbox() throws UserDoesNotExistException {
+    User user1 = mock(User.class);
+    given(user1.getUserID()).willReturn(1);
+    given(userRepository.findByUsername("james")).willReturn(Optional.of(user1));
+    given(groupService.getGroupIdsForUser(1)).willReturn(Collections.singletonList(5));
+    UnreadCounts counts = new UnreadCounts(Collections.singletonMap(2, 3),
+            Collections.singletonMap(5, 1));
+    given(unreadCounters.getCounts(1, Collections.singletonList(5))).willReturn(counts);
+    ConversationPage page = new ConversationPage(new ArrayList<>(), 0, false);
+    given(conversationIndex.getInbox(1, Collections.singletonList(5), counts, 0, 20))
+            .willReturn(page);
+
+    assertEquals(page, messageService.getInbox("james", 0, 20));
+  }
+
+  @Test(expected = UserDoesNotExistException.class)
+  public void testGetInboxUnknownUser() throws UserDoesNotExistException {
+    given(userRepository.findByUsername("nobody")).willReturn(Optional.empty());
+    messageService.getInbox("nobody", 0, 20);
+  }
+
 
   private void createTestMessages() {
     this.emptyMessage = Message.messageBuilder().build();
@@ -522,7 +839,7 @@ public class MessageServiceDaoImplTest {
                                     new HashSet<>(Arrays.asList(this.emptyMessage)))))).build();
     when(groupService.getGroupsForUser(any())).thenReturn(Collections.emptyList());
     when(userRepository.findByUsername(anyString())).thenReturn(Optional.of(user1));
-    when(hashTagRepository.findMessagesByHashtagString(anyString())).thenReturn(
+    when(hashTagRepository.findMessagesByHashtagString(anyString(), any(Timestamp.class))).thenReturn(
             Collections.singletonList(message));
     assertTrue(messageService.findMessagesByHashtag("wfh", "Bob", true).contains(message));
   }
@@ -556,7 +873,7 @@ public class MessageServiceDaoImplTest {
                                     new HashSet<>(Arrays.asList(this.emptyMessage)))))).build();
     when(groupService.getGroupsForUser(any())).thenReturn(Collections.singletonList(group));
     when(userRepository.findByUsername(anyString())).thenReturn(Optional.of(bob));
-    when(hashTagRepository.findMessagesByHashtagString(anyString())).thenReturn(
+    when(hashTagRepository.findMessagesByHashtagString(anyString(), any(Timestamp.class))).thenReturn(
             Collections.singletonList(message));
     assertTrue(messageService.findMessagesByHashtag("wfh", "Bob", true).contains(message));
   }
@@ -600,8 +917,11 @@ public class MessageServiceDaoImplTest {
     when(userRepository.findByUsername(anyString())).thenReturn(Optional.of(user1));
     List<Message> result = new ArrayList<>();
     result.add(message);
-    when(messageRepository.fetchUnreadMessages(anyInt())).thenReturn(result);
+    when(messageRepository.fetchUnreadMessages(eq(1),
+            argThat(expiredBefore -> !message.getGeneratedTime().before(expiredBefore))))
+            .thenReturn(result);
     assertTrue(messageService.getUnsentMessages("bob", true).isEmpty());
+    assertEquals(result, messageService.getUnsentMessages("bob", false));
   }
 
   @Test
@@ -630,7 +950,8 @@ public class MessageServiceDaoImplTest {
     when(userRepository.findByUsername("bob")).thenReturn(Optional.of(bob));
     List<Message> messageList = new ArrayList<>();
     messageList.add(message);
-    when(messageRepository.findByToUserId(1)).thenReturn(messageList);
+    when(messageRepository.findReceivedMessages(eq(1), any(Timestamp.class)))
+            .thenReturn(messageList);
     assertTrue(messageService.findMessagesForReceivingUser("bob", false).isEmpty());
   }
 
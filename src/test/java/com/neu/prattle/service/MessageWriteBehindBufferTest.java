@@ -0,0 +1,244 @@
+package com.neu.prattle.service;
+
+import com.neu.prattle.model.Message;
+import com.neu.prattle.repository.MessageBatchRepository;
+import com.neu.prattle.repository.MessageBatchRepository.Row;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.TransientDataAccessResourceException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * A test class to test the implementation of MessageWriteBehindBuffer class.
+ */
+public class MessageWriteBehindBufferTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private MessageBatchRepository batchRepository;
+  private MessageWriteBehindBuffer buffer;
+
+  @Before
+  public void setUp() {
+    batchRepository = mock(MessageBatchRepository.class);
+    when(batchRepository.findMaxMessageId()).thenReturn(41);
+    buffer = newBuffer();
+  }
+
+  @After
+  public void tearDown() {
+    buffer.stop();
+  }
+
+  private MessageWriteBehindBuffer newBuffer() {
+    MessageWriteBehindBuffer writeBehindBuffer = new MessageWriteBehindBuffer();
+    writeBehindBuffer.setBatchRepository(batchRepository);
+    writeBehindBuffer.setEnabled(true);
+    writeBehindBuffer.setBatchSize(2);
+    // Long interval so that the tests decide when to flush
+    writeBehindBuffer.setFlushIntervalMillis(60000);
+    return writeBehindBuffer;
+  }
+
+  private static Message message(String content) {
+    return Message.messageBuilder().setFromUserId(1).setToUserId(2)
+            .setMessageContent(content)
+            .setMessageGenerationTime(new Timestamp(System.currentTimeMillis()))
+            .build();
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<Integer> flushedIds() {
+    ArgumentCaptor<List<Row>> captor = ArgumentCaptor.forClass(List.class);
+    verify(batchRepository, atLeastOnce()).insertAll(captor.capture());
+    return captor.getAllValues().stream().flatMap(List::stream).map(Row::getMessageId)
+            .collect(Collectors.toList());
+  }
+
+  @Test
+  public void testIdsContinueFromDatabase() {
+    buffer.start();
+    assertEquals(42, buffer.accept(message("a"), Collections.emptyList()).getMessageId());
+    assertEquals(43, buffer.accept(message("b"), Collections.emptyList()).getMessageId());
+  }
+
+  @Test
+  public void testPendingUntilFlushed() {
+    buffer.start();
+    Message message = buffer.accept(message("a"), Collections.emptyList());
+    assertTrue(buffer.findPending(message.getMessageId()).isPresent());
+    assertEquals(1, buffer.getPendingCount());
+
+    buffer.flush();
+
+    assertFalse(buffer.findPending(message.getMessageId()).isPresent());
+    assertEquals(Collections.singletonList(42), flushedIds());
+  }
+
+  @Test
+  public void testFlushesInBatches() {
+    buffer.start();
+    for (int i = 0; i < 5; i++) {
+      buffer.accept(message("m" + i), Collections.emptyList());
+    }
+    buffer.flush();
+    verify(batchRepository, atLeastOnce()).insertAll(anyList());
+    assertEquals(5, flushedIds().size());
+    assertEquals(0, buffer.getPendingCount());
+  }
+
+  @Test
+  public void testFailedBatchIsRetried() {
+    buffer.start();
+    doThrow(new IllegalStateException("database down")).when(batchRepository)
+            .insertAll(anyList());
+    buffer.accept(message("a"), Collections.emptyList());
+    buffer.flush();
+    assertEquals(1, buffer.getPendingCount());
+
+    reset(batchRepository);
+    buffer.flush();
+    assertEquals(0, buffer.getPendingCount());
+    assertEquals(Collections.singletonList(42), flushedIds());
+  }
+
+  @Test
+  public void testLogIsReplayedAfterRestart() throws IOException {
+    File log = folder.newFile("messages.log");
+    buffer.setLogPath(log.getPath());
+    // No flush before the restart other than the one below
+    buffer.setBatchSize(10);
+    doThrow(new IllegalStateException("database down")).when(batchRepository)
+            .insertAll(anyList());
+    buffer.start();
+    buffer.accept(message("a"), Collections.emptyList());
+    buffer.accept(message("b"), Collections.singletonList("file.txt"));
+    buffer.flush();
+    assertEquals(2, Files.readAllLines(log.toPath()).size());
+
+    // The process dies before the messages reach the database
+    reset(batchRepository);
+    when(batchRepository.findMaxMessageId()).thenReturn(41);
+    MessageWriteBehindBuffer restarted = newBuffer();
+    restarted.setLogPath(log.getPath());
+    restarted.start();
+
+    assertEquals(Arrays.asList(42, 43), flushedIds());
+    assertEquals(44, restarted.accept(message("c"), Collections.emptyList()).getMessageId());
+    restarted.flush();
+    assertTrue(Files.readAllLines(log.toPath()).isEmpty());
+    restarted.stop();
+  }
+
+  @Test
+  public void testRefusedMessageIsDeadLettered() throws IOException {
+    File deadLetters = folder.newFile("dead-letters.log");
+    buffer.setDeadLetterPath(deadLetters.getPath());
+    buffer.setBatchSize(10);
+    doAnswer(invocation -> {
+      List<Row> rows = invocation.getArgument(0);
+      if (rows.stream().anyMatch(row -> row.getMessageId() == 44)) {
+        throw new DataIntegrityViolationException("duplicate");
+      }
+      return null;
+    }).when(batchRepository).insertAll(anyList());
+    buffer.start();
+    for (int i = 0; i < 5; i++) {
+      buffer.accept(message("m" + i), Collections.emptyList());
+    }
+    buffer.flush();
+
+    assertEquals(0, buffer.getPendingCount());
+    assertFalse(buffer.findPending(44).isPresent());
+    List<Integer> written = flushedIds();
+    assertTrue(written.containsAll(Arrays.asList(42, 43, 45, 46)));
+    List<String> lines = Files.readAllLines(deadLetters.toPath());
+    assertEquals(1, lines.size());
+    assertTrue(lines.get(0).contains("m2"));
+  }
+
+  @Test
+  public void testOutageIsNotDeadLettered() {
+    buffer.setBatchSize(10);
+    doThrow(new TransientDataAccessResourceException("database down")).when(batchRepository)
+            .insertAll(anyList());
+    buffer.start();
+    buffer.accept(message("a"), Collections.emptyList());
+    buffer.accept(message("b"), Collections.emptyList());
+    buffer.flush();
+    buffer.flush();
+    assertEquals(2, buffer.getPendingCount());
+  }
+
+  @Test
+  public void testFullBufferRefusesMessages() {
+    buffer.setBatchSize(10);
+    buffer.setMaxPending(2);
+    doThrow(new IllegalStateException("database down")).when(batchRepository)
+            .insertAll(anyList());
+    buffer.start();
+    buffer.accept(message("a"), Collections.emptyList());
+    buffer.accept(message("b"), Collections.emptyList());
+    try {
+      buffer.accept(message("c"), Collections.emptyList());
+      throw new AssertionError("A full buffer accepted a message");
+    } catch (IllegalStateException e) {
+      assertEquals("The write-behind buffer is full", e.getMessage());
+    }
+
+    // A caller flushing the full buffer makes room
+    reset(batchRepository);
+    assertEquals(44, buffer.accept(message("c"), Collections.emptyList()).getMessageId());
+    assertEquals(1, buffer.getPendingCount());
+  }
+
+  @Test
+  public void testDisabledWhenClustered() {
+    buffer.setClustered(true);
+    buffer.start();
+    assertFalse(buffer.isEnabled());
+    verify(batchRepository, never()).findMaxMessageId();
+  }
+
+  @Test
+  public void testDisabledDoesNothing() {
+    MessageWriteBehindBuffer disabled = new MessageWriteBehindBuffer();
+    disabled.setBatchRepository(batchRepository);
+    disabled.start();
+    assertFalse(disabled.isEnabled());
+    verify(batchRepository, never()).findMaxMessageId();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidBatchSize() {
+    buffer.setBatchSize(0);
+  }
+}
@@ -0,0 +1,244 @@
+package com.neu.prattle.service;
+
+import com.neu.prattle.dto.SyncEvent;
+import com.neu.prattle.dto.SyncPage;
+import com.neu.prattle.exceptions.GroupNotFoundException;
+import com.neu.prattle.model.Message;
+import com.neu.prattle.model.MessageStatus;
+import com.neu.prattle.repository.MessageBatchRepository.Expiring;
+import com.neu.prattle.repository.SyncLogRepository;
+import com.neu.prattle.repository.SyncLogRepository.Entry;
+import com.neu.prattle.service.group.GroupService;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.DataIntegrityViolationException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * A test class to test the implementation of SyncLogService class.
+ */
+public class SyncLogServiceTest {
+
+  private SyncLogRepository syncLogRepository;
+  private GroupService groupService;
+  private SyncLogService syncLog;
+
+  @Before
+  public void setUp() {
+    syncLogRepository = mock(SyncLogRepository.class);
+    groupService = mock(GroupService.class);
+    syncLog = new SyncLogService();
+    syncLog.setSyncLogRepository(syncLogRepository);
+    syncLog.setGroupService(groupService);
+  }
+
+  private static Message message(int id, int from, int to) {
+    return Message.messageBuilder().setMessageId(id).setFromUserId(from).setToUserId(to)
+            .setMessageStatus(MessageStatus.DELIVERED).build();
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<Entry> flushed(int times) {
+    ArgumentCaptor<List<Entry>> batch = ArgumentCaptor.forClass(List.class);
+    verify(syncLogRepository, times(times)).appendAll(batch.capture());
+    return batch.getValue();
+  }
+
+  @Test
+  public void testPrivateChangesQueuedForBothUsers() {
+    Message message = message(7, 1, 2);
+    syncLog.messageSaved(message);
+    message.setMessageStatus(MessageStatus.READ);
+    syncLog.statusChanged(message, MessageStatus.DELIVERED);
+    syncLog.statusChanged(message, MessageStatus.READ);
+    assertEquals(2, syncLog.getPendingCount());
+
+    syncLog.flush();
+
+    List<Entry> batch = flushed(1);
+    assertEquals(4, batch.size());
+    assertEquals(SyncEvent.MESSAGE, batch.get(0).getType());
+    assertEquals(SyncEvent.MESSAGE, batch.get(1).getType());
+    assertEquals(new HashSet<>(Arrays.asList(1, 2)),
+            new HashSet<>(Arrays.asList(batch.get(2).getUserId(), batch.get(3).getUserId())));
+    assertEquals(SyncEvent.STATUS, batch.get(3).getType());
+    assertEquals(MessageStatus.READ, batch.get(3).getStatus());
+    assertEquals(0, syncLog.getPendingCount());
+  }
+
+  @Test
+  public void testGroupChangesForMembersBroadcastsNone() {
+    when(groupService.getMemberIdsInGroupAndSubGroups(5))
+            .thenReturn(new HashSet<>(Arrays.asList(1, 3, 4)));
+    when(groupService.getMemberIdsInGroupAndSubGroups(6))
+            .thenThrow(new GroupNotFoundException("gone"));
+    Message group = message(8, 1, 5);
+    group.setIsGroupMessage(true);
+    Message gone = message(9, 1, 6);
+    gone.setIsGroupMessage(true);
+    Message broadcast = message(10, 1, 2);
+    broadcast.setIsBroadcastMessage(true);
+    syncLog.messageSaved(group);
+    syncLog.messageSaved(gone);
+    syncLog.messageSaved(broadcast);
+    group.setMessageStatus(MessageStatus.READ);
+    syncLog.statusChanged(group, MessageStatus.DELIVERED);
+    assertEquals(3, syncLog.getPendingCount());
+    verify(groupService, never()).getMemberIdsInGroupAndSubGroups(anyInt());
+
+    syncLog.flush();
+
+    assertEquals(7, flushed(1).size());
+    verify(groupService, times(1)).getMemberIdsInGroupAndSubGroups(5);
+    assertEquals(0, syncLog.getPendingCount());
+  }
+
+  @Test
+  public void testChangeKeptWhenMembersCannotBeLookedUp() {
+    when(groupService.getMemberIdsInGroupAndSubGroups(5))
+            .thenThrow(new IllegalStateException("database down"))
+            .thenReturn(new HashSet<>(Arrays.asList(1, 3)));
+    Message group = message(8, 1, 5);
+    group.setIsGroupMessage(true);
+    syncLog.messageSaved(message(7, 1, 2));
+    syncLog.messageSaved(group);
+    syncLog.messageSaved(message(9, 1, 2));
+
+    syncLog.flush();
+    assertEquals(2, flushed(1).size());
+    syncLog.flush();
+
+    List<Entry> batch = flushed(2);
+    assertEquals(Arrays.asList(8, 8, 9, 9), Arrays.asList(batch.get(0).getMessageId(),
+            batch.get(1).getMessageId(), batch.get(2).getMessageId(),
+            batch.get(3).getMessageId()));
+    assertEquals(0, syncLog.getPendingCount());
+  }
+
+  @Test
+  public void testExpiredLogged() {
+    syncLog.expired(Collections.singletonList(new Expiring(7, 1, 2, 0, false, false)));
+    syncLog.flush();
+
+    List<Entry> batch = flushed(1);
+    assertEquals(2, batch.size());
+    assertEquals(SyncEvent.EXPIRED, batch.get(0).getType());
+    assertNull(batch.get(0).getStatus());
+  }
+
+  @Test
+  public void testRegistersWithExpiry() {
+    MessageExpiryService expiry = mock(MessageExpiryService.class);
+    syncLog.setMessageExpiry(expiry);
+    verify(expiry).addListener(any());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testFailedBatchWrittenBeforeLaterEvents() {
+    doThrow(new IllegalStateException("database down")).doNothing()
+            .when(syncLogRepository).appendAll(anyList());
+    syncLog.messageSaved(message(7, 1, 2));
+    syncLog.flush();
+    assertEquals(2, syncLog.getPendingCount());
+
+    syncLog.messageSaved(message(8, 1, 2));
+    syncLog.flush();
+
+    ArgumentCaptor<List<Entry>> batches = ArgumentCaptor.forClass(List.class);
+    verify(syncLogRepository, times(3)).appendAll(batches.capture());
+    assertEquals(7, batches.getAllValues().get(1).get(0).getMessageId());
+    assertEquals(8, batches.getAllValues().get(2).get(0).getMessageId());
+    assertEquals(0, syncLog.getPendingCount());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testRefusedEventIsDropped() {
+    doAnswer(invocation -> {
+      for (Entry entry : (List<Entry>) invocation.getArgument(0)) {
+        if (entry.getMessageId() == 8) {
+          throw new DataIntegrityViolationException("refused");
+        }
+      }
+      return null;
+    }).when(syncLogRepository).appendAll(anyList());
+    syncLog.messageSaved(message(7, 1, 2));
+    syncLog.messageSaved(message(8, 1, 1));
+    syncLog.messageSaved(message(9, 1, 2));
+
+    syncLog.flush();
+
+    assertEquals(0, syncLog.getPendingCount());
+    ArgumentCaptor<List<Entry>> batches = ArgumentCaptor.forClass(List.class);
+    verify(syncLogRepository, atLeastOnce()).appendAll(batches.capture());
+    List<Integer> written = new ArrayList<>();
+    for (List<Entry> batch : batches.getAllValues()) {
+      if (batch.stream().noneMatch(entry -> entry.getMessageId() == 8)) {
+        batch.forEach(entry -> written.add(entry.getMessageId()));
+      }
+    }
+    assertEquals(Arrays.asList(7, 7, 9, 9), written);
+  }
+
+  @Test
+  public void testEventsDroppedWhenTooManyPending() {
+    syncLog.setMaxPending(3);
+    doThrow(new IllegalStateException("database down")).when(syncLogRepository)
+            .appendAll(anyList());
+    syncLog.messageSaved(message(7, 1, 2));
+    syncLog.flush();
+    syncLog.messageSaved(message(8, 1, 2));
+    syncLog.messageSaved(message(9, 1, 2));
+
+    assertEquals(3, syncLog.getPendingCount());
+  }
+
+  @Test
+  public void testSyncFlushesThenReads() {
+    syncLog.messageSaved(message(7, 1, 2));
+    when(syncLogRepository.findAfter(1, 0, 2)).thenReturn(Arrays.asList(
+            new SyncEvent(1, SyncEvent.MESSAGE, 7, null),
+            new SyncEvent(2, SyncEvent.EXPIRED, 7, null)));
+
+    SyncPage page = syncLog.sync(1, 0, 2);
+
+    flushed(1);
+    assertEquals(2, page.getNextCursor());
+    assertTrue(page.hasMore());
+  }
+
+  @Test
+  public void testEmptySyncKeepsCursor() {
+    when(syncLogRepository.findAfter(1, 9, 100)).thenReturn(Collections.emptyList());
+
+    SyncPage page = syncLog.sync(1, 9, 100);
+
+    assertEquals(9, page.getNextCursor());
+    assertFalse(page.hasMore());
+    verify(syncLogRepository, never()).appendAll(anyList());
+  }
+}
@@ -0,0 +1,168 @@
+package com.neu.prattle.service;
+
+import com.neu.prattle.dto.UnreadCounts;
+import com.neu.prattle.model.Message;
+import com.neu.prattle.model.MessageStatus;
+import com.neu.prattle.repository.MessageRepository;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * A test class to test the implementation of UnreadCounterService class.
+ */
+public class UnreadCounterServiceTest {
+
+  private MessageRepository messageRepository;
+  private UnreadCounterService counters;
+
+  @Before
+  public void setUp() {
+    messageRepository = mock(MessageRepository.class);
+    counters = new UnreadCounterService();
+    counters.setMessageRepository(messageRepository);
+  }
+
+  private static List<Object[]> rows(Object[]... rows) {
+    return Arrays.asList(rows);
+  }
+
+  private static Message message(int from, int to, MessageStatus status, boolean group) {
+    return Message.messageBuilder().setFromUserId(from).setToUserId(to)
+            .setMessageStatus(status).setIsGroupMessage(group).build();
+  }
+
+  @Test
+  public void testCountsLoadedOnceAndKeptUpToDate() {
+    when(messageRepository.countNewMessagesBySender(1))
+            .thenReturn(rows(new Object[]{2, 3L}));
+
+    assertEquals(3, counters.getCount(1, 2));
+    counters.messageSaved(message(2, 1, MessageStatus.DELIVERED, false));
+    counters.messageSaved(message(3, 1, MessageStatus.DELIVERED, false));
+    counters.messageSaved(message(3, 1, MessageStatus.READ, false));
+    assertEquals(4, counters.getCount(1, 2));
+    assertEquals(1, counters.getCount(1, 3));
+
+    Message read = message(2, 1, MessageStatus.READ, false);
+    counters.statusChanged(read, MessageStatus.DELIVERED);
+    counters.statusChanged(read, MessageStatus.READ);
+    assertEquals(3, counters.getCount(1, 2));
+    verify(messageRepository, times(1)).countNewMessagesBySender(1);
+  }
+
+  @Test
+  public void testUnloadedCountsNotAdjusted() {
+    counters.messageSaved(message(2, 1, MessageStatus.DELIVERED, false));
+    counters.messageSaved(message(2, 5, MessageStatus.DELIVERED, true));
+    assertEquals(0, counters.getLoadedCount());
+  }
+
+  @Test
+  public void testBatchCounts() {
+    when(messageRepository.countNewMessagesBySender(1))
+            .thenReturn(rows(new Object[]{2, 3L}, new Object[]{4, 0L}));
+    when(messageRepository.countNewMessagesByGroup(Arrays.asList(5, 6)))
+            .thenReturn(rows(new Object[]{5, 3, 2L}));
+
+    UnreadCounts counts = counters.getCounts(1, Arrays.asList(5, 6));
+
+    assertEquals(Collections.singletonMap(2, 3), counts.getUsers());
+    assertEquals(Collections.singletonMap(5, 2), counts.getGroupsUnreadByAll());
+
+    counters.messageSaved(message(2, 6, MessageStatus.DELIVERED, true));
+    counters.statusChanged(message(3, 5, MessageStatus.READ, true), MessageStatus.DELIVERED);
+    counts = counters.getCounts(1, Arrays.asList(5, 6));
+    assertEquals(1, (int) counts.getGroupsUnreadByAll().get(5));
+    assertEquals(1, (int) counts.getGroupsUnreadByAll().get(6));
+    verify(messageRepository, times(1)).countNewMessagesByGroup(Arrays.asList(5, 6));
+  }
+
+  @Test
+  public void testGroupCountLeavesOutOwnMessages() {
+    when(messageRepository.countNewMessagesByGroup(Collections.singletonList(5)))
+            .thenReturn(rows(new Object[]{5, 1, 2L}, new Object[]{5, 3, 4L}));
+
+    assertEquals(4, (int) counters.getCounts(1, Collections.singletonList(5)).getGroupsUnreadByAll().get(5));
+    assertEquals(6, (int) counters.getCounts(2, Collections.singletonList(5)).getGroupsUnreadByAll().get(5));
+
+    counters.messageSaved(message(1, 5, MessageStatus.DELIVERED, true));
+    counters.statusChanged(message(3, 5, MessageStatus.READ, true), MessageStatus.DELIVERED);
+    assertEquals(3, (int) counters.getCounts(1, Collections.singletonList(5)).getGroupsUnreadByAll().get(5));
+    assertEquals(6, (int) counters.getCounts(2, Collections.singletonList(5)).getGroupsUnreadByAll().get(5));
+    assertEquals(3, (int) counters.getCounts(3, Collections.singletonList(5)).getGroupsUnreadByAll().get(5));
+  }
+
+  @Test
+  public void testReconcileReloadsReadCountsAndDropsIdleOnes() {
+    when(messageRepository.countNewMessagesBySender(1))
+            .thenReturn(rows(new Object[]{2, 3L}), rows(new Object[]{2, 1L}));
+    when(messageRepository.countNewMessagesByGroup(Collections.singletonList(5)))
+            .thenReturn(rows(new Object[]{5, 3, 2L}));
+    counters.getCounts(1, Collections.singletonList(5));
+    counters.messageSaved(message(2, 1, MessageStatus.DELIVERED, false));
+    assertEquals(4, counters.getCount(1, 2));
+
+    counters.reconcile();
+    assertEquals(2, counters.getLoadedCount());
+    assertEquals(1, counters.getCount(1, 2));
+
+    counters.reconcile();
+    counters.reconcile();
+    assertEquals(0, counters.getLoadedCount());
+  }
+
+  @Test
+  public void testCountAdjustedWhileReloadedIsReloadedByNextRun() {
+    when(messageRepository.countNewMessagesBySender(1))
+            .thenReturn(rows(new Object[]{2, 3L}))
+            .thenAnswer(invocation -> {
+              // saved while the counts are read, after the snapshot of the database
+              counters.messageSaved(message(2, 1, MessageStatus.DELIVERED, false));
+              return rows(new Object[]{2, 3L});
+            })
+            .thenReturn(rows(new Object[]{2, 4L}));
+    when(messageRepository.countNewMessagesByGroup(Collections.singletonList(5)))
+            .thenReturn(rows(new Object[]{5, 3, 2L}))
+            .thenAnswer(invocation -> {
+              counters.messageSaved(message(3, 5, MessageStatus.DELIVERED, true));
+              return rows(new Object[]{5, 3, 2L});
+            })
+            .thenReturn(rows(new Object[]{5, 3, 3L}));
+    counters.getCounts(1, Collections.singletonList(5));
+
+    counters.reconcile();
+    // not read since, but reloaded as the counts may have missed the message
+    counters.reconcile();
+
+    assertEquals(2, counters.getLoadedCount());
+    UnreadCounts counts = counters.getCounts(1, Collections.singletonList(5));
+    assertEquals(4, (int) counts.getUsers().get(2));
+    assertEquals(3, (int) counts.getGroupsUnreadByAll().get(5));
+    verify(messageRepository, times(3)).countNewMessagesBySender(1);
+    verify(messageRepository, times(3)).countNewMessagesByGroup(Collections.singletonList(5));
+  }
+
+  @Test
+  public void testReconcileFailureKeepsCounts() {
+    when(messageRepository.countNewMessagesBySender(1))
+            .thenReturn(rows(new Object[]{2, 3L}))
+            .thenThrow(new IllegalStateException("database down"));
+    assertEquals(3, counters.getCount(1, 2));
+
+    counters.reconcile();
+
+    assertTrue(counters.getLoadedCount() > 0);
+  }
+}
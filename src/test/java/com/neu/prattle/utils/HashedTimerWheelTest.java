@@ -0,0 +1,103 @@
+package com.neu.prattle.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class to test the implementation of HashedTimerWheel class.
+ */
+public class HashedTimerWheelTest {
+
+  private final HashedTimerWheel wheel = new HashedTimerWheel(10, 8);
+  private final List<String> fired = new ArrayList<>();
+
+  private void ticks(int count) {
+    for (int i = 0; i < count; i++) {
+      wheel.tick();
+    }
+  }
+
+  @Test
+  public void testFiresOnItsTick() {
+    wheel.schedule(() -> fired.add("a"), 30, TimeUnit.MILLISECONDS);
+    wheel.schedule(() -> fired.add("b"), 25, TimeUnit.MILLISECONDS);
+    wheel.schedule(() -> fired.add("c"), 10, TimeUnit.MILLISECONDS);
+    assertEquals(3, wheel.getPendingCount());
+
+    ticks(1);
+    assertEquals(Arrays.asList("c"), fired);
+    ticks(2);
+    assertEquals(Arrays.asList("c", "a", "b"), fired);
+    assertEquals(0, wheel.getPendingCount());
+  }
+
+  @Test
+  public void testLongerThanATurn() {
+    wheel.schedule(() -> fired.add("late"), 250, TimeUnit.MILLISECONDS);
+
+    ticks(24);
+    assertTrue(fired.isEmpty());
+    ticks(1);
+    assertEquals(Arrays.asList("late"), fired);
+  }
+
+  @Test
+  public void testCancel() {
+    HashedTimerWheel.Timeout timeout = wheel.schedule(() -> fired.add("a"), 20,
+            TimeUnit.MILLISECONDS);
+    ticks(1);
+    timeout.cancel();
+
+    ticks(10);
+    assertTrue(fired.isEmpty());
+    assertTrue(timeout.isCancelled());
+    assertEquals(0, wheel.getPendingCount());
+  }
+
+  @Test
+  public void testRescheduleFromTask() {
+    Runnable[] task = new Runnable[1];
+    task[0] = () -> {
+      fired.add("beat");
+      wheel.schedule(task[0], 20, TimeUnit.MILLISECONDS);
+    };
+    wheel.schedule(task[0], 20, TimeUnit.MILLISECONDS);
+
+    ticks(6);
+    assertEquals(3, fired.size());
+  }
+
+  @Test
+  public void testFailingTaskDoesNotStopTheWheel() {
+    wheel.schedule(() -> {
+      throw new IllegalStateException("failure");
+    }, 10, TimeUnit.MILLISECONDS);
+    wheel.schedule(() -> fired.add("a"), 10, TimeUnit.MILLISECONDS);
+
+    ticks(1);
+    assertEquals(Arrays.asList("a"), fired);
+  }
+
+  @Test
+  public void testStart() throws InterruptedException {
+    HashedTimerWheel running = new HashedTimerWheel(5, 64).start("test-wheel");
+    CountDownLatch latch = new CountDownLatch(1);
+    running.schedule(latch::countDown, 20, TimeUnit.MILLISECONDS);
+
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    running.stop();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidTick() {
+    new HashedTimerWheel(0, 8);
+  }
+}
@@ -0,0 +1,80 @@
+package com.neu.prattle.utils;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class to test the implementation of KeywordMatcher class.
+ */
+public class KeywordMatcherTest {
+
+  private static BitSet bits(int... indices) {
+    BitSet bits = new BitSet();
+    for (int index : indices) {
+      bits.set(index);
+    }
+    return bits;
+  }
+
+  @Test
+  public void testOverlappingKeywords() {
+    KeywordMatcher matcher = new KeywordMatcher(new String[]{"he", "she", "his", "hers"});
+    assertEquals(bits(0, 1, 3), matcher.match("ushers"));
+    assertEquals(bits(2), matcher.match("this"));
+    assertEquals(bits(), matcher.match("nothing to see"));
+  }
+
+  @Test
+  public void testCaseInsensitive() {
+    KeywordMatcher matcher = new KeywordMatcher(new String[]{"SpAm", "offer"});
+    assertEquals(bits(0, 1), matcher.match("Special OFFER, no spam"));
+  }
+
+  @Test
+  public void testSkippedAndEmptyKeywords() {
+    KeywordMatcher matcher = new KeywordMatcher(new String[]{null, "", "cat"});
+    assertEquals(3, matcher.size());
+    assertEquals(bits(1), matcher.match("dog"));
+    assertEquals(bits(1, 2), matcher.match("concatenate"));
+    assertEquals(bits(1), matcher.match(null));
+  }
+
+  @Test
+  public void testSameAsContains() {
+    Random random = new Random(42);
+    String[] keywords = new String[40];
+    for (int i = 0; i < keywords.length; i++) {
+      keywords[i] = randomText(random, 1 + random.nextInt(4));
+    }
+    KeywordMatcher matcher = new KeywordMatcher(keywords);
+    for (int round = 0; round < 200; round++) {
+      String text = randomText(random, random.nextInt(60));
+      BitSet expected = new BitSet();
+      for (int i = 0; i < keywords.length; i++) {
+        if (text.toLowerCase().contains(keywords[i].toLowerCase())) {
+          expected.set(i);
+        }
+      }
+      assertEquals(text, expected, matcher.match(text));
+    }
+  }
+
+  @Test
+  public void testNoKeywords() {
+    assertTrue(new KeywordMatcher(new String[0]).match("anything").isEmpty());
+  }
+
+  private static String randomText(Random random, int length) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      char c = (char) ('a' + random.nextInt(3));
+      text.append(random.nextBoolean() ? c : Character.toUpperCase(c));
+    }
+    return text.toString();
+  }
+}
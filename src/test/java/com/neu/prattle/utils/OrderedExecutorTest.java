@@ -0,0 +1,98 @@
+package com.neu.prattle.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class to test the implementation of OrderedExecutor class.
+ */
+public class OrderedExecutorTest {
+
+  private ExecutorService pool;
+
+  @Before
+  public void setUp() {
+    pool = Executors.newFixedThreadPool(4);
+  }
+
+  @After
+  public void tearDown() {
+    pool.shutdownNow();
+  }
+
+  @Test
+  public void testTasksWithSameKeyRunInOrder() throws InterruptedException {
+    OrderedExecutor executor = new OrderedExecutor(pool, 8);
+    int keys = 10;
+    int tasksPerKey = 500;
+    Map<Integer, List<Integer>> results = new ConcurrentHashMap<>();
+    CountDownLatch done = new CountDownLatch(keys * tasksPerKey);
+    for (int i = 0; i < tasksPerKey; i++) {
+      for (int key = 0; key < keys; key++) {
+        int value = i;
+        int k = key;
+        executor.execute(k, () -> {
+          results.computeIfAbsent(k, x -> Collections.synchronizedList(new ArrayList<>()))
+                  .add(value);
+          done.countDown();
+        });
+      }
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    for (int key = 0; key < keys; key++) {
+      List<Integer> values = results.get(key);
+      assertEquals(tasksPerKey, values.size());
+      for (int i = 0; i < tasksPerKey; i++) {
+        assertEquals(i, (int) values.get(i));
+      }
+    }
+  }
+
+  @Test
+  public void testDifferentKeysRunInParallel() throws InterruptedException {
+    OrderedExecutor executor = new OrderedExecutor(pool, 2);
+    CountDownLatch blocked = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(1);
+    // Keys 0 and 1 map to different lanes, the blocked lane must not hold up the other one
+    executor.execute(0, () -> {
+      try {
+        blocked.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    executor.execute(1, done::countDown);
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    blocked.countDown();
+  }
+
+  @Test
+  public void testFailingTaskDoesNotStopLane() {
+    OrderedExecutor executor = new OrderedExecutor(Runnable::run, 1);
+    List<String> ran = new ArrayList<>();
+    executor.execute("key", () -> {
+      throw new IllegalStateException("failure");
+    });
+    executor.execute("key", () -> ran.add("next"));
+    assertEquals(Collections.singletonList("next"), ran);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidLanes() {
+    new OrderedExecutor(pool, 0);
+  }
+}
@@ -0,0 +1,96 @@
+package com.neu.prattle.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class to test the implementation of TokenBucket class.
+ */
+public class TokenBucketTest {
+
+  private final AtomicLong now = new AtomicLong(1000);
+
+  @Test
+  public void testBurstThenRefill() {
+    TokenBucket bucket = new TokenBucket(10, 3, now::get);
+
+    assertTrue(bucket.tryAcquire());
+    assertTrue(bucket.tryAcquire());
+    assertTrue(bucket.tryAcquire());
+    assertFalse(bucket.tryAcquire());
+    assertEquals(101, bucket.getRetryAfterMillis());
+
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+    assertEquals(0, bucket.getRetryAfterMillis());
+    assertTrue(bucket.tryAcquire());
+    assertFalse(bucket.tryAcquire());
+  }
+
+  @Test
+  public void testReleaseGivesTokenBack() {
+    TokenBucket bucket = new TokenBucket(10, 2, now::get);
+    assertTrue(bucket.tryAcquire());
+    assertTrue(bucket.tryAcquire());
+
+    bucket.release();
+
+    assertTrue(bucket.tryAcquire());
+    assertFalse(bucket.tryAcquire());
+  }
+
+  @Test
+  public void testIdleBucketHoldsAtMostBurst() {
+    TokenBucket bucket = new TokenBucket(10, 2, now::get);
+    now.addAndGet(TimeUnit.SECONDS.toNanos(60));
+
+    assertTrue(bucket.tryAcquire());
+    assertTrue(bucket.tryAcquire());
+    assertFalse(bucket.tryAcquire());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidRate() {
+    new TokenBucket(0, 1);
+  }
+
+  @Test
+  public void testConcurrentAcquire() throws InterruptedException {
+    TokenBucket bucket = new TokenBucket(1, 500, now::get);
+    AtomicInteger taken = new AtomicInteger();
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    CountDownLatch done = new CountDownLatch(8);
+    for (int i = 0; i < 8; i++) {
+      pool.execute(() -> {
+        for (int j = 0; j < 200; j++) {
+          if (bucket.tryAcquire()) {
+            taken.incrementAndGet();
+          }
+        }
+        done.countDown();
+      });
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    pool.shutdown();
+
+    assertEquals(500, taken.get());
+  }
+
+  @Test
+  public void testParseBudget() {
+    assertTrue(TokenBucket.Budget.parse("20/40").isLimited());
+    assertTrue(TokenBucket.Budget.parse(" 0.5 ").isLimited());
+    assertFalse(TokenBucket.Budget.parse("").isLimited());
+    assertFalse(TokenBucket.Budget.parse("0/10").isLimited());
+    assertEquals(null, TokenBucket.Budget.parse("").newBucket(now::get));
+  }
+}
@@ -0,0 +1,163 @@
+package com.neu.prattle.websocket;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.neu.prattle.model.Message;
+import com.neu.prattle.utils.TokenBucket;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * A test class to test the implementation of AdmissionControl class.
+ */
+public class AdmissionControlTest {
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private final AtomicLong now = new AtomicLong();
+  private final MessagePipeline pipeline = mock(MessagePipeline.class);
+
+  private static Map<AdmissionControl.Kind, TokenBucket.Budget> budgets(String privateBudget,
+                                                                      String groupBudget,
+                                                                      String broadcastBudget) {
+    Map<AdmissionControl.Kind, TokenBucket.Budget> budgets =
+            new EnumMap<>(AdmissionControl.Kind.class);
+    budgets.put(AdmissionControl.Kind.PRIVATE, TokenBucket.Budget.parse(privateBudget));
+    budgets.put(AdmissionControl.Kind.GROUP, TokenBucket.Budget.parse(groupBudget));
+    budgets.put(AdmissionControl.Kind.BROADCAST, TokenBucket.Budget.parse(broadcastBudget));
+    return budgets;
+  }
+
+  private AdmissionControl admission() {
+    return new AdmissionControl(budgets("1/3", "1/1", ""), budgets("1/2", "", ""), 100, 50,
+            now::get);
+  }
+
+  private JsonNode read(OutboundFrame frame) throws IOException {
+    return objectMapper.readTree(frame.getText());
+  }
+
+  @Test
+  public void testKindOf() {
+    Message message = new Message();
+    assertEquals(AdmissionControl.Kind.PRIVATE, AdmissionControl.Kind.of(message));
+    message.setIsGroupMessage(true);
+    assertEquals(AdmissionControl.Kind.GROUP, AdmissionControl.Kind.of(message));
+    message.setIsBroadcastMessage(true);
+    assertEquals(AdmissionControl.Kind.BROADCAST, AdmissionControl.Kind.of(message));
+  }
+
+  @Test
+  public void testSessionBudget() throws IOException {
+    AdmissionControl admission = admission();
+    AdmissionControl.Buckets session = admission.newSession();
+
+    assertNull(admission.admitMessage(1, session, AdmissionControl.Kind.PRIVATE, pipeline));
+    assertNull(admission.admitMessage(1, session, AdmissionControl.Kind.PRIVATE, pipeline));
+    JsonNode refusal = read(admission.admitMessage(1, session, AdmissionControl.Kind.PRIVATE,
+            pipeline));
+
+    assertEquals("error", refusal.path("type").asText());
+    assertEquals("rate-limited", refusal.path("reason").asText());
+    assertEquals("private", refusal.path("kind").asText());
+    assertEquals(1001, refusal.path("retryAfterMs").asLong());
+  }
+
+  @Test
+  public void testUserBudgetIsSharedBySessions() {
+    AdmissionControl admission = admission();
+
+    for (int i = 0; i < 3; i++) {
+      assertNull(admission.admitMessage(1, admission.newSession(),
+              AdmissionControl.Kind.PRIVATE, pipeline));
+    }
+    assertNotNull(admission.admitMessage(1, admission.newSession(),
+            AdmissionControl.Kind.PRIVATE, pipeline));
+    assertNull(admission.admitMessage(2, admission.newSession(),
+            AdmissionControl.Kind.PRIVATE, pipeline));
+
+    admission.forget(1);
+    assertNull(admission.admitMessage(1, admission.newSession(),
+            AdmissionControl.Kind.PRIVATE, pipeline));
+  }
+
+  @Test
+  public void testKindsHaveSeparateBudgets() {
+    AdmissionControl admission = admission();
+    AdmissionControl.Buckets session = admission.newSession();
+
+    assertNull(admission.admitMessage(1, session, AdmissionControl.Kind.GROUP, pipeline));
+    assertNotNull(admission.admitMessage(1, session, AdmissionControl.Kind.GROUP, pipeline));
+    assertNull(admission.admitMessage(1, session, AdmissionControl.Kind.PRIVATE, pipeline));
+    for (int i = 0; i < 10; i++) {
+      assertNull(admission.admitMessage(1, session, AdmissionControl.Kind.BROADCAST, pipeline));
+    }
+
+    now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+    assertNull(admission.admitMessage(1, session, AdmissionControl.Kind.GROUP, pipeline));
+  }
+
+  @Test
+  public void testShedsWhenQueueIsDeep() throws IOException {
+    AdmissionControl admission = admission();
+    when(pipeline.getQueueDepth()).thenReturn(101);
+
+    assertEquals("overloaded", read(admission.admitSession(pipeline)).path("reason").asText());
+    assertEquals("overloaded", read(admission.admitMessage(1, admission.newSession(),
+            AdmissionControl.Kind.PRIVATE, pipeline)).path("reason").asText());
+  }
+
+  @Test
+  public void testUserRefusalCostsTheSessionNothing() {
+    AdmissionControl admission = admission();
+    for (int i = 0; i < 3; i++) {
+      assertNull(admission.admitMessage(1, admission.newSession(),
+              AdmissionControl.Kind.PRIVATE, pipeline));
+    }
+    AdmissionControl.Buckets session = admission.newSession();
+
+    assertNotNull(admission.admitMessage(1, session, AdmissionControl.Kind.PRIVATE, pipeline));
+
+    assertTrue(session.get(AdmissionControl.Kind.PRIVATE).tryAcquire());
+    assertTrue(session.get(AdmissionControl.Kind.PRIVATE).tryAcquire());
+  }
+
+  @Test
+  public void testShedsWhenPersistingIsSlow() {
+    AdmissionControl admission = admission();
+    when(pipeline.getQueueDepth()).thenReturn(1);
+    assertNull(admission.admitSession(pipeline));
+
+    when(pipeline.getPersistLatencyMillis()).thenReturn(51L);
+
+    assertNotNull(admission.admitSession(pipeline));
+  }
+
+  @Test
+  public void testRecoversAfterLatencySpike() {
+    AdmissionControl admission = admission();
+    when(pipeline.getPersistLatencyMillis()).thenReturn(500L);
+    when(pipeline.getQueueDepth()).thenReturn(3);
+    assertNotNull(admission.admitMessage(1, admission.newSession(),
+            AdmissionControl.Kind.PRIVATE, pipeline));
+
+    // the queue drained, the latency is stale as nothing else was persisted
+    when(pipeline.getQueueDepth()).thenReturn(0);
+
+    assertNull(admission.admitSession(pipeline));
+    assertNull(admission.admitMessage(1, admission.newSession(),
+            AdmissionControl.Kind.PRIVATE, pipeline));
+  }
+}
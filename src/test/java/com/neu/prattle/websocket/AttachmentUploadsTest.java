@@ -0,0 +1,249 @@
+package com.neu.prattle.websocket;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.neu.prattle.model.Message;
+import com.neu.prattle.model.MessageAttachment;
+import com.neu.prattle.utils.FileHandler;
+import com.neu.prattle.utils.HashedTimerWheel;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class to test the implementation of AttachmentUploads class.
+ */
+public class AttachmentUploadsTest {
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private final AtomicLong now = new AtomicLong();
+  private final HashedTimerWheel wheel = new HashedTimerWheel(1000, 8);
+  private final AttachmentUploads uploads = new AttachmentUploads(wheel, 5000, 64, now::get);
+  private final List<String> paths = new ArrayList<>();
+
+  @After
+  public void tearDown() {
+    paths.forEach(FileHandler::deleteMediaTypeFile);
+    // Expires the uploads left behind, deleting their files
+    now.addAndGet(60000);
+    for (int i = 0; i < 16; i++) {
+      wheel.tick();
+    }
+  }
+
+  private static ByteBuffer frame(UUID uploadId, long offset, boolean last, String data) {
+    return UploadChunk.encode(uploadId, offset, last,
+            ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private JsonNode send(int userId, ByteBuffer frame) throws IOException {
+    AttachmentUploads.Chunk chunk = uploads.open(userId, frame);
+    chunk.write(frame);
+    return objectMapper.readTree(chunk.finish().getText());
+  }
+
+  private static Message referencing(UUID uploadId) {
+    MessageAttachment attachment = new MessageAttachment();
+    attachment.setWebUrl(AttachmentUploads.REFERENCE + uploadId);
+    Message message = new Message();
+    message.setHasAttachment(true);
+    message.setAttachments(new HashSet<>(Collections.singletonList(attachment)));
+    return message;
+  }
+
+  /**
+   * Attaches a complete upload to a message and returns the content of the stored file.
+   */
+  private String attach(int userId, UUID uploadId) throws IOException {
+    Message message = referencing(uploadId);
+    assertNull(uploads.attach(userId, message));
+    MessageAttachment attachment = message.getAttachments().iterator().next();
+    assertTrue(attachment.isStored());
+    paths.add(attachment.getWebUrl());
+    return new String(Files.readAllBytes(Paths.get(attachment.getWebUrl())),
+            StandardCharsets.UTF_8);
+  }
+
+  private static void assertAck(JsonNode answer, long offset, boolean complete) {
+    assertEquals("upload", answer.get("type").asText());
+    assertEquals(offset, answer.get("offset").asLong());
+    assertEquals(complete, answer.get("complete").asBoolean());
+  }
+
+  private static void assertError(JsonNode answer, String reason, long offset) {
+    assertEquals("error", answer.get("type").asText());
+    assertEquals(reason, answer.get("reason").asText());
+    assertEquals(offset, answer.get("offset").asLong());
+  }
+
+  @Test
+  public void testUploadAndAttach() throws IOException {
+    UUID uploadId = UUID.randomUUID();
+    assertAck(send(1, frame(uploadId, 0, false, "hello ")), 6, false);
+    assertAck(send(1, frame(uploadId, 6, true, "world")), 11, true);
+    assertEquals(1, uploads.getUploadCount());
+
+    assertEquals("hello world", attach(1, uploadId));
+    assertEquals(0, uploads.getUploadCount());
+    assertEquals(0, wheel.getPendingCount());
+  }
+
+  @Test
+  public void testChunkInParts() throws IOException {
+    UUID uploadId = UUID.randomUUID();
+    ByteBuffer frame = frame(uploadId, 0, true, "in three parts");
+    ByteBuffer first = (ByteBuffer) frame.duplicate().limit(UploadChunk.HEADER_SIZE + 3);
+    AttachmentUploads.Chunk chunk = uploads.open(1, first);
+    chunk.write(first);
+    chunk.write((ByteBuffer) frame.duplicate().position(UploadChunk.HEADER_SIZE + 3)
+            .limit(UploadChunk.HEADER_SIZE + 8));
+    chunk.write((ByteBuffer) frame.duplicate().position(UploadChunk.HEADER_SIZE + 8));
+    assertAck(objectMapper.readTree(chunk.finish().getText()), 14, true);
+
+    assertEquals("in three parts", attach(1, uploadId));
+  }
+
+  @Test
+  public void testResumeAtOffset() throws IOException {
+    UUID uploadId = UUID.randomUUID();
+    send(1, frame(uploadId, 0, false, "abc"));
+
+    // A reconnecting client probes with an empty chunk and is told where to resume
+    assertError(send(1, frame(uploadId, 0, false, "")), "upload-offset", 3);
+    assertError(send(1, frame(uploadId, 5, false, "xyz")), "upload-offset", 3);
+    assertAck(send(1, frame(uploadId, 3, true, "def")), 6, true);
+    assertAck(send(1, frame(uploadId, 0, false, "")), 6, true);
+
+    assertEquals("abcdef", attach(1, uploadId));
+  }
+
+  @Test
+  public void testChecksumMismatchIsDropped() throws IOException {
+    UUID uploadId = UUID.randomUUID();
+    send(1, frame(uploadId, 0, false, "abc"));
+    ByteBuffer corrupt = frame(uploadId, 3, true, "def");
+    corrupt.put(corrupt.limit() - 1, (byte) 'x');
+
+    assertError(send(1, corrupt), "upload-checksum", 3);
+    assertAck(send(1, frame(uploadId, 3, true, "de")), 5, true);
+    assertEquals("abcde", attach(1, uploadId));
+  }
+
+  @Test
+  public void testUnknownUploads() throws IOException {
+    UUID uploadId = UUID.randomUUID();
+    assertError(send(1, frame(uploadId, 3, false, "abc")), "upload-unknown", 0);
+    assertEquals(0, uploads.getUploadCount());
+
+    send(1, frame(uploadId, 0, false, "abc"));
+    assertError(send(2, frame(uploadId, 3, false, "def")), "upload-unknown", 0);
+
+    ByteBuffer truncated = frame(uploadId, 3, false, "");
+    truncated.limit(10);
+    assertError(send(1, truncated), "upload-malformed", 0);
+  }
+
+  @Test
+  public void testOneChunkAtATime() throws IOException {
+    UUID uploadId = UUID.randomUUID();
+    ByteBuffer first = frame(uploadId, 0, false, "abc");
+    AttachmentUploads.Chunk chunk = uploads.open(1, first);
+
+    assertError(send(1, frame(uploadId, 0, false, "abc")), "upload-busy", 0);
+    chunk.write(first);
+    assertAck(objectMapper.readTree(chunk.finish().getText()), 3, false);
+  }
+
+  @Test
+  public void testAbortTruncates() throws IOException {
+    UUID uploadId = UUID.randomUUID();
+    send(1, frame(uploadId, 0, false, "abc"));
+    ByteBuffer frame = frame(uploadId, 3, true, "def");
+    AttachmentUploads.Chunk chunk = uploads.open(1, frame);
+    chunk.write((ByteBuffer) frame.limit(frame.limit() - 1));
+    chunk.abort();
+
+    assertAck(send(1, frame(uploadId, 3, true, "xy")), 5, true);
+    assertEquals("abcxy", attach(1, uploadId));
+  }
+
+  @Test
+  public void testTooLarge() throws IOException {
+    UUID uploadId = UUID.randomUUID();
+    send(1, frame(uploadId, 0, false, new String(new char[60]).replace('\0', 'a')));
+
+    assertError(send(1, frame(uploadId, 60, true, "12345")), "upload-too-large", 0);
+    assertEquals(0, uploads.getUploadCount());
+  }
+
+  @Test
+  public void testAttachOnlyCompleteUploadsOfTheUser() throws IOException {
+    UUID uploadId = UUID.randomUUID();
+    send(1, frame(uploadId, 0, false, "abc"));
+
+    JsonNode answer = objectMapper.readTree(uploads.attach(1, referencing(uploadId)).getText());
+    assertEquals("upload-unknown", answer.get("reason").asText());
+    assertEquals(uploadId.toString(), answer.get("uploadId").asText());
+    send(1, frame(uploadId, 3, true, ""));
+    assertEquals("upload-unknown", objectMapper.readTree(
+            uploads.attach(2, referencing(uploadId)).getText()).get("reason").asText());
+    assertEquals("upload-unknown", objectMapper.readTree(
+            uploads.attach(1, referencing(UUID.randomUUID())).getText()).get("reason").asText());
+
+    assertEquals("abc", attach(1, uploadId));
+    // An upload is attached once
+    assertEquals("upload-unknown", objectMapper.readTree(
+            uploads.attach(1, referencing(uploadId)).getText()).get("reason").asText());
+  }
+
+  @Test
+  public void testEmbeddedAttachmentsUntouched() {
+    MessageAttachment attachment = new MessageAttachment();
+    attachment.setWebUrl("data:text/plain;base64,aGk=");
+    Message message = new Message();
+    message.setHasAttachment(true);
+    message.setAttachments(new HashSet<>(Collections.singletonList(attachment)));
+
+    assertNull(uploads.attach(1, message));
+    assertEquals("data:text/plain;base64,aGk=", attachment.getWebUrl());
+    assertFalse(attachment.isStored());
+  }
+
+  @Test
+  public void testIdleUploadsExpire() throws IOException {
+    UUID idle = UUID.randomUUID();
+    UUID busy = UUID.randomUUID();
+    send(1, frame(idle, 0, false, "abc"));
+    send(1, frame(busy, 0, false, "abc"));
+    now.addAndGet(3000);
+    wheel.tick();
+    wheel.tick();
+    wheel.tick();
+    send(1, frame(busy, 3, false, "def"));
+    now.addAndGet(2000);
+    wheel.tick();
+    wheel.tick();
+
+    assertEquals(1, uploads.getUploadCount());
+    assertError(send(1, frame(idle, 3, true, "def")), "upload-unknown", 0);
+    assertAck(send(1, frame(busy, 6, true, "")), 6, true);
+    assertEquals("abcdef", attach(1, busy));
+  }
+}
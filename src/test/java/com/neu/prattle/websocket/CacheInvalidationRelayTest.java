@@ -0,0 +1,115 @@
+package com.neu.prattle.websocket;
+
+import com.neu.prattle.model.Filter;
+import com.neu.prattle.model.User;
+import com.neu.prattle.repository.FilterRepository;
+import com.neu.prattle.service.FilterIndex;
+import com.neu.prattle.service.group.GroupMembershipCache;
+import com.neu.prattle.service.group.GroupServiceDaoImpl;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * A test class to test the implementation of CacheInvalidationRelay class.
+ */
+public class CacheInvalidationRelayTest {
+
+  private FilterIndex filterIndex;
+  private FilterRepository filterRepository;
+  private GroupMembershipCache membershipCache;
+  private CacheInvalidationRelay relay;
+  private List<String> published;
+
+  @Before
+  public void setUp() {
+    filterIndex = new FilterIndex();
+    filterRepository = mock(FilterRepository.class);
+    membershipCache = new GroupMembershipCache();
+    GroupServiceDaoImpl groupService = mock(GroupServiceDaoImpl.class);
+    when(groupService.getMembershipCache()).thenReturn(membershipCache);
+    relay = new CacheInvalidationRelay();
+    relay.setFilterIndex(filterIndex);
+    relay.setFilterRepository(filterRepository);
+    relay.setGroupService(groupService);
+    relay.setExecutor(Runnable::run);
+    published = new ArrayList<>();
+    relay.setPublisher((cache, key) -> published.add(cache + ":" + key));
+  }
+
+  private static Filter filter(String text) {
+    Filter filter = new Filter();
+    filter.setFilterString(text);
+    return filter;
+  }
+
+  @Test
+  public void testLocalChangesArePublished() {
+    filterIndex.updateFilters(1, Collections.singleton(filter("spam")));
+    membershipCache.addMember(2, 10);
+    membershipCache.invalidate(3);
+
+    assertEquals(Arrays.asList("filters:1", "groups:2", "groups:3"), published);
+  }
+
+  @Test
+  public void testRemoteFilterChangeIsReloaded() {
+    filterIndex.updateFilters(1, Collections.singleton(filter("spam")));
+    published.clear();
+    when(filterRepository.findFiltersByUserId(1))
+            .thenReturn(Collections.singletonList(filter("offer")));
+
+    relay.invalidated(CacheInvalidationRelay.FILTERS, 1);
+
+    assertEquals(1, filterIndex.getKeywordCount());
+    assertTrue(filterIndex.scan("an offer").isFiltered(userWithId(1)));
+    assertTrue(published.isEmpty());
+  }
+
+  @Test
+  public void testRemoteGroupChangeIsEvicted() {
+    membershipCache.put(2, new HashSet<>(Arrays.asList(10, 11)), Collections.singleton(2),
+            membershipCache.getGeneration());
+
+    relay.invalidated(CacheInvalidationRelay.GROUPS, 2);
+
+    assertFalse(membershipCache.get(2).isPresent());
+    assertTrue(published.isEmpty());
+  }
+
+  @Test
+  public void testInvalidatedAllReloadsEverything() {
+    filterIndex.updateFilters(1, Collections.singleton(filter("spam")));
+    membershipCache.put(2, Collections.singleton(10), Collections.singleton(2),
+            membershipCache.getGeneration());
+    doThrow(new IllegalStateException("database down")).when(filterRepository)
+            .findFiltersByUserId(anyInt());
+
+    relay.invalidatedAll();
+
+    verify(filterRepository).findFiltersByUserId(1);
+    assertFalse(membershipCache.get(2).isPresent());
+  }
+
+  private static User userWithId(int id) {
+    User user = User.getUserBuilder()
+            .username("user" + id).password("123456789").build();
+    user.setUserID(id);
+    return user;
+  }
+}
@@ -5,23 +5,40 @@
 
 package com.neu.prattle.websocket;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.neu.prattle.configuration.SpringContext;
+import com.neu.prattle.dto.MessagePage;
+import com.neu.prattle.dto.SyncEvent;
+import com.neu.prattle.dto.SyncPage;
+import com.neu.prattle.exceptions.GroupNotFoundException;
 import com.neu.prattle.exceptions.UserDoesNotExistException;
+import com.neu.prattle.model.Filter;
 import com.neu.prattle.model.HashTag;
 import com.neu.prattle.model.Message;
+import com.neu.prattle.model.MessageAttachment;
 import com.neu.prattle.model.User;
 import com.neu.prattle.model.group.Group;
+import com.neu.prattle.service.FilterIndex;
 import com.neu.prattle.service.HashTagServiceImpl;
 import com.neu.prattle.service.MessageServiceDaoImpl;
 import com.neu.prattle.service.UserServiceDaoImpl;
 import com.neu.prattle.service.group.GroupServiceDaoImpl;
-
+import com.neu.prattle.utils.FileHandler;
+import com.neu.prattle.utils.HashedTimerWheel;
+import com.neu.prattle.utils.TokenBucket;
+import com.neu.prattle.websocket.cluster.Delivery;
+import com.neu.prattle.websocket.cluster.InProcessMessageBus;
+import com.neu.prattle.websocket.cluster.LocalNode;
+
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.test.context.ContextConfiguration;
@@ -29,27 +46,52 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.support.AnnotationConfigContextLoader;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.stream.Collectors;
 
+import javax.websocket.CloseReason;
+import javax.websocket.DecodeException;
 import javax.websocket.EncodeException;
+import javax.websocket.PongMessage;
+import javax.websocket.RemoteEndpoint.Async;
 import javax.websocket.RemoteEndpoint.Basic;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
 import javax.websocket.Session;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -57,7 +99,7 @@ import static org.mockito.Mockito.when;
  */
 @SpringBootTest
 @RunWith(SpringJUnit4ClassRunner.class)
-@ContextConfiguration(classes = SpringContext.class, loader = AnnotationConfigContextLoader.class)
+@ContextConfiguration(classes = {SpringContext.class, FilterIndex.class}, loader = AnnotationConfigContextLoader.class)
 public class ChatEndpointTest {
 
   @Mock
@@ -80,8 +122,16 @@ public class ChatEndpointTest {
   // Mocking basic which is used by session to send message
   @Mock
   private Basic basic;
+  // Mocking async which is used by the outbox of a session to send messages
+  @Mock
+  private Async async;
   // To capture messages sent by Websockets
   private ArgumentCaptor<Object> valueCapture;
+  // To capture encoded frames written by the outboxes
+  private ArgumentCaptor<String> textCapture;
+
+  private HashedTimerWheel heartbeats;
+  private final ObjectMapper objectMapper = new ObjectMapper();
   // ChatEndpoints to test
 
   @MockBean
@@ -94,6 +144,9 @@ public class ChatEndpointTest {
   @MockBean
   private HashTagServiceImpl hashTagService;
 
+  @Autowired
+  private FilterIndex filterIndex;
+
   private ChatEndpoint chatEndpoint1;
   private ChatEndpoint chatEndpoint2;
   private ChatEndpoint chatEndpoint3;
@@ -107,15 +160,34 @@ public class ChatEndpointTest {
     userService.addUser(testUser3);
 
     MockitoAnnotations.initMocks(this);
+    // The filters of the test users differ between tests
+    filterIndex.forget(1);
+    filterIndex.forget(2);
+    filterIndex.forget(3);
     session1 = mock(Session.class);
     session2 = mock(Session.class);
     session3 = mock(Session.class);
 
     basic = mock(Basic.class);
+    async = mock(Async.class);
 
     message = Message.messageBuilder().setMessageGenerationTime(
             new Timestamp(new Date().getTime())).build();
 
+    // Processing inbound messages on the calling thread
+    ChatEndpoint.setPipeline(new MessagePipeline(Runnable::run, Runnable::run, 1));
+    // A node that has not seen the test users leave, so their stash comes from the database
+    ChatEndpoint.setBus(new InProcessMessageBus("local"));
+    ChatEndpoint.setAdmission(AdmissionControl.create());
+    // A wheel advanced by the tests, one tick per heartbeat interval
+    heartbeats = new HashedTimerWheel(30000, 8);
+    ChatEndpoint.setHeartbeats(heartbeats);
+    // Evicting sessions on the calling thread
+    ChatEndpoint.setCloser(Runnable::run);
+    ChatEndpoint.setUploads(new AttachmentUploads(heartbeats, 60000, 1048576,
+            System::currentTimeMillis));
+    ChatEndpoint.setEvents(new EventLane(heartbeats, 1000));
+
     chatEndpoint1 = new ChatEndpoint();
     chatEndpoint2 = new ChatEndpoint();
     chatEndpoint3 = new ChatEndpoint();
@@ -124,11 +196,20 @@ public class ChatEndpointTest {
     when(session1.getBasicRemote()).thenReturn(basic);
     when(session2.getBasicRemote()).thenReturn(basic);
     when(session3.getBasicRemote()).thenReturn(basic);
+    when(session1.getAsyncRemote()).thenReturn(async);
+    when(session2.getAsyncRemote()).thenReturn(async);
+    when(session3.getAsyncRemote()).thenReturn(async);
 
     // Setting up argument captor to capture any Objects
     valueCapture = ArgumentCaptor.forClass(Object.class);
+    textCapture = ArgumentCaptor.forClass(String.class);
     // Defining argument captor to capture messages emitted by websockets
     doNothing().when(basic).sendObject(valueCapture.capture());
+    // Completing every asynchronous write right away
+    doAnswer(invocation -> {
+      ((SendHandler) invocation.getArgument(1)).onResult(new SendResult());
+      return null;
+    }).when(async).sendText(textCapture.capture(), any(SendHandler.class));
     // Capturing method calls to session.getId() using when and then
     when(session1.getId()).thenReturn("id1");
     when(session2.getId()).thenReturn("id2");
@@ -145,7 +226,71 @@ public class ChatEndpointTest {
     when(userService.findUserByName("neel101")).thenReturn(Optional.of(testUser1));
     when(userService.findUserByName("testName2")).thenReturn(Optional.of(testUser1));
     when(userService.findUserByName("testName3")).thenReturn(Optional.of(testUser1));
-    when(hashTagService.createHashTag(anyString(), any())).thenReturn(hashtag);
+    when(hashTagService.resolveHashTags(any()))
+            .thenReturn(new HashSet<>(Collections.singletonList(hashtag)));
+    when(messageService.getUnsentMessages(any(User.class), anyInt(), anyInt()))
+            .thenReturn(new MessagePage(Collections.emptyList(), 0, false));
+  }
+
+  /**
+   * Returns every message written to a session, either directly or through an outbox.
+   */
+  private List<Message> sentMessages() {
+    List<Message> sent = valueCapture.getAllValues().stream()
+            .map(val -> (Message) val)
+            .collect(Collectors.toList());
+    textCapture.getAllValues().stream()
+            .filter(text -> !isPresenceFrame(text))
+            .forEach(text -> sent.add(readFrame(text)));
+    return sent;
+  }
+
+  /**
+   * Returns every presence frame written through an outbox.
+   */
+  private List<JsonNode> presenceFrames() throws IOException {
+    List<JsonNode> frames = new ArrayList<>();
+    for (String text : textCapture.getAllValues()) {
+      if (isPresenceFrame(text)) {
+        frames.add(objectMapper.readTree(text));
+      }
+    }
+    return frames;
+  }
+
+  private boolean isPresenceFrame(String text) {
+    try {
+      return "presence".equals(objectMapper.readTree(text).path("type").asText());
+    } catch (IOException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  private static List<Integer> ids(JsonNode array) {
+    List<Integer> ids = new ArrayList<>();
+    array.forEach(id -> ids.add(id.asInt()));
+    return ids;
+  }
+
+  /**
+   * Reads the fields the tests look at from an encoded frame. Frames of system messages carry
+   * zero ids, which the setters of Message reject, so the frame is read as a tree.
+   */
+  private Message readFrame(String text) {
+    try {
+      JsonNode node = objectMapper.readTree(text);
+      Message sent = new Message();
+      sent.setContent(node.path("content").asText(null));
+      if (node.path("fromUserId").asInt() > 0) {
+        sent.setFromUserId(node.path("fromUserId").asInt());
+      }
+      if (node.path("toUserId").asInt() > 0) {
+        sent.setToUserId(node.path("toUserId").asInt());
+      }
+      return sent;
+    } catch (IOException e) {
+      throw new IllegalArgumentException(e);
+    }
   }
 
   private void open() throws IOException, EncodeException, UserDoesNotExistException {
@@ -165,28 +310,50 @@ public class ChatEndpointTest {
     chatEndpoint3.onOpen(session3, testUser3.getUsername());
   }
 
-  private void close() {
+  @After
+  public void close() {
     chatEndpoint1.onClose(session1);
     chatEndpoint2.onClose(session2);
     chatEndpoint3.onClose(session3);
+    // Publishing the disconnections, so the next test starts with everyone offline
+    ChatEndpoint.getPresence().publish();
   }
 
   @Test
   public void testOnOpen() throws IOException, EncodeException, UserDoesNotExistException {
     when(testUser1.getUsername()).thenReturn("neel101");
     when(testUser1.getUserID()).thenReturn(1);
+    when(testUser2.getUsername()).thenReturn("zoheb101");
+    when(testUser2.getUserID()).thenReturn(2);
+    when(userService.getFolloweeIds(1)).thenReturn(Collections.singletonList(2));
+    when(userService.getFolloweeIds(2)).thenReturn(Collections.singletonList(1));
+    chatEndpoint2.onOpen(session2, testUser2.getUsername());
     chatEndpoint1.onOpen(session1, testUser1.getUsername());
 
-    // Finding the message with content 'Connected!'
-    Optional<Message> m = valueCapture.getAllValues().stream()
-            .map(val -> (Message) val)
-            .filter(msg -> msg.getContent().equals("Connected!")).findAny();
+    // The new session gets the presence of the users of interest right away
+    List<JsonNode> frames = presenceFrames();
+    assertEquals(Collections.singletonList(2), ids(frames.get(frames.size() - 1).path("online")));
 
-    if (m.isPresent()) {
-      assertEquals("Connected!", m.get().getContent());
-    } else {
-      fail();
-    }
+    // The followers learn about the connection with the next presence update
+    ChatEndpoint.getPresence().publish();
+    assertTrue(presenceFrames().stream()
+            .anyMatch(frame -> ids(frame.path("online")).contains(1)));
+    assertTrue(sentMessages().stream().noneMatch(msg -> "Connected!".equals(msg.getContent())));
+    assertTrue(ChatEndpoint.getPresence().isOnline(1));
+  }
+
+  @Test
+  public void testOnOpenGroupPeers() throws IOException, EncodeException, UserDoesNotExistException,
+          GroupNotFoundException {
+    when(groupService.getGroupIdsForUser(1)).thenReturn(Collections.singletonList(7));
+    when(groupService.getMemberIdsInGroupAndSubGroups(7))
+            .thenReturn(new HashSet<>(Arrays.asList(1, 3)));
+    open();
+    ChatEndpoint.getPresence().publish();
+
+    List<JsonNode> frames = presenceFrames();
+    assertTrue(frames.stream().anyMatch(frame -> ids(frame.path("online")).contains(3)));
+    assertTrue(frames.stream().noneMatch(frame -> ids(frame.path("online")).contains(2)));
   }
 
   @Test
@@ -194,8 +361,7 @@ public class ChatEndpointTest {
           throws IOException, EncodeException, UserDoesNotExistException {
     chatEndpoint1.onOpen(session1, "nonexistentUser");
 
-    Optional<Message> m = valueCapture.getAllValues().stream()
-            .map(val -> (Message) val)
+    Optional<Message> m = sentMessages().stream()
             .filter(msg -> msg.getContent().equals("User nonexistentUser could not be found")).findAny();
 
     if (m.isPresent()) {
@@ -215,13 +381,19 @@ public class ChatEndpointTest {
     chatEndpoint1.onOpen(session1, testUser1.getUsername());
     chatEndpoint2.onOpen(session2, testUser2.getUsername());
 
+    when(userService.getFolloweeIds(2)).thenReturn(Collections.singletonList(1));
+    chatEndpoint1.onOpen(session1, testUser1.getUsername());
+    chatEndpoint2.onOpen(session2, testUser2.getUsername());
+    ChatEndpoint.getPresence().publish();
+
     chatEndpoint1.onClose(session1);
+    assertTrue(!ChatEndpoint.getPresence().isOnline(1));
+    ChatEndpoint.getPresence().publish();
 
-    // Finding the message with content 'Disconnected!'
-    Optional<Message> m = valueCapture.getAllValues().stream()
-            .map(val -> (Message) val)
-            .filter(msg -> msg.getContent().equals("Disconnected!")).findAny();
-    assertTrue(m.isPresent());
+    List<JsonNode> frames = presenceFrames();
+    assertEquals(Collections.singletonList(1),
+            ids(frames.get(frames.size() - 1).path("offline")));
+    assertTrue(sentMessages().stream().noneMatch(msg -> "Disconnected!".equals(msg.getContent())));
   }
 
   @Test
@@ -253,8 +425,7 @@ public class ChatEndpointTest {
     chatEndpoint1.onMessage(message);
 
     // Finding messages with content hey
-    Optional<Message> m = valueCapture.getAllValues().stream()
-            .map(val -> (Message) val)
+    Optional<Message> m = sentMessages().stream()
             .filter(msg -> msg.getContent().equals("Hey")).findAny();
 
     if (m.isPresent()) {
@@ -272,6 +443,443 @@ public class ChatEndpointTest {
     close();
   }
 
+  private Message inboundMessage() {
+    Message inbound = Message.messageBuilder()
+            .setMessageId(5)
+            .setSourceMessageId(5)
+            .setFromUserId(1)
+            .setToUserId(2)
+            .setMessageContent("Hey in parts")
+            .build();
+    when(messageService.saveNewMessage(any(Message.class)))
+            .thenAnswer(invocation -> invocation.getArgument(0));
+    return inbound;
+  }
+
+  private void assertDelivered(String content) {
+    assertTrue(sentMessages().stream().anyMatch(msg -> content.equals(msg.getContent())));
+  }
+
+  @Test
+  public void testOnTextMessage() throws IOException, EncodeException, UserDoesNotExistException {
+    open();
+    chatEndpoint1.onTextMessage(new MessageEncoder().encode(inboundMessage()), true);
+
+    assertDelivered("Hey in parts");
+  }
+
+  @Test
+  public void testOnTextMessageInParts()
+          throws IOException, EncodeException, UserDoesNotExistException {
+    open();
+    String text = new MessageEncoder().encode(inboundMessage());
+    int third = text.length() / 3;
+
+    chatEndpoint1.onTextMessage(text.substring(0, third), false);
+    chatEndpoint1.onTextMessage(text.substring(third, 2 * third), false);
+    assertTrue(sentMessages().isEmpty());
+    chatEndpoint1.onTextMessage(text.substring(2 * third), true);
+
+    assertDelivered("Hey in parts");
+  }
+
+  @Test
+  public void testOnBinaryMessageInParts()
+          throws IOException, EncodeException, UserDoesNotExistException {
+    open();
+    byte[] bytes = new MessageBinaryEncoder().encodeToBytes(inboundMessage());
+    int half = bytes.length / 2;
+
+    chatEndpoint1.onBinaryMessage(ByteBuffer.wrap(bytes, 0, half), false);
+    chatEndpoint1.onBinaryMessage(ByteBuffer.wrap(bytes, half, bytes.length - half), true);
+
+    assertDelivered("Hey in parts");
+  }
+
+  /**
+   * Joins this node to a hub with a second node hosting user 9, returning what the second node
+   * is handed.
+   */
+  private BlockingQueue<Delivery> joinRemoteNode(InProcessMessageBus.Hub hub,
+                                                 InProcessMessageBus remote) {
+    BlockingQueue<Delivery> received = new LinkedBlockingQueue<>();
+    ChatEndpoint.setBus(new InProcessMessageBus("local", hub));
+    remote.start(new LocalNode() {
+      @Override
+      public void deliver(Delivery delivery) {
+        received.add(delivery);
+      }
+
+      @Override
+      public boolean isConnected(int userId) {
+        return userId == 9;
+      }
+
+      @Override
+      public Collection<Integer> getUserIds() {
+        return Collections.singleton(9);
+      }
+
+      @Override
+      public void invalidated(String cache, int key) {
+        // no caches
+      }
+
+      @Override
+      public void invalidatedAll() {
+        // no caches
+      }
+    });
+    return received;
+  }
+
+  @Test
+  public void testMessageToUserOnOtherNode()
+          throws IOException, EncodeException, UserDoesNotExistException {
+    InProcessMessageBus.Hub hub = new InProcessMessageBus.Hub();
+    InProcessMessageBus remote = new InProcessMessageBus("remote", hub);
+    BlockingQueue<Delivery> received = joinRemoteNode(hub, remote);
+    try {
+      open();
+      User remoteUser = mock(User.class);
+      when(remoteUser.getUserID()).thenReturn(9);
+      when(userService.findUserById(9)).thenReturn(Optional.of(remoteUser));
+      message.setFromUserId(1);
+      message.setToUserId(9);
+      message.setContent("Hey remote");
+      when(messageService.saveNewMessage(message)).thenReturn(message);
+
+      chatEndpoint1.onMessage(message);
+
+      Delivery delivery = received.poll();
+      assertEquals(Collections.singleton(9), delivery.getRecipients());
+      assertEquals("Hey remote", readFrame(delivery.getFrame().getText()).getContent());
+      assertTrue(received.isEmpty());
+      assertTrue(sentMessages().stream().anyMatch(msg -> "Hey remote".equals(msg.getContent())));
+      assertTrue(ChatEndpoint.getBus().getDirectory().isConnected(9));
+    } finally {
+      remote.close();
+      ChatEndpoint.setBus(new InProcessMessageBus("local"));
+    }
+  }
+
+  @Test
+  public void testDeliveryFromOtherNode()
+          throws IOException, EncodeException, UserDoesNotExistException {
+    InProcessMessageBus.Hub hub = new InProcessMessageBus.Hub();
+    InProcessMessageBus remote = new InProcessMessageBus("remote", hub);
+    joinRemoteNode(hub, remote);
+    try {
+      open();
+      assertEquals(Collections.singleton("local"), remote.getDirectory().getNodes(2));
+
+      remote.publish(Delivery.toUsers(OutboundFrame.ofText(
+              "{\"content\":\"Hey from remote\",\"fromUserId\":9,\"toUserId\":2}"),
+              Collections.singleton(2), "Hey from remote"));
+
+      assertTrue(sentMessages().stream()
+              .anyMatch(msg -> "Hey from remote".equals(msg.getContent())));
+    } finally {
+      remote.close();
+      ChatEndpoint.setBus(new InProcessMessageBus("local"));
+    }
+  }
+
+  @Test
+  public void testStashQueuedByOwnerWhileAway()
+          throws IOException, EncodeException, UserDoesNotExistException {
+    open();
+    chatEndpoint3.onClose(session3);
+    message.setMessageId(12);
+    message.setFromUserId(1);
+    message.setToUserId(3);
+    message.setContent("While you were away");
+    when(messageService.saveNewMessage(message)).thenReturn(message);
+    chatEndpoint1.onMessage(message);
+    when(messageService.getMessagesForUser(any(User.class),
+            eq(Collections.singletonList(12)))).thenReturn(Collections.singletonList(message));
+
+    ChatEndpoint returning = new ChatEndpoint();
+    returning.onOpen(session3, testUser3.getUsername());
+
+    assertEquals(12, returning.getDeliveredMessageId());
+    verify(messageService, times(3)).getUnsentMessages(any(User.class), anyInt(), anyInt());
+    returning.onClose(session3);
+  }
+
+  @Test
+  public void testStashLeavesOutMessagesNoLongerShown()
+          throws IOException, EncodeException, UserDoesNotExistException {
+    open();
+    chatEndpoint3.onClose(session3);
+    message.setMessageId(12);
+    message.setFromUserId(1);
+    message.setToUserId(3);
+    message.setContent("Expired or filtered by now");
+    when(messageService.saveNewMessage(message)).thenReturn(message);
+    chatEndpoint1.onMessage(message);
+
+    // the service leaves out the messages that expired or are filtered when read back
+    ChatEndpoint returning = new ChatEndpoint();
+    returning.onOpen(session3, testUser3.getUsername());
+
+    assertEquals(0, returning.getDeliveredMessageId());
+    verify(messageService).getMessagesForUser(any(User.class),
+            eq(Collections.singletonList(12)));
+    returning.onClose(session3);
+  }
+
+  @Test
+  public void testMessageOverRateLimitIsRefused()
+          throws IOException, EncodeException, UserDoesNotExistException {
+    open();
+    ChatEndpoint.setAdmission(new AdmissionControl(Collections.emptyMap(),
+            Collections.singletonMap(AdmissionControl.Kind.PRIVATE,
+                    TokenBucket.Budget.parse("1/1")), 0, 0, System::nanoTime));
+    ChatEndpoint limited = new ChatEndpoint();
+    limited.onOpen(session1, testUser1.getUsername());
+    message.setFromUserId(1);
+    message.setToUserId(2);
+    message.setContent("Hello");
+    when(messageService.saveNewMessage(message)).thenReturn(message);
+
+    limited.onMessage(message);
+    limited.onMessage(message);
+
+    verify(messageService, times(1)).saveNewMessage(message);
+    JsonNode refusal = objectMapper.readTree(textCapture.getAllValues().stream()
+            .filter(text -> text.contains("\"error\"")).findFirst().orElse("{}"));
+    assertEquals("rate-limited", refusal.path("reason").asText());
+    assertEquals("private", refusal.path("kind").asText());
+    limited.onClose(session1);
+  }
+
+  private List<JsonNode> framesOfType(String type) throws IOException {
+    List<JsonNode> frames = new ArrayList<>();
+    for (String text : textCapture.getAllValues()) {
+      JsonNode node = objectMapper.readTree(text);
+      if (type.equals(node.path("type").asText())) {
+        frames.add(node);
+      }
+    }
+    return frames;
+  }
+
+  @Test
+  public void testTypingRelayedWithoutPersisting()
+          throws IOException, EncodeException, UserDoesNotExistException {
+    open();
+    chatEndpoint1.onTextMessage("{\"type\":\"typing\",\"toUserId\":3}", true);
+    chatEndpoint1.onTextMessage("{\"type\":\"typing\",\"toUserId\":3}", true);
+    chatEndpoint1.onTextMessage("{\"type\":\"typing\",\"toUserId\":3,\"active\":false}",
+            true);
+
+    List<JsonNode> typing = framesOfType("typing");
+    assertEquals(1, typing.size());
+    assertEquals(1, typing.get(0).path("fromUserId").asInt());
+    assertTrue(typing.get(0).path("active").asBoolean());
+
+    heartbeats.tick();
+    typing = framesOfType("typing");
+    assertEquals(2, typing.size());
+    assertFalse(typing.get(1).path("active").asBoolean());
+    verify(messageService, never()).saveNewMessage(any());
+    close();
+  }
+
+  @Test
+  public void testSyncAnsweredOnSession()
+          throws IOException, EncodeException, UserDoesNotExistException {
+    open();
+    when(messageService.sync("neel101", 4, 2)).thenReturn(new SyncPage(
+            Collections.singletonList(new SyncEvent(5, SyncEvent.EXPIRED, 9, null)), 5, false));
+    chatEndpoint1.onTextMessage("{\"type\":\"sync\",\"since\":4,\"limit\":2}", true);
+
+    List<JsonNode> sync = framesOfType("sync");
+    assertEquals(1, sync.size());
+    assertEquals(5, sync.get(0).path("nextCursor").asLong());
+    assertEquals("expired", sync.get(0).path("events").get(0).path("type").asText());
+    assertEquals(9, sync.get(0).path("events").get(0).path("messageId").asInt());
+    verify(messageService, never()).saveNewMessage(any());
+    close();
+  }
+
+  @Test
+  public void testGroupEventOnlyFromMembers()
+          throws IOException, EncodeException, UserDoesNotExistException, GroupNotFoundException {
+    open();
+    when(groupService.getMemberIdsInGroupAndSubGroups(5))
+            .thenReturn(new HashSet<>(Arrays.asList(1, 2)));
+    chatEndpoint3.onTextMessage("{\"type\":\"seen\",\"groupId\":5,\"messageId\":9}", true);
+    assertTrue(framesOfType("seen").isEmpty());
+
+    chatEndpoint1.onTextMessage("{\"type\":\"seen\",\"groupId\":5,\"messageId\":9}", true);
+    List<JsonNode> seen = framesOfType("seen");
+    assertEquals(1, seen.size());
+    assertEquals(5, seen.get(0).path("groupId").asInt());
+    assertEquals(9, seen.get(0).path("messageId").asInt());
+    close();
+  }
+
+  @Test
+  public void testChunkedUpload()
+          throws IOException, EncodeException, UserDoesNotExistException {
+    open();
+    UUID uploadId = UUID.randomUUID();
+    chatEndpoint1.onBinaryMessage(UploadChunk.encode(uploadId, 0, false,
+            ByteBuffer.wrap("hello ".getBytes(StandardCharsets.UTF_8))), true);
+    ByteBuffer last = UploadChunk.encode(uploadId, 6, true,
+            ByteBuffer.wrap("world".getBytes(StandardCharsets.UTF_8)));
+    int half = UploadChunk.HEADER_SIZE + 2;
+    chatEndpoint1.onBinaryMessage((ByteBuffer) last.duplicate().limit(half), false);
+    chatEndpoint1.onBinaryMessage((ByteBuffer) last.duplicate().position(half), true);
+
+    List<JsonNode> acks = framesOfType("upload");
+    assertEquals(2, acks.size());
+    assertEquals(11, acks.get(1).path("offset").asLong());
+    assertTrue(acks.get(1).path("complete").asBoolean());
+
+    MessageAttachment attachment = new MessageAttachment();
+    attachment.setWebUrl(AttachmentUploads.REFERENCE + uploadId);
+    message.setHasAttachment(true);
+    message.setAttachments(new HashSet<>(Collections.singletonList(attachment)));
+    message.setFromUserId(testUser1.getUserID());
+    message.setContent("See attached");
+    message.setToUserId(testUser3.getUserID());
+    when(messageService.saveNewMessage(message)).thenReturn(message);
+    chatEndpoint1.onMessage(message);
+
+    verify(messageService, times(1)).saveNewMessage(message);
+    assertTrue(attachment.isStored());
+    try {
+      assertEquals("hello world", new String(
+              Files.readAllBytes(Paths.get(attachment.getWebUrl())), StandardCharsets.UTF_8));
+    } finally {
+      FileHandler.deleteMediaTypeFile(attachment.getWebUrl());
+    }
+    close();
+  }
+
+  @Test
+  public void testMessageWithUnknownUploadRefused()
+          throws IOException, EncodeException, UserDoesNotExistException {
+    open();
+    MessageAttachment attachment = new MessageAttachment();
+    attachment.setWebUrl(AttachmentUploads.REFERENCE + UUID.randomUUID());
+    message.setHasAttachment(true);
+    message.setAttachments(new HashSet<>(Collections.singletonList(attachment)));
+    message.setFromUserId(testUser1.getUserID());
+    message.setToUserId(testUser3.getUserID());
+    chatEndpoint1.onMessage(message);
+
+    verify(messageService, never()).saveNewMessage(any());
+    verify(async).sendText(contains("upload-unknown"), any(SendHandler.class));
+    close();
+  }
+
+  @Test
+  public void testSessionRefusedWhenOverloaded()
+          throws IOException, EncodeException, UserDoesNotExistException {
+    MessagePipeline pipeline = mock(MessagePipeline.class);
+    when(pipeline.getQueueDepth()).thenReturn(10);
+    ChatEndpoint.setPipeline(pipeline);
+    ChatEndpoint.setAdmission(new AdmissionControl(Collections.emptyMap(),
+            Collections.emptyMap(), 5, 0, System::nanoTime));
+    when(testUser1.getUsername()).thenReturn("neel101");
+    when(testUser1.getUserID()).thenReturn(1);
+
+    chatEndpoint1.onOpen(session1, testUser1.getUsername());
+
+    verify(basic).sendText(contains("overloaded"));
+    verify(session1).close(any(CloseReason.class));
+    assertFalse(ChatEndpoint.getBus().getDirectory().isConnected(1));
+  }
+
+  @Test
+  public void testHeartbeatPings() throws IOException, EncodeException, UserDoesNotExistException {
+    open();
+
+    heartbeats.tick();
+
+    verify(async, timeout(5000).times(3)).sendPing(any(ByteBuffer.class));
+    assertTrue(ChatEndpoint.getBus().getDirectory().isConnected(1));
+  }
+
+  @Test
+  public void testIdleSessionIsEvicted()
+          throws IOException, EncodeException, UserDoesNotExistException {
+    open();
+    for (int i = 0; i < 3; i++) {
+      heartbeats.tick();
+      // user 2 answers every ping
+      chatEndpoint2.onPong(mock(PongMessage.class));
+    }
+
+    verify(session1).close(any(CloseReason.class));
+    verify(session2, never()).close(any(CloseReason.class));
+    assertFalse(ChatEndpoint.getBus().getDirectory().isConnected(1));
+    assertTrue(ChatEndpoint.getBus().getDirectory().isConnected(2));
+  }
+
+  @Test
+  public void testIdleSessionIsClosedOffTheWheel()
+          throws IOException, EncodeException, UserDoesNotExistException {
+    open();
+    List<Runnable> evictions = new ArrayList<>();
+    ChatEndpoint.setCloser(evictions::add);
+    for (int i = 0; i < 3; i++) {
+      heartbeats.tick();
+    }
+
+    verify(session1, never()).close(any(CloseReason.class));
+    assertFalse(evictions.isEmpty());
+
+    evictions.forEach(Runnable::run);
+    verify(session1).close(any(CloseReason.class));
+    assertFalse(ChatEndpoint.getBus().getDirectory().isConnected(1));
+  }
+
+  @Test
+  public void testDecodeErrorKeepsSession()
+          throws IOException, EncodeException, UserDoesNotExistException {
+    open();
+
+    chatEndpoint3.onError(session3, new DecodeException("{", "Unable to decode"));
+
+    verify(session3, never()).close(any(CloseReason.class));
+    assertTrue(ChatEndpoint.getBus().getDirectory().isConnected(3));
+  }
+
+  @Test
+  public void testFailedSessionIsEvicted()
+          throws IOException, EncodeException, UserDoesNotExistException {
+    open();
+
+    chatEndpoint3.onError(session3, new IOException("Connection reset"));
+
+    verify(session3).close(any(CloseReason.class));
+    assertFalse(ChatEndpoint.getBus().getDirectory().isConnected(3));
+  }
+
+  @Test
+  public void testSessionFailingToSendIsEvicted()
+          throws IOException, EncodeException, UserDoesNotExistException {
+    open();
+    doAnswer(invocation -> {
+      ((SendHandler) invocation.getArgument(1))
+              .onResult(new SendResult(new IOException("Broken pipe")));
+      return null;
+    }).when(async).sendText(anyString(), any(SendHandler.class));
+    message.setFromUserId(1);
+    message.setToUserId(2);
+    message.setContent("Anyone there?");
+    when(messageService.saveNewMessage(message)).thenReturn(message);
+
+    chatEndpoint1.onMessage(message);
+
+    assertFalse(ChatEndpoint.getBus().getDirectory().isConnected(2));
+  }
+
   private String getLastLine(String filePath) throws IOException {
     List<String> allLines =
             Files.readAllLines(Paths.get(filePath));
@@ -289,8 +897,7 @@ public class ChatEndpointTest {
     when(messageService.saveNewMessage(message)).thenReturn(message);
     chatEndpoint1.onMessage(message);
 
-    Optional<Message> m = valueCapture.getAllValues().stream()
-            .map(val -> (Message) val)
+    Optional<Message> m = sentMessages().stream()
             .filter(msg -> msg.getContent().equals("Hi, testUser3! #awesome")).findAny();
 
     if (m.isPresent()) {
@@ -312,6 +919,70 @@ public class ChatEndpointTest {
     close();
   }
 
+  @Test
+  public void testHashTagsResolvedTogether()
+          throws IOException, EncodeException, UserDoesNotExistException {
+    open();
+    message.setFromUserId(testUser1.getUserID());
+    message.setContent("#one #two #one #three");
+    message.setToUserId(testUser3.getUserID());
+    when(messageService.saveNewMessage(message)).thenReturn(message);
+    chatEndpoint1.onMessage(message);
+
+    verify(hashTagService).resolveHashTags(
+            new LinkedHashSet<>(Arrays.asList("one", "two", "three")));
+    verify(hashTagService, never()).createHashTag(anyString(), any());
+    assertEquals(1, message.getHashTagSet().size());
+    close();
+  }
+
+  @Test
+  public void testNoHashTagsResolvedWithoutTags()
+          throws IOException, EncodeException, UserDoesNotExistException {
+    open();
+    message.setFromUserId(testUser1.getUserID());
+    message.setContent("No tags here");
+    message.setToUserId(testUser3.getUserID());
+    when(messageService.saveNewMessage(message)).thenReturn(message);
+    chatEndpoint1.onMessage(message);
+
+    verify(hashTagService, never()).resolveHashTags(any());
+    assertTrue(message.getHashTagSet().isEmpty());
+    close();
+  }
+
+  @Test
+  public void testOnMessageToEveryDevice()
+          throws IOException, EncodeException, UserDoesNotExistException {
+    open();
+    Session session4 = mock(Session.class);
+    when(session4.getId()).thenReturn("id4");
+    when(session4.getAsyncRemote()).thenReturn(async);
+    when(session4.getRequestParameterMap())
+            .thenReturn(Collections.singletonMap("device", Collections.singletonList("phone")));
+    ChatEndpoint chatEndpoint4 = new ChatEndpoint();
+    chatEndpoint4.onOpen(session4, testUser2.getUsername());
+    assertEquals("phone", chatEndpoint4.getDeviceId());
+    assertEquals("id2", chatEndpoint2.getDeviceId());
+
+    message.setMessageId(7);
+    message.setFromUserId(testUser1.getUserID());
+    message.setContent("Hey both devices");
+    message.setToUserId(testUser2.getUserID());
+    when(messageService.saveNewMessage(message)).thenReturn(message);
+    chatEndpoint1.onMessage(message);
+
+    List<Message> messages = sentMessages().stream()
+            .filter(msg -> msg.getContent().equals("Hey both devices"))
+            .collect(Collectors.toList());
+    // once for the sender, once for each device of the recipient
+    assertEquals(3, messages.size());
+    assertEquals(7, chatEndpoint2.getDeliveredMessageId());
+    assertEquals(7, chatEndpoint4.getDeliveredMessageId());
+
+    chatEndpoint4.onClose(session4);
+  }
+
   @Test
   public void testGroupMessage() throws UserDoesNotExistException, EncodeException, IOException {
     open();
@@ -332,21 +1003,57 @@ public class ChatEndpointTest {
     when(groupService.isGroup("testGroup")).thenReturn(true);
     when(groupService.isMember(group, testUser2)).thenReturn(true);
     when(groupService.isMember(group, testUser3)).thenReturn(true);
-    List<User> members = new ArrayList<>();
-    members.add(testUser2);
-    members.add(testUser3);
 
-    when(groupService.getAllUsersInGroupsAndSubGroups(anyString())).thenReturn(members);
+    when(groupService.getMemberIdsInGroupAndSubGroups(6))
+            .thenReturn(new HashSet<>(Arrays.asList(2, 3)));
 
     chatEndpoint2.onMessage(message);
-    System.out.println(valueCapture.getAllValues());
-    List<Message> messages = valueCapture.getAllValues().stream()
-            .map(val -> (Message) val)
+    List<Message> messages = sentMessages().stream()
             .filter(msg -> msg.getContent().equals("Hi Group!")).collect(Collectors.toList());
 
     assertTrue(messages.size() == 2);
+    verify(groupService, never()).findGroupByName(anyString());
+    verify(groupService, never()).getAllUsersInGroupsAndSubGroups(anyString());
+  }
+
+  @Test
+  public void testGroupMessageFilteredForMember()
+          throws UserDoesNotExistException, EncodeException, IOException {
+    Filter filter = new Filter();
+    filter.setFilterString("secret");
+    when(testUser3.getFilters()).thenReturn(Collections.singleton(filter));
+    open();
+    when(messageService.saveNewMessage(message)).thenReturn(message);
+    when(groupService.getMemberIdsInGroupAndSubGroups(6))
+            .thenReturn(new HashSet<>(Arrays.asList(2, 3)));
+
+    message.setFromUserId(testUser2.getUserID());
+    message.setIsGroupMessage(true);
+    message.setToUserId(6);
+    message.setContent("The Secret plan");
+    chatEndpoint2.onMessage(message);
+
+    List<Message> messages = sentMessages().stream()
+            .filter(msg -> msg.getContent().equals("The Secret plan"))
+            .collect(Collectors.toList());
+    assertEquals(1, messages.size());
+  }
+
+  @Test
+  public void testGroupMessageToUnknownGroup()
+          throws UserDoesNotExistException, EncodeException, IOException {
+    open();
+    when(messageService.saveNewMessage(message)).thenReturn(message);
+    when(groupService.getMemberIdsInGroupAndSubGroups(9))
+            .thenThrow(new GroupNotFoundException("Couldnt find a group by that id"));
 
+    message.setFromUserId(testUser2.getUserID());
+    message.setIsGroupMessage(true);
+    message.setToUserId(9);
+    message.setContent("Anyone?");
+    chatEndpoint2.onMessage(message);
 
+    assertTrue(sentMessages().stream().noneMatch(msg -> msg.getContent().equals("Anyone?")));
   }
 
   @Test
@@ -359,15 +1066,36 @@ public class ChatEndpointTest {
     List<Message> stashedMessages = new ArrayList<>();
     stashedMessages.add(message);
     when(userService.findUserById(3)).thenReturn(Optional.of(testUser1));
-    when(messageService.getUnsentMessages(testUser1.getUsername(), true)).thenReturn(stashedMessages);
+    when(messageService.getUnsentMessages(testUser1, 0, 50))
+            .thenReturn(new MessagePage(stashedMessages, 4, false));
 
     chatEndpoint1.onOpen(session1, testUser1.getUsername());
 
-    List<Message> messages = valueCapture.getAllValues().stream()
-            .map(val -> (Message) val)
+    List<Message> messages = sentMessages().stream()
             .filter(msg -> msg.getContent().equals(message.getContent())).collect(Collectors.toList());
 
     assertEquals(1, messages.size());
 
   }
+
+  @Test
+  public void testGetStashedMessagesInPages()
+          throws UserDoesNotExistException, EncodeException, IOException {
+    when(testUser1.getUsername()).thenReturn("neel101");
+    when(testUser1.getUserID()).thenReturn(1);
+    Message first = Message.messageBuilder().setMessageContent("first").build();
+    Message second = Message.messageBuilder().setMessageContent("second").build();
+    when(messageService.getUnsentMessages(testUser1, 0, 50))
+            .thenReturn(new MessagePage(Collections.singletonList(first), 7, true));
+    when(messageService.getUnsentMessages(testUser1, 7, 50))
+            .thenReturn(new MessagePage(Collections.singletonList(second), 9, false));
+
+    chatEndpoint1.onOpen(session1, testUser1.getUsername());
+
+    List<String> contents = sentMessages().stream().map(Message::getContent)
+            .collect(Collectors.toList());
+    assertTrue(contents.indexOf("first") >= 0);
+    assertTrue(contents.indexOf("first") < contents.indexOf("second"));
+    verify(messageService, never()).getUnsentMessages(testUser1, 9, 50);
+  }
 }
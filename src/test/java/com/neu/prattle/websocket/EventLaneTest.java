@@ -0,0 +1,101 @@
+package com.neu.prattle.websocket;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.neu.prattle.utils.HashedTimerWheel;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class to test the implementation of EventLane class.
+ */
+public class EventLaneTest {
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private final HashedTimerWheel wheel = new HashedTimerWheel(1000, 8);
+  private final EventLane lane = new EventLane(wheel, 1000);
+  private final List<JsonNode> sent = new ArrayList<>();
+
+  private void submit(int fromUserId, String conversation, String text) {
+    lane.submit(fromUserId, conversation, EventLane.parse(text), frame -> {
+      try {
+        sent.add(objectMapper.readTree(frame.getText()));
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+  }
+
+  @Test
+  public void testParse() {
+    EventLane.Event typing = EventLane.parse("{\"type\":\"typing\",\"toUserId\":3}");
+    assertEquals("typing", typing.getType());
+    assertEquals(3, typing.getToUserId());
+    assertTrue(typing.isActive());
+
+    EventLane.Event seen = EventLane.parse(
+            "{\"type\":\"seen\",\"groupId\":5,\"messageId\":120}");
+    assertEquals(5, seen.getGroupId());
+    assertEquals(120, seen.getMessageId());
+
+    assertFalse(EventLane.parse("{\"type\":\"typing\",\"active\":false}").isActive());
+    assertNull(EventLane.parse("{\"content\":\"hi\",\"toUserId\":3}"));
+    assertNull(EventLane.parse("{\"content\":\"\\\"type\\\"\",\"toUserId\":3}"));
+    assertNull(EventLane.parse("{\"type\":\"presence\"}"));
+    assertNull(EventLane.parse("{\"type\":"));
+  }
+
+  @Test
+  public void testFrame() {
+    submit(1, "user:3", "{\"type\":\"typing\",\"toUserId\":3,\"active\":false}");
+    submit(1, "group:5", "{\"type\":\"seen\",\"groupId\":5,\"messageId\":7}");
+
+    assertEquals("typing", sent.get(0).get("type").asText());
+    assertEquals(1, sent.get(0).get("fromUserId").asInt());
+    assertEquals(3, sent.get(0).get("toUserId").asInt());
+    assertFalse(sent.get(0).get("active").asBoolean());
+    assertEquals(5, sent.get(1).get("groupId").asInt());
+    assertEquals(7, sent.get(1).get("messageId").asInt());
+    assertFalse(sent.get(1).has("toUserId"));
+  }
+
+  @Test
+  public void testCoalescedPerInterval() {
+    submit(1, "user:3", "{\"type\":\"seen\",\"toUserId\":3,\"messageId\":1}");
+    submit(1, "user:3", "{\"type\":\"seen\",\"toUserId\":3,\"messageId\":2}");
+    submit(1, "user:3", "{\"type\":\"seen\",\"toUserId\":3,\"messageId\":3}");
+    assertEquals(1, sent.size());
+
+    wheel.tick();
+    assertEquals(2, sent.size());
+    assertEquals(3, sent.get(1).get("messageId").asInt());
+    assertEquals(1, lane.getActiveCount());
+
+    // Nothing held during the next interval, the conversation is forgotten
+    wheel.tick();
+    assertEquals(2, sent.size());
+    assertEquals(0, lane.getActiveCount());
+    submit(1, "user:3", "{\"type\":\"seen\",\"toUserId\":3,\"messageId\":4}");
+    assertEquals(3, sent.size());
+  }
+
+  @Test
+  public void testConversationsAndKindsSeparate() {
+    submit(1, "user:3", "{\"type\":\"typing\",\"toUserId\":3}");
+    submit(1, "user:3", "{\"type\":\"seen\",\"toUserId\":3,\"messageId\":1}");
+    submit(1, "user:4", "{\"type\":\"typing\",\"toUserId\":4}");
+    submit(2, "user:3", "{\"type\":\"typing\",\"toUserId\":3}");
+
+    assertEquals(4, sent.size());
+    assertEquals(4, lane.getActiveCount());
+  }
+}
@@ -0,0 +1,103 @@
+package com.neu.prattle.websocket;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class to test the implementation of InboundSpool class.
+ */
+public class InboundSpoolTest {
+
+  private final InboundSpool spool = new InboundSpool(8, 64);
+
+  @After
+  public void tearDown() {
+    spool.reset();
+  }
+
+  private static String read(Reader reader) throws IOException {
+    StringBuilder text = new StringBuilder();
+    int c;
+    while ((c = reader.read()) != -1) {
+      text.append((char) c);
+    }
+    return text.toString();
+  }
+
+  private static byte[] read(InputStream stream) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    int b;
+    while ((b = stream.read()) != -1) {
+      bytes.write(b);
+    }
+    return bytes.toByteArray();
+  }
+
+  @Test
+  public void testTextInMemory() throws IOException {
+    assertTrue(spool.isEmpty());
+    assertTrue(spool.appendText("{\"a\""));
+    assertTrue(spool.appendText(":1}"));
+
+    assertFalse(spool.isEmpty());
+    assertEquals("{\"a\":1}", read(spool.openReader()));
+  }
+
+  @Test
+  public void testTextInFile() throws IOException {
+    spool.appendText("{\"content\":");
+    spool.appendText("\"ünïcödé \uD83D");
+    spool.appendText("\uDE00\"}");
+
+    assertEquals("{\"content\":\"ünïcödé 😀\"}", read(spool.openReader()));
+  }
+
+  @Test
+  public void testBinaryInMemory() throws IOException {
+    spool.appendBinary(ByteBuffer.wrap(new byte[]{9, 1, 2, 9}, 1, 2));
+
+    assertArrayEquals(new byte[]{1, 2}, read(spool.openStream()));
+  }
+
+  @Test
+  public void testBinaryInFile() throws IOException {
+    ByteBuffer direct = ByteBuffer.allocateDirect(6);
+    direct.put(new byte[]{6, 7, 8, 9, 10, 11}).flip();
+
+    spool.appendBinary(ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5}));
+    spool.appendBinary(direct);
+
+    assertFalse(direct.hasRemaining());
+    assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11}, read(spool.openStream()));
+  }
+
+  @Test
+  public void testMaxSize() throws IOException {
+    assertTrue(spool.appendText(new String(new char[60])));
+    assertFalse(spool.appendText("12345"));
+    assertEquals(65, spool.size());
+  }
+
+  @Test
+  public void testReset() throws IOException {
+    spool.appendText("{\"content\":\"a long message\"}");
+    spool.openReader();
+    spool.reset();
+
+    assertTrue(spool.isEmpty());
+    assertEquals(0, spool.size());
+    spool.appendText("{}");
+    assertEquals("{}", read(spool.openReader()));
+  }
+}
@@ -0,0 +1,135 @@
+package com.neu.prattle.websocket;
+
+import com.neu.prattle.model.Message;
+import com.neu.prattle.model.MessageAttachment;
+import com.neu.prattle.utils.FileHandler;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class to test the implementation of MessageBinaryDecoder class.
+ */
+public class MessageBinaryDecoderTest {
+
+  private final MessageBinaryDecoder decoder = new MessageBinaryDecoder();
+
+  private static Message message() {
+    return Message.messageBuilder()
+            .setMessageId(1)
+            .setSourceMessageId(1)
+            .setFromUserId(1)
+            .setToUserId(2)
+            .setMessageContent("content")
+            .build();
+  }
+
+  @Test
+  public void testDecode() {
+    Message decoded = decoder.decode(new MessageBinaryEncoder().encode(message()));
+
+    assertEquals("content", decoded.getContent());
+    assertEquals(1, decoded.getFromUserId());
+    assertEquals(2, decoded.getToUserId());
+  }
+
+  @Test
+  public void testDecodeSlice() {
+    byte[] encoded = new MessageBinaryEncoder().encodeToBytes(message());
+    byte[] padded = new byte[encoded.length + 4];
+    System.arraycopy(encoded, 0, padded, 2, encoded.length);
+    ByteBuffer slice = ByteBuffer.wrap(padded, 2, encoded.length);
+
+    assertEquals("content", decoder.decode(slice).getContent());
+  }
+
+  @Test
+  public void testDecodeDirectBuffer() {
+    byte[] encoded = new MessageBinaryEncoder().encodeToBytes(message());
+    ByteBuffer direct = ByteBuffer.allocateDirect(encoded.length);
+    direct.put(encoded).flip();
+
+    assertEquals("content", decoder.decode(direct).getContent());
+  }
+
+  @Test
+  public void testDecodeStream() {
+    byte[] encoded = new MessageBinaryEncoder().encodeToBytes(withAttachment(dataUrl(30)));
+
+    Message decoded = decoder.decode(new ByteArrayInputStream(encoded));
+
+    assertEquals("content", decoded.getContent());
+    MessageAttachment attachment = decoded.getAttachments().iterator().next();
+    assertEquals(dataUrl(30), attachment.getWebUrl());
+    assertFalse(attachment.isStored());
+  }
+
+  @Test
+  public void testDecodeEncodedStream() throws IOException {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    new MessageBinaryEncoder().encode(message(), stream);
+
+    Message decoded = decoder.decode(new ByteArrayInputStream(stream.toByteArray()));
+
+    assertEquals("content", decoded.getContent());
+    assertEquals(2, decoded.getToUserId());
+  }
+
+  @Test
+  public void testDecodeStreamSpillsLargeAttachment() {
+    String webUrl = dataUrl(100000);
+    byte[] encoded = new MessageBinaryEncoder().encodeToBytes(withAttachment(webUrl));
+
+    Message decoded = decoder.decode(new ByteArrayInputStream(encoded));
+
+    MessageAttachment attachment = decoded.getAttachments().iterator().next();
+    assertTrue(attachment.isStored());
+    try {
+      assertEquals(webUrl, FileHandler.getOriginalMediaTypeData(attachment.getWebUrl()));
+    } finally {
+      FileHandler.deleteMediaTypeFile(attachment.getWebUrl());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDecodeStreamInvalid() {
+    decoder.decode(new ByteArrayInputStream(new byte[]{(byte) 0xff, 0x01}));
+  }
+
+  private static Message withAttachment(String webUrl) {
+    MessageAttachment attachment = new MessageAttachment();
+    attachment.setWebUrl(webUrl);
+    Message result = message();
+    result.setAttachments(Collections.singleton(attachment));
+    return result;
+  }
+
+  private static String dataUrl(int bytes) {
+    byte[] data = new byte[bytes];
+    new Random(7).nextBytes(data);
+    return "data:application/octet-stream;base64," + Base64.getEncoder().encodeToString(data);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDecodeInvalid() {
+    decoder.decode(ByteBuffer.wrap(new byte[]{(byte) 0xff, 0x01}));
+  }
+
+  @Test
+  public void testWillDecode() {
+    assertTrue(decoder.willDecode(ByteBuffer.wrap(new byte[]{(byte) 0xa0})));
+    assertFalse(decoder.willDecode(ByteBuffer.allocate(0)));
+    assertFalse(decoder.willDecode(null));
+  }
+}
@@ -2,14 +2,18 @@
 package com.neu.prattle.websocket;
 
 import com.neu.prattle.model.Message;
+import com.neu.prattle.model.MessageAttachment;
 import com.neu.prattle.model.MessageStatus;
 import com.neu.prattle.model.User;
+import com.neu.prattle.utils.FileHandler;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.StringReader;
 import java.sql.Timestamp;
 import java.time.LocalDateTime;
+import java.util.Collections;
 
 import javax.websocket.EncodeException;
 
@@ -91,4 +95,52 @@ public class MessageDecoderTest {
     assertEquals(decodedMessage.getToUserId(), message.getToUserId());
   }
 
+  @Test
+  public void testDecodeStream() {
+    Message decoded = messageDecoder.decode(new StringReader(
+            messageEncoder.encode(withAttachment("data:text/plain;base64,aGk="))));
+
+    assertEquals(message.getContent(), decoded.getContent());
+    MessageAttachment attachment = decoded.getAttachments().iterator().next();
+    assertEquals("data:text/plain;base64,aGk=", attachment.getWebUrl());
+    assertFalse(attachment.isStored());
+  }
+
+  @Test
+  public void testDecodeStreamSpillsLargeAttachment() {
+    StringBuilder data = new StringBuilder("data:text/plain;base64,");
+    for (int i = 0; i < 20000; i++) {
+      data.append("aGVsbG8g");
+    }
+
+    Message decoded = messageDecoder.decode(new StringReader(
+            messageEncoder.encode(withAttachment(data.toString()))));
+
+    MessageAttachment attachment = decoded.getAttachments().iterator().next();
+    assertTrue(attachment.isStored());
+    try {
+      assertEquals(data.toString(), FileHandler.getOriginalMediaTypeData(attachment.getWebUrl()));
+    } finally {
+      FileHandler.deleteMediaTypeFile(attachment.getWebUrl());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDecodeStreamInvalid() {
+    messageDecoder.decode(new StringReader("{\"content\":"));
+  }
+
+  private static Message withAttachment(String webUrl) {
+    MessageAttachment attachment = new MessageAttachment();
+    attachment.setWebUrl(webUrl);
+    Message result = Message.messageBuilder()
+            .setMessageId(1)
+            .setSourceMessageId(1)
+            .setMessageContent(message.getContent())
+            .setFromUserId(1)
+            .setToUserId(2)
+            .build();
+    result.setAttachments(Collections.singleton(attachment));
+    return result;
+  }
 }
@@ -10,6 +10,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.util.Arrays;
 import java.util.HashSet;
 
@@ -105,6 +106,15 @@ public class MessageEncoderTest {
             messageEncoder.encode(message));
   }
 
+  @Test
+  public void testEncodeStream() throws IOException {
+    StringWriter writer = new StringWriter();
+    messageEncoder.encode(message, writer);
+    writer.write("!");
+
+    assertEquals(messageEncoder.encode(message) + "!", writer.toString());
+  }
+
   /**
    * Tests invalid encoding.
    *
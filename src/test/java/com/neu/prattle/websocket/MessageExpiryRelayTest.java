@@ -0,0 +1,82 @@
+package com.neu.prattle.websocket;
+
+import com.neu.prattle.exceptions.GroupNotFoundException;
+import com.neu.prattle.repository.MessageBatchRepository.Expiring;
+import com.neu.prattle.service.MessageExpiryService;
+import com.neu.prattle.service.group.GroupService;
+import com.neu.prattle.websocket.cluster.Delivery;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * A test class to test the implementation of MessageExpiryRelay class.
+ */
+public class MessageExpiryRelayTest {
+
+  private GroupService groupService;
+  private MessageExpiryRelay relay;
+  private List<Delivery> published;
+
+  @Before
+  public void setUp() {
+    groupService = mock(GroupService.class);
+    relay = new MessageExpiryRelay();
+    relay.setGroupService(groupService);
+    published = new ArrayList<>();
+    relay.setPublisher(published::add);
+  }
+
+  @Test
+  public void testRegistersWithExpiry() {
+    MessageExpiryService expiry = mock(MessageExpiryService.class);
+    relay.setMessageExpiry(expiry);
+    verify(expiry).addListener(any());
+  }
+
+  @Test
+  public void testPrivateMessageToBothUsers() {
+    relay.expired(Collections.singletonList(new Expiring(7, 1, 2, 0, false, false)));
+
+    assertEquals(1, published.size());
+    assertEquals(new HashSet<>(Arrays.asList(1, 2)), published.get(0).getRecipients());
+    assertEquals("{\"type\":\"expired\",\"messageId\":7}",
+            published.get(0).getFrame().getText());
+  }
+
+  @Test
+  public void testGroupMessageToMembers() {
+    when(groupService.getMemberIdsInGroupAndSubGroups(5))
+            .thenReturn(new HashSet<>(Arrays.asList(1, 3, 4)));
+    when(groupService.getMemberIdsInGroupAndSubGroups(6))
+            .thenThrow(new GroupNotFoundException("gone"));
+
+    relay.expired(Arrays.asList(new Expiring(8, 1, 5, 0, true, false),
+            new Expiring(9, 1, 6, 0, true, false)));
+
+    assertEquals(1, published.size());
+    assertEquals(new HashSet<>(Arrays.asList(1, 3, 4)), published.get(0).getRecipients());
+  }
+
+  @Test
+  public void testBroadcastToEveryone() {
+    relay.expired(Collections.singletonList(new Expiring(10, 1, 0, 0, false, true)));
+
+    assertTrue(published.get(0).isBroadcast());
+    assertFalse(published.get(0).getFrame().getText().isEmpty());
+  }
+}
@@ -0,0 +1,138 @@
+package com.neu.prattle.websocket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class to test the implementation of MessagePipeline class.
+ */
+public class MessagePipelineTest {
+
+  private ExecutorService persistPool;
+  private ExecutorService deliveryPool;
+
+  @Before
+  public void setUp() {
+    persistPool = Executors.newFixedThreadPool(4);
+    deliveryPool = Executors.newFixedThreadPool(2);
+  }
+
+  @After
+  public void tearDown() {
+    persistPool.shutdownNow();
+    deliveryPool.shutdownNow();
+  }
+
+  @Test
+  public void testConversationOrderIsKept() throws InterruptedException {
+    MessagePipeline pipeline = new MessagePipeline(persistPool, deliveryPool, 16);
+    int count = 1000;
+    List<Integer> persisted = Collections.synchronizedList(new ArrayList<>());
+    List<Integer> delivered = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch done = new CountDownLatch(count);
+    for (int i = 0; i < count; i++) {
+      int value = i;
+      pipeline.submit("user:1:2", () -> {
+        persisted.add(value);
+        return value;
+      }, v -> {
+        delivered.add(v);
+        done.countDown();
+      });
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    for (int i = 0; i < count; i++) {
+      assertEquals(i, (int) persisted.get(i));
+      assertEquals(i, (int) delivered.get(i));
+    }
+  }
+
+  @Test
+  public void testDeliveryRunsOffTheCallingThread() throws InterruptedException {
+    MessagePipeline pipeline = new MessagePipeline(persistPool, deliveryPool, 4);
+    CountDownLatch done = new CountDownLatch(1);
+    Thread caller = Thread.currentThread();
+    List<Thread> threads = new ArrayList<>();
+    pipeline.submit("group:1", () -> "message", m -> {
+      threads.add(Thread.currentThread());
+      done.countDown();
+    });
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertNotEquals(caller, threads.get(0));
+  }
+
+  @Test
+  public void testNothingDeliveredWhenPersistFails() {
+    MessagePipeline pipeline = new MessagePipeline(Runnable::run, Runnable::run, 1);
+    List<Object> delivered = new ArrayList<>();
+    pipeline.submit("user:1:2", () -> null, delivered::add);
+    pipeline.submit("user:1:2", () -> {
+      throw new IllegalStateException("failure");
+    }, delivered::add);
+    pipeline.submit("user:1:2", () -> "saved", delivered::add);
+    assertEquals(Collections.singletonList("saved"), delivered);
+  }
+
+  @Test
+  public void testQueueDepth() {
+    List<Runnable> persistQueue = new ArrayList<>();
+    MessagePipeline pipeline = new MessagePipeline(persistQueue::add, Runnable::run, 4);
+
+    pipeline.submit("user:1:2", () -> 1, v -> {
+    });
+    pipeline.submit("user:3:4", () -> 2, v -> {
+    });
+    assertEquals(2, pipeline.getQueueDepth());
+
+    new ArrayList<>(persistQueue).forEach(Runnable::run);
+    assertEquals(0, pipeline.getQueueDepth());
+  }
+
+  @Test
+  public void testReadsLeftOutOfTheLoad() {
+    List<Runnable> persistQueue = new ArrayList<>();
+    List<Runnable> readQueue = new ArrayList<>();
+    MessagePipeline pipeline = new MessagePipeline(persistQueue::add, Runnable::run,
+            readQueue::add, 4);
+    List<Object> delivered = new ArrayList<>();
+
+    pipeline.read("stash:1", () -> 1, delivered::add);
+    pipeline.read("stash:1", () -> null, delivered::add);
+    assertEquals(0, pipeline.getQueueDepth());
+    assertTrue(persistQueue.isEmpty());
+
+    new ArrayList<>(readQueue).forEach(Runnable::run);
+    assertEquals(Collections.singletonList(1), delivered);
+    assertEquals(0, pipeline.getPersistLatencyMillis());
+  }
+
+  @Test
+  public void testPersistLatency() {
+    MessagePipeline pipeline = new MessagePipeline(Runnable::run, Runnable::run, 1);
+    assertEquals(0, pipeline.getPersistLatencyMillis());
+
+    for (int i = 0; i < 20; i++) {
+      pipeline.submit("user:1:2", () -> {
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(20));
+        return 1;
+      }, v -> {
+      });
+    }
+
+    assertTrue(pipeline.getPersistLatencyMillis() >= 10);
+  }
+}
@@ -0,0 +1,64 @@
+package com.neu.prattle.websocket;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.neu.prattle.model.Message;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * A test class to test the implementation of OutboundFrame class.
+ */
+public class OutboundFrameTest {
+
+  @Test
+  public void testFrameMatchesEncoder() {
+    Message message = Message.messageBuilder()
+            .setMessageId(1)
+            .setSourceMessageId(1)
+            .setFromUserId(2)
+            .setToUserId(3)
+            .setMessageContent("Hello")
+            .build();
+    OutboundFrame frame = OutboundFrame.of(message);
+
+    assertEquals(new MessageEncoder().encode(message), frame.getText());
+    assertSame(frame.getText(), frame.getText());
+    assertEquals("Hello", new MessageDecoder().decode(frame.getText()).getContent());
+  }
+
+  @Test
+  public void testOfText() {
+    assertEquals("{}", OutboundFrame.ofText("{}").getText());
+  }
+
+  @Test
+  public void testBinaryIsEncodedOnce() {
+    Message message = Message.messageBuilder()
+            .setMessageId(1)
+            .setSourceMessageId(1)
+            .setFromUserId(2)
+            .setToUserId(3)
+            .setMessageContent("Hello")
+            .build();
+    OutboundFrame frame = OutboundFrame.of(message);
+
+    byte[] binary = frame.getBinary();
+    assertSame(binary, frame.getBinary());
+    assertEquals("Hello", new MessageBinaryDecoder().decode(ByteBuffer.wrap(binary)).getContent());
+  }
+
+  @Test
+  public void testTextIsTranscoded() throws IOException {
+    OutboundFrame frame = OutboundFrame.ofText("{\"type\":\"presence\",\"online\":[1,2]}");
+
+    JsonNode node = WireFormat.CBOR.getMapper().readTree(frame.getBinary());
+    assertEquals("presence", node.path("type").asText());
+    assertEquals(2, node.path("online").get(1).asInt());
+  }
+}
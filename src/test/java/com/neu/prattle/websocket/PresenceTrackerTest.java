@@ -0,0 +1,200 @@
+package com.neu.prattle.websocket;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * A test class to test the implementation of PresenceTracker class.
+ */
+public class PresenceTrackerTest {
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private SessionRegistry registry;
+  private PresenceTracker tracker;
+  private ChatEndpoint endpoint1;
+  private ChatEndpoint endpoint2;
+  private ChatEndpoint endpoint3;
+
+  @Before
+  public void setUp() {
+    registry = new SessionRegistry();
+    tracker = new PresenceTracker(registry);
+    endpoint1 = mock(ChatEndpoint.class);
+    endpoint2 = mock(ChatEndpoint.class);
+    endpoint3 = mock(ChatEndpoint.class);
+  }
+
+  private void connect(int userId, ChatEndpoint endpoint, Integer... interests) {
+    registry.register(userId, "user" + userId, endpoint);
+    tracker.connected(endpoint, userId, Arrays.asList(interests));
+  }
+
+  private void disconnect(int userId, ChatEndpoint endpoint) {
+    registry.unregister(userId, "user" + userId, endpoint);
+    tracker.disconnected(userId);
+  }
+
+  private List<JsonNode> frames(ChatEndpoint endpoint) throws IOException {
+    ArgumentCaptor<OutboundFrame> captor = ArgumentCaptor.forClass(OutboundFrame.class);
+    verify(endpoint, atLeast(0)).offer(captor.capture());
+    List<JsonNode> frames = new ArrayList<>();
+    for (OutboundFrame frame : captor.getAllValues()) {
+      frames.add(objectMapper.readTree(frame.getText()));
+    }
+    return frames;
+  }
+
+  private static List<Integer> ids(JsonNode array) {
+    List<Integer> ids = new ArrayList<>();
+    array.forEach(id -> ids.add(id.asInt()));
+    return ids;
+  }
+
+  @Test
+  public void testSnapshotOnConnect() throws IOException {
+    connect(2, endpoint2);
+    connect(1, endpoint1, 2, 3, 1);
+
+    List<JsonNode> frames = frames(endpoint1);
+    assertEquals(1, frames.size());
+    assertEquals("presence", frames.get(0).path("type").asText());
+    assertEquals(Collections.singletonList(2), ids(frames.get(0).path("online")));
+    assertEquals(Collections.emptyList(), ids(frames.get(0).path("offline")));
+  }
+
+  @Test
+  public void testChangesAreCoalesced() throws IOException {
+    connect(1, endpoint1, 2, 3);
+    tracker.publish();
+    clearInvocations(endpoint1);
+
+    connect(2, endpoint2);
+    connect(3, endpoint3);
+    tracker.publish();
+
+    List<JsonNode> frames = frames(endpoint1);
+    assertEquals(1, frames.size());
+    List<Integer> online = ids(frames.get(0).path("online"));
+    Collections.sort(online);
+    assertEquals(Arrays.asList(2, 3), online);
+  }
+
+  @Test
+  public void testOnlyInterestedUsersAreNotified() {
+    connect(1, endpoint1, 3);
+    connect(2, endpoint2);
+    tracker.publish();
+    clearInvocations(endpoint1, endpoint2);
+
+    connect(3, endpoint3);
+    tracker.publish();
+
+    verify(endpoint1).offer(any(OutboundFrame.class));
+    verify(endpoint2, never()).offer(any(OutboundFrame.class));
+  }
+
+  @Test
+  public void testOffline() throws IOException {
+    connect(1, endpoint1, 2);
+    connect(2, endpoint2);
+    tracker.publish();
+    clearInvocations(endpoint1);
+
+    disconnect(2, endpoint2);
+    assertFalse(tracker.isOnline(2));
+    tracker.publish();
+
+    List<JsonNode> frames = frames(endpoint1);
+    assertEquals(1, frames.size());
+    assertEquals(Collections.singletonList(2), ids(frames.get(0).path("offline")));
+  }
+
+  @Test
+  public void testReconnectWithinIntervalIsNotPublished() {
+    connect(1, endpoint1, 2);
+    connect(2, endpoint2);
+    tracker.publish();
+    clearInvocations(endpoint1);
+
+    disconnect(2, endpoint2);
+    connect(2, endpoint3);
+    tracker.publish();
+
+    verify(endpoint1, never()).offer(any(OutboundFrame.class));
+  }
+
+  @Test
+  public void testSecondDeviceKeepsUserOnline() {
+    connect(1, endpoint1, 2);
+    connect(2, endpoint2);
+    connect(2, endpoint3);
+    tracker.publish();
+    clearInvocations(endpoint1);
+
+    disconnect(2, endpoint2);
+    tracker.publish();
+
+    verify(endpoint1, never()).offer(any(OutboundFrame.class));
+    assertTrue(tracker.isOnline(2));
+  }
+
+  @Test
+  public void testDisconnectedSubscriberIsForgotten() {
+    connect(1, endpoint1, 2);
+    tracker.publish();
+    disconnect(1, endpoint1);
+    tracker.publish();
+    clearInvocations(endpoint1);
+
+    connect(2, endpoint2);
+    tracker.publish();
+
+    verify(endpoint1, never()).offer(any(OutboundFrame.class));
+  }
+
+  @Test
+  public void testPublishedToEveryDevice() {
+    connect(1, endpoint1, 2);
+    connect(1, endpoint3, 2);
+    tracker.publish();
+    clearInvocations(endpoint1, endpoint3);
+
+    connect(2, endpoint2);
+    tracker.publish();
+
+    verify(endpoint1, times(1)).offer(any(OutboundFrame.class));
+    verify(endpoint3, times(1)).offer(any(OutboundFrame.class));
+  }
+
+  @Test
+  public void testOnlineCount() {
+    connect(1, endpoint1);
+    connect(1, endpoint3);
+    connect(2, endpoint2);
+
+    assertEquals(2, tracker.getOnlineCount());
+    assertTrue(tracker.isOnline(1));
+    assertFalse(tracker.isOnline(3));
+  }
+}
@@ -0,0 +1,241 @@
+package com.neu.prattle.websocket;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.websocket.CloseReason;
+import javax.websocket.RemoteEndpoint.Async;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * A test class to test the implementation of SessionOutbox class.
+ */
+public class SessionOutboxTest {
+
+  private Session session;
+  private List<String> written;
+  private List<SendHandler> pending;
+  private boolean completeInline;
+
+  @Before
+  public void setUp() {
+    session = mock(Session.class);
+    Async async = mock(Async.class);
+    when(session.getAsyncRemote()).thenReturn(async);
+    when(session.getId()).thenReturn("id1");
+    written = new ArrayList<>();
+    pending = new ArrayList<>();
+    completeInline = true;
+    doAnswer(invocation -> {
+      written.add(invocation.getArgument(0));
+      SendHandler handler = invocation.getArgument(1);
+      if (completeInline) {
+        handler.onResult(new SendResult());
+      } else {
+        pending.add(handler);
+      }
+      return null;
+    }).when(async).sendText(anyString(), any(SendHandler.class));
+  }
+
+  private static OutboundFrame frame(String text) {
+    return OutboundFrame.ofText(text);
+  }
+
+  @Test
+  public void testFramesAreWrittenInOrder() {
+    SessionOutbox outbox = new SessionOutbox(session, 10, SessionOutbox.OverflowPolicy.EVICT);
+    for (int i = 0; i < 5; i++) {
+      assertTrue(outbox.offer(frame(String.valueOf(i))));
+    }
+    assertEquals(5, written.size());
+    for (int i = 0; i < 5; i++) {
+      assertEquals(String.valueOf(i), written.get(i));
+    }
+    assertEquals(0, outbox.getDepth());
+  }
+
+  @Test
+  public void testLongQueueCompletingInline() {
+    SessionOutbox outbox = new SessionOutbox(session, 100000, SessionOutbox.OverflowPolicy.EVICT);
+    completeInline = false;
+    outbox.offer(frame("-1"));
+    for (int i = 0; i < 50000; i++) {
+      outbox.offer(frame(String.valueOf(i)));
+    }
+    completeInline = true;
+    pending.get(0).onResult(new SendResult());
+    assertEquals(50001, written.size());
+    assertEquals(0, outbox.getDepth());
+  }
+
+  @Test
+  public void testOnlyOneWriteInFlight() {
+    SessionOutbox outbox = new SessionOutbox(session, 10, SessionOutbox.OverflowPolicy.EVICT);
+    completeInline = false;
+    outbox.offer(frame("first"));
+    outbox.offer(frame("second"));
+    assertEquals(1, written.size());
+    assertEquals(1, outbox.getDepth());
+
+    pending.get(0).onResult(new SendResult());
+    assertEquals(2, written.size());
+    assertEquals("second", written.get(1));
+  }
+
+  @Test
+  public void testDropNewest() {
+    SessionOutbox outbox = new SessionOutbox(session, 2, SessionOutbox.OverflowPolicy.DROP_NEWEST);
+    completeInline = false;
+    outbox.offer(frame("in flight"));
+    outbox.offer(frame("a"));
+    outbox.offer(frame("b"));
+    assertFalse(outbox.offer(frame("c")));
+    assertEquals(1, outbox.getDroppedCount());
+
+    completeInline = true;
+    pending.get(0).onResult(new SendResult());
+    assertEquals("b", written.get(written.size() - 1));
+  }
+
+  @Test
+  public void testDropOldest() {
+    SessionOutbox outbox = new SessionOutbox(session, 2, SessionOutbox.OverflowPolicy.DROP_OLDEST);
+    completeInline = false;
+    outbox.offer(frame("in flight"));
+    outbox.offer(frame("a"));
+    outbox.offer(frame("b"));
+    assertTrue(outbox.offer(frame("c")));
+    assertEquals(1, outbox.getDroppedCount());
+    assertEquals(2, outbox.getDepth());
+
+    completeInline = true;
+    pending.get(0).onResult(new SendResult());
+    assertEquals("b", written.get(1));
+    assertEquals("c", written.get(2));
+  }
+
+  @Test
+  public void testEvictSlowConsumer() throws IOException {
+    SessionOutbox outbox = new SessionOutbox(session, 1, SessionOutbox.OverflowPolicy.EVICT);
+    completeInline = false;
+    outbox.offer(frame("in flight"));
+    outbox.offer(frame("a"));
+    verify(session, never()).close(any(CloseReason.class));
+
+    List<Runnable> closes = new ArrayList<>();
+    SessionOutbox.setCloser(closes::add);
+    try {
+      assertFalse(outbox.offer(frame("b")));
+      assertTrue(outbox.isClosed());
+      assertEquals(0, outbox.getDepth());
+      verify(session, never()).close(any(CloseReason.class));
+      assertEquals(1, closes.size());
+      closes.get(0).run();
+      verify(session).close(any(CloseReason.class));
+      assertFalse(outbox.offer(frame("c")));
+    } finally {
+      SessionOutbox.setCloser(Runnable::run);
+    }
+  }
+
+  @Test
+  public void testWhenDrainedRunsAfterLastWrite() {
+    SessionOutbox outbox = new SessionOutbox(session, 10, SessionOutbox.OverflowPolicy.EVICT);
+    completeInline = false;
+    outbox.offer(frame("a"));
+    outbox.offer(frame("b"));
+    List<String> drained = new ArrayList<>();
+    outbox.whenDrained(() -> drained.add("drained"));
+    assertTrue(drained.isEmpty());
+
+    pending.remove(0).onResult(new SendResult());
+    assertTrue(drained.isEmpty());
+    pending.remove(0).onResult(new SendResult());
+    assertEquals(1, drained.size());
+  }
+
+  @Test
+  public void testWhenDrainedRunsRightAwayIfIdle() {
+    SessionOutbox outbox = new SessionOutbox(session, 10, SessionOutbox.OverflowPolicy.EVICT);
+    outbox.offer(frame("a"));
+    List<String> drained = new ArrayList<>();
+    outbox.whenDrained(() -> drained.add("drained"));
+    assertEquals(1, drained.size());
+
+    outbox.offer(frame("b"));
+    assertEquals(1, drained.size());
+  }
+
+  @Test
+  public void testWhenDrainedDiscardedOnClose() {
+    SessionOutbox outbox = new SessionOutbox(session, 10, SessionOutbox.OverflowPolicy.EVICT);
+    completeInline = false;
+    outbox.offer(frame("a"));
+    List<String> drained = new ArrayList<>();
+    outbox.whenDrained(() -> drained.add("drained"));
+    outbox.close();
+
+    pending.remove(0).onResult(new SendResult());
+    assertTrue(drained.isEmpty());
+  }
+
+  @Test
+  public void testBinaryFormat() {
+    Session binarySession = mock(Session.class);
+    Async async = mock(Async.class);
+    when(binarySession.getAsyncRemote()).thenReturn(async);
+    List<ByteBuffer> sent = new ArrayList<>();
+    doAnswer(invocation -> {
+      sent.add(invocation.getArgument(0));
+      ((SendHandler) invocation.getArgument(1)).onResult(new SendResult());
+      return null;
+    }).when(async).sendBinary(any(ByteBuffer.class), any(SendHandler.class));
+    SessionOutbox outbox = new SessionOutbox(binarySession, 10,
+            SessionOutbox.OverflowPolicy.EVICT, WireFormat.CBOR);
+
+    OutboundFrame frame = frame("{\"type\":\"presence\"}");
+    outbox.offer(frame);
+
+    assertEquals(1, sent.size());
+    assertEquals(ByteBuffer.wrap(frame.getBinary()), sent.get(0));
+    verify(async, never()).sendText(anyString(), any(SendHandler.class));
+    assertEquals(WireFormat.CBOR, outbox.getFormat());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidHighWaterMark() {
+    new SessionOutbox(session, 0, SessionOutbox.OverflowPolicy.EVICT);
+  }
+
+  @Test
+  public void testFailureHandler() {
+    SessionOutbox outbox = new SessionOutbox(session, 10, SessionOutbox.OverflowPolicy.EVICT);
+    List<String> failures = new ArrayList<>();
+    outbox.onFailure(() -> failures.add("failed"));
+    completeInline = false;
+
+    outbox.offer(frame("first"));
+    pending.get(0).onResult(new SendResult(new IOException("Broken pipe")));
+
+    assertEquals(1, failures.size());
+  }
+}
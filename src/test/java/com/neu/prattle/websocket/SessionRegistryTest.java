@@ -0,0 +1,131 @@
+package com.neu.prattle.websocket;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * A test class to test the implementation of SessionRegistry class.
+ */
+public class SessionRegistryTest {
+
+  private SessionRegistry registry;
+  private ChatEndpoint endpoint1;
+  private ChatEndpoint endpoint2;
+
+  @Before
+  public void setUp() {
+    registry = new SessionRegistry();
+    endpoint1 = mock(ChatEndpoint.class);
+    endpoint2 = mock(ChatEndpoint.class);
+  }
+
+  @Test
+  public void testRegisterAndFind() {
+    registry.register(1, "neel101", endpoint1);
+    registry.register(2, "zoheb101", endpoint2);
+
+    assertEquals(Collections.singleton(endpoint1), new HashSet<>(registry.getEndpoints(1)));
+    assertEquals(Collections.singleton(endpoint2),
+            new HashSet<>(registry.getEndpoints("zoheb101")));
+    assertTrue(registry.isConnected(1));
+    assertFalse(registry.isConnected(3));
+    assertTrue(registry.getEndpoints("sameer101").isEmpty());
+    assertEquals(2, registry.size());
+    assertEquals(new HashSet<>(Arrays.asList(1, 2)), registry.getUserIds());
+  }
+
+  @Test
+  public void testUserCount() {
+    ChatEndpoint endpoint3 = mock(ChatEndpoint.class);
+    registry.register(1, "neel101", endpoint1);
+    registry.register(1, "neel101", endpoint3);
+    registry.register(2, "zoheb101", endpoint2);
+
+    assertEquals(2, registry.getUserCount());
+    registry.unregister(1, "neel101", endpoint1);
+    assertEquals(2, registry.getUserCount());
+    registry.unregister(1, "neel101", endpoint3);
+    assertEquals(1, registry.getUserCount());
+  }
+
+  @Test
+  public void testUnregister() {
+    registry.register(1, "neel101", endpoint1);
+
+    assertTrue(registry.unregister(1, "neel101", endpoint1));
+    assertFalse(registry.unregister(1, "neel101", endpoint1));
+    assertTrue(registry.getEndpoints(1).isEmpty());
+    assertTrue(registry.getEndpoints("neel101").isEmpty());
+    assertFalse(registry.isConnected(1));
+    assertEquals(0, registry.size());
+  }
+
+  @Test
+  public void testMultipleDevices() {
+    registry.register(1, "neel101", endpoint1);
+    registry.register(1, "neel101", endpoint2);
+
+    assertEquals(2, registry.getEndpoints(1).size());
+    assertEquals(2, registry.getEndpoints("neel101").size());
+
+    registry.unregister(1, "neel101", endpoint1);
+
+    assertEquals(Collections.singleton(endpoint2), new HashSet<>(registry.getEndpoints(1)));
+    assertEquals(Collections.singleton(endpoint2),
+            new HashSet<>(registry.getEndpoints("neel101")));
+    assertEquals(1, registry.getEndpoints().size());
+
+    registry.unregister(1, "neel101", endpoint2);
+    assertFalse(registry.isConnected(1));
+    assertTrue(registry.getEndpoints("neel101").isEmpty());
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testDevicesAreReadOnly() {
+    registry.register(1, "neel101", endpoint1);
+    registry.getEndpoints(1).clear();
+  }
+
+  @Test
+  public void testConcurrentOpenAndClose() throws InterruptedException {
+    int users = 200;
+    List<ChatEndpoint> endpoints = new ArrayList<>();
+    for (int i = 0; i < users; i++) {
+      endpoints.add(mock(ChatEndpoint.class));
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    CountDownLatch done = new CountDownLatch(users);
+    for (int i = 0; i < users; i++) {
+      int id = i + 1;
+      ChatEndpoint endpoint = endpoints.get(i);
+      pool.execute(() -> {
+        registry.register(id, "user" + id, endpoint);
+        if (id % 2 == 0) {
+          registry.unregister(id, "user" + id, endpoint);
+        }
+        done.countDown();
+      });
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    pool.shutdown();
+
+    assertEquals(users / 2, registry.size());
+    assertTrue(registry.isConnected(1));
+    assertFalse(registry.isConnected(2));
+  }
+}
@@ -0,0 +1,62 @@
+package com.neu.prattle.websocket;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.neu.prattle.dto.SyncEvent;
+import com.neu.prattle.dto.SyncPage;
+import com.neu.prattle.model.MessageStatus;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * A test class to test the implementation of SyncRequest class.
+ */
+public class SyncRequestTest {
+
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  @Test
+  public void testParse() {
+    SyncRequest request = SyncRequest.parse("{\"type\":\"sync\",\"since\":42,\"limit\":10}");
+    assertEquals(42, request.getSince());
+    assertEquals(10, request.getLimit());
+  }
+
+  @Test
+  public void testParseDefaultsAndBounds() {
+    SyncRequest request = SyncRequest.parse("{\"type\":\"sync\"}");
+    assertEquals(0, request.getSince());
+    assertEquals(SyncRequest.DEFAULT_LIMIT, request.getLimit());
+
+    request = SyncRequest.parse("{\"type\":\"sync\",\"since\":-3,\"limit\":100000}");
+    assertEquals(0, request.getSince());
+    assertEquals(SyncRequest.MAX_LIMIT, request.getLimit());
+  }
+
+  @Test
+  public void testNotARequest() {
+    assertNull(SyncRequest.parse("{\"type\":\"typing\",\"toUserId\":3}"));
+    assertNull(SyncRequest.parse("{\"content\":\"sync\"}"));
+    assertNull(SyncRequest.parse("{\"type\":\"sync\""));
+  }
+
+  @Test
+  public void testAnswer() throws IOException {
+    SyncPage page = new SyncPage(Collections.singletonList(
+            new SyncEvent(7, SyncEvent.STATUS, 3, MessageStatus.READ)), 7, false);
+
+    JsonNode node = mapper.readTree(new SyncRequest(6, 10).answer(page).getText());
+
+    assertEquals("sync", node.path("type").asText());
+    assertEquals(7, node.path("nextCursor").asLong());
+    assertFalse(node.path("hasMore").asBoolean());
+    assertEquals("READ", node.path("events").get(0).path("status").asText());
+  }
+}
@@ -0,0 +1,55 @@
+package com.neu.prattle.websocket;
+
+import com.neu.prattle.model.Message;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class to test the implementation of UploadChunk class.
+ */
+public class UploadChunkTest {
+
+  @Test
+  public void testEncodeAndRead() {
+    UUID uploadId = UUID.randomUUID();
+    byte[] payload = "chunk of data".getBytes(StandardCharsets.UTF_8);
+    ByteBuffer frame = UploadChunk.encode(uploadId, 42, true, ByteBuffer.wrap(payload));
+
+    assertTrue(UploadChunk.isChunk(frame));
+    assertEquals(0, frame.position());
+    UploadChunk chunk = UploadChunk.read(frame);
+    assertEquals(uploadId, chunk.getUploadId());
+    assertEquals(42, chunk.getOffset());
+    assertTrue(chunk.isLast());
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    assertEquals((int) crc.getValue(), chunk.getChecksum());
+    assertEquals(UploadChunk.HEADER_SIZE, frame.position());
+    assertEquals(payload.length, frame.remaining());
+  }
+
+  @Test
+  public void testNotAChunk() {
+    byte[] cbor = new MessageBinaryEncoder().encodeToBytes(new Message());
+    assertFalse(UploadChunk.isChunk(ByteBuffer.wrap(cbor)));
+    assertFalse(UploadChunk.isChunk(ByteBuffer.wrap(new byte[]{'P', 'R'})));
+  }
+
+  @Test
+  public void testTruncatedHeader() {
+    ByteBuffer frame = UploadChunk.encode(UUID.randomUUID(), 0, false, ByteBuffer.allocate(0));
+    frame.limit(UploadChunk.HEADER_SIZE - 1);
+    assertTrue(UploadChunk.isChunk(frame));
+    assertNull(UploadChunk.read(frame));
+  }
+}
@@ -0,0 +1,136 @@
+package com.neu.prattle.websocket;
+
+import com.neu.prattle.model.HashTag;
+import com.neu.prattle.model.Message;
+import com.neu.prattle.model.MessageAttachment;
+import com.neu.prattle.model.MessageStatus;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class to test the wire formats and the compatibility of the JSON and CBOR codecs.
+ */
+public class WireFormatTest {
+
+  private Message message;
+
+  @Before
+  public void setUp() {
+    message = Message.messageBuilder()
+            .setMessageId(7)
+            .setSourceMessageId(3)
+            .setFromUserId(1)
+            .setToUserId(2)
+            .setMessageContent("Hello #wfh, ünïcödé too")
+            .setMessageStatus(MessageStatus.DELIVERED)
+            .setMessageSubject("subject")
+            .setIsGroupMessage(true)
+            .setIsEncryptedMessage(true)
+            .setMessageGenerationTime(new Timestamp(1590000000000L))
+            .setHashtags(new HashSet<>(Collections.singletonList(
+                    HashTag.hashTagBuilder().setHashTagId(4).setHashTagValue("wfh").build())))
+            .build();
+  }
+
+  private static MessageAttachment attachment(String webUrl) {
+    MessageAttachment attachment = new MessageAttachment();
+    attachment.setFileID(9);
+    attachment.setWebUrl(webUrl);
+    return attachment;
+  }
+
+  private static String dataUrl(int bytes) {
+    byte[] data = new byte[bytes];
+    new Random(42).nextBytes(data);
+    return "data:image/png;base64," + Base64.getEncoder().encodeToString(data);
+  }
+
+  private static Message roundTripCbor(Message message) {
+    return new MessageBinaryDecoder().decode(new MessageBinaryEncoder().encode(message));
+  }
+
+  private static Message roundTripJson(Message message) {
+    return new MessageDecoder().decode(new MessageEncoder().encode(message));
+  }
+
+  @Test
+  public void testFromSubprotocol() {
+    assertEquals(WireFormat.CBOR, WireFormat.fromSubprotocol("prattle.cbor"));
+    assertEquals(WireFormat.JSON, WireFormat.fromSubprotocol("prattle.json"));
+    assertEquals(WireFormat.JSON, WireFormat.fromSubprotocol(""));
+    assertEquals(WireFormat.JSON, WireFormat.fromSubprotocol(null));
+    assertEquals(WireFormat.JSON, WireFormat.fromSubprotocol("unknown"));
+    assertTrue(WireFormat.CBOR.isBinary());
+    assertFalse(WireFormat.JSON.isBinary());
+  }
+
+  @Test
+  public void testCborMatchesJson() {
+    Message fromJson = roundTripJson(message);
+    Message fromCbor = roundTripCbor(message);
+
+    assertEquals(fromJson, fromCbor);
+    assertEquals(message.getContent(), fromCbor.getContent());
+    assertEquals(message.getGeneratedTime(), fromCbor.getGeneratedTime());
+  }
+
+  @Test
+  public void testDataUrlAttachmentRoundTrip() {
+    String webUrl = dataUrl(3000);
+    message.setHasAttachment(true);
+    message.setAttachments(new HashSet<>(Collections.singletonList(attachment(webUrl))));
+
+    Message fromCbor = roundTripCbor(message);
+
+    assertEquals(1, fromCbor.getAttachments().size());
+    MessageAttachment decoded = fromCbor.getAttachments().iterator().next();
+    assertEquals(webUrl, decoded.getWebUrl());
+    assertEquals(9, decoded.getFileID());
+  }
+
+  @Test
+  public void testDataUrlAttachmentIsSentAsBytes() {
+    message.setHasAttachment(true);
+    message.setAttachments(new HashSet<>(Collections.singletonList(attachment(dataUrl(30000)))));
+
+    int jsonSize = new MessageEncoder().encode(message).length();
+    int cborSize = new MessageBinaryEncoder().encodeToBytes(message).length;
+
+    // The base64 payload is 40000 characters in JSON and 30000 bytes in CBOR
+    assertTrue(cborSize < jsonSize - 9000);
+  }
+
+  @Test
+  public void testOtherUrlsAreKeptAsText() {
+    String[] urls = {"/rest/message/attachment/9", "data:text/plain,hello",
+            "data:image/png;base64,not base64!", "data:image/png;base64,QR==",
+            "data:image/png;base64,QQ", "data:image/png;base64,QUJD\nREVG"};
+    for (String url : urls) {
+      message.setHasAttachment(true);
+      message.setAttachments(new HashSet<>(Collections.singletonList(attachment(url))));
+
+      assertEquals(url, roundTripCbor(message).getAttachments().iterator().next().getWebUrl());
+    }
+  }
+
+  @Test
+  public void testCborDecodesJsonTree() throws IOException {
+    byte[] cbor = WireFormat.CBOR.getMapper().writeValueAsBytes(
+            WireFormat.JSON.getMapper().readTree(new MessageEncoder().encode(message)));
+
+    assertEquals(roundTripJson(message), new MessageBinaryDecoder().decode(ByteBuffer.wrap(cbor)));
+  }
+}
@@ -0,0 +1,93 @@
+package com.neu.prattle.websocket.cluster;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class to test the implementation of ConsistentHashRing class.
+ */
+public class ConsistentHashRingTest {
+
+  private static final int USERS = 30000;
+
+  @Test
+  public void testEmptyRing() {
+    assertNull(new ConsistentHashRing(16).ownerOf(1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNoVirtualNodes() {
+    new ConsistentHashRing(0);
+  }
+
+  @Test
+  public void testSetMembers() {
+    ConsistentHashRing ring = new ConsistentHashRing(16);
+
+    assertTrue(ring.setMembers(Arrays.asList("a", "b")));
+    assertFalse(ring.setMembers(Arrays.asList("b", "a")));
+    assertEquals(2, ring.getMembers().size());
+  }
+
+  @Test
+  public void testOwnersAgree() {
+    ConsistentHashRing ring = new ConsistentHashRing(128, Arrays.asList("a", "b", "c"));
+    ConsistentHashRing other = new ConsistentHashRing(128, Arrays.asList("c", "a", "b"));
+
+    for (int userId = 1; userId <= 1000; userId++) {
+      assertEquals(ring.ownerOf(userId), other.ownerOf(userId));
+    }
+  }
+
+  @Test
+  public void testUsersSpreadEvenly() {
+    ConsistentHashRing ring = new ConsistentHashRing(128, Arrays.asList("a", "b", "c", "d"));
+    Map<String, Integer> counts = new HashMap<>();
+    for (int userId = 1; userId <= USERS; userId++) {
+      counts.merge(ring.ownerOf(userId), 1, Integer::sum);
+    }
+
+    assertEquals(4, counts.size());
+    for (int count : counts.values()) {
+      assertTrue("Uneven share " + count, Math.abs(count - USERS / 4) < USERS / 4 / 4);
+    }
+  }
+
+  @Test
+  public void testJoinMovesUsersToTheNewNodeOnly() {
+    ConsistentHashRing before = new ConsistentHashRing(128, Arrays.asList("a", "b", "c"));
+    ConsistentHashRing after = new ConsistentHashRing(128, Arrays.asList("a", "b", "c", "d"));
+    int moved = 0;
+    for (int userId = 1; userId <= USERS; userId++) {
+      if (!before.ownerOf(userId).equals(after.ownerOf(userId))) {
+        assertEquals("d", after.ownerOf(userId));
+        moved++;
+      }
+    }
+
+    assertTrue("Moved " + moved, Math.abs(moved - USERS / 4) < USERS / 4 / 4);
+  }
+
+  @Test
+  public void testWithout() {
+    ConsistentHashRing ring = new ConsistentHashRing(128, Arrays.asList("a", "b", "c"));
+    ConsistentHashRing left = ring.without("c");
+
+    assertEquals(3, ring.getMembers().size());
+    for (int userId = 1; userId <= 1000; userId++) {
+      if (!"c".equals(ring.ownerOf(userId))) {
+        assertEquals(ring.ownerOf(userId), left.ownerOf(userId));
+      } else {
+        assertFalse("c".equals(left.ownerOf(userId)));
+      }
+    }
+  }
+}
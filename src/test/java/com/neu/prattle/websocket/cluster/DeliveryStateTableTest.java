@@ -0,0 +1,122 @@
+package com.neu.prattle.websocket.cluster;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * A test class to test the implementation of DeliveryStateTable class.
+ */
+public class DeliveryStateTableTest {
+
+  private final DeliveryStateTable table = new DeliveryStateTable(2);
+  private final int first = 11;
+  private final int second = 12;
+
+  @Test
+  public void testTakeQueuedMessages() {
+    table.userLeft(1);
+    table.append(1, first);
+    table.append(1, second);
+
+    assertEquals(Arrays.asList(first, second), table.take(1));
+    assertNull(table.take(1));
+  }
+
+  @Test
+  public void testUnknownWithoutLeaving() {
+    table.append(1, first);
+
+    assertNull(table.take(1));
+  }
+
+  @Test
+  public void testOverflow() {
+    table.userLeft(1);
+    table.append(1, first);
+    table.append(1, second);
+    table.append(1, first);
+
+    assertNull(table.take(1));
+  }
+
+  @Test
+  public void testHandOff() {
+    table.userLeft(1);
+    table.userLeft(2);
+    table.append(2, first);
+
+    List<DeliveryStateTable.State> removed = table.removeIf(userId -> userId == 2);
+    DeliveryStateTable other = new DeliveryStateTable(2);
+    other.putAll(removed);
+
+    assertEquals(1, table.size());
+    assertEquals(Collections.singletonList(first), other.take(2));
+  }
+
+  @Test
+  public void testHandOffOverStateStartedHere() {
+    table.userLeft(1);
+    DeliveryStateTable other = new DeliveryStateTable(2);
+    other.append(1, first);
+
+    other.putAll(table.removeIf(userId -> true));
+
+    assertNull(other.take(1));
+  }
+
+  @Test
+  public void testOldStateIsDropped() {
+    AtomicLong now = new AtomicLong(1000);
+    DeliveryStateTable aging = new DeliveryStateTable(2, 10, 500, now::get);
+    aging.userLeft(1);
+    aging.append(1, first);
+    now.addAndGet(400);
+    aging.userLeft(2);
+    aging.append(2, second);
+
+    now.addAndGet(200);
+
+    assertNull(aging.take(1));
+    assertEquals(Collections.singletonList(second), aging.take(2));
+    assertEquals(0, aging.size());
+    assertEquals(0, aging.getQueuedCount());
+  }
+
+  @Test
+  public void testTotalCapacityGivesUpOldestQueues() {
+    DeliveryStateTable bounded = new DeliveryStateTable(2, 3, Long.MAX_VALUE,
+            System::currentTimeMillis);
+    bounded.userLeft(1);
+    bounded.userLeft(2);
+    bounded.append(1, first);
+    bounded.append(1, second);
+    bounded.append(2, first);
+    assertEquals(3, bounded.getQueuedCount());
+
+    bounded.append(2, second);
+
+    assertEquals(2, bounded.getQueuedCount());
+    assertNull(bounded.take(1));
+    assertEquals(Arrays.asList(first, second), bounded.take(2));
+    assertEquals(0, bounded.getQueuedCount());
+  }
+
+  @Test
+  public void testHandOffKeepsCount() {
+    table.userLeft(1);
+    table.append(1, first);
+    DeliveryStateTable other = new DeliveryStateTable(2);
+
+    other.putAll(table.removeIf(userId -> true));
+
+    assertEquals(0, table.getQueuedCount());
+    assertEquals(1, other.getQueuedCount());
+  }
+}
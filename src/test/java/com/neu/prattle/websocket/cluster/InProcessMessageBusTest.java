@@ -0,0 +1,180 @@
+package com.neu.prattle.websocket.cluster;
+
+import com.neu.prattle.websocket.OutboundFrame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class to test the implementation of InProcessMessageBus class.
+ */
+public class InProcessMessageBusTest {
+
+  private final InProcessMessageBus.Hub hub = new InProcessMessageBus.Hub();
+  private final RecordingNode nodeA = new RecordingNode();
+  private final RecordingNode nodeB = new RecordingNode();
+  private final InProcessMessageBus busA = new InProcessMessageBus("a", hub);
+  private final InProcessMessageBus busB = new InProcessMessageBus("b", hub);
+
+  @Before
+  public void setUp() {
+    nodeA.users.add(1);
+    busA.start(nodeA);
+    busB.start(nodeB);
+    nodeB.users.add(2);
+    busB.sessionChanged(2);
+  }
+
+  @Test
+  public void testDirectory() {
+    assertEquals(Collections.singleton("a"), busB.getDirectory().getNodes(1));
+    assertEquals(Collections.singleton("b"), busA.getDirectory().getNodes(2));
+
+    nodeB.users.remove(2);
+    busB.sessionChanged(2);
+
+    assertFalse(busA.getDirectory().isConnected(2));
+    assertFalse(busB.getDirectory().isConnected(2));
+  }
+
+  @Test
+  public void testPublishToUsers() {
+    Delivery delivery = Delivery.toUsers(OutboundFrame.ofText("{}", 3),
+            Collections.singleton(2), "content");
+
+    busA.publish(delivery);
+
+    assertSame(delivery, nodeB.deliveries.poll());
+    assertSame(delivery, nodeA.deliveries.poll());
+    assertTrue(nodeA.deliveries.isEmpty());
+  }
+
+  @Test
+  public void testPublishSkipsNodesWithoutRecipients() {
+    busA.publish(Delivery.toUsers(OutboundFrame.ofText("{}"), Collections.singleton(1), null));
+
+    assertTrue(nodeB.deliveries.isEmpty());
+    assertEquals(1, nodeA.deliveries.size());
+  }
+
+  @Test
+  public void testBroadcast() {
+    busB.publish(Delivery.toEveryone(OutboundFrame.ofText("{}")));
+
+    assertEquals(1, nodeA.deliveries.size());
+    assertEquals(1, nodeB.deliveries.size());
+  }
+
+  @Test
+  public void testClose() {
+    busB.close();
+
+    assertFalse(busA.getDirectory().isConnected(2));
+    busA.publish(Delivery.toEveryone(OutboundFrame.ofText("{}")));
+    assertTrue(nodeB.deliveries.isEmpty());
+    assertEquals(new HashSet<>(Arrays.asList(1)), busA.getDirectory().getUsers("a"));
+  }
+
+  /**
+   * Returns a user owned by a node.
+   */
+  private static int userOwnedBy(MessageBus bus, String nodeId) {
+    int userId = 100;
+    while (!nodeId.equals(bus.getRing().ownerOf(userId))) {
+      userId++;
+    }
+    return userId;
+  }
+
+  private static List<Integer> takeStash(MessageBus bus, int userId) {
+    AtomicReference<List<Integer>> stash = new AtomicReference<>();
+    bus.takeStash(userId, stash::set);
+    return stash.get();
+  }
+
+  @Test
+  public void testStashQueuedByOwner() {
+    int userId = userOwnedBy(busA, "b");
+    nodeA.users.add(userId);
+    busA.sessionChanged(userId);
+    nodeA.users.remove(userId);
+    busA.sessionChanged(userId);
+    OutboundFrame frame = OutboundFrame.ofText("{}", 5);
+
+    busA.publish(Delivery.toUsers(frame, Collections.singleton(userId), null));
+
+    assertEquals(1, busB.getOwnedStateCount());
+    assertEquals(0, busA.getOwnedStateCount());
+    assertEquals(Collections.singletonList(5), takeStash(busA, userId));
+    assertNull(takeStash(busA, userId));
+  }
+
+  @Test
+  public void testStashOfUserNeverSeenLeaving() {
+    assertNull(takeStash(busA, 7));
+  }
+
+  @Test
+  public void testHandOffToJoiningNode() {
+    List<Integer> users = new ArrayList<>();
+    for (int userId = 100; userId < 200; userId++) {
+      users.add(userId);
+      nodeA.users.add(userId);
+      busA.sessionChanged(userId);
+      nodeA.users.remove(userId);
+      busA.sessionChanged(userId);
+      busA.publish(Delivery.toUsers(OutboundFrame.ofText("{}", userId),
+              Collections.singleton(userId), null));
+    }
+    assertEquals(users.size(), busA.getOwnedStateCount() + busB.getOwnedStateCount());
+
+    InProcessMessageBus busC = new InProcessMessageBus("c", hub);
+    busC.start(new RecordingNode());
+
+    assertTrue(busC.getOwnedStateCount() > 0);
+    assertEquals(users.size(), busA.getOwnedStateCount() + busB.getOwnedStateCount()
+            + busC.getOwnedStateCount());
+    for (int userId : users) {
+      assertEquals(Collections.singletonList(userId), takeStash(busA, userId));
+    }
+  }
+
+  @Test
+  public void testHandOffWhenOwnerLeaves() {
+    int userId = userOwnedBy(busA, "b");
+    nodeA.users.add(userId);
+    busA.sessionChanged(userId);
+    nodeA.users.remove(userId);
+    busA.sessionChanged(userId);
+    busA.publish(Delivery.toUsers(OutboundFrame.ofText("{}", 5), Collections.singleton(userId),
+            null));
+
+    busB.close();
+
+    // the user handed off, and user 2 whose sessions left with b
+    assertEquals(2, busA.getOwnedStateCount());
+    assertEquals(1, takeStash(busA, userId).size());
+    assertTrue(takeStash(busA, 2).isEmpty());
+  }
+
+  @Test
+  public void testInvalidateReachesOtherNodes() {
+    busA.invalidate("groups", 5);
+
+    assertEquals("groups:5", nodeB.invalidations.poll());
+    assertTrue(nodeA.invalidations.isEmpty());
+  }
+}
@@ -0,0 +1,52 @@
+package com.neu.prattle.websocket.cluster;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A local node for bus tests that records what it is handed.
+ */
+class RecordingNode implements LocalNode {
+
+  final Set<Integer> users = ConcurrentHashMap.newKeySet();
+  final BlockingQueue<Delivery> deliveries = new LinkedBlockingQueue<>();
+  final BlockingQueue<String> invalidations = new LinkedBlockingQueue<>();
+
+  @Override
+  public void deliver(Delivery delivery) {
+    deliveries.add(delivery);
+  }
+
+  @Override
+  public boolean isConnected(int userId) {
+    return users.contains(userId);
+  }
+
+  @Override
+  public Collection<Integer> getUserIds() {
+    return users;
+  }
+
+  @Override
+  public void invalidated(String cache, int key) {
+    invalidations.add(cache + ":" + key);
+  }
+
+  @Override
+  public void invalidatedAll() {
+    invalidations.add("*");
+  }
+
+  /**
+   * Waits for the next delivery.
+   *
+   * @return the delivery, null if none arrived in time
+   */
+  Delivery next() throws InterruptedException {
+    return deliveries.poll(5, TimeUnit.SECONDS);
+  }
+}
@@ -0,0 +1,87 @@
+package com.neu.prattle.websocket.cluster;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A test class to test the implementation of SessionDirectory class.
+ */
+public class SessionDirectoryTest {
+
+  private final SessionDirectory directory = new SessionDirectory();
+
+  @Test
+  public void testUpdate() {
+    directory.update("a", 1, true);
+    directory.update("b", 1, true);
+    directory.update("b", 2, true);
+
+    assertEquals(new HashSet<>(Arrays.asList("a", "b")), directory.getNodes(1));
+    assertEquals(Collections.singleton("b"), directory.getNodes(2));
+    assertEquals(2, directory.getUserCount());
+
+    directory.update("b", 1, false);
+    directory.update("b", 2, false);
+
+    assertEquals(Collections.singleton("a"), directory.getNodes(1));
+    assertFalse(directory.isConnected(2));
+    assertTrue(directory.getUsers("b").isEmpty());
+  }
+
+  @Test
+  public void testGetNodesOfUsers() {
+    directory.update("a", 1, true);
+    directory.update("b", 2, true);
+    directory.update("c", 3, true);
+
+    assertEquals(new HashSet<>(Arrays.asList("a", "c")),
+            directory.getNodes(Arrays.asList(1, 3, 4)));
+  }
+
+  @Test
+  public void testReplace() {
+    directory.update("a", 1, true);
+    directory.update("a", 2, true);
+
+    directory.replace("a", Arrays.asList(2, 3));
+
+    assertFalse(directory.isConnected(1));
+    assertEquals(new HashSet<>(Arrays.asList(2, 3)), directory.getUsers("a"));
+  }
+
+  @Test
+  public void testRemoveNode() {
+    directory.update("a", 1, true);
+    directory.update("b", 1, true);
+    directory.update("b", 2, true);
+
+    directory.removeNode("b");
+
+    assertEquals(Collections.singleton("a"), directory.getNodes(1));
+    assertFalse(directory.isConnected(2));
+    assertEquals(1, directory.getUserCount());
+  }
+
+  @Test
+  public void testListener() {
+    List<String> changes = new ArrayList<>();
+    directory.setListener((userId, connected) -> changes.add(userId + ":" + connected));
+
+    directory.update("a", 1, true);
+    directory.update("b", 1, true);
+    directory.update("a", 1, false);
+    directory.update("b", 2, true);
+    directory.removeNode("b");
+
+    assertEquals(Arrays.asList("1:true", "2:true", "1:false", "2:false"), changes);
+  }
+}